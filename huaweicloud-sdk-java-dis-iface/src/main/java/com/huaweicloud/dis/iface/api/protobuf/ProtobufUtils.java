@@ -76,7 +76,7 @@ public class ProtobufUtils
             com.huaweicloud.dis.iface.api.protobuf.Message.PutRecordsRequestEntry.Builder ebuilder = com.huaweicloud.dis.iface.api.protobuf.Message.PutRecordsRequestEntry.newBuilder();
             
             if(putRecordsRequestEntry.getData() != null){
-                ebuilder.setData(ByteString.copyFrom(putRecordsRequestEntry.getData().array()));
+                ebuilder.setData(ByteString.copyFrom(putRecordsRequestEntry.getData().duplicate()));
             }
             if(putRecordsRequestEntry.getPartitionKey() != null){
                 ebuilder.setPartitionKey(putRecordsRequestEntry.getPartitionKey());
@@ -208,7 +208,7 @@ public class ProtobufUtils
             }
             
             if(record.getData() != null){
-               rBuilder.setData(ByteString.copyFrom(record.getData().array()));
+               rBuilder.setData(ByteString.copyFrom(record.getData().duplicate()));
             }
 
             if(record.getTimestamp() != null)
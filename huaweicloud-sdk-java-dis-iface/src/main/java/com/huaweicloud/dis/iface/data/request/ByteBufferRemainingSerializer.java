@@ -0,0 +1,57 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.iface.data.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * 将ByteBuffer中position到limit之间的数据序列化为Base64，不改变ByteBuffer的状态。
+ * <p>
+ * Jackson自带的序列化器忽略position与arrayOffset，且只读buffer会从头写出；
+ * 堆内buffer直接写出底层数组的对应区间，direct与只读buffer通过流写出，均不额外复制数据。
+ */
+public class ByteBufferRemainingSerializer extends JsonSerializer<ByteBuffer>
+{
+    @Override
+    public void serialize(ByteBuffer value, JsonGenerator gen, SerializerProvider serializers)
+        throws IOException
+    {
+        if (value.hasArray())
+        {
+            gen.writeBinary(value.array(), value.arrayOffset() + value.position(), value.remaining());
+            return;
+        }
+        ByteBuffer data = value.duplicate();
+        InputStream in = new ByteBufferBackedInputStream(data);
+        try
+        {
+            gen.writeBinary(in, data.remaining());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
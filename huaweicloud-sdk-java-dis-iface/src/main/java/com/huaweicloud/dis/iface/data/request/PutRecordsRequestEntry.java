@@ -22,6 +22,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.huaweicloud.dis.iface.stream.request.ForceStringDeserializer;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -33,6 +34,7 @@ public class PutRecordsRequestEntry
      * 需要上传的数据，不可为空字符串。
      * </p>
      */
+    @JsonSerialize(using = ByteBufferRemainingSerializer.class)
     @JsonProperty("data")
     private ByteBuffer data;
     
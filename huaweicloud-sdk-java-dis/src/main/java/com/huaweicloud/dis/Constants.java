@@ -127,6 +127,11 @@ public interface Constants
      */
     String ERROR_CODE_APP_QUOTA_EXCEEDED = "DIS.4329";
 
+    /**
+     * 客户端错误码: 单条记录的请求体超过服务端上限(HTTP 413)，拆分后仍无法发送
+     */
+    String ERROR_CODE_RECORD_TOO_LARGE = "DIS.CLIENT.413";
+
     /**
      * 错误描述: 时间戳异常 (对应错误码: {@link Constants#ERROR_CODE_REQUEST_ERROR})
      */
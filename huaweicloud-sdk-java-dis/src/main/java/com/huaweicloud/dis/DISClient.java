@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import org.apache.http.HttpRequest;
 import org.slf4j.Logger;
@@ -42,6 +43,15 @@ import com.huaweicloud.dis.iface.app.request.ListStreamConsumingStateRequest;
 import com.huaweicloud.dis.iface.app.response.DescribeAppResult;
 import com.huaweicloud.dis.iface.app.response.ListAppsResult;
 import com.huaweicloud.dis.iface.app.response.ListStreamConsumingStateResult;
+import com.huaweicloud.dis.iface.coordinator.ICoordinatorService;
+import com.huaweicloud.dis.iface.coordinator.request.HeartbeatRequest;
+import com.huaweicloud.dis.iface.coordinator.request.JoinGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.request.LeaveGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.request.SyncGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.response.HeartbeatResponse;
+import com.huaweicloud.dis.iface.coordinator.response.JoinGroupResponse;
+import com.huaweicloud.dis.iface.coordinator.response.LeaveGroupResponse;
+import com.huaweicloud.dis.iface.coordinator.response.SyncGroupResponse;
 import com.huaweicloud.dis.iface.data.request.*;
 import com.huaweicloud.dis.iface.data.response.*;
 import com.huaweicloud.dis.iface.stream.request.*;
@@ -49,11 +59,12 @@ import com.huaweicloud.dis.iface.stream.response.*;
 import com.huaweicloud.dis.iface.transfertask.request.*;
 import com.huaweicloud.dis.iface.transfertask.response.*;
 import com.huaweicloud.dis.util.ExponentialBackOff;
+import com.huaweicloud.dis.util.PutRecordsSplitter;
 import com.huaweicloud.dis.util.Utils;
 import com.huaweicloud.dis.util.cache.CacheResenderThread;
 import com.huaweicloud.dis.util.cache.CacheUtils;
 
-public class DISClient extends AbstractDISClient implements DIS
+public class DISClient extends AbstractDISClient implements DIS, ICoordinatorService
 {
     private static final Logger LOG = LoggerFactory.getLogger(DISClient.class);
 
@@ -189,7 +200,7 @@ public class DISClient extends AbstractDISClient implements DIS
                 
                 try
                 {
-                    putRecordsResult = innerPutRecords(retryPutRecordsRequest);
+                    putRecordsResult = innerPutRecordsSplitting(retryPutRecordsRequest);
                 }
                 catch (Throwable t)
                 {
@@ -279,6 +290,21 @@ public class DISClient extends AbstractDISClient implements DIS
         return putRecordsResult;
     }
     
+    /*
+     * 请求体超过服务端上限(413)时对半拆分后依次发送，结果按原始顺序合并
+     */
+    protected final PutRecordsResult innerPutRecordsSplitting(PutRecordsRequest putRecordsParam)
+    {
+        return PutRecordsSplitter.putRecords(putRecordsParam, new Function<PutRecordsRequest, PutRecordsResult>()
+        {
+            @Override
+            public PutRecordsResult apply(PutRecordsRequest part)
+            {
+                return innerPutRecords(part);
+            }
+        });
+    }
+    
 	/*
 	 * Internal API
 	 */
@@ -834,4 +860,83 @@ public class DISClient extends AbstractDISClient implements DIS
         ListTransferTasksResult result = request(listTransferTasksRquest, request, ListTransferTasksResult.class);
         return result;
     }
+    
+    @Override
+    public JoinGroupResponse handleJoinGroupRequest(JoinGroupRequest joinGroupRequest)
+    {
+        return innerHandleJoinGroupRequest(joinGroupRequest);
+    }
+    
+    protected final JoinGroupResponse innerHandleJoinGroupRequest(JoinGroupRequest joinGroupRequest)
+    {
+        Request<HttpRequest> request =
+            newConsumerRequest(joinGroupRequest.getGroupId(), joinGroupRequest.getClientId(), "join");
+        return request(joinGroupRequest, request, JoinGroupResponse.class);
+    }
+    
+    @Override
+    public SyncGroupResponse handleSyncGroupRequest(SyncGroupRequest syncGroupRequest)
+    {
+        return innerHandleSyncGroupRequest(syncGroupRequest);
+    }
+    
+    protected final SyncGroupResponse innerHandleSyncGroupRequest(SyncGroupRequest syncGroupRequest)
+    {
+        Request<HttpRequest> request =
+            newConsumerRequest(syncGroupRequest.getGroupId(), syncGroupRequest.getClientId(), "sync");
+        return request(syncGroupRequest, request, SyncGroupResponse.class);
+    }
+    
+    @Override
+    public HeartbeatResponse handleHeartbeatRequest(HeartbeatRequest heartbeatRequest)
+    {
+        return innerHandleHeartbeatRequest(heartbeatRequest);
+    }
+    
+    protected final HeartbeatResponse innerHandleHeartbeatRequest(HeartbeatRequest heartbeatRequest)
+    {
+        Request<HttpRequest> request = new DefaultRequest<>(Constants.SERVICENAME);
+        request.setHttpMethod(HttpMethodName.POST);
+        
+        final String resourcePath = ResourcePathBuilder.standard()
+            .withProjectId(disConfig.getProjectId())
+            .withResource(new AppsResource(heartbeatRequest.getGroupId()))
+            .withResource(new ConsumersResource(heartbeatRequest.getClientId()))
+            .withResource(new HeartbeatsResource(null))
+            .build();
+        request.setResourcePath(resourcePath);
+        setEndpoint(request, disConfig.getEndpoint());
+        return request(heartbeatRequest, request, HeartbeatResponse.class);
+    }
+    
+    @Override
+    public void handleLeaveGroupRequest(LeaveGroupRequest leaveGroupRequest)
+    {
+        innerHandleLeaveGroupRequest(leaveGroupRequest);
+    }
+    
+    protected final LeaveGroupResponse innerHandleLeaveGroupRequest(LeaveGroupRequest leaveGroupRequest)
+    {
+        Request<HttpRequest> request =
+            newConsumerRequest(leaveGroupRequest.getGroupId(), leaveGroupRequest.getClientId(), "leave");
+        return request(leaveGroupRequest, request, LeaveGroupResponse.class);
+    }
+    
+    /*
+     * 消费组成员的操作: POST /v2/{project_id}/apps/{group_id}/consumers/{client_id}/{action}
+     */
+    private Request<HttpRequest> newConsumerRequest(String groupId, String clientId, String action)
+    {
+        Request<HttpRequest> request = new DefaultRequest<>(Constants.SERVICENAME);
+        request.setHttpMethod(HttpMethodName.POST);
+        
+        final String resourcePath = ResourcePathBuilder.standard()
+            .withProjectId(disConfig.getProjectId())
+            .withResource(new AppsResource(groupId))
+            .withResource(new ConsumersResource(null, clientId, action))
+            .build();
+        request.setResourcePath(resourcePath);
+        setEndpoint(request, disConfig.getEndpoint());
+        return request;
+    }
 }
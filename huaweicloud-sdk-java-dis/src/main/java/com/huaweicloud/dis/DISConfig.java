@@ -21,6 +21,7 @@ import com.huaweicloud.dis.core.auth.credentials.BasicCredentials;
 import com.huaweicloud.dis.core.auth.credentials.Credentials;
 import com.huaweicloud.dis.core.util.StringUtils;
 import com.huaweicloud.dis.http.Protocol;
+import com.huaweicloud.dis.util.PartitionCursorTypeEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,7 +56,38 @@ public class DISConfig extends Properties implements ClientParams
     
     private static final BodySerializeType DEFAULT_VALUE_BODY_SERIALIZE_TYPE = BodySerializeType.json;
     private static final boolean DEFAULT_VALUE_ORDER_BY_PARTITION = false;
+    private static final boolean DEFAULT_VALUE_PARTITION_AWARE_BATCHING_ENABLED = false;
     private static final int DEFAULT_VALUE_METADATA_TIMEOUT_MS = 600000;
+    private static final boolean DEFAULT_VALUE_ACCUMULATOR_LOCK_FREE = false;
+    private static final boolean DEFAULT_VALUE_BUFFER_POOL_ENABLED = false;
+    private static final boolean DEFAULT_VALUE_BUFFER_POOL_DIRECT = false;
+    private static final int DEFAULT_VALUE_SENDER_THREADS = 1;
+    private static final boolean DEFAULT_VALUE_AGGREGATION_ENABLED = false;
+    private static final int DEFAULT_VALUE_AGGREGATION_MAX_SIZE = 256 * 1024;
+    private static final boolean DEFAULT_VALUE_ADAPTIVE_BATCHING_ENABLED = false;
+    private static final long DEFAULT_VALUE_ADAPTIVE_LINGER_MIN_MS = 0;
+    private static final long DEFAULT_VALUE_ADAPTIVE_LINGER_MAX_MS = 200;
+    private static final long DEFAULT_VALUE_METRICS_REPORT_INTERVAL_MS = 60000;
+    private static final long DEFAULT_VALUE_DELIVERY_TIMEOUT_MS = 0;
+    private static final long DEFAULT_VALUE_RETRY_BACKOFF_MS = 100;
+    private static final int DEFAULT_VALUE_MAX_IN_FLIGHT_BATCHES_PER_PARTITION = 1;
+    private static final boolean DEFAULT_VALUE_RATE_LIMIT_ENABLED = false;
+    private static final int DEFAULT_VALUE_WARMUP_CONNECTIONS = 4;
+    private static final String DEFAULT_VALUE_CONSUMER_CURSOR_TYPE = "LATEST";
+    private static final String DEFAULT_VALUE_CONSUMER_CURSOR_RESET_POLICY = "TRIM_HORIZON";
+    private static final long DEFAULT_VALUE_CONSUMER_CURSOR_REFRESH_INTERVAL_MS = 240000;
+    private static final int DEFAULT_VALUE_CONSUMER_FETCH_LIMIT = 1000;
+    private static final int DEFAULT_VALUE_CONSUMER_PREFETCH_RECORDS = 2000;
+    private static final int DEFAULT_VALUE_CONSUMER_MAX_POLL_RECORDS = 500;
+    private static final long DEFAULT_VALUE_CONSUMER_FETCH_BACKOFF_MS = 200;
+    private static final int DEFAULT_VALUE_CONSUMER_FETCH_MAX_LIMIT = 10000;
+    private static final long DEFAULT_VALUE_CONSUMER_FETCH_MAX_BACKOFF_MS = 3000;
+    private static final int DEFAULT_VALUE_CONSUMER_FETCH_MAX_REQUESTS_PER_SECOND = 0;
+    private static final long DEFAULT_VALUE_CONSUMER_HEARTBEAT_INTERVAL_MS = 10000;
+    private static final boolean DEFAULT_VALUE_CONSUMER_AUTO_COMMIT_ENABLED = false;
+    private static final long DEFAULT_VALUE_CONSUMER_AUTO_COMMIT_INTERVAL_MS = 5000;
+    private static final int DEFAULT_VALUE_CONSUMER_AUTO_COMMIT_RECORDS = 10000;
+    private static final int DEFAULT_VALUE_CONSUMER_MAX_IN_FLIGHT_COMMITS = 4;
 
     private static final int DEFAULT_NIO_IO_THREADS = Runtime.getRuntime().availableProcessors();
     
@@ -133,8 +165,76 @@ public class DISConfig extends Properties implements ClientParams
 
     public static final String PROPERTY_ORDER_BY_PARTITION = "order.by.partition";
 
+    public static final String PROPERTY_PRODUCER_PARTITION_AWARE_BATCHING_ENABLED = "partition.aware.batching.enabled";
+
+    public static final String PROPERTY_PRODUCER_PARTITIONER_CLASS = "partitioner.class";
+
     public static final String PROPERTY_METADATA_TIMEOUT_MS = "metadata.timeout.ms";
 
+    public static final String PROPERTY_PRODUCER_ACCUMULATOR_LOCK_FREE = "accumulator.lock.free";
+
+    public static final String PROPERTY_PRODUCER_BUFFER_POOL_ENABLED = "buffer.pool.enabled";
+
+    public static final String PROPERTY_PRODUCER_BUFFER_POOL_DIRECT = "buffer.pool.direct";
+
+    public static final String PROPERTY_PRODUCER_SENDER_THREADS = "sender.threads";
+
+    public static final String PROPERTY_PRODUCER_AGGREGATION_ENABLED = "records.aggregation.enabled";
+
+    public static final String PROPERTY_PRODUCER_AGGREGATION_MAX_SIZE = "records.aggregation.max.size";
+
+    public static final String PROPERTY_PRODUCER_ADAPTIVE_BATCHING_ENABLED = "adaptive.batching.enabled";
+
+    public static final String PROPERTY_PRODUCER_ADAPTIVE_LINGER_MIN_MS = "adaptive.linger.min.ms";
+
+    public static final String PROPERTY_PRODUCER_ADAPTIVE_LINGER_MAX_MS = "adaptive.linger.max.ms";
+
+    public static final String PROPERTY_PRODUCER_METRICS_REPORTERS = "metrics.reporters";
+
+    public static final String PROPERTY_PRODUCER_METRICS_REPORT_INTERVAL_MS = "metrics.report.interval.ms";
+
+    public static final String PROPERTY_PRODUCER_DELIVERY_TIMEOUT_MS = "delivery.timeout.ms";
+
+    public static final String PROPERTY_PRODUCER_RETRY_BACKOFF_MS = "retry.backoff.ms";
+
+    public static final String PROPERTY_PRODUCER_MAX_IN_FLIGHT_BATCHES_PER_PARTITION = "max.in.flight.batches.per.partition";
+
+    public static final String PROPERTY_PRODUCER_RATE_LIMIT_ENABLED = "rate.limit.enabled";
+
+    public static final String PROPERTY_PRODUCER_WARMUP_CONNECTIONS = "warmup.connections";
+
+    public static final String PROPERTY_CONSUMER_CURSOR_TYPE = "cursor.type";
+
+    public static final String PROPERTY_CONSUMER_CURSOR_RESET_POLICY = "cursor.reset.policy";
+
+    public static final String PROPERTY_CONSUMER_CURSOR_REFRESH_INTERVAL_MS = "cursor.refresh.interval.ms";
+
+    public static final String PROPERTY_CONSUMER_FETCH_LIMIT = "fetch.limit";
+
+    public static final String PROPERTY_CONSUMER_PREFETCH_RECORDS = "prefetch.records.per.partition";
+
+    public static final String PROPERTY_CONSUMER_MAX_POLL_RECORDS = "max.poll.records";
+
+    public static final String PROPERTY_CONSUMER_FETCH_BACKOFF_MS = "fetch.backoff.ms";
+
+    public static final String PROPERTY_CONSUMER_FETCH_MAX_LIMIT = "fetch.max.limit";
+
+    public static final String PROPERTY_CONSUMER_FETCH_MAX_BACKOFF_MS = "fetch.max.backoff.ms";
+
+    public static final String PROPERTY_CONSUMER_FETCH_MAX_REQUESTS_PER_SECOND = "fetch.max.requests.per.second";
+
+    public static final String PROPERTY_CONSUMER_HEARTBEAT_INTERVAL_MS = "heartbeat.interval.ms";
+
+    public static final String PROPERTY_CONSUMER_CLIENT_ID = "client.id";
+
+    public static final String PROPERTY_CONSUMER_AUTO_COMMIT_ENABLED = "auto.commit.enabled";
+
+    public static final String PROPERTY_CONSUMER_AUTO_COMMIT_INTERVAL_MS = "auto.commit.interval.ms";
+
+    public static final String PROPERTY_CONSUMER_AUTO_COMMIT_RECORDS = "auto.commit.records";
+
+    public static final String PROPERTY_CONSUMER_MAX_IN_FLIGHT_COMMITS = "max.in.flight.commits";
+
     public String[] producerRecordsRetriableErrorCode;
 
     private Credentials credentials;
@@ -355,11 +455,430 @@ public class DISConfig extends Properties implements ClientParams
         return getBoolean(PROPERTY_ORDER_BY_PARTITION, DEFAULT_VALUE_ORDER_BY_PARTITION);
     }
 
+    /**
+     * 不要求分片保序时，是否也根据缓存的通道元数据计算每条记录的分片，按实际分片分组批量，同一分片串行发送
+     *
+     * @return {@code true} 按分片分组 {@code false} 整个通道一个批次(默认)
+     */
+    public boolean isPartitionAwareBatchingEnabled()
+    {
+        return getBoolean(PROPERTY_PRODUCER_PARTITION_AWARE_BATCHING_ENABLED, DEFAULT_VALUE_PARTITION_AWARE_BATCHING_ENABLED);
+    }
+
     public long getMetadataTimeoutMs()
     {
         return (long) getInt(PROPERTY_METADATA_TIMEOUT_MS, DEFAULT_VALUE_METADATA_TIMEOUT_MS);
     }
 
+    /**
+     * 是否使用无锁的记录缓冲：追加通过CAS占用当前批次的slot，每个分片使用无锁批次队列，适合大量线程并发写入的场景
+     *
+     * @return {@code true} 无锁模式 {@code false} 加锁模式(默认)
+     */
+    public boolean isAccumulatorLockFree()
+    {
+        return getBoolean(PROPERTY_PRODUCER_ACCUMULATOR_LOCK_FREE, DEFAULT_VALUE_ACCUMULATOR_LOCK_FREE);
+    }
+
+    /**
+     * 是否使用内存池缓冲记录数据：记录数据复制到按规格复用的buffer中。buffer.memory仍只按记录大小限制缓冲的数据，
+     * 内存池本身不限制分配：buffer按2的幂取整，另外缓存的空闲buffer最多为buffer.memory，实际占用的内存可能接近buffer.memory的3倍。
+     * 可以对照指标bufferpool.allocated.bytes与buffer.memory观察实际占用
+     *
+     * @return {@code true} 使用内存池 {@code false} 直接缓冲调用者的数据(默认)
+     */
+    public boolean isBufferPoolEnabled()
+    {
+        return getBoolean(PROPERTY_PRODUCER_BUFFER_POOL_ENABLED, DEFAULT_VALUE_BUFFER_POOL_ENABLED);
+    }
+
+    /**
+     * @return 内存池是否使用堆外内存
+     */
+    public boolean isBufferPoolDirect()
+    {
+        return getBoolean(PROPERTY_PRODUCER_BUFFER_POOL_DIRECT, DEFAULT_VALUE_BUFFER_POOL_DIRECT);
+    }
+
+    /**
+     * Sender线程数，每个Sender负责一部分分片的打包与发送，同一分片始终由同一个Sender发送
+     *
+     * @return Sender线程数
+     */
+    public int getSenderThreads()
+    {
+        int senderThreads = getInt(PROPERTY_PRODUCER_SENDER_THREADS, DEFAULT_VALUE_SENDER_THREADS);
+        if (senderThreads < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_PRODUCER_SENDER_THREADS + " must be at least 1.");
+        }
+        return senderThreads;
+    }
+
+    /**
+     * 是否将同一分片的多条记录聚合成一条DIS记录发送，消费端需要使用{@code RecordDeaggregator}还原
+     *
+     * @return {@code true} 聚合 {@code false} 不聚合(默认)
+     */
+    public boolean isAggregationEnabled()
+    {
+        return getBoolean(PROPERTY_PRODUCER_AGGREGATION_ENABLED, DEFAULT_VALUE_AGGREGATION_ENABLED);
+    }
+
+    /**
+     * 一条聚合记录的最大字节数(包括聚合格式的开销)
+     *
+     * @return 聚合记录最大字节数
+     */
+    public int getAggregationMaxSize()
+    {
+        int maxSize = getInt(PROPERTY_PRODUCER_AGGREGATION_MAX_SIZE, DEFAULT_VALUE_AGGREGATION_MAX_SIZE);
+        if (maxSize < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_PRODUCER_AGGREGATION_MAX_SIZE + " must be at least 1.");
+        }
+        return maxSize;
+    }
+
+    /**
+     * 是否根据每个分片的记录到达速率与请求耗时自适应调整linger与批次阈值；
+     * 开启时linger.ms为初始值，batch.size、batch.count为上限
+     *
+     * @return {@code true} 自适应 {@code false} 固定使用linger.ms、batch.size、batch.count(默认)
+     */
+    public boolean isAdaptiveBatchingEnabled()
+    {
+        return getBoolean(PROPERTY_PRODUCER_ADAPTIVE_BATCHING_ENABLED, DEFAULT_VALUE_ADAPTIVE_BATCHING_ENABLED);
+    }
+
+    /**
+     * @return 自适应批量时linger的下限(ms)
+     */
+    public long getAdaptiveLingerMinMs()
+    {
+        return Long.valueOf(get(PROPERTY_PRODUCER_ADAPTIVE_LINGER_MIN_MS, String.valueOf(DEFAULT_VALUE_ADAPTIVE_LINGER_MIN_MS)));
+    }
+
+    /**
+     * @return 自适应批量时linger的上限(ms)
+     */
+    public long getAdaptiveLingerMaxMs()
+    {
+        return Long.valueOf(get(PROPERTY_PRODUCER_ADAPTIVE_LINGER_MAX_MS, String.valueOf(DEFAULT_VALUE_ADAPTIVE_LINGER_MAX_MS)));
+    }
+
+    /**
+     * @return 指标导出实现类的全限定名，多个用逗号分隔，为空表示不导出
+     */
+    public String[] getMetricsReporters()
+    {
+        String reporters = get(PROPERTY_PRODUCER_METRICS_REPORTERS, null);
+        if (StringUtils.isNullOrEmpty(reporters))
+        {
+            return new String[0];
+        }
+        return reporters.trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * @return 指标导出的间隔(ms)
+     */
+    public long getMetricsReportIntervalMs()
+    {
+        long intervalMs = Long.valueOf(get(PROPERTY_PRODUCER_METRICS_REPORT_INTERVAL_MS,
+            String.valueOf(DEFAULT_VALUE_METRICS_REPORT_INTERVAL_MS)));
+        if (intervalMs < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_PRODUCER_METRICS_REPORT_INTERVAL_MS + " must be at least 1.");
+        }
+        return intervalMs;
+    }
+
+    /**
+     * DISProducer中记录从追加到最终完成的最长时间。大于0时失败记录由DISProducer退避后重发，
+     * 其创建的客户端不再重试记录({@code records.retries}不生效)；超时仍未成功的记录以最后一次的错误结束
+     *
+     * @return 投递超时时间(ms)，0表示不在DISProducer中重试(默认)
+     */
+    public long getDeliveryTimeoutMs()
+    {
+        long timeoutMs = Long.valueOf(get(PROPERTY_PRODUCER_DELIVERY_TIMEOUT_MS, String.valueOf(DEFAULT_VALUE_DELIVERY_TIMEOUT_MS)));
+        return timeoutMs < 0 ? 0 : timeoutMs;
+    }
+
+    /**
+     * 按分片分组批量时，每个分片最多同时在途的批次数。在途批次同时发送，批次失败后该分片停止发送新批次，
+     * 按原始顺序重发失败的批次。分片保序时不生效：并发请求到达服务端的顺序不确定，每个分片同时只发送一个批次
+     *
+     * @return 每个分片的在途批次数，默认1
+     */
+    public int getMaxInFlightBatchesPerPartition()
+    {
+        int maxInFlight = getInt(PROPERTY_PRODUCER_MAX_IN_FLIGHT_BATCHES_PER_PARTITION, DEFAULT_VALUE_MAX_IN_FLIGHT_BATCHES_PER_PARTITION);
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_PRODUCER_MAX_IN_FLIGHT_BATCHES_PER_PARTITION + " must be at least 1.");
+        }
+        return maxInFlight;
+    }
+
+    /**
+     * 分片保序(或按分片分组批量)时，DISProducer是否按通道的分片类型配额限制每个分片的发送速率，
+     * 被服务端流控后自动降速，之后逐步恢复
+     *
+     * @return {@code true} 限速 {@code false} 不限速，默认
+     */
+    public boolean isRateLimitEnabled()
+    {
+        return getBoolean(PROPERTY_PRODUCER_RATE_LIMIT_ENABLED, DEFAULT_VALUE_RATE_LIMIT_ENABLED);
+    }
+
+    /**
+     * DISProducer预热({@code start})时同时发出的元数据请求数，每个并发请求在连接池中建立一个连接并完成TLS握手，
+     * 不超过{@link #getMaxPerRoute()}与{@link #getMaxInFlightRequestsPerConnection()}
+     *
+     * @return 预热的连接数，默认4
+     */
+    public int getWarmupConnections()
+    {
+        int connections = getInt(PROPERTY_PRODUCER_WARMUP_CONNECTIONS, DEFAULT_VALUE_WARMUP_CONNECTIONS);
+        if (connections < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_PRODUCER_WARMUP_CONNECTIONS + " must be at least 1.");
+        }
+        return Math.min(connections, Math.min(getMaxPerRoute(), getMaxInFlightRequestsPerConnection()));
+    }
+
+    /**
+     * DISConsumer新分配的分片从哪里开始消费，只能是TRIM_HORIZON(最早的数据)或LATEST(最新的数据)。
+     * 配置了group.id且该消费组已提交checkpoint时从checkpoint之后开始，不使用该配置
+     *
+     * @return 游标类型，默认LATEST
+     */
+    public PartitionCursorTypeEnum getConsumerCursorType()
+    {
+        PartitionCursorTypeEnum cursorType =
+            PartitionCursorTypeEnum.valueOf(get(PROPERTY_CONSUMER_CURSOR_TYPE, DEFAULT_VALUE_CONSUMER_CURSOR_TYPE));
+        if (cursorType != PartitionCursorTypeEnum.TRIM_HORIZON && cursorType != PartitionCursorTypeEnum.LATEST)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_CURSOR_TYPE + " must be TRIM_HORIZON or LATEST.");
+        }
+        return cursorType;
+    }
+
+    /**
+     * DISConsumer要获取的序列号已超出有效范围(数据已老化删除)时从哪里重新开始：TRIM_HORIZON(最早的数据)、LATEST(最新的数据)，
+     * 或NONE(不重新开始，由poll抛出异常)。游标过期时总是从最后取回的记录之后继续，不受此配置影响
+     *
+     * @return 重新开始的游标类型，NONE时为null，默认TRIM_HORIZON
+     */
+    public PartitionCursorTypeEnum getConsumerCursorResetPolicy()
+    {
+        String policy = get(PROPERTY_CONSUMER_CURSOR_RESET_POLICY, DEFAULT_VALUE_CONSUMER_CURSOR_RESET_POLICY);
+        if ("NONE".equals(policy))
+        {
+            return null;
+        }
+        if (!PartitionCursorTypeEnum.TRIM_HORIZON.name().equals(policy)
+            && !PartitionCursorTypeEnum.LATEST.name().equals(policy))
+        {
+            throw new IllegalArgumentException(
+                PROPERTY_CONSUMER_CURSOR_RESET_POLICY + " must be TRIM_HORIZON, LATEST or NONE.");
+        }
+        return PartitionCursorTypeEnum.valueOf(policy);
+    }
+
+    /**
+     * DISConsumer的游标获取后超过该时间(ms)未使用(如预取缓冲已满)时在后台提前刷新，应小于服务端游标的有效期(5分钟)
+     *
+     * @return 刷新间隔，默认240000
+     */
+    public long getConsumerCursorRefreshIntervalMs()
+    {
+        long intervalMs = Long.valueOf(get(PROPERTY_CONSUMER_CURSOR_REFRESH_INTERVAL_MS,
+            String.valueOf(DEFAULT_VALUE_CONSUMER_CURSOR_REFRESH_INTERVAL_MS)));
+        if (intervalMs < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_CURSOR_REFRESH_INTERVAL_MS + " must be at least 1.");
+        }
+        return intervalMs;
+    }
+
+    /**
+     * @return DISConsumer的分片已追上最新数据时每个getRecords请求最多获取的记录数，默认1000
+     */
+    public int getConsumerFetchLimit()
+    {
+        int limit = getInt(PROPERTY_CONSUMER_FETCH_LIMIT, DEFAULT_VALUE_CONSUMER_FETCH_LIMIT);
+        if (limit < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_FETCH_LIMIT + " must be at least 1.");
+        }
+        return limit;
+    }
+
+    /**
+     * DISConsumer每个分片预取缓冲的记录数上限，缓冲未满时才会发出下一个getRecords请求
+     *
+     * @return 每个分片预取的记录数，默认2000
+     */
+    public int getConsumerPrefetchRecords()
+    {
+        int records = getInt(PROPERTY_CONSUMER_PREFETCH_RECORDS, DEFAULT_VALUE_CONSUMER_PREFETCH_RECORDS);
+        if (records < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_PREFETCH_RECORDS + " must be at least 1.");
+        }
+        return records;
+    }
+
+    /**
+     * @return DISConsumer每次poll最多返回的记录数，默认500
+     */
+    public int getConsumerMaxPollRecords()
+    {
+        int records = getInt(PROPERTY_CONSUMER_MAX_POLL_RECORDS, DEFAULT_VALUE_CONSUMER_MAX_POLL_RECORDS);
+        if (records < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_MAX_POLL_RECORDS + " must be at least 1.");
+        }
+        return records;
+    }
+
+    /**
+     * DISConsumer的分片没有新数据时首次等待多久(ms)再次获取，之后连续没有新数据时翻倍，最长{@link #getConsumerFetchMaxBackoffMs()}；
+     * 也是请求可重试地失败后的等待时间
+     *
+     * @return 退避时间，默认200
+     */
+    public long getConsumerFetchBackoffMs()
+    {
+        long backoffMs =
+            Long.valueOf(get(PROPERTY_CONSUMER_FETCH_BACKOFF_MS, String.valueOf(DEFAULT_VALUE_CONSUMER_FETCH_BACKOFF_MS)));
+        return backoffMs < 0 ? 0 : backoffMs;
+    }
+
+    /**
+     * DISConsumer的分片落后于最新数据(millisBehindLatest大于0)时每个getRecords请求最多获取的记录数，不小于fetch.limit时才生效
+     *
+     * @return 每个请求的记录数上限，默认10000
+     */
+    public int getConsumerFetchMaxLimit()
+    {
+        int limit = getInt(PROPERTY_CONSUMER_FETCH_MAX_LIMIT, DEFAULT_VALUE_CONSUMER_FETCH_MAX_LIMIT);
+        if (limit < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_FETCH_MAX_LIMIT + " must be at least 1.");
+        }
+        return limit;
+    }
+
+    /**
+     * @return DISConsumer的分片连续没有新数据时退避时间的上限(ms)，默认3000
+     */
+    public long getConsumerFetchMaxBackoffMs()
+    {
+        long backoffMs = Long.valueOf(
+            get(PROPERTY_CONSUMER_FETCH_MAX_BACKOFF_MS, String.valueOf(DEFAULT_VALUE_CONSUMER_FETCH_MAX_BACKOFF_MS)));
+        return backoffMs < 0 ? 0 : backoffMs;
+    }
+
+    /**
+     * DISConsumer所有分片每秒getRecords请求数的上限，按分片落后的程度分配，落后越多的分片分得越多
+     *
+     * @return 每秒请求数上限，0表示不限制，默认0
+     */
+    public int getConsumerFetchMaxRequestsPerSecond()
+    {
+        int requests = getInt(PROPERTY_CONSUMER_FETCH_MAX_REQUESTS_PER_SECOND,
+            DEFAULT_VALUE_CONSUMER_FETCH_MAX_REQUESTS_PER_SECOND);
+        if (requests < 0)
+        {
+            throw new IllegalArgumentException(
+                PROPERTY_CONSUMER_FETCH_MAX_REQUESTS_PER_SECOND + " must be at least 0.");
+        }
+        return requests;
+    }
+
+    /**
+     * @return DISConsumer加入消费组后向协调服务发送心跳的间隔(ms)，默认10000
+     */
+    public long getConsumerHeartbeatIntervalMs()
+    {
+        long intervalMs = Long.valueOf(
+            get(PROPERTY_CONSUMER_HEARTBEAT_INTERVAL_MS, String.valueOf(DEFAULT_VALUE_CONSUMER_HEARTBEAT_INTERVAL_MS)));
+        if (intervalMs < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_HEARTBEAT_INTERVAL_MS + " must be at least 1.");
+        }
+        return intervalMs;
+    }
+
+    /**
+     * @return DISConsumer在消费组中的成员ID，未配置时返回null，由DISConsumer随机生成
+     */
+    public String getConsumerClientId()
+    {
+        return get(PROPERTY_CONSUMER_CLIENT_ID, null);
+    }
+
+    /**
+     * DISConsumer是否自动提交checkpoint(app为group.id)：上一次poll返回的记录在下一次poll时视为已处理，
+     * 在后台按间隔或记录数异步提交，分片被收回或关闭时同步提交
+     *
+     * @return 是否自动提交，默认false
+     */
+    public boolean isConsumerAutoCommitEnabled()
+    {
+        return getBoolean(PROPERTY_CONSUMER_AUTO_COMMIT_ENABLED, DEFAULT_VALUE_CONSUMER_AUTO_COMMIT_ENABLED);
+    }
+
+    /**
+     * @return 自动提交checkpoint的间隔(ms)，默认5000
+     */
+    public long getConsumerAutoCommitIntervalMs()
+    {
+        long intervalMs = Long.valueOf(get(PROPERTY_CONSUMER_AUTO_COMMIT_INTERVAL_MS,
+            String.valueOf(DEFAULT_VALUE_CONSUMER_AUTO_COMMIT_INTERVAL_MS)));
+        if (intervalMs < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_AUTO_COMMIT_INTERVAL_MS + " must be at least 1.");
+        }
+        return intervalMs;
+    }
+
+    /**
+     * @return 累计处理多少条记录后不等间隔立即提交checkpoint，0表示只按间隔提交，默认10000
+     */
+    public int getConsumerAutoCommitRecords()
+    {
+        int records = getInt(PROPERTY_CONSUMER_AUTO_COMMIT_RECORDS, DEFAULT_VALUE_CONSUMER_AUTO_COMMIT_RECORDS);
+        return records < 0 ? 0 : records;
+    }
+
+    /**
+     * @return 同时进行中的异步checkpoint提交请求数上限，默认4
+     */
+    public int getConsumerMaxInFlightCommits()
+    {
+        int maxInFlight = getInt(PROPERTY_CONSUMER_MAX_IN_FLIGHT_COMMITS, DEFAULT_VALUE_CONSUMER_MAX_IN_FLIGHT_COMMITS);
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException(PROPERTY_CONSUMER_MAX_IN_FLIGHT_COMMITS + " must be at least 1.");
+        }
+        return maxInFlight;
+    }
+
+    /**
+     * @return DISProducer第一次重试前的退避时间(ms)，之后每次翻倍，不超过{@link #getBackOffMaxIntervalMs()}；
+     * DISConsumer的消费组协调请求失败或需要等待时，也按该间隔重试
+     */
+    public long getRetryBackoffMs()
+    {
+        long backoffMs = Long.valueOf(get(PROPERTY_PRODUCER_RETRY_BACKOFF_MS, String.valueOf(DEFAULT_VALUE_RETRY_BACKOFF_MS)));
+        return backoffMs < 1 ? 1 : backoffMs;
+    }
+
     /**
      * @return 批量发送延迟时间
      */
@@ -714,6 +1233,187 @@ public class DISConfig extends Properties implements ClientParams
         return set(PROPERTY_PRODUCER_RECORDS_RETRIES, String.valueOf(retries));
     }
     
+    public DISConfig setAccumulatorLockFree(boolean lockFree)
+    {
+        return set(PROPERTY_PRODUCER_ACCUMULATOR_LOCK_FREE, String.valueOf(lockFree));
+    }
+    
+    public DISConfig setBufferPoolEnabled(boolean enabled)
+    {
+        return set(PROPERTY_PRODUCER_BUFFER_POOL_ENABLED, String.valueOf(enabled));
+    }
+    
+    public DISConfig setBufferPoolDirect(boolean direct)
+    {
+        return set(PROPERTY_PRODUCER_BUFFER_POOL_DIRECT, String.valueOf(direct));
+    }
+    
+    public DISConfig setPartitionAwareBatchingEnabled(boolean enabled)
+    {
+        return set(PROPERTY_PRODUCER_PARTITION_AWARE_BATCHING_ENABLED, String.valueOf(enabled));
+    }
+    
+    /**
+     * 设置分片策略，例如{@code com.huaweicloud.dis.producer.StickyPartitioner}
+     *
+     * @param partitionerClass {@code com.huaweicloud.dis.producer.Partitioner}实现类的全限定名
+     * @return DISConfig
+     */
+    public DISConfig setPartitionerClass(String partitionerClass)
+    {
+        return set(PROPERTY_PRODUCER_PARTITIONER_CLASS, partitionerClass);
+    }
+    
+    public DISConfig setAggregationEnabled(boolean enabled)
+    {
+        return set(PROPERTY_PRODUCER_AGGREGATION_ENABLED, String.valueOf(enabled));
+    }
+    
+    public DISConfig setAggregationMaxSize(int maxSize)
+    {
+        return set(PROPERTY_PRODUCER_AGGREGATION_MAX_SIZE, String.valueOf(maxSize));
+    }
+    
+    public DISConfig setAdaptiveBatchingEnabled(boolean enabled)
+    {
+        return set(PROPERTY_PRODUCER_ADAPTIVE_BATCHING_ENABLED, String.valueOf(enabled));
+    }
+    
+    public DISConfig setAdaptiveLingerBounds(long minLingerMs, long maxLingerMs)
+    {
+        set(PROPERTY_PRODUCER_ADAPTIVE_LINGER_MIN_MS, String.valueOf(minLingerMs));
+        return set(PROPERTY_PRODUCER_ADAPTIVE_LINGER_MAX_MS, String.valueOf(maxLingerMs));
+    }
+    
+    /**
+     * 设置指标导出，例如{@code com.huaweicloud.dis.util.metrics.LogMetricsReporter}
+     *
+     * @param reporterClasses {@code com.huaweicloud.dis.util.metrics.MetricsReporter}实现类的全限定名，多个用逗号分隔
+     * @return DISConfig
+     */
+    public DISConfig setMetricsReporters(String reporterClasses)
+    {
+        return set(PROPERTY_PRODUCER_METRICS_REPORTERS, reporterClasses);
+    }
+    
+    public DISConfig setMetricsReportIntervalMs(long intervalMs)
+    {
+        return set(PROPERTY_PRODUCER_METRICS_REPORT_INTERVAL_MS, String.valueOf(intervalMs));
+    }
+    
+    public DISConfig setDeliveryTimeoutMs(long deliveryTimeoutMs)
+    {
+        return set(PROPERTY_PRODUCER_DELIVERY_TIMEOUT_MS, String.valueOf(deliveryTimeoutMs));
+    }
+    
+    public DISConfig setRetryBackoffMs(long retryBackoffMs)
+    {
+        return set(PROPERTY_PRODUCER_RETRY_BACKOFF_MS, String.valueOf(retryBackoffMs));
+    }
+    
+    public DISConfig setMaxInFlightBatchesPerPartition(int maxInFlight)
+    {
+        return set(PROPERTY_PRODUCER_MAX_IN_FLIGHT_BATCHES_PER_PARTITION, String.valueOf(maxInFlight));
+    }
+    
+    public DISConfig setRateLimitEnabled(boolean enabled)
+    {
+        return set(PROPERTY_PRODUCER_RATE_LIMIT_ENABLED, String.valueOf(enabled));
+    }
+    
+    public DISConfig setWarmupConnections(int connections)
+    {
+        return set(PROPERTY_PRODUCER_WARMUP_CONNECTIONS, String.valueOf(connections));
+    }
+    
+    public DISConfig setConsumerCursorType(PartitionCursorTypeEnum cursorType)
+    {
+        return set(PROPERTY_CONSUMER_CURSOR_TYPE, cursorType.name());
+    }
+    
+    /**
+     * @param policy TRIM_HORIZON或LATEST，为null时不自动重新开始
+     */
+    public DISConfig setConsumerCursorResetPolicy(PartitionCursorTypeEnum policy)
+    {
+        return set(PROPERTY_CONSUMER_CURSOR_RESET_POLICY, policy == null ? "NONE" : policy.name());
+    }
+    
+    public DISConfig setConsumerCursorRefreshIntervalMs(long intervalMs)
+    {
+        return set(PROPERTY_CONSUMER_CURSOR_REFRESH_INTERVAL_MS, String.valueOf(intervalMs));
+    }
+    
+    public DISConfig setConsumerFetchLimit(int limit)
+    {
+        return set(PROPERTY_CONSUMER_FETCH_LIMIT, String.valueOf(limit));
+    }
+    
+    public DISConfig setConsumerPrefetchRecords(int records)
+    {
+        return set(PROPERTY_CONSUMER_PREFETCH_RECORDS, String.valueOf(records));
+    }
+    
+    public DISConfig setConsumerMaxPollRecords(int records)
+    {
+        return set(PROPERTY_CONSUMER_MAX_POLL_RECORDS, String.valueOf(records));
+    }
+    
+    public DISConfig setConsumerFetchBackoffMs(long backoffMs)
+    {
+        return set(PROPERTY_CONSUMER_FETCH_BACKOFF_MS, String.valueOf(backoffMs));
+    }
+    
+    public DISConfig setConsumerFetchMaxLimit(int limit)
+    {
+        return set(PROPERTY_CONSUMER_FETCH_MAX_LIMIT, String.valueOf(limit));
+    }
+    
+    public DISConfig setConsumerFetchMaxBackoffMs(long backoffMs)
+    {
+        return set(PROPERTY_CONSUMER_FETCH_MAX_BACKOFF_MS, String.valueOf(backoffMs));
+    }
+    
+    public DISConfig setConsumerFetchMaxRequestsPerSecond(int requests)
+    {
+        return set(PROPERTY_CONSUMER_FETCH_MAX_REQUESTS_PER_SECOND, String.valueOf(requests));
+    }
+    
+    public DISConfig setConsumerHeartbeatIntervalMs(long intervalMs)
+    {
+        return set(PROPERTY_CONSUMER_HEARTBEAT_INTERVAL_MS, String.valueOf(intervalMs));
+    }
+    
+    public DISConfig setConsumerClientId(String clientId)
+    {
+        return set(PROPERTY_CONSUMER_CLIENT_ID, clientId);
+    }
+    
+    public DISConfig setConsumerAutoCommitEnabled(boolean enabled)
+    {
+        return set(PROPERTY_CONSUMER_AUTO_COMMIT_ENABLED, String.valueOf(enabled));
+    }
+    
+    public DISConfig setConsumerAutoCommitIntervalMs(long intervalMs)
+    {
+        return set(PROPERTY_CONSUMER_AUTO_COMMIT_INTERVAL_MS, String.valueOf(intervalMs));
+    }
+    
+    public DISConfig setConsumerAutoCommitRecords(int records)
+    {
+        return set(PROPERTY_CONSUMER_AUTO_COMMIT_RECORDS, String.valueOf(records));
+    }
+    
+    public DISConfig setConsumerMaxInFlightCommits(int maxInFlight)
+    {
+        return set(PROPERTY_CONSUMER_MAX_IN_FLIGHT_COMMITS, String.valueOf(maxInFlight));
+    }
+    
+    public DISConfig setSenderThreads(int senderThreads)
+    {
+        return set(PROPERTY_PRODUCER_SENDER_THREADS, String.valueOf(senderThreads));
+    }
+    
     public DISConfig setNIOIOThreads(int ioThreads) {
     	return set(PROPERTY_NIO_IO_THREADS, String.valueOf(ioThreads));
     }
@@ -14,7 +14,7 @@
  * limitations under the License.
  */
 
-package com.huaweicloud.dis.producer.internals;
+package com.huaweicloud.dis;
 
 import java.io.Serializable;
 
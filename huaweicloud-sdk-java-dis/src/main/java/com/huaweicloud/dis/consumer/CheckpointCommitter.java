@@ -0,0 +1,448 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.data.request.CommitCheckpointRequest;
+import com.huaweicloud.dis.iface.data.response.CommitCheckpointResult;
+import com.huaweicloud.dis.util.CheckpointTypeEnum;
+
+/**
+ * 批量合并的异步checkpoint提交：记录每个分片最新已处理的序列号，多次更新只提交最新的一个；
+ * 后台按间隔或累计记录数异步提交，同时进行中的提交请求数有上限，每个分片同时最多一个提交，新的提交不会被旧的覆盖。
+ * 分片被收回或关闭时通过{@link #commitSync}同步提交。
+ */
+public class CheckpointCommitter
+{
+    private static final Logger log = LoggerFactory.getLogger(CheckpointCommitter.class);
+    
+    private final DISAsync disAsync;
+    
+    private final String appName;
+    
+    private final int commitRecords;
+    
+    private final int maxInFlight;
+    
+    private final ScheduledExecutorService scheduler;
+    
+    private final Runnable commitTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            commitAsync();
+        }
+    };
+    
+    // 以下字段由this保护
+    private final Map<StreamPartition, PartitionCheckpoint> checkpoints = new LinkedHashMap<>();
+    
+    private int inFlight;
+    
+    private long uncommittedRecords;
+    
+    private boolean commitScheduled;
+    
+    // 上一轮因达到inFlight上限而有分片未提交，有提交完成时再提交一轮
+    private boolean throttled;
+    
+    // 轮转起始位置，避免排在前面的分片一直占用提交请求
+    private int nextPartition;
+    
+    private boolean closed;
+    
+    /**
+     * @param disAsync DIS客户端
+     * @param appName checkpoint所属的app
+     * @param intervalMs 异步提交的间隔(ms)，不大于0时只在commitSync时提交
+     * @param commitRecords 累计更新多少条记录后立即异步提交，0表示只按间隔提交
+     * @param maxInFlight 同时进行中的异步提交请求数上限
+     */
+    public CheckpointCommitter(DISAsync disAsync, String appName, long intervalMs, int commitRecords, int maxInFlight)
+    {
+        this.disAsync = disAsync;
+        this.appName = appName;
+        this.commitRecords = intervalMs > 0 ? commitRecords : 0;
+        this.maxInFlight = maxInFlight;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "DIS Checkpoint Committer " + CheckpointCommitter.this.appName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (intervalMs > 0)
+        {
+            scheduler.scheduleWithFixedDelay(commitTask, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * 记录分片最新已处理的序列号，计为一条记录
+     */
+    public void update(StreamPartition partition, String sequenceNumber)
+    {
+        update(partition, sequenceNumber, 1);
+    }
+    
+    /**
+     * 记录分片最新已处理的序列号，覆盖尚未提交的旧值
+     *
+     * @param partition 分片
+     * @param sequenceNumber 已处理的最后一条记录的序列号
+     * @param records 本次处理的记录数，用于按记录数触发提交
+     */
+    public void update(StreamPartition partition, String sequenceNumber, int records)
+    {
+        synchronized (this)
+        {
+            ensureOpen();
+            PartitionCheckpoint checkpoint = checkpoints.get(partition);
+            if (checkpoint == null)
+            {
+                checkpoint = new PartitionCheckpoint(partition);
+                checkpoints.put(partition, checkpoint);
+            }
+            checkpoint.latest = sequenceNumber;
+            uncommittedRecords += records;
+            if (commitRecords <= 0 || uncommittedRecords < commitRecords || commitScheduled)
+            {
+                return;
+            }
+            commitScheduled = true;
+        }
+        try
+        {
+            scheduler.execute(commitTask);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // 已关闭
+        }
+    }
+    
+    /**
+     * 不再跟踪这些分片(如分片被收回并已同步提交后)，其进行中的提交仍会完成
+     */
+    public synchronized void remove(Collection<StreamPartition> partitions)
+    {
+        checkpoints.keySet().removeAll(partitions);
+    }
+    
+    /**
+     * 同步提交所有分片尚未提交的最新序列号
+     *
+     * @see #commitSync(Collection, long)
+     */
+    public void commitSync(long timeoutMs)
+        throws InterruptedException
+    {
+        List<StreamPartition> partitions;
+        synchronized (this)
+        {
+            partitions = new ArrayList<>(checkpoints.keySet());
+        }
+        commitSync(partitions, timeoutMs);
+    }
+    
+    /**
+     * 同步提交指定分片尚未提交的最新序列号：先等待这些分片进行中的异步提交完成，再立即提交，不受inFlight上限限制
+     *
+     * @param partitions 分片
+     * @param timeoutMs 最长等待时间(ms)
+     * @throws DISClientException 提交失败或超时
+     * @throws InterruptedException 等待时被中断
+     */
+    public void commitSync(Collection<StreamPartition> partitions, long timeoutMs)
+        throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        long deadline = timeoutMs > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMs;
+        List<Commit> commits = new ArrayList<>();
+        synchronized (this)
+        {
+            // 先等待所有分片进行中的提交完成再发出新的提交，超时时不会留下已登记但未发出的提交
+            StreamPartition pending;
+            while ((pending = firstInFlight(partitions)) != null)
+            {
+                awaitUntil(deadline, pending);
+            }
+            for (StreamPartition partition : partitions)
+            {
+                PartitionCheckpoint checkpoint = checkpoints.get(partition);
+                if (checkpoint != null && checkpoint.isDirty())
+                {
+                    commits.add(newCommit(checkpoint));
+                }
+            }
+        }
+        for (Commit commit : commits)
+        {
+            send(commit);
+        }
+        synchronized (this)
+        {
+            for (Commit commit : commits)
+            {
+                while (!commit.done)
+                {
+                    awaitUntil(deadline, commit.partition);
+                }
+                if (commit.error != null)
+                {
+                    throw new DISClientException("Failed to commit checkpoint of " + commit.partition, commit.error);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 停止后台提交并同步提交所有分片，失败时只记录日志
+     */
+    public void close(long timeoutMs)
+    {
+        scheduler.shutdownNow();
+        try
+        {
+            commitSync(timeoutMs);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (DISClientException e)
+        {
+            log.error("Failed to commit checkpoints of app " + appName + " on close.", e);
+        }
+        synchronized (this)
+        {
+            closed = true;
+        }
+    }
+    
+    private void ensureOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("This checkpoint committer has already been closed.");
+        }
+    }
+    
+    private StreamPartition firstInFlight(Collection<StreamPartition> partitions)
+    {
+        for (StreamPartition partition : partitions)
+        {
+            PartitionCheckpoint checkpoint = checkpoints.get(partition);
+            if (checkpoint != null && checkpoint.commit != null)
+            {
+                return partition;
+            }
+        }
+        return null;
+    }
+    
+    private void awaitUntil(long deadline, StreamPartition partition)
+        throws InterruptedException
+    {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+            throw new DISClientException("Timed out committing checkpoint of " + partition);
+        }
+        wait(remaining);
+    }
+    
+    /*
+     * 轮流为有新序列号且没有进行中提交的分片发出提交，直到达到inFlight上限
+     */
+    private void commitAsync()
+    {
+        List<Commit> commits = new ArrayList<>();
+        synchronized (this)
+        {
+            commitScheduled = false;
+            throttled = false;
+            uncommittedRecords = 0;
+            List<PartitionCheckpoint> all = new ArrayList<>(checkpoints.values());
+            int size = all.size();
+            int start = size == 0 ? 0 : nextPartition % size;
+            nextPartition = start + 1;
+            for (int i = 0; i < size; i++)
+            {
+                PartitionCheckpoint checkpoint = all.get((start + i) % size);
+                if (checkpoint.commit != null || !checkpoint.isDirty())
+                {
+                    continue;
+                }
+                if (inFlight >= maxInFlight)
+                {
+                    throttled = true;
+                    break;
+                }
+                commits.add(newCommit(checkpoint));
+            }
+        }
+        for (Commit commit : commits)
+        {
+            send(commit);
+        }
+    }
+    
+    private Commit newCommit(PartitionCheckpoint checkpoint)
+    {
+        Commit commit = new Commit(checkpoint, checkpoint.latest);
+        checkpoint.commit = commit;
+        inFlight++;
+        return commit;
+    }
+    
+    private void send(final Commit commit)
+    {
+        CommitCheckpointRequest request = new CommitCheckpointRequest();
+        request.setAppName(appName);
+        request.setCheckpointType(CheckpointTypeEnum.LAST_READ.name());
+        request.setStreamName(commit.partition.topic());
+        request.setPartitionId(commit.partition.partition());
+        request.setSequenceNumber(commit.sequenceNumber);
+        try
+        {
+            disAsync.commitCheckpointAsync(request, new AsyncHandler<CommitCheckpointResult>()
+            {
+                @Override
+                public void onSuccess(CommitCheckpointResult result)
+                {
+                    complete(commit, null);
+                }
+                
+                @Override
+                public void onError(Exception exception)
+                {
+                    complete(commit, exception);
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            complete(commit, e);
+        }
+    }
+    
+    private void complete(Commit commit, Exception error)
+    {
+        boolean resume;
+        synchronized (this)
+        {
+            if (commit.done)
+            {
+                return;
+            }
+            commit.done = true;
+            commit.error = error;
+            commit.checkpoint.commit = null;
+            inFlight--;
+            if (error == null)
+            {
+                commit.checkpoint.committed = commit.sequenceNumber;
+            }
+            notifyAll();
+            resume = throttled && !closed;
+            throttled = false;
+        }
+        if (error != null)
+        {
+            // 序列号保持未提交，下一轮重试
+            log.warn("Failed to commit checkpoint {} of {} for app {}: {}", commit.sequenceNumber, commit.partition,
+                appName, error.getMessage());
+        }
+        if (resume)
+        {
+            try
+            {
+                scheduler.execute(commitTask);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // 已关闭
+            }
+        }
+    }
+    
+    private static final class PartitionCheckpoint
+    {
+        final StreamPartition partition;
+        
+        // 最新已处理的序列号
+        String latest;
+        
+        // 已成功提交的序列号
+        String committed;
+        
+        // 进行中的提交
+        Commit commit;
+        
+        PartitionCheckpoint(StreamPartition partition)
+        {
+            this.partition = partition;
+        }
+        
+        boolean isDirty()
+        {
+            return latest != null && !latest.equals(committed);
+        }
+    }
+    
+    private static final class Commit
+    {
+        final PartitionCheckpoint checkpoint;
+        
+        final StreamPartition partition;
+        
+        final String sequenceNumber;
+        
+        boolean done;
+        
+        Exception error;
+        
+        Commit(PartitionCheckpoint checkpoint, String sequenceNumber)
+        {
+            this.checkpoint = checkpoint;
+            this.partition = checkpoint.partition;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+}
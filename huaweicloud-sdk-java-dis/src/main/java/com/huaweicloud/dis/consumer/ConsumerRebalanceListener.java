@@ -0,0 +1,44 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer;
+
+import java.util.Collection;
+
+import com.huaweicloud.dis.StreamPartition;
+
+/**
+ * 消费组重新分配分片时的通知，通过{@link DISConsumer#subscribe(Collection, ConsumerRebalanceListener)}设置。
+ * <p>
+ * 回调在调用{@link DISConsumer#poll(long)}的线程中、两批数据之间执行，此时被收回分片的数据已处理完，
+ * 可以在onPartitionsRevoked中提交这些分片的checkpoint；开启自动提交时，回调之前已经同步提交过。
+ */
+public interface ConsumerRebalanceListener
+{
+    /**
+     * 分片将不再由当前消费者消费，在停止获取这些分片之前调用
+     *
+     * @param partitions 被收回的分片
+     */
+    void onPartitionsRevoked(Collection<StreamPartition> partitions);
+    
+    /**
+     * 新分配的分片，在开始获取这些分片之后调用
+     *
+     * @param partitions 新分配的分片
+     */
+    void onPartitionsAssigned(Collection<StreamPartition> partitions);
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.response.Record;
+
+/**
+ * 一次{@link DISConsumer#poll(long)}返回的记录，按分片分组，每个分片内的记录按序列号递增
+ */
+public class ConsumerRecords
+{
+    private final Map<StreamPartition, List<Record>> records;
+    
+    private final int count;
+    
+    public ConsumerRecords(Map<StreamPartition, List<Record>> records)
+    {
+        this.records = records;
+        int count = 0;
+        for (List<Record> partitionRecords : records.values())
+        {
+            count += partitionRecords.size();
+        }
+        this.count = count;
+    }
+    
+    /**
+     * @return 有记录返回的分片
+     */
+    public Set<StreamPartition> partitions()
+    {
+        return Collections.unmodifiableSet(records.keySet());
+    }
+    
+    /**
+     * @param partition 分片
+     * @return 该分片的记录，没有时返回空列表
+     */
+    public List<Record> records(StreamPartition partition)
+    {
+        List<Record> partitionRecords = records.get(partition);
+        return partitionRecords == null ? Collections.<Record> emptyList()
+            : Collections.unmodifiableList(partitionRecords);
+    }
+    
+    public int count()
+    {
+        return count;
+    }
+    
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.DISClient;
+import com.huaweicloud.dis.DISClientAsync2;
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.consumer.internals.ConsumerCoordinator;
+import com.huaweicloud.dis.consumer.internals.CursorManager;
+import com.huaweicloud.dis.consumer.internals.FetchScheduler;
+import com.huaweicloud.dis.consumer.internals.Fetcher;
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.coordinator.ICoordinatorService;
+import com.huaweicloud.dis.iface.data.response.Record;
+
+/**
+ * 数据消费者高层次封装：每个分片维护自己的游标，在后台异步预取数据到有界缓冲，{@link #poll(long)}从缓冲获取，
+ * 处理数据的同时下一批数据已在获取中，吞吐接近获取与处理两者中较慢的一方，而不是两者耗时之和。
+ * <p>
+ * 分片可以通过{@link #assign(Collection)}手工指定，也可以通过{@link #subscribe(Collection)}加入消费组(group.id)，
+ * 由协调服务在组内成员之间分配并在成员变化时重新分配。
+ * <p>
+ * 配置了group.id时可以以其为app提交checkpoint：手工调用{@link #commitSync()}，或开启auto.commit.enabled自动提交；
+ * 新分配的分片从该app已提交的checkpoint之后开始，没有checkpoint时才从cursor.type开始。
+ * <p>
+ * 落后于最新数据的分片立即以较大的limit连续获取，已追上的分片没有新数据时指数退避，
+ * 可以通过fetch.max.requests.per.second限制总请求数，按落后程度分给各分片。
+ * <p>
+ * 游标过期时自动从最后取回的记录之后重新获取，数据已老化时按cursor.reset.policy重新开始，均在后台完成，不会阻塞poll。
+ * <p>
+ * 非线程安全：同一时刻只能由一个线程调用，另一个线程并发调用时抛出{@link ConcurrentModificationException}。
+ * 后台的预取与心跳线程只通过内部的同步结构与调用线程交互。
+ */
+public class DISConsumer
+{
+    private static final Logger log = LoggerFactory.getLogger(DISConsumer.class);
+    
+    private static final long NO_CURRENT_THREAD = -1L;
+    
+    private DISConfig disConfig;
+    
+    private DISAsync disAsync;
+    
+    private Fetcher fetcher;
+    
+    private ICoordinatorService coordinatorService;
+    
+    private ConsumerCoordinator coordinator;
+    
+    private ConsumerRebalanceListener rebalanceListener;
+    
+    private CheckpointCommitter committer;
+    
+    private boolean autoCommit;
+    
+    // 同步提交checkpoint的超时时间
+    private long commitTimeoutMs;
+    
+    // 上一次poll返回的记录，下一次poll时视为已处理
+    private ConsumerRecords lastRecords;
+    
+    // 当前调用线程的ID，没有调用时为NO_CURRENT_THREAD；同一线程可以重入
+    private final AtomicLong currentThread = new AtomicLong(NO_CURRENT_THREAD);
+    
+    private final AtomicInteger refcount = new AtomicInteger(0);
+    
+    public DISConsumer(DISConfig disConfig)
+    {
+        this(disConfig, null);
+    }
+    
+    public DISConsumer(DISConfig disConfig, DISAsync disAsync)
+    {
+        this(disConfig, disAsync, null);
+    }
+    
+    /**
+     * @param coordinatorService 消费组协调服务，为null时使用disAsync(若实现了协调接口)或新建的DISClient
+     */
+    public DISConsumer(DISConfig disConfig, DISAsync disAsync, ICoordinatorService coordinatorService)
+    {
+        DISConfig config = DISConfig.buildConfig(disConfig);
+        this.disConfig = config;
+        this.disAsync = disAsync != null ? disAsync : new DISClientAsync2(config);
+        this.coordinatorService = coordinatorService;
+        CursorManager cursorManager =
+            new CursorManager(config.getConsumerCursorResetPolicy(), config.getConsumerCursorRefreshIntervalMs());
+        FetchScheduler fetchScheduler = new FetchScheduler(config.getConsumerFetchLimit(),
+            config.getConsumerFetchMaxLimit(), config.getConsumerFetchBackoffMs(), config.getConsumerFetchMaxBackoffMs(),
+            config.getConsumerFetchMaxRequestsPerSecond());
+        String groupId = config.getGroupId();
+        this.fetcher = new Fetcher(this.disAsync, cursorManager, fetchScheduler, config.getConsumerCursorType(),
+            StringUtils.isNullOrEmpty(groupId) ? null : groupId, config.getConsumerPrefetchRecords(),
+            config.getConsumerMaxPollRecords());
+        
+        this.autoCommit = config.isConsumerAutoCommitEnabled();
+        if (autoCommit && StringUtils.isNullOrEmpty(groupId))
+        {
+            throw new IllegalArgumentException(
+                DISConfig.PROPERTY_CONSUMER_AUTO_COMMIT_ENABLED + " requires " + DISConfig.GROUP_ID + ".");
+        }
+        if (!StringUtils.isNullOrEmpty(groupId))
+        {
+            this.committer = new CheckpointCommitter(this.disAsync, groupId,
+                autoCommit ? config.getConsumerAutoCommitIntervalMs() : 0, config.getConsumerAutoCommitRecords(),
+                config.getConsumerMaxInFlightCommits());
+        }
+        this.commitTimeoutMs = config.getSocketTimeOut();
+    }
+    
+    /**
+     * 指定消费的分片，替换之前的分配。仍然分配的分片从当前位置继续；新分片从group.id已提交的checkpoint之后开始，
+     * 没有checkpoint时从{@link DISConfig#getConsumerCursorType()}开始
+     *
+     * @param partitions 通道名称与分片ID
+     */
+    public void assign(Collection<StreamPartition> partitions)
+    {
+        acquire();
+        try
+        {
+            if (coordinator != null)
+            {
+                throw new IllegalStateException("assign is not allowed after subscribe.");
+            }
+            List<StreamPartition> revoked = new ArrayList<>(fetcher.assignment());
+            revoked.removeAll(partitions);
+            revoke(revoked);
+            fetcher.assign(partitions);
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    /**
+     * 以group.id加入消费组，订阅的通道的分片由协调服务在组内成员之间分配
+     *
+     * @param streamNames 订阅的通道
+     */
+    public void subscribe(Collection<String> streamNames)
+    {
+        subscribe(streamNames, null);
+    }
+    
+    /**
+     * 以group.id加入消费组，订阅的通道的分片由协调服务在组内成员之间分配。
+     * 心跳线程在后台维持成员关系；分配变化在下一次{@link #poll(long)}中生效，并回调listener
+     *
+     * @param streamNames 订阅的通道
+     * @param listener 分配变化的通知，可以为null
+     */
+    public void subscribe(Collection<String> streamNames, ConsumerRebalanceListener listener)
+    {
+        String groupId = disConfig.getGroupId();
+        if (StringUtils.isNullOrEmpty(groupId))
+        {
+            throw new IllegalArgumentException(DISConfig.GROUP_ID + " is required to subscribe.");
+        }
+        acquire();
+        try
+        {
+            if (coordinator == null)
+            {
+                if (!fetcher.assignment().isEmpty())
+                {
+                    throw new IllegalStateException("subscribe is not allowed after assign.");
+                }
+                String clientId = disConfig.getConsumerClientId();
+                coordinator = new ConsumerCoordinator(coordinatorService(), disConfig.getProjectId(), groupId,
+                    StringUtils.isNullOrEmpty(clientId) ? UUID.randomUUID().toString() : clientId,
+                    disConfig.getConsumerHeartbeatIntervalMs(), disConfig.getRetryBackoffMs(), new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            fetcher.wakeup();
+                        }
+                    });
+            }
+            this.rebalanceListener = listener;
+            coordinator.subscribe(streamNames);
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    /**
+     * @return 当前分配的分片
+     */
+    public Set<StreamPartition> assignment()
+    {
+        acquire();
+        try
+        {
+            return fetcher.assignment();
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    /**
+     * 分片从指定的序列号(包含)开始重新消费，已预取的数据被丢弃
+     *
+     * @param partition 已分配的分片
+     * @param sequenceNumber 序列号
+     */
+    public void seek(StreamPartition partition, String sequenceNumber)
+    {
+        acquire();
+        try
+        {
+            fetcher.seek(partition, sequenceNumber);
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    /**
+     * 获取已预取的数据，最多{@link DISConfig#getConsumerMaxPollRecords()}条；没有数据时等待直到有数据或超时。
+     * 分片获取失败且不可重试时抛出该异常一次，之后该分片停止获取，可以通过{@link #seek}重新开始
+     *
+     * @param timeoutMs 没有数据时最长等待时间(ms)，不能为负数；{@link Long#MAX_VALUE}表示一直等待
+     * @return 按分片分组的记录，超时时为空
+     * @throws InterruptedException 等待时被中断
+     */
+    public ConsumerRecords poll(long timeoutMs)
+        throws InterruptedException
+    {
+        if (timeoutMs < 0)
+        {
+            throw new IllegalArgumentException("timeoutMs must not be negative: " + timeoutMs);
+        }
+        acquire();
+        try
+        {
+            if (autoCommit)
+            {
+                markProcessed();
+            }
+            long now = System.currentTimeMillis();
+            long deadline = timeoutMs > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMs;
+            while (true)
+            {
+                updateAssignment();
+                // 心跳线程得到新分配时唤醒fetcher，在这里切换分片后继续等待
+                ConsumerRecords records = fetcher.poll(Math.max(deadline - System.currentTimeMillis(), 0));
+                if (!records.isEmpty() || System.currentTimeMillis() >= deadline)
+                {
+                    if (committer != null && !records.isEmpty())
+                    {
+                        lastRecords = records;
+                    }
+                    return records;
+                }
+            }
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    /**
+     * 以group.id为app，同步提交上一次poll返回的记录(视为已处理)及之前尚未提交的checkpoint
+     *
+     * @throws DISClientException 提交失败或超时
+     * @throws InterruptedException 等待时被中断
+     */
+    public void commitSync()
+        throws InterruptedException
+    {
+        if (committer == null)
+        {
+            throw new IllegalStateException(DISConfig.GROUP_ID + " is required to commit checkpoints.");
+        }
+        acquire();
+        try
+        {
+            markProcessed();
+            committer.commitSync(commitTimeoutMs);
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    public void close()
+    {
+        acquire();
+        try
+        {
+            // 先提交checkpoint再离开消费组，接管分片的成员从提交的位置继续
+            if (committer != null)
+            {
+                if (autoCommit)
+                {
+                    markProcessed();
+                }
+                committer.close(commitTimeoutMs);
+            }
+            if (coordinator != null)
+            {
+                coordinator.close();
+            }
+            fetcher.close();
+            disAsync.close();
+        }
+        finally
+        {
+            release();
+        }
+    }
+    
+    /*
+     * 轻量的调用线程检查：没有调用或已由当前线程持有时进入，否则说明被多个线程并发调用，抛出异常而不是等待
+     */
+    private void acquire()
+    {
+        long threadId = Thread.currentThread().getId();
+        if (threadId != currentThread.get() && !currentThread.compareAndSet(NO_CURRENT_THREAD, threadId))
+        {
+            throw new ConcurrentModificationException("DISConsumer is not safe for multi-threaded access.");
+        }
+        refcount.incrementAndGet();
+    }
+    
+    private void release()
+    {
+        if (refcount.decrementAndGet() == 0)
+        {
+            currentThread.set(NO_CURRENT_THREAD);
+        }
+    }
+    
+    private void markProcessed()
+    {
+        ConsumerRecords records = lastRecords;
+        if (records == null)
+        {
+            return;
+        }
+        lastRecords = null;
+        for (StreamPartition partition : records.partitions())
+        {
+            List<Record> partitionRecords = records.records(partition);
+            committer.update(partition, partitionRecords.get(partitionRecords.size() - 1).getSequenceNumber(),
+                partitionRecords.size());
+        }
+    }
+    
+    /*
+     * 分片被收回前，自动提交时同步提交这些分片的checkpoint，再通知listener
+     */
+    private void revoke(List<StreamPartition> revoked)
+    {
+        if (revoked.isEmpty())
+        {
+            return;
+        }
+        if (autoCommit)
+        {
+            markProcessed();
+            try
+            {
+                committer.commitSync(revoked, commitTimeoutMs);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (DISClientException e)
+            {
+                log.error("Failed to commit checkpoints of revoked partitions " + revoked + ".", e);
+            }
+        }
+        if (rebalanceListener != null)
+        {
+            rebalanceListener.onPartitionsRevoked(revoked);
+        }
+        if (committer != null)
+        {
+            committer.remove(revoked);
+        }
+    }
+    
+    private void updateAssignment()
+    {
+        if (coordinator == null)
+        {
+            return;
+        }
+        DISClientException error = coordinator.pollError();
+        if (error != null)
+        {
+            throw error;
+        }
+        if (coordinator.revokeRequested())
+        {
+            // 重新加入前收回全部分片：停止获取并提交checkpoint，接管分片的成员从提交的位置继续
+            try
+            {
+                List<StreamPartition> revoked = new ArrayList<>(fetcher.assignment());
+                fetcher.assign(Collections.<StreamPartition> emptyList());
+                revoke(revoked);
+            }
+            finally
+            {
+                coordinator.revokeCompleted();
+            }
+        }
+        Set<StreamPartition> assignment = coordinator.pollAssignment();
+        if (assignment == null)
+        {
+            return;
+        }
+        Set<StreamPartition> current = fetcher.assignment();
+        List<StreamPartition> revoked = new ArrayList<>(current);
+        revoked.removeAll(assignment);
+        List<StreamPartition> added = new ArrayList<>(assignment);
+        added.removeAll(current);
+        revoke(revoked);
+        fetcher.assign(assignment);
+        if (rebalanceListener != null && !added.isEmpty())
+        {
+            rebalanceListener.onPartitionsAssigned(added);
+        }
+    }
+    
+    private ICoordinatorService coordinatorService()
+    {
+        if (coordinatorService == null)
+        {
+            coordinatorService = disAsync instanceof ICoordinatorService ? (ICoordinatorService)disAsync
+                : new DISClient(disConfig);
+        }
+        return coordinatorService;
+    }
+}
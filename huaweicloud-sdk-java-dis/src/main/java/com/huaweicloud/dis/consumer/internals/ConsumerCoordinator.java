@@ -0,0 +1,435 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer.internals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.coordinator.ICoordinatorService;
+import com.huaweicloud.dis.iface.coordinator.request.HeartbeatRequest;
+import com.huaweicloud.dis.iface.coordinator.request.JoinGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.request.LeaveGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.request.SyncGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.response.HeartbeatResponse;
+import com.huaweicloud.dis.iface.coordinator.response.JoinGroupResponse;
+import com.huaweicloud.dis.iface.coordinator.response.SyncGroupResponse;
+
+/**
+ * 消费组协调客户端：后台线程加入消费组(join)，同步(sync)得到带generation的分片分配，之后按间隔发送心跳；
+ * 心跳发现组内成员变化时重新加入或同步。新的分配不在后台线程中生效，而是由消费线程通过{@link #pollAssignment()}取走，
+ * 保证分片切换发生在两批数据之间。
+ * <p>
+ * 持有分配的成员重新加入前先要求消费线程收回全部分片(eager)：消费线程在{@link #revokeRequested()}时停止获取、
+ * 提交checkpoint并通知listener，再调用{@link #revokeCompleted()}，之后才发出join，接管分片的成员因此能从已提交的位置继续。
+ */
+public class ConsumerCoordinator
+{
+    private static final Logger log = LoggerFactory.getLogger(ConsumerCoordinator.class);
+    
+    private static final long NO_GENERATION = -1L;
+    
+    private enum MemberState
+    {
+        JOINING, SYNCING, STABLE
+    }
+    
+    private final ICoordinatorService coordinator;
+    
+    private final String projectId;
+    
+    private final String groupId;
+    
+    private final String clientId;
+    
+    private final long heartbeatIntervalMs;
+    
+    private final long retryBackoffMs;
+    
+    // 有新的分配或错误时调用，用于唤醒等待中的poll
+    private final Runnable wakeup;
+    
+    private final AtomicReference<Set<StreamPartition>> pendingAssignment = new AtomicReference<>();
+    
+    private final AtomicReference<DISClientException> pendingError = new AtomicReference<>();
+    
+    private final Object revokeLock = new Object();
+    
+    // 等待消费线程收回全部分片，由revokeLock保护
+    private boolean revokeRequested;
+    
+    private volatile List<String> subscription;
+    
+    private volatile boolean rejoinRequested;
+    
+    private volatile long generation = NO_GENERATION;
+    
+    private volatile boolean running;
+    
+    private Thread heartbeatThread;
+    
+    public ConsumerCoordinator(ICoordinatorService coordinator, String projectId, String groupId, String clientId,
+        long heartbeatIntervalMs, long retryBackoffMs, Runnable wakeup)
+    {
+        this.coordinator = coordinator;
+        this.projectId = projectId;
+        this.groupId = groupId;
+        this.clientId = clientId;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.retryBackoffMs = retryBackoffMs;
+        this.wakeup = wakeup;
+    }
+    
+    /**
+     * 订阅通道，第一次调用时启动心跳线程加入消费组，之后调用会以新的订阅重新加入
+     */
+    public synchronized void subscribe(Collection<String> streamNames)
+    {
+        this.subscription = new ArrayList<>(new LinkedHashSet<>(streamNames));
+        if (heartbeatThread != null)
+        {
+            rejoinRequested = true;
+            heartbeatThread.interrupt();
+            return;
+        }
+        running = true;
+        heartbeatThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runLoop();
+            }
+        }, "DIS Consumer Heartbeat " + clientId);
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+    
+    /**
+     * @return 上次调用之后同步得到的最新分配，没有时返回null
+     */
+    public Set<StreamPartition> pollAssignment()
+    {
+        return pendingAssignment.getAndSet(null);
+    }
+    
+    /**
+     * @return 心跳线程是否在等待消费线程收回全部分片，之后需要调用{@link #revokeCompleted()}
+     */
+    public boolean revokeRequested()
+    {
+        synchronized (revokeLock)
+        {
+            return revokeRequested;
+        }
+    }
+    
+    /**
+     * 消费线程已收回全部分片(停止获取并提交checkpoint)，心跳线程继续重新加入
+     */
+    public void revokeCompleted()
+    {
+        synchronized (revokeLock)
+        {
+            revokeRequested = false;
+            revokeLock.notifyAll();
+        }
+    }
+    
+    /**
+     * @return 上次调用之后协调服务返回的错误(如消费组不存在)，没有时返回null；心跳线程仍会继续重试
+     */
+    public DISClientException pollError()
+    {
+        return pendingError.getAndSet(null);
+    }
+    
+    /**
+     * @return 当前分配的generation，尚未完成同步时为-1
+     */
+    public long generation()
+    {
+        return generation;
+    }
+    
+    public String clientId()
+    {
+        return clientId;
+    }
+    
+    /**
+     * 停止心跳线程并离开消费组，让其他成员尽快接管分片
+     */
+    public synchronized void close()
+    {
+        if (heartbeatThread == null)
+        {
+            return;
+        }
+        running = false;
+        heartbeatThread.interrupt();
+        try
+        {
+            heartbeatThread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        heartbeatThread = null;
+        
+        LeaveGroupRequest request = new LeaveGroupRequest();
+        request.setProjectId(projectId);
+        request.setGroupId(groupId);
+        request.setClientId(clientId);
+        try
+        {
+            coordinator.handleLeaveGroupRequest(request);
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Consumer {} failed to leave group {}: {}", clientId, groupId, e.getMessage());
+        }
+        generation = NO_GENERATION;
+    }
+    
+    private void runLoop()
+    {
+        MemberState state = MemberState.JOINING;
+        long delayMs = 0;
+        // 已把分配交给消费线程，重新加入前需要先收回
+        boolean assigned = false;
+        while (running)
+        {
+            try
+            {
+                if (delayMs > 0)
+                {
+                    Thread.sleep(delayMs);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // close或重新订阅
+            }
+            if (!running)
+            {
+                break;
+            }
+            if (rejoinRequested)
+            {
+                rejoinRequested = false;
+                state = MemberState.JOINING;
+            }
+            
+            try
+            {
+                switch (state)
+                {
+                    case JOINING:
+                        if (assigned)
+                        {
+                            revokeAll();
+                            assigned = false;
+                            if (!running)
+                            {
+                                break;
+                            }
+                        }
+                        JoinGroupResponse joinResponse = join();
+                        switch (joinResponse.getState())
+                        {
+                            case OK:
+                                state = MemberState.SYNCING;
+                                Long syncDelayedTimeMs = joinResponse.getSyncDelayedTimeMs();
+                                delayMs = syncDelayedTimeMs == null ? 0 : syncDelayedTimeMs;
+                                break;
+                            case REJOIN:
+                                delayMs = 0;
+                                break;
+                            case ERR_SUBSCRIPTION:
+                            case GROUP_NOT_EXIST:
+                                fail("Consumer " + clientId + " failed to join group " + groupId + ": "
+                                    + joinResponse.getState());
+                                delayMs = heartbeatIntervalMs;
+                                break;
+                            default:
+                                delayMs = retryBackoffMs;
+                                break;
+                        }
+                        break;
+                    case SYNCING:
+                        SyncGroupResponse syncResponse = sync();
+                        switch (syncResponse.getState())
+                        {
+                            case OK:
+                                assign(syncResponse);
+                                assigned = true;
+                                state = MemberState.STABLE;
+                                delayMs = heartbeatIntervalMs;
+                                break;
+                            case REJOIN:
+                                state = MemberState.JOINING;
+                                delayMs = 0;
+                                break;
+                            case GROUP_NOT_EXIST:
+                                fail("Consumer " + clientId + " failed to sync group " + groupId + ": "
+                                    + syncResponse.getState());
+                                state = MemberState.JOINING;
+                                delayMs = heartbeatIntervalMs;
+                                break;
+                            default:
+                                // WAITING: 其他成员尚未加入完成
+                                delayMs = retryBackoffMs;
+                                break;
+                        }
+                        break;
+                    default:
+                        HeartbeatResponse heartbeatResponse = heartbeat();
+                        switch (heartbeatResponse.getState())
+                        {
+                            case STABLE:
+                                delayMs = heartbeatIntervalMs;
+                                break;
+                            case JOINING:
+                                log.info("Group {} is rebalancing, consumer {} rejoins.", groupId, clientId);
+                                state = MemberState.JOINING;
+                                delayMs = 0;
+                                break;
+                            case SYNCING:
+                                state = MemberState.SYNCING;
+                                delayMs = 0;
+                                break;
+                            default:
+                                fail("Consumer " + clientId + " lost group " + groupId + ": "
+                                    + heartbeatResponse.getState());
+                                state = MemberState.JOINING;
+                                delayMs = heartbeatIntervalMs;
+                                break;
+                        }
+                        break;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                if (!running)
+                {
+                    break;
+                }
+                log.warn("Consumer {} failed to {} group {}, retry after {}ms: {}", clientId,
+                    state.name().toLowerCase(), groupId, retryBackoffMs, e.getMessage());
+                delayMs = retryBackoffMs;
+            }
+        }
+    }
+    
+    /*
+     * 要求消费线程收回全部分片并等待其完成；尚未取走的旧分配作废。close时不再等待
+     */
+    private void revokeAll()
+    {
+        log.info("Consumer {} of group {} revokes all partitions before rejoining.", clientId, groupId);
+        synchronized (revokeLock)
+        {
+            revokeRequested = true;
+        }
+        pendingAssignment.set(null);
+        wakeup.run();
+        synchronized (revokeLock)
+        {
+            while (revokeRequested && running)
+            {
+                try
+                {
+                    revokeLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    // close或重新订阅，重新订阅时仍要等待收回完成
+                }
+            }
+        }
+    }
+    
+    private JoinGroupResponse join()
+    {
+        JoinGroupRequest request = new JoinGroupRequest();
+        request.setProjectId(projectId);
+        request.setGroupId(groupId);
+        request.setClientId(clientId);
+        request.setInterestedStream(subscription);
+        return coordinator.handleJoinGroupRequest(request);
+    }
+    
+    private SyncGroupResponse sync()
+    {
+        SyncGroupRequest request = new SyncGroupRequest();
+        request.setProjectId(projectId);
+        request.setGroupId(groupId);
+        request.setClientId(clientId);
+        request.setGeneration(generation);
+        return coordinator.handleSyncGroupRequest(request);
+    }
+    
+    private HeartbeatResponse heartbeat()
+    {
+        HeartbeatRequest request = new HeartbeatRequest();
+        request.setProjectId(projectId);
+        request.setGroupId(groupId);
+        request.setClientId(clientId);
+        request.setGeneration(generation);
+        return coordinator.handleHeartbeatRequest(request);
+    }
+    
+    private void assign(SyncGroupResponse response)
+    {
+        Set<StreamPartition> assignment = new LinkedHashSet<>();
+        Map<String, List<Integer>> partitions = response.getAssignment();
+        if (partitions != null)
+        {
+            for (Map.Entry<String, List<Integer>> entry : partitions.entrySet())
+            {
+                for (Integer partition : entry.getValue())
+                {
+                    assignment.add(new StreamPartition(entry.getKey(), Integer.toString(partition)));
+                }
+            }
+        }
+        generation = response.getGeneration() == null ? NO_GENERATION : response.getGeneration();
+        log.info("Consumer {} of group {} is assigned {} in generation {}.", clientId, groupId, assignment,
+            generation);
+        pendingAssignment.set(assignment);
+        wakeup.run();
+    }
+    
+    private void fail(String message)
+    {
+        log.error(message);
+        pendingError.set(new DISClientException(message));
+        wakeup.run();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer.internals;
+
+import java.util.List;
+
+import com.huaweicloud.dis.Constants;
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.exception.DISPartitionExpiredException;
+import com.huaweicloud.dis.exception.DISSequenceNumberOutOfRangeException;
+import com.huaweicloud.dis.iface.data.request.GetPartitionCursorRequest;
+import com.huaweicloud.dis.iface.data.response.Record;
+import com.huaweicloud.dis.util.PartitionCursorTypeEnum;
+
+/**
+ * 分片游标的生命周期管理：记录每个分片最后取回的记录的序列号，游标过期时从该序列号之后(AFTER_SEQUENCE_NUMBER)重新获取游标，
+ * 序列号已超出有效范围(数据已老化)时按策略从TRIM_HORIZON或LATEST重新开始；
+ * 游标长时间未使用(如缓冲已满)时提前在后台刷新，避免恢复获取时才发现过期。
+ */
+public class CursorManager
+{
+    // 超出范围时的重置位置，为null时不自动重置
+    private final PartitionCursorTypeEnum resetPolicy;
+    
+    private final long refreshIntervalMs;
+    
+    /**
+     * @param resetPolicy 序列号超出范围时重新开始的位置，TRIM_HORIZON或LATEST，为null时不重置而是抛出异常
+     * @param refreshIntervalMs 游标获取后超过该时间(ms)未使用时提前刷新
+     */
+    public CursorManager(PartitionCursorTypeEnum resetPolicy, long refreshIntervalMs)
+    {
+        this.resetPolicy = resetPolicy;
+        this.refreshIntervalMs = refreshIntervalMs;
+    }
+    
+    public long refreshIntervalMs()
+    {
+        return refreshIntervalMs;
+    }
+    
+    /**
+     * @return 从指定位置开始的分片游标
+     */
+    public PartitionCursor newCursor(StreamPartition partition, PartitionCursorTypeEnum cursorType,
+        String startingSequenceNumber)
+    {
+        return new PartitionCursor(partition, cursorType, startingSequenceNumber);
+    }
+    
+    /**
+     * @return 获取游标的请求：已取回过记录时从最后一条之后开始，否则从初始位置开始
+     */
+    public GetPartitionCursorRequest cursorRequest(PartitionCursor cursor)
+    {
+        GetPartitionCursorRequest request = new GetPartitionCursorRequest();
+        request.setStreamName(cursor.partition.topic());
+        request.setPartitionId(cursor.partition.partition());
+        if (cursor.lastSequenceNumber != null)
+        {
+            request.setCursorType(PartitionCursorTypeEnum.AFTER_SEQUENCE_NUMBER.name());
+            request.setStartingSequenceNumber(cursor.lastSequenceNumber);
+        }
+        else
+        {
+            request.setCursorType(cursor.cursorType.name());
+            request.setStartingSequenceNumber(cursor.startingSequenceNumber);
+        }
+        return request;
+    }
+    
+    /**
+     * @return 游标获取后已超过刷新间隔，且可以从最后取回的序列号之后重新获取
+     */
+    public boolean needsRefresh(PartitionCursor cursor, long now)
+    {
+        return cursor.cursor != null && cursor.lastSequenceNumber != null
+            && now - cursor.cursorTimeMs >= refreshIntervalMs;
+    }
+    
+    /**
+     * 请求失败后尝试恢复：游标过期时丢弃游标，序列号超出范围时按策略重置起始位置，之后重新获取游标即可继续。
+     * 恢复后还没有成功取回数据又因同一原因失败时不再恢复，避免反复重试；过期恢复后序列号超出范围(数据已老化)仍按策略重置
+     *
+     * @return 是否可以恢复
+     */
+    public boolean recover(PartitionCursor cursor, Exception exception)
+    {
+        Recovery recovery;
+        if (isExpired(exception))
+        {
+            recovery = Recovery.EXPIRED;
+        }
+        else if (isOutOfRange(exception) && resetPolicy != null)
+        {
+            recovery = Recovery.OUT_OF_RANGE;
+        }
+        else
+        {
+            return false;
+        }
+        if (cursor.recovering == recovery)
+        {
+            return false;
+        }
+        cursor.cursor = null;
+        if (recovery == Recovery.OUT_OF_RANGE)
+        {
+            cursor.lastSequenceNumber = null;
+            cursor.cursorType = resetPolicy;
+            cursor.startingSequenceNumber = null;
+        }
+        cursor.recovering = recovery;
+        return true;
+    }
+    
+    private static boolean isExpired(Exception exception)
+    {
+        return exception instanceof DISPartitionExpiredException || (exception.getMessage() != null
+            && exception.getMessage().contains(Constants.ERROR_CODE_PARTITION_IS_EXPIRED));
+    }
+    
+    private static boolean isOutOfRange(Exception exception)
+    {
+        return exception instanceof DISSequenceNumberOutOfRangeException || (exception.getMessage() != null
+            && exception.getMessage().contains(Constants.ERROR_CODE_SEQUENCE_NUMBER_OUT_OF_RANGE));
+    }
+    
+    private enum Recovery
+    {
+        EXPIRED, OUT_OF_RANGE
+    }
+    
+    /**
+     * 一个分片的游标与位置，由{@link Fetcher}的锁保护
+     */
+    public static final class PartitionCursor
+    {
+        private final StreamPartition partition;
+        
+        private PartitionCursorTypeEnum cursorType;
+        
+        private String startingSequenceNumber;
+        
+        private String cursor;
+        
+        private long cursorTimeMs;
+        
+        // 最后取回的记录的序列号
+        private String lastSequenceNumber;
+        
+        // 已进行过的恢复，尚未成功取回数据；为null表示未在恢复
+        private Recovery recovering;
+        
+        private PartitionCursor(StreamPartition partition, PartitionCursorTypeEnum cursorType,
+            String startingSequenceNumber)
+        {
+            this.partition = partition;
+            this.cursorType = cursorType;
+            this.startingSequenceNumber = startingSequenceNumber;
+        }
+        
+        /**
+         * @return 当前游标，需要重新获取时为null
+         */
+        public String cursor()
+        {
+            return cursor;
+        }
+        
+        public String lastSequenceNumber()
+        {
+            return lastSequenceNumber;
+        }
+        
+        /**
+         * 从已处理到的序列号(如已提交的checkpoint)之后继续，与已取回该序列号的记录等价
+         */
+        public void resumeAfter(String sequenceNumber)
+        {
+            this.lastSequenceNumber = sequenceNumber;
+        }
+        
+        /**
+         * 获取到新的游标
+         */
+        public void update(String cursor, long now)
+        {
+            this.cursor = cursor;
+            this.cursorTimeMs = now;
+        }
+        
+        /**
+         * 取回数据成功，游标前移
+         *
+         * @param records 取回的记录
+         * @param nextCursor 下一个游标，分片已关闭时为null
+         */
+        public void onRecords(List<Record> records, String nextCursor, long now)
+        {
+            if (records != null && !records.isEmpty())
+            {
+                lastSequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+            }
+            recovering = null;
+            update(nextCursor, now);
+        }
+    }
+}
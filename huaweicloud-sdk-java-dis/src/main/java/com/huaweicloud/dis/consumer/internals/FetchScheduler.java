@@ -0,0 +1,157 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer.internals;
+
+/**
+ * 根据getRecords返回的millisBehindLatest决定每个分片何时、以多大的limit获取下一批：
+ * 落后于最新数据时立即以较大的limit获取；已追上且没有新数据时从backoffMs开始指数退避，最长maxBackoffMs；
+ * 配置了每秒请求数上限时，按落后程度加权分给各分片，落后越多的分片请求间隔越短。
+ */
+public class FetchScheduler
+{
+    private final int fetchLimit;
+    
+    private final int maxFetchLimit;
+    
+    private final long backoffMs;
+    
+    private final long maxBackoffMs;
+    
+    private final int maxRequestsPerSecond;
+    
+    /**
+     * @param fetchLimit 已追上最新数据时每个请求的limit
+     * @param maxFetchLimit 落后时每个请求的limit，不小于fetchLimit
+     * @param backoffMs 没有新数据时的初始退避时间，以及请求可重试地失败后的等待时间(ms)
+     * @param maxBackoffMs 没有新数据时的最长退避时间(ms)
+     * @param maxRequestsPerSecond 所有分片每秒getRecords请求数的上限，0表示不限制
+     */
+    public FetchScheduler(int fetchLimit, int maxFetchLimit, long backoffMs, long maxBackoffMs,
+        int maxRequestsPerSecond)
+    {
+        this.fetchLimit = fetchLimit;
+        this.maxFetchLimit = Math.max(fetchLimit, maxFetchLimit);
+        this.backoffMs = backoffMs;
+        this.maxBackoffMs = Math.max(backoffMs, maxBackoffMs);
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+    
+    public PartitionSchedule newSchedule()
+    {
+        return new PartitionSchedule();
+    }
+    
+    /**
+     * @param space 分片缓冲的剩余空间
+     * @return 下一个请求的limit
+     */
+    public int limit(PartitionSchedule schedule, int space)
+    {
+        return Math.min(schedule.isBehind() ? maxFetchLimit : fetchLimit, space);
+    }
+    
+    /**
+     * 分片分得的请求预算的权重：已追上为1，每落后一秒加1
+     */
+    public double weight(PartitionSchedule schedule)
+    {
+        return 1 + schedule.millisBehindLatest / 1000.0;
+    }
+    
+    /**
+     * @param totalWeight 当前所有分片的{@link #weight(PartitionSchedule)}之和
+     * @return 距离分片可以发出下一个getRecords请求还需等待的时间(ms)，0表示可以立即发出
+     */
+    public long delayMs(PartitionSchedule schedule, double totalWeight, long now)
+    {
+        long notBefore = schedule.notBeforeMs;
+        if (maxRequestsPerSecond > 0 && schedule.lastRequestMs > 0)
+        {
+            double requestsPerSecond = maxRequestsPerSecond * weight(schedule) / Math.max(totalWeight, 1);
+            notBefore = Math.max(notBefore, schedule.lastRequestMs + (long)Math.ceil(1000 / requestsPerSecond));
+        }
+        return Math.max(notBefore - now, 0);
+    }
+    
+    /**
+     * 发出了getRecords请求
+     */
+    public void onRequest(PartitionSchedule schedule, long now)
+    {
+        schedule.lastRequestMs = now;
+    }
+    
+    /**
+     * 收到getRecords响应：有数据或仍然落后时立即继续，否则退避时间翻倍
+     *
+     * @param millisBehindLatest 响应中的millisBehindLatest，可能为null
+     */
+    public void onRecords(PartitionSchedule schedule, int count, Long millisBehindLatest, long now)
+    {
+        schedule.millisBehindLatest = millisBehindLatest == null ? 0 : Math.max(millisBehindLatest, 0);
+        if (count > 0 || schedule.isBehind())
+        {
+            schedule.emptyFetches = 0;
+            schedule.notBeforeMs = now;
+            return;
+        }
+        long delay = backoffMs;
+        for (int i = 0; i < schedule.emptyFetches && delay < maxBackoffMs; i++)
+        {
+            delay *= 2;
+        }
+        schedule.emptyFetches++;
+        schedule.notBeforeMs = now + Math.min(delay, maxBackoffMs);
+    }
+    
+    /**
+     * @return 请求可重试地失败后等待多久(ms)重试
+     */
+    public long retryBackoffMs()
+    {
+        return backoffMs;
+    }
+    
+    /**
+     * 一个分片的获取节奏，由{@link Fetcher}的锁保护
+     */
+    public static final class PartitionSchedule
+    {
+        private long millisBehindLatest;
+        
+        // 连续没有新数据的响应数
+        private int emptyFetches;
+        
+        private long notBeforeMs;
+        
+        private long lastRequestMs;
+        
+        private PartitionSchedule()
+        {
+        }
+        
+        public boolean isBehind()
+        {
+            return millisBehindLatest > 0;
+        }
+        
+        public long millisBehindLatest()
+        {
+            return millisBehindLatest;
+        }
+    }
+}
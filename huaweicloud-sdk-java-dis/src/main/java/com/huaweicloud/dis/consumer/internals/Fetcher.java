@@ -0,0 +1,732 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.consumer.internals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.consumer.ConsumerRecords;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.exception.DISClientRetriableException;
+import com.huaweicloud.dis.iface.data.request.GetCheckpointRequest;
+import com.huaweicloud.dis.iface.data.request.GetPartitionCursorRequest;
+import com.huaweicloud.dis.iface.data.request.GetRecordsRequest;
+import com.huaweicloud.dis.iface.data.response.GetCheckpointResult;
+import com.huaweicloud.dis.iface.data.response.GetPartitionCursorResult;
+import com.huaweicloud.dis.iface.data.response.GetRecordsResult;
+import com.huaweicloud.dis.iface.data.response.Record;
+import com.huaweicloud.dis.util.CheckpointTypeEnum;
+import com.huaweicloud.dis.util.PartitionCursorTypeEnum;
+
+/**
+ * 按分片预取数据：每个分片持有自己的游标，缓冲未满时异步发出getRecords请求，响应到达后在回调线程中立即发出下一个，
+ * poll只从缓冲取数据，因此数据的获取与处理并行进行。
+ * 每个分片同时最多一个请求，请求的limit不超过缓冲的剩余空间，缓冲的记录数不会超过prefetchRecords；
+ * 请求的时机与limit由{@link FetchScheduler}根据分片落后的程度决定。
+ * 游标由{@link CursorManager}管理：过期或超出范围时在回调线程中重新获取游标，长时间未使用的游标由后台任务提前刷新。
+ * 指定了checkpointApp时，新分配的分片先读取该app已提交的checkpoint，从其之后继续。
+ */
+public class Fetcher
+{
+    private static final Logger log = LoggerFactory.getLogger(Fetcher.class);
+    
+    private final DISAsync disAsync;
+    
+    private final CursorManager cursorManager;
+    
+    private final FetchScheduler fetchScheduler;
+    
+    private final PartitionCursorTypeEnum cursorType;
+    
+    // 新分片从该app已提交的checkpoint之后开始，为null时不读取checkpoint
+    private final String checkpointApp;
+    
+    private final int prefetchRecords;
+    
+    private final int maxPollRecords;
+    
+    private final ScheduledExecutorService scheduler;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final Condition available = lock.newCondition();
+    
+    // 当前分配的分片，由lock保护；seek时替换为新的状态，旧状态上的响应被丢弃
+    private final Map<StreamPartition, PartitionState> partitions = new LinkedHashMap<>();
+    
+    // poll从哪个分片开始取数据，轮转以免排在前面的分片总是先被处理
+    private int nextPartition;
+    
+    // wakeup之后正在等待的poll立即返回，由lock保护
+    private boolean wakeupRequested;
+    
+    private volatile boolean closed;
+    
+    public Fetcher(DISAsync disAsync, CursorManager cursorManager, FetchScheduler fetchScheduler,
+        PartitionCursorTypeEnum cursorType, int prefetchRecords, int maxPollRecords)
+    {
+        this(disAsync, cursorManager, fetchScheduler, cursorType, null, prefetchRecords, maxPollRecords);
+    }
+    
+    /**
+     * @param cursorType 新分片没有checkpoint时开始的位置
+     * @param checkpointApp 新分片从该app已提交的LAST_READ checkpoint之后开始，为null时总是从cursorType开始
+     */
+    public Fetcher(DISAsync disAsync, CursorManager cursorManager, FetchScheduler fetchScheduler,
+        PartitionCursorTypeEnum cursorType, String checkpointApp, int prefetchRecords, int maxPollRecords)
+    {
+        this.disAsync = disAsync;
+        this.cursorManager = cursorManager;
+        this.fetchScheduler = fetchScheduler;
+        this.cursorType = cursorType;
+        this.checkpointApp = checkpointApp;
+        this.prefetchRecords = prefetchRecords;
+        this.maxPollRecords = maxPollRecords;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "DIS Consumer Fetch Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long refreshCheckMs = Math.max(cursorManager.refreshIntervalMs() / 2, 1);
+        this.scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refreshCursors();
+            }
+        }, refreshCheckMs, refreshCheckMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 替换当前分配的分片。仍然分配的分片保留游标与缓冲；不再分配的分片丢弃缓冲；
+     * 新分片从checkpointApp已提交的checkpoint之后开始，没有checkpoint时从cursorType指定的位置开始
+     */
+    public void assign(Collection<StreamPartition> assignment)
+    {
+        List<PartitionState> added = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            ensureOpen();
+            Set<StreamPartition> target = new LinkedHashSet<>(assignment);
+            partitions.keySet().retainAll(target);
+            for (StreamPartition partition : target)
+            {
+                if (!partitions.containsKey(partition))
+                {
+                    PartitionState state = new PartitionState(partition, cursorManager.newCursor(partition, cursorType, null),
+                        fetchScheduler.newSchedule());
+                    state.checkpointPending = checkpointApp != null;
+                    partitions.put(partition, state);
+                    added.add(state);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        for (PartitionState state : added)
+        {
+            maybeFetch(state);
+        }
+    }
+    
+    /**
+     * 分片从指定的序列号(包含)重新开始获取，丢弃已缓冲的记录并清除之前的错误
+     */
+    public void seek(StreamPartition partition, String sequenceNumber)
+    {
+        PartitionState state;
+        lock.lock();
+        try
+        {
+            ensureOpen();
+            if (!partitions.containsKey(partition))
+            {
+                throw new IllegalStateException("No current assignment for partition " + partition);
+            }
+            state = new PartitionState(partition,
+                cursorManager.newCursor(partition, PartitionCursorTypeEnum.AT_SEQUENCE_NUMBER, sequenceNumber),
+                fetchScheduler.newSchedule());
+            partitions.put(partition, state);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        maybeFetch(state);
+    }
+    
+    public Set<StreamPartition> assignment()
+    {
+        lock.lock();
+        try
+        {
+            return Collections.unmodifiableSet(new LinkedHashSet<>(partitions.keySet()));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 从缓冲取出最多maxPollRecords条记录，所有分片都没有数据时等待，直到有数据到达或超时。
+     * 分片获取失败(不可重试)时，在缓冲的记录取完后抛出异常一次，之后该分片停止获取，直到重新seek
+     *
+     * @param timeoutMs 没有数据时最长等待时间(ms)
+     * @return 取出的记录，超时或被{@link #wakeup()}唤醒时为空
+     * @throws InterruptedException 等待时被中断
+     */
+    public ConsumerRecords poll(long timeoutMs)
+        throws InterruptedException
+    {
+        Map<StreamPartition, List<Record>> records = new LinkedHashMap<>();
+        List<PartitionState> drained = new ArrayList<>();
+        long remainingNs = TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMs, 0));
+        lock.lockInterruptibly();
+        try
+        {
+            ensureOpen();
+            while (!closed)
+            {
+                drain(records, drained);
+                if (!records.isEmpty())
+                {
+                    break;
+                }
+                RuntimeException error = takeError();
+                if (error != null)
+                {
+                    throw error;
+                }
+                if (remainingNs <= 0 || wakeupRequested)
+                {
+                    wakeupRequested = false;
+                    break;
+                }
+                remainingNs = available.awaitNanos(remainingNs);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        // 缓冲腾出了空间，继续预取
+        for (PartitionState state : drained)
+        {
+            maybeFetch(state);
+        }
+        return new ConsumerRecords(records);
+    }
+    
+    /**
+     * 唤醒正在等待数据的poll(没有等待时作用于下一次poll)，使其返回空结果
+     */
+    public void wakeup()
+    {
+        lock.lock();
+        try
+        {
+            wakeupRequested = true;
+            available.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            partitions.clear();
+            available.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        scheduler.shutdownNow();
+    }
+    
+    private void ensureOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("This consumer has already been closed.");
+        }
+    }
+    
+    private void drain(Map<StreamPartition, List<Record>> records, List<PartitionState> drained)
+    {
+        int size = partitions.size();
+        if (size == 0)
+        {
+            return;
+        }
+        List<PartitionState> states = new ArrayList<>(partitions.values());
+        int start = nextPartition % size;
+        nextPartition = start + 1;
+        int remaining = maxPollRecords;
+        for (int i = 0; i < size && remaining > 0; i++)
+        {
+            PartitionState state = states.get((start + i) % size);
+            int count = Math.min(remaining, state.buffer.size());
+            if (count == 0)
+            {
+                continue;
+            }
+            List<Record> partitionRecords = new ArrayList<>(count);
+            for (int j = 0; j < count; j++)
+            {
+                partitionRecords.add(state.buffer.poll());
+            }
+            records.put(state.partition, partitionRecords);
+            drained.add(state);
+            remaining -= count;
+        }
+    }
+    
+    private RuntimeException takeError()
+    {
+        for (PartitionState state : partitions.values())
+        {
+            if (state.error != null)
+            {
+                RuntimeException error = state.error;
+                state.error = null;
+                state.failed = true;
+                return error;
+            }
+        }
+        return null;
+    }
+    
+    private boolean isCurrent(PartitionState state)
+    {
+        return partitions.get(state.partition) == state;
+    }
+    
+    private double totalWeight()
+    {
+        double total = 0;
+        for (PartitionState state : partitions.values())
+        {
+            total += fetchScheduler.weight(state.schedule);
+        }
+        return total;
+    }
+    
+    /*
+     * 分片没有请求在进行、没有失败且缓冲未满时，发出获取游标或数据的请求；还不到获取数据的时间时等待到时再检查
+     */
+    private void maybeFetch(PartitionState state)
+    {
+        String cursor;
+        boolean checkpoint;
+        int limit = 0;
+        long delayMs = 0;
+        lock.lock();
+        try
+        {
+            if (closed || state.fetching || state.failed || state.error != null || state.exhausted
+                || !isCurrent(state))
+            {
+                return;
+            }
+            int space = prefetchRecords - state.buffer.size();
+            if (space <= 0)
+            {
+                return;
+            }
+            state.fetching = true;
+            checkpoint = state.checkpointPending;
+            cursor = state.cursor.cursor();
+            if (!checkpoint && cursor != null)
+            {
+                long now = System.currentTimeMillis();
+                delayMs = fetchScheduler.delayMs(state.schedule, totalWeight(), now);
+                if (delayMs == 0)
+                {
+                    fetchScheduler.onRequest(state.schedule, now);
+                    limit = fetchScheduler.limit(state.schedule, space);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        
+        if (delayMs > 0)
+        {
+            // 等待期间保持fetching，poll不会提前发出请求
+            scheduleFetch(state, delayMs);
+            return;
+        }
+        try
+        {
+            if (checkpoint)
+            {
+                fetchCheckpoint(state);
+            }
+            else if (cursor == null)
+            {
+                fetchCursor(state);
+            }
+            else
+            {
+                fetchRecords(state, cursor, limit);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            onFetchError(state, e);
+        }
+    }
+    
+    /*
+     * 后台刷新长时间未使用的游标(如缓冲已满时)，从最后取回的序列号之后重新获取，避免之后使用时已过期
+     */
+    private void refreshCursors()
+    {
+        List<PartitionState> stale = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try
+        {
+            for (PartitionState state : partitions.values())
+            {
+                if (!closed && !state.fetching && !state.failed && state.error == null && !state.exhausted
+                    && cursorManager.needsRefresh(state.cursor, now))
+                {
+                    state.fetching = true;
+                    stale.add(state);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        for (PartitionState state : stale)
+        {
+            log.debug("Refresh cursor of partition {} after sequence number {}.", state.partition,
+                state.cursor.lastSequenceNumber());
+            try
+            {
+                fetchCursor(state);
+            }
+            catch (RuntimeException e)
+            {
+                onFetchError(state, e);
+            }
+        }
+    }
+    
+    /*
+     * 读取分片已提交的checkpoint，有则从其之后获取游标，否则从cursorType开始
+     */
+    private void fetchCheckpoint(final PartitionState state)
+    {
+        GetCheckpointRequest request = new GetCheckpointRequest();
+        request.setAppName(checkpointApp);
+        request.setCheckpointType(CheckpointTypeEnum.LAST_READ.name());
+        request.setStreamName(state.partition.topic());
+        request.setPartitionId(state.partition.partition());
+        disAsync.getCheckpointAsync(request, new AsyncHandler<GetCheckpointResult>()
+        {
+            @Override
+            public void onSuccess(GetCheckpointResult result)
+            {
+                String sequenceNumber = result.getSequenceNumber();
+                // 没有checkpoint时序列号为空或为负数
+                boolean committed = !StringUtils.isNullOrEmpty(sequenceNumber) && !sequenceNumber.startsWith("-");
+                lock.lock();
+                try
+                {
+                    if (!isCurrent(state))
+                    {
+                        return;
+                    }
+                    state.fetching = false;
+                    state.checkpointPending = false;
+                    if (committed)
+                    {
+                        state.cursor.resumeAfter(sequenceNumber);
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                if (committed)
+                {
+                    log.info("Partition {} continues after checkpoint {} of app {}.", state.partition, sequenceNumber,
+                        checkpointApp);
+                }
+                maybeFetch(state);
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                onFetchError(state, exception);
+            }
+        });
+    }
+    
+    private void fetchCursor(final PartitionState state)
+    {
+        GetPartitionCursorRequest request;
+        lock.lock();
+        try
+        {
+            request = cursorManager.cursorRequest(state.cursor);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        disAsync.getPartitionCursorAsync(request, new AsyncHandler<GetPartitionCursorResult>()
+        {
+            @Override
+            public void onSuccess(GetPartitionCursorResult result)
+            {
+                lock.lock();
+                try
+                {
+                    state.fetching = false;
+                    state.cursor.update(result.getPartitionCursor(), System.currentTimeMillis());
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                maybeFetch(state);
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                onFetchError(state, exception);
+            }
+        });
+    }
+    
+    private void fetchRecords(final PartitionState state, String cursor, int limit)
+    {
+        GetRecordsRequest request = new GetRecordsRequest();
+        request.setPartitionCursor(cursor);
+        request.setLimit(limit);
+        disAsync.getRecordsAsync(request, new AsyncHandler<GetRecordsResult>()
+        {
+            @Override
+            public void onSuccess(GetRecordsResult result)
+            {
+                onRecords(state, result);
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                onFetchError(state, exception);
+            }
+        });
+    }
+    
+    private void onRecords(PartitionState state, GetRecordsResult result)
+    {
+        List<Record> records = result.getRecords();
+        boolean empty = records == null || records.isEmpty();
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try
+        {
+            if (!isCurrent(state))
+            {
+                return;
+            }
+            if (!empty)
+            {
+                state.buffer.addAll(records);
+                available.signalAll();
+            }
+            state.cursor.onRecords(records, result.getNextPartitionCursor(), now);
+            fetchScheduler.onRecords(state.schedule, empty ? 0 : records.size(), result.getMillisBehindLatest(), now);
+            state.fetching = false;
+            if (state.cursor.cursor() == null)
+            {
+                // 分片已关闭(如缩容)，没有更多数据
+                state.exhausted = true;
+                log.info("No more records in partition {}.", state.partition);
+                return;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        maybeFetch(state);
+    }
+    
+    private void onFetchError(PartitionState state, Exception exception)
+    {
+        boolean retry;
+        boolean recovered = false;
+        lock.lock();
+        try
+        {
+            if (closed || !isCurrent(state))
+            {
+                return;
+            }
+            retry = exception instanceof DISClientRetriableException;
+            if (!retry && cursorManager.recover(state.cursor, exception))
+            {
+                // 重新获取游标即可继续，不需要退避
+                state.fetching = false;
+                recovered = true;
+            }
+            else if (!retry)
+            {
+                state.fetching = false;
+                state.error = exception instanceof RuntimeException ? (RuntimeException)exception
+                    : new DISClientException(exception);
+                available.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (recovered)
+        {
+            log.info("Cursor of partition {} is no longer valid, re-acquire it: {}", state.partition,
+                exception.getMessage());
+            maybeFetch(state);
+        }
+        else if (retry)
+        {
+            log.warn("Failed to fetch partition {}, retry after {}ms: {}", state.partition,
+                fetchScheduler.retryBackoffMs(), exception.getMessage());
+            scheduleFetch(state, fetchScheduler.retryBackoffMs());
+        }
+        else
+        {
+            log.error("Failed to fetch partition " + state.partition + ", stop fetching it.", exception);
+        }
+    }
+    
+    private void scheduleFetch(final PartitionState state, long delayMs)
+    {
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                lock.lock();
+                try
+                {
+                    state.fetching = false;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                maybeFetch(state);
+            }
+        };
+        try
+        {
+            scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // 已关闭
+        }
+    }
+    
+    /*
+     * 分片的获取状态，除partition外由lock保护
+     */
+    private static final class PartitionState
+    {
+        final StreamPartition partition;
+        
+        final CursorManager.PartitionCursor cursor;
+        
+        final FetchScheduler.PartitionSchedule schedule;
+        
+        final ArrayDeque<Record> buffer = new ArrayDeque<>();
+        
+        // 有请求在进行或正在退避等待
+        boolean fetching;
+        
+        // 尚未读取已提交的checkpoint
+        boolean checkpointPending;
+        
+        // 分片已关闭，没有更多数据
+        boolean exhausted;
+        
+        // 不可重试的错误，尚未由poll抛出
+        RuntimeException error;
+        
+        // 错误已经抛出，不再获取
+        boolean failed;
+        
+        PartitionState(StreamPartition partition, CursorManager.PartitionCursor cursor,
+            FetchScheduler.PartitionSchedule schedule)
+        {
+            this.partition = partition;
+            this.cursor = cursor;
+            this.schedule = schedule;
+        }
+    }
+}
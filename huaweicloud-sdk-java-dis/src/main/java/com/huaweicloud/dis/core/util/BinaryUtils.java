@@ -127,7 +127,7 @@ public class BinaryUtils {
         if (bb == null)
             return null;
         if (bb.hasArray())
-            return Arrays.copyOf(bb.array(), bb.limit());
+            return Arrays.copyOfRange(bb.array(), bb.arrayOffset(), bb.arrayOffset() + bb.limit());
         bb.mark();
         // the default ByteBuffer#mark() and reset() won't work, as the
         // rewind would discard the mark position
@@ -160,14 +160,12 @@ public class BinaryUtils {
         if (bb == null)
             return null;
         if (bb.hasArray())
-            return Arrays.copyOfRange(bb.array(), bb.position(), bb.limit());
-        bb.mark();
-        try {
-            byte[] dst = new byte[bb.remaining()];
-            bb.get(dst);
-            return dst;
-        } finally {
-            bb.reset();
-        }
+            return Arrays.copyOfRange(bb.array(), bb.arrayOffset() + bb.position(),
+                bb.arrayOffset() + bb.limit());
+        // read from a duplicate so that concurrent readers of the same buffer
+        // (e.g. a batch being retried) never observe a moved position
+        byte[] dst = new byte[bb.remaining()];
+        bb.duplicate().get(dst);
+        return dst;
     }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.exception;
+
+/**
+ * DISProducer关闭超时后放弃未完成的批次，批次中的记录以此异常失败。请求可能已发出，记录是否写入未知
+ */
+public class DISProducerClosedException extends DISClientException
+{
+    public DISProducerClosedException(String message)
+    {
+        super(message);
+    }
+
+    public DISProducerClosedException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+
+    public DISProducerClosedException(Throwable cause)
+    {
+        super(cause);
+    }
+}
@@ -9,6 +9,7 @@ import com.huaweicloud.dis.core.Request;
 import com.huaweicloud.dis.core.auth.signer.internal.SignerConstants;
 import com.huaweicloud.dis.core.handler.AsyncHandler;
 import com.huaweicloud.dis.core.http.HttpMethodName;
+import com.huaweicloud.dis.core.util.BinaryUtils;
 import com.huaweicloud.dis.core.util.StringUtils;
 import com.huaweicloud.dis.exception.*;
 import com.huaweicloud.dis.http.exception.HttpStatusCodeException;
@@ -112,41 +113,52 @@ public class AbstractDISClient {
      */
     protected PutRecordsRequest decorateRecords(PutRecordsRequest putRecordsParam)
     {
-        // compress with snappy-java
-        if (disConfig.isDataCompressEnabled())
+        boolean compress = disConfig.isDataCompressEnabled();
+        boolean encrypt = isEncrypt();
+        if (putRecordsParam.getRecords() == null || (!compress && !encrypt))
         {
-            if (putRecordsParam.getRecords() != null)
-            {
-                for (PutRecordsRequestEntry record : putRecordsParam.getRecords())
-                {
-                    byte[] input = record.getData().array();
-                    try
-                    {
-                        byte[] compressedInput = SnappyUtils.compress(input);
-                        record.setData(ByteBuffer.wrap(compressedInput));
-                    }
-                    catch (IOException e)
-                    {
-                        LOG.error(e.getMessage(), e);
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
+            return putRecordsParam;
         }
         
-        // encrypt
-        if (isEncrypt())
+        // 压缩与加密作用在记录的副本上，调用者的记录(如生产者重试中的批次)保持不变
+        PutRecordsRequest decorated = new PutRecordsRequest();
+        decorated.setStreamName(putRecordsParam.getStreamName());
+        decorated.setStreamId(putRecordsParam.getStreamId());
+        List<PutRecordsRequestEntry> records = new ArrayList<>(putRecordsParam.getRecords().size());
+        for (PutRecordsRequestEntry record : putRecordsParam.getRecords())
         {
-            if (putRecordsParam.getRecords() != null)
+            ByteBuffer data = record.getData();
+            // compress with snappy-java
+            if (compress)
             {
-                for (PutRecordsRequestEntry record : putRecordsParam.getRecords())
+                byte[] input = BinaryUtils.copyBytesFrom(data);
+                try
+                {
+                    data = ByteBuffer.wrap(SnappyUtils.compress(input));
+                }
+                catch (IOException e)
                 {
-                    record.setData(encrypt(record.getData()));
+                    LOG.error(e.getMessage(), e);
+                    throw new RuntimeException(e);
                 }
             }
-        }
-        
-        return putRecordsParam;
+            // encrypt
+            if (encrypt)
+            {
+                data = encrypt(data);
+            }
+            
+            PutRecordsRequestEntry copy = new PutRecordsRequestEntry();
+            copy.setData(data);
+            copy.setExplicitHashKey(record.getExplicitHashKey());
+            copy.setPartitionId(record.getPartitionId());
+            copy.setPartitionKey(record.getPartitionKey());
+            copy.setExtendedInfo(record.getExtendedInfo());
+            copy.setTimestamp(record.getTimestamp());
+            records.add(copy);
+        }
+        decorated.setRecords(records);
+        return decorated;
     }
     
     /**
@@ -176,7 +188,7 @@ public class AbstractDISClient {
             {
                 for (Record record : getRecordsResult.getRecords())
                 {
-                    byte[] input = record.getData().array();
+                    byte[] input = BinaryUtils.copyBytesFrom(record.getData());
                     try
                     {
                         byte[] uncompressedInput = SnappyUtils.uncompress(input);
@@ -204,7 +216,7 @@ public class AbstractDISClient {
         String cipher = null;
         try
         {
-            cipher = EncryptUtils.gen(new String[] {disConfig.getDataPassword()}, src.array());
+            cipher = EncryptUtils.gen(new String[] {disConfig.getDataPassword()}, BinaryUtils.copyBytesFrom(src));
         }
         catch (InvalidKeyException | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException
             | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e)
@@ -221,7 +233,7 @@ public class AbstractDISClient {
         String src;
         try
         {
-            src = EncryptUtils.dec(new String[] {disConfig.getDataPassword()}, new String(cipher.array(), utf8));
+            src = EncryptUtils.dec(new String[] {disConfig.getDataPassword()}, new String(BinaryUtils.copyBytesFrom(cipher), utf8));
         }
         catch (InvalidKeyException | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException
             | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e)
@@ -16,15 +16,27 @@
 
 package com.huaweicloud.dis.producer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,18 +44,34 @@ import org.slf4j.LoggerFactory;
 import com.huaweicloud.dis.DISAsync;
 import com.huaweicloud.dis.DISClientAsync;
 import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.StreamPartition;
 import com.huaweicloud.dis.core.builder.DefaultExecutorFactory;
 import com.huaweicloud.dis.core.handler.AsyncHandler;
 import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.exception.DISProducerClosedException;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.request.StreamType;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
 import com.huaweicloud.dis.iface.stream.request.DescribeStreamRequest;
 import com.huaweicloud.dis.iface.stream.response.DescribeStreamResult;
+import com.huaweicloud.dis.producer.internals.AdaptiveBatchSizer;
+import com.huaweicloud.dis.producer.internals.BufferPool;
+import com.huaweicloud.dis.producer.internals.PartitionRateLimiter;
+import com.huaweicloud.dis.producer.internals.PartitionedRecordsFuture;
+import com.huaweicloud.dis.producer.internals.ProducerBatch;
+import com.huaweicloud.dis.producer.internals.ProducerMetrics;
 import com.huaweicloud.dis.producer.internals.RecordAccumulator;
+import com.huaweicloud.dis.producer.internals.RecordFuture;
+import com.huaweicloud.dis.producer.internals.RecordOutputStream;
+import com.huaweicloud.dis.producer.internals.RecordRetryPolicy;
 import com.huaweicloud.dis.producer.internals.Sender;
-import com.huaweicloud.dis.producer.internals.StreamPartition;
+import com.huaweicloud.dis.util.RecordSizeEstimator;
+import com.huaweicloud.dis.util.Utils;
+import com.huaweicloud.dis.util.metrics.Gauge;
+import com.huaweicloud.dis.util.metrics.MetricsReporter;
 
 
 /**
@@ -63,13 +91,29 @@ public class DISProducer
 
     private RecordAccumulator accumulator;
     
-    private Sender sender;
+    private Sender[] senders;
 
     private DISAsync disAsync;
 
     private DISConfig disConfig;
     
     private boolean orderByPartition;
+    
+    private boolean partitionAware;//不保序时也按实际分片分组批量
+
+    private Partitioner partitioner;
+
+    private AdaptiveBatchSizer batchSizer;
+
+    private PartitionRateLimiter rateLimiter;//不为null时，按通道的分片类型限制每个分片的发送速率
+
+    private volatile ProducerErrorListener errorListener;
+
+    private ProducerMetrics metrics;
+
+    private List<MetricsReporter> reporters;
+
+    private ScheduledExecutorService reportExecutor;
 
     private long metadataTimeoutMS;
 
@@ -100,20 +144,261 @@ public class DISProducer
         int bufferCount = config.getBufferCount();
         boolean orderByPartition = config.isOrderByPartition();
         this.orderByPartition = orderByPartition;
+        // 聚合记录写入批次所在的分片，因此聚合时需要按实际分片分组
+        this.partitionAware = !orderByPartition && (config.isPartitionAwareBatchingEnabled() || config.isAggregationEnabled());
+        this.partitioner = newPartitioner(config);
         this.metadataTimeoutMS = config.getMetadataTimeoutMs();
 
+        RecordRetryPolicy retryPolicy = config.getDeliveryTimeoutMs() > 0 ? new RecordRetryPolicy(
+            config.getDeliveryTimeoutMs(), config.getRetryBackoffMs(), config.getBackOffMaxIntervalMs(),
+            config.getRecordsRetriesErrorCode()) : null;
+        int maxInFlightPerPartition = config.getMaxInFlightBatchesPerPartition();
         if (disAsync != null)
         {
             this.disAsync = disAsync;
         }
+        else if (retryPolicy != null)
+        {
+            // 记录由Sender退避重发，客户端线程不再等待重试；异常重试仍由客户端完成(元数据请求也需要)
+            DISConfig clientConfig = (DISConfig)config.clone();
+            clientConfig.setRecordsRetries(0);
+            this.disAsync = new DISClientAsync(clientConfig, executorService);
+        }
         else
         {
             this.disAsync = new DISClientAsync(config, executorService);
         }
-        this.accumulator = new RecordAccumulator(batchSize, batchCount, bufferSize, bufferCount, this.lingerMs, orderByPartition);
-        this.sender = new Sender(this.disAsync, accumulator, this.lingerMs);
+        this.metrics = new ProducerMetrics();
+        // 内存池不限制分配，buffer.memory只由RecordAccumulator按记录大小控制；缓存的空闲buffer同样不超过buffer.memory
+        BufferPool bufferPool = config.isBufferPoolEnabled() ? new BufferPool(bufferSize,
+            BufferPool.DEFAULT_MAX_POOLABLE_SIZE, config.isBufferPoolDirect()) : null;
+        this.batchSizer = config.isAdaptiveBatchingEnabled() ? new AdaptiveBatchSizer(this.lingerMs,
+            config.getAdaptiveLingerMinMs(), config.getAdaptiveLingerMaxMs(), batchSize, batchCount) : null;
+        // 只有按分片分组时才知道批次所在的分片
+        this.rateLimiter = config.isRateLimitEnabled() && (orderByPartition || partitionAware)
+            ? new PartitionRateLimiter() : null;
+        this.accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(batchSize, batchCount, bufferSize, bufferCount, this.lingerMs)
+                .orderByPartition(orderByPartition || partitionAware)
+                .lockFree(config.isAccumulatorLockFree())
+                .bufferPool(bufferPool)
+                .batchSizer(batchSizer)
+                .metrics(metrics)
+                .sizeEstimator(RecordSizeEstimator.of(config.getBodySerializeType()))
+                .rateLimiter(rateLimiter));
+        int senderThreads = config.getSenderThreads();
+        int aggregationMaxSize = config.isAggregationEnabled() ? config.getAggregationMaxSize() : 0;
+        this.senders = new Sender[senderThreads];
+        for (int i = 0; i < senderThreads; i++)
+        {
+            this.senders[i] = new Sender(this.disAsync, accumulator, new Sender.Settings(this.lingerMs)
+                .shard(i, senderThreads)
+                .aggregationMaxSize(aggregationMaxSize)
+                .retryPolicy(retryPolicy)
+                .maxInFlightPerPartition(maxInFlightPerPartition)
+                .orderByPartition(orderByPartition)
+                .rateLimiter(rateLimiter));
+        }
+
+        metrics.registry().gauge("requests.in.flight", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                long inFlight = 0;
+                for (Sender sender : senders)
+                {
+                    inFlight += sender.inFlightRequests();
+                }
+                return inFlight;
+            }
+        });
+
+        for (Sender sender : senders)
+        {
+            sender.start();
+        }
+        startReporters(config);
+    }
+
+    private void startReporters(DISConfig config)
+    {
+        this.reporters = new ArrayList<>();
+        for (String reporterClass : config.getMetricsReporters())
+        {
+            try
+            {
+                MetricsReporter reporter = (MetricsReporter)Class.forName(reporterClass).newInstance();
+                reporter.configure(config);
+                reporters.add(reporter);
+            }
+            catch (Exception e)
+            {
+                throw new IllegalArgumentException("Failed to create MetricsReporter[" + reporterClass + "], error ["
+                    + e.toString() + "]", e);
+            }
+        }
+        if (reporters.isEmpty())
+        {
+            return;
+        }
+
+        this.reportExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "DIS Producer Metrics Reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long intervalMs = config.getMetricsReportIntervalMs();
+        reportExecutor.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                report();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void report()
+    {
+        Map<String, Number> snapshot = metrics();
+        for (MetricsReporter reporter : reporters)
+        {
+            try
+            {
+                reporter.report(snapshot);
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to report metrics by {}", reporter.getClass().getName(), e);
+            }
+        }
+    }
 
-        sender.start();
+    private void closeReporters()
+    {
+        if (reportExecutor == null)
+        {
+            return;
+        }
+        reportExecutor.shutdownNow();
+        report();
+        for (MetricsReporter reporter : reporters)
+        {
+            try
+            {
+                reporter.close();
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to close {}", reporter.getClass().getName(), e);
+            }
+        }
+    }
+    
+    private static Partitioner newPartitioner(DISConfig config)
+    {
+        String partitionerClass = config.get(DISConfig.PROPERTY_PRODUCER_PARTITIONER_CLASS, null);
+        if (StringUtils.isNullOrEmpty(partitionerClass))
+        {
+            return new DefaultPartitioner();
+        }
+        try
+        {
+            return (Partitioner)Class.forName(partitionerClass).newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Failed to create Partitioner[" + partitionerClass + "], error ["
+                + e.toString() + "]", e);
+        }
+    }
+    
+    /**
+     * 预热，可选调用：并行获取各通道的元数据，避免第一次发送时同步等待describeStream；同时发出
+     * {@code warmup.connections}个(不少于通道数)并发的元数据请求，使连接池提前建立连接并完成TLS握手与鉴权，
+     * 避免第一批记录承担建连的延迟。
+     * <p>
+     * 预热期间即可发送，未预热完成的通道仍在第一次发送时获取元数据。
+     *
+     * @param streamNames 即将发送的通道
+     * @return 所有请求结束且每个通道的元数据都已获取时完成；某个通道的请求全部失败时以其第一个失败的异常完成
+     */
+    public CompletableFuture<Void> start(Collection<String> streamNames)
+    {
+        List<String> streams = new ArrayList<>(new LinkedHashSet<>(streamNames));
+        if (streams.isEmpty())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+        int requests = Math.max(disConfig.getWarmupConnections(), streams.size());
+        List<CompletableFuture<Void>> ready = new ArrayList<>(streams.size());
+        for (int i = 0; i < streams.size(); i++)
+        {
+            // 按轮询分配后，第i个通道的请求数
+            int attempts = requests / streams.size() + (i < requests % streams.size() ? 1 : 0);
+            ready.add(warmup(streams.get(i), attempts));
+        }
+        log.info("Warming up DISProducer for streams {} with {} concurrent requests.", streams, requests);
+        return CompletableFuture.allOf(ready.toArray(new CompletableFuture<?>[0]));
+    }
+    
+    /*
+     * 对通道同时发出attempts个元数据请求，全部结束后完成，此时各请求的连接都已建立；第一个成功的结果缓存为元数据
+     */
+    private CompletableFuture<Void> warmup(final String streamName, int attempts)
+    {
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        final AtomicInteger remaining = new AtomicInteger(attempts);
+        final AtomicBoolean cached = new AtomicBoolean();
+        final AtomicReference<Exception> firstError = new AtomicReference<>();
+        for (int i = 0; i < attempts; i++)
+        {
+            DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
+            describeStreamRequest.setStreamName(streamName);
+            disAsync.describeStreamAsync(describeStreamRequest, new AsyncHandler<DescribeStreamResult>()
+            {
+                @Override
+                public void onError(Exception exception)
+                {
+                    firstError.compareAndSet(null, exception);
+                    onComplete();
+                }
+                
+                @Override
+                public void onSuccess(DescribeStreamResult result)
+                {
+                    if (cached.compareAndSet(false, true))
+                    {
+                        cacheMetadata(streamName, result);
+                    }
+                    onComplete();
+                }
+                
+                private void onComplete()
+                {
+                    if (remaining.decrementAndGet() > 0)
+                    {
+                        return;
+                    }
+                    if (cached.get())
+                    {
+                        ready.complete(null);
+                    }
+                    else
+                    {
+                        log.error("Failed to warm up stream {}: {}", streamName, firstError.get().getMessage());
+                        ready.completeExceptionally(firstError.get());
+                    }
+                }
+            });
+        }
+        return ready;
     }
     
     public Future<PutRecordsResultEntry> putRecordAsync(String streamName, PutRecordsRequestEntry putRecordsRequestEntry, AsyncHandler<PutRecordsResultEntry> callback) throws InterruptedException{
@@ -124,11 +409,150 @@ public class DISProducer
         records.add(putRecordsRequestEntry);
         putRecordsRequest.setRecords(records);
         
-        Future<PutRecordsResult> future = this.putRecordsAsync(putRecordsRequest, new PutRecordsResultAsyncHandler(callback));
+        Future<PutRecordsResult> future = this.putRecordsAsync(putRecordsRequest,
+            callback == null ? null : new PutRecordsResultAsyncHandler(callback));
         
         return new PutRecordsResultEntryFuture(future);
     }
     
+    /**
+     * 异步发送单条不指定partitionKey的记录，见{@link #send(String, String, ByteBuffer)}
+     *
+     * @param streamName 通道名称
+     * @param data 记录数据
+     * @return 记录的发送结果
+     * @throws InterruptedException 等待缓冲区时被中断
+     */
+    public CompletableFuture<PutRecordsResultEntry> send(String streamName, ByteBuffer data)
+        throws InterruptedException
+    {
+        return send(streamName, null, data);
+    }
+    
+    /**
+     * 异步发送单条记录。记录直接追加到批次中，不创建PutRecordsRequest，批次完成时按记录的下标直接完成返回的future。
+     * <p>
+     * 记录发送失败(重试后仍有错误码)时future以带错误码的结果正常完成，整个请求失败时异常完成。
+     * 依赖返回future的同步回调在Sender线程中执行，耗时的处理请使用*Async方法指定线程池。
+     * 未开启内存池时，data在future完成前不能被修改。
+     *
+     * @param streamName 通道名称
+     * @param partitionKey 用于计算分片的key，为null时由服务端或Partitioner选择分片
+     * @param data 记录数据，发送position到limit之间的内容
+     * @return 记录的发送结果
+     * @throws InterruptedException 等待缓冲区时被中断
+     */
+    public CompletableFuture<PutRecordsResultEntry> send(String streamName, String partitionKey, ByteBuffer data)
+        throws InterruptedException
+    {
+        return send(streamName, partitionKey, data, false);
+    }
+    
+    /*
+     * pooled为true时data由newRecordOutputStream分配，追加时不再复制到内存池；追加成功后由批次归还，否则在此归还
+     */
+    CompletableFuture<PutRecordsResultEntry> send(String streamName, String partitionKey, ByteBuffer data,
+        boolean pooled)
+        throws InterruptedException
+    {
+        RecordFuture future = new RecordFuture();
+        send(streamName, partitionKey, data, future, pooled);
+        return future;
+    }
+    
+    /**
+     * 异步发送单条不指定partitionKey的记录，不返回结果，见{@link #sendAndForget(String, String, ByteBuffer)}
+     *
+     * @param streamName 通道名称
+     * @param data 记录数据
+     * @throws InterruptedException 等待缓冲区时被中断
+     */
+    public void sendAndForget(String streamName, ByteBuffer data)
+        throws InterruptedException
+    {
+        sendAndForget(streamName, null, data);
+    }
+    
+    /**
+     * 异步发送单条记录，不创建future与回调，每条记录只分配记录本身。
+     * <p>
+     * 发送失败的记录只能通过{@link #setErrorListener(ProducerErrorListener)}按批次得到通知，并计入指标records.failed。
+     * 未开启内存池时，data在发送完成前不能被修改，可通过{@link #flush()}等待。
+     *
+     * @param streamName 通道名称
+     * @param partitionKey 用于计算分片的key，为null时由服务端或Partitioner选择分片
+     * @param data 记录数据，发送position到limit之间的内容
+     * @throws InterruptedException 等待缓冲区时被中断
+     */
+    public void sendAndForget(String streamName, String partitionKey, ByteBuffer data)
+        throws InterruptedException
+    {
+        send(streamName, partitionKey, data, null, false);
+    }
+    
+    /**
+     * 设置生产者级别的失败通知，每个最终失败的批次回调一次，对所有发送方式生效
+     *
+     * @param errorListener 失败通知，为null时只记录日志与指标
+     */
+    public void setErrorListener(ProducerErrorListener errorListener)
+    {
+        this.errorListener = errorListener;
+        for (Sender sender : senders)
+        {
+            sender.setErrorListener(errorListener);
+        }
+    }
+    
+    /*
+     * future为null时不返回结果；pooled的含义见send(String, String, ByteBuffer, boolean)
+     */
+    void send(String streamName, String partitionKey, ByteBuffer data, RecordFuture future, boolean pooled)
+        throws InterruptedException
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(data);
+        entry.setPartitionKey(partitionKey);
+        
+        boolean appended = false;
+        try
+        {
+            if (!orderByPartition && !partitionAware)
+            {
+                appended = append(new StreamPartition(streamName, STABLE_PARTITION_ID), entry, future, false, pooled);
+                return;
+            }
+            
+            StreamInfo streamInfo = fetchMetadata(streamName);
+            int partition = calPartitionId(streamInfo, entry);
+            appended = append(streamInfo.streamPartition(partition), pinPartition(entry, partition), future, true,
+                pooled);
+            if (!appended)
+            {
+                partitioner.onNewBatch(streamName, partition, streamInfo.getPartitions());
+                partition = calPartitionId(streamInfo, entry);
+                appended = append(streamInfo.streamPartition(partition), pinPartition(entry, partition), future,
+                    false, pooled);
+            }
+        }
+        finally
+        {
+            BufferPool bufferPool = accumulator.bufferPool();
+            if (!appended && pooled && bufferPool != null)
+            {
+                bufferPool.deallocate(data);
+            }
+        }
+    }
+        
+    /*
+     * 创建写入单条记录数据的输出流，开启内存池时直接从内存池分配，写完的数据通过send(..., true)发送
+     */
+    RecordOutputStream newRecordOutputStream(int initialCapacity)
+    {
+        return new RecordOutputStream(accumulator.bufferPool(), initialCapacity);
+    }
+    
     private ConcurrentHashMap<String, StreamInfo> metadata = new ConcurrentHashMap<String, StreamInfo>();
     private CopyOnWriteArrayList<String> onSyncStreams = new CopyOnWriteArrayList<>();
     
@@ -139,12 +563,7 @@ public class DISProducer
             describeStreamRequest.setStreamName(streamName);
             DescribeStreamResult describeStreamResult = disAsync.describeStream(describeStreamRequest);
             
-            streamInfo = new StreamInfo();
-            streamInfo.setStreamName(streamName);
-            streamInfo.setSyncTimestamp(System.currentTimeMillis());
-            streamInfo.setPartitions(describeStreamResult.getWritablePartitionCount());
-            
-            metadata.put(streamName, streamInfo);
+            streamInfo = cacheMetadata(streamName, describeStreamResult);
         }else{
             if(System.currentTimeMillis() - streamInfo.getSyncTimestamp() > metadataTimeoutMS){
                 if(!onSyncStreams.contains(streamName)){
@@ -164,12 +583,7 @@ public class DISProducer
                         @Override
                         public void onSuccess(DescribeStreamResult result)
                         {
-                            StreamInfo streamInfo = new StreamInfo();
-                            streamInfo.setStreamName(streamName);
-                            streamInfo.setSyncTimestamp(System.currentTimeMillis());
-                            streamInfo.setPartitions(result.getWritablePartitionCount());
-                            
-                            metadata.put(streamName, streamInfo);
+                            cacheMetadata(streamName, result);
                             
                             onSyncStreams.remove(streamName);
                         }
@@ -182,67 +596,335 @@ public class DISProducer
         return streamInfo;
     }
     
-    private int calPartitionId(StreamInfo streamInfo, PutRecordsRequestEntry entry)
+    private StreamInfo cacheMetadata(String streamName, DescribeStreamResult describeStreamResult)
     {
-        if(!StringUtils.isNullOrEmpty(entry.getPartitionId())){
-            return PartitionKeyUtils.getPartitionNumberFromShardId(entry.getPartitionId());
-        }
+        StreamInfo streamInfo = new StreamInfo();
+        streamInfo.setStreamName(streamName);
+        streamInfo.setSyncTimestamp(System.currentTimeMillis());
+        streamInfo.setPartitions(describeStreamResult.getWritablePartitionCount());
+        updateStreamType(streamName, describeStreamResult);
         
-        Long hashKey = PartitionKeyUtils.getHashKey(entry.getPartitionKey(), entry.getExplicitHashKey());
-        
-        return PartitionKeyUtils.calPartitionIndex(streamInfo.getPartitions(), hashKey);
+        metadata.put(streamName, streamInfo);
+        return streamInfo;
+    }
+    
+    private void updateStreamType(String streamName, DescribeStreamResult describeStreamResult)
+    {
+        if (rateLimiter == null)
+        {
+            return;
+        }
+        StreamType streamType;
+        try
+        {
+            streamType = StreamType.getEnumByType(describeStreamResult.getStreamType());
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn("Unknown stream type {} of stream {}, use the quota of {}.", describeStreamResult.getStreamType(),
+                streamName, StreamType.COMMON);
+            streamType = StreamType.COMMON;
+        }
+        rateLimiter.updateStreamType(streamName, streamType);
+    }
+    
+    private int calPartitionId(StreamInfo streamInfo, PutRecordsRequestEntry entry)
+    {
+        return partitioner.partition(streamInfo.getStreamName(), entry, streamInfo.getPartitions());
     }
     
     public Future<PutRecordsResult> putRecordsAsync(PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback) throws InterruptedException
+    {
+        return putRecordsAsync(putRecordsRequest, callback, true);
+    }
+    
+    /*
+     * abortOnNewBatch为true时，如果分片的当前批次已不能追加，先通知Partitioner(粘性策略会切换分片)，再重新计算分片追加
+     */
+    private Future<PutRecordsResult> putRecordsAsync(PutRecordsRequest putRecordsRequest,
+        AsyncHandler<PutRecordsResult> callback, boolean abortOnNewBatch) throws InterruptedException
     {
         String streamName = putRecordsRequest.getStreamName();
         
-        //不按partition排序的话，就不按partition分组,streamPartition表示的其实是流而不是分片，分片字段传固定的
+        //不按partition排序且未开启partition.aware.batching.enabled的话，就不按partition分组,streamPartition表示的其实是流而不是分片，分片字段传固定的
         String partitionId = STABLE_PARTITION_ID;
         if(orderByPartition){
             StreamInfo streamInfo = fetchMetadata(streamName);
             
             int caledPartitionId = -1;
+            List<PutRecordsRequestEntry> routed = new ArrayList<>(putRecordsRequest.getRecords().size());
             for(PutRecordsRequestEntry entry : putRecordsRequest.getRecords()){
                 int tmpPartition = calPartitionId(streamInfo, entry);
                 if(caledPartitionId != -1 && caledPartitionId != tmpPartition){
                     throw new RuntimeException("one batch should in one partition when orderByPartition on.");
                 }
                 caledPartitionId = tmpPartition;
+                routed.add(pinPartition(entry, tmpPartition));
             }
             
-            partitionId = Integer.toString(caledPartitionId);
+            Future<PutRecordsResult> future = append(new StreamPartition(streamName, Integer.toString(caledPartitionId)),
+                newRequest(putRecordsRequest, routed),
+                callback,
+                abortOnNewBatch);
+            if (future == null)
+            {
+                partitioner.onNewBatch(streamName, caledPartitionId, streamInfo.getPartitions());
+                return putRecordsAsync(putRecordsRequest, callback, false);
+            }
+            return future;
+        }
+        else if (partitionAware)
+        {
+            return putRecordsByPartition(putRecordsRequest, callback, abortOnNewBatch);
         }
        
         StreamPartition tp = new StreamPartition(streamName, partitionId);
+        return append(tp, putRecordsRequest, callback, false);
+    }
+        
+    /*
+     * 按记录的实际分片拆分请求，每个分片一个批次；请求跨多个分片时，各部分完成后按原始顺序合并结果
+     */
+    private Future<PutRecordsResult> putRecordsByPartition(PutRecordsRequest putRecordsRequest,
+        AsyncHandler<PutRecordsResult> callback, boolean abortOnNewBatch) throws InterruptedException
+    {
+        String streamName = putRecordsRequest.getStreamName();
+        StreamInfo streamInfo = fetchMetadata(streamName);
         
+        List<PutRecordsRequestEntry> records = putRecordsRequest.getRecords();
+        List<PutRecordsRequestEntry> routed = new ArrayList<>(records.size());
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++)
+        {
+            PutRecordsRequestEntry entry = records.get(i);
+            int partition = calPartitionId(streamInfo, entry);
+            routed.add(pinPartition(entry, partition));
+            List<Integer> indexes = groups.get(partition);
+            if (indexes == null)
+            {
+                indexes = new ArrayList<>();
+                groups.put(partition, indexes);
+            }
+            indexes.add(i);
+        }
+        
+        if (groups.size() == 1)
+        {
+            int partition = groups.keySet().iterator().next();
+            Future<PutRecordsResult> future = append(new StreamPartition(streamName, Integer.toString(partition)),
+                newRequest(putRecordsRequest, routed),
+                callback,
+                abortOnNewBatch);
+            if (future == null)
+            {
+                partitioner.onNewBatch(streamName, partition, streamInfo.getPartitions());
+                return putRecordsByPartition(putRecordsRequest, callback, false);
+            }
+            return future;
+        }
+        
+        // 先登记所有部分再追加，避免先完成的部分提前触发回调
+        PartitionedRecordsFuture future = new PartitionedRecordsFuture(records.size(), callback);
+        List<AsyncHandler<PutRecordsResult>> partCallbacks = new ArrayList<>(groups.size());
+        for (List<Integer> indexes : groups.values())
+        {
+            int[] partIndexes = new int[indexes.size()];
+            for (int i = 0; i < partIndexes.length; i++)
+            {
+                partIndexes[i] = indexes.get(i);
+            }
+            partCallbacks.add(future.addPart(partIndexes));
+        }
+        
+        int part = 0;
+        try
+        {
+            for (Map.Entry<Integer, List<Integer>> group : groups.entrySet())
+            {
+                List<PutRecordsRequestEntry> partRecords = new ArrayList<>(group.getValue().size());
+                for (int index : group.getValue())
+                {
+                    partRecords.add(routed.get(index));
+                }
+                StreamPartition tp = new StreamPartition(streamName, Integer.toString(group.getKey()));
+                future.setPartFuture(part,
+                    append(tp, newRequest(putRecordsRequest, partRecords), partCallbacks.get(part), false));
+                part++;
+            }
+        }
+        catch (InterruptedException | RuntimeException e)
+        {
+            if (part == 0)
+            {
+                throw e;
+            }
+            // 之前的部分已进入批次，会照常发送；抛出异常会让调用者重发整个请求，造成这些记录重复
+            log.error("Failed to append part {} of {} of request to stream {}, fail the remaining parts.",
+                part, groups.size(), streamName, e);
+            future.failParts(part, e);
+            if (e instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return future;
+    }
+    
+    /*
+     * 没有指定分片、partitionKey和explicitHashKey的记录，服务端会随机选择分片，这里固定为客户端计算的分片
+     */
+    private PutRecordsRequestEntry pinPartition(PutRecordsRequestEntry entry, int partition)
+    {
+        if (!StringUtils.isNullOrEmpty(entry.getPartitionId()) || !StringUtils.isNullOrEmpty(entry.getPartitionKey())
+            || !StringUtils.isNullOrEmpty(entry.getExplicitHashKey()))
+        {
+            return entry;
+        }
+        PutRecordsRequestEntry pinned = new PutRecordsRequestEntry();
+        pinned.setData(entry.getData());
+        pinned.setPartitionId(Utils.getShardIdFromPartitionId(Integer.toString(partition)));
+        pinned.setExtendedInfo(entry.getExtendedInfo());
+        pinned.setTimestamp(entry.getTimestamp());
+        return pinned;
+    }
+    
+    private static PutRecordsRequest newRequest(PutRecordsRequest original, List<PutRecordsRequestEntry> records)
+    {
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(original.getStreamName());
+        request.setStreamId(original.getStreamId());
+        request.setRecords(records);
+        return request;
+    }
+    
+    /*
+     * 追加到分片的批次中；abortOnNewBatch为true且需要新建批次时不追加，返回null
+     */
+    private Future<PutRecordsResult> append(StreamPartition tp, PutRecordsRequest putRecordsRequest,
+        AsyncHandler<PutRecordsResult> callback, boolean abortOnNewBatch) throws InterruptedException
+    {
         long timestamp = System.currentTimeMillis();
         log.trace("Sending records {} with callback {} to streampartition ", putRecordsRequest, callback, tp);
 
         RecordAccumulator.RecordAppendResult result =
-            accumulator.append(tp, timestamp, putRecordsRequest, callback, this.maxBlockMs);
-//        if (result.batchIsFull || result.newBatchCreated)
-        if (result.batchIsFull || lingerMs == 0)
+            accumulator.append(tp, timestamp, putRecordsRequest, callback, this.maxBlockMs, abortOnNewBatch);
+        if (result.abortForNewBatch)
         {
-            log.trace("Waking up the sender since topic partition {} is either full or getting a new batch", tp);
-            this.sender.wakeup();
+            return null;
         }
+        wakeupIfReady(tp, result);
         return result.future;
         // handling exceptions and record the errors;
         // for API exceptions return them in the future,
         // for other exceptions throw directly
     }
+    
+    /*
+     * 追加单条记录，结果通过future返回；abortOnNewBatch为true且需要新建批次时不追加，返回false
+     */
+    private boolean append(StreamPartition tp, PutRecordsRequestEntry entry, RecordFuture future,
+        boolean abortOnNewBatch, boolean pooled) throws InterruptedException
+    {
+        long timestamp = System.currentTimeMillis();
+        RecordAccumulator.RecordAppendResult result = pooled
+            ? accumulator.appendPooled(tp, timestamp, entry, future, this.maxBlockMs, abortOnNewBatch)
+            : accumulator.append(tp, timestamp, entry, future, this.maxBlockMs, abortOnNewBatch);
+        if (result.abortForNewBatch)
+        {
+            return false;
+        }
+        wakeupIfReady(tp, result);
+        return true;
+    }
+    
+    private void wakeupIfReady(StreamPartition tp, RecordAccumulator.RecordAppendResult result)
+    {
+//        if (result.batchIsFull || result.newBatchCreated)
+        if (result.batchIsFull || accumulator.lingerMs(tp) == 0)
+        {
+            log.trace("Waking up the sender since topic partition {} is either full or getting a new batch", tp);
+            this.senders[RecordAccumulator.shardOf(tp, senders.length)].wakeup();
+        }
+    }
+
+    /**
+     * 当前生产者实例的指标快照，包括：
+     * <ul>
+     * <li>计数：records.sent/succeeded/failed/retried/throttled/aborted、requests.sent/succeeded/failed</li>
+     * <li>分布(展开为.count/.mean/.max/.p50/.p95/.p99/.p999)：record.size.bytes、batch.size.bytes、batch.records、
+     * request.latency.ms、append.blocked.ms</li>
+     * <li>瞬时值：buffer.used.bytes、buffer.total.bytes、buffer.utilization、buffer.batches、buffer.batches.max、
+     * queue.batches、requests.in.flight，开启内存池时还有bufferpool.allocated.bytes、bufferpool.cached.bytes</li>
+     * <li>自适应批量(adaptive.batching.enabled)时各分片当前生效的linger与批次阈值，key为{@code <流名>-<分片>.<指标>}</li>
+     * </ul>
+     *
+     * @return 按指标名排序的快照
+     */
+    public Map<String, Number> metrics()
+    {
+        Map<String, Number> snapshot = metrics.registry().snapshot();
+        if (batchSizer != null)
+        {
+            snapshot.putAll(batchSizer.metrics());
+        }
+        return snapshot;
+    }
 
+    /**
+     * 立即发送所有缓冲的记录(忽略linger.ms)，并等待调用时刻所有未完成的批次完成。可以被多个线程同时调用。
+     */
     public void flush()
     {
-        this.sender.flush();
+        flush(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * 立即发送所有缓冲的记录(忽略linger.ms)，并等待调用时刻所有未完成的批次完成，最多等待timeout
+     *
+     * @param timeout 最长等待时间
+     * @param timeUnit 时间单位
+     * @return {@code true} 所有批次已完成 {@code false} 等待超时
+     */
+    public boolean flush(long timeout, TimeUnit timeUnit)
+    {
+        if (timeout < 0)
+        {
+            throw new IllegalArgumentException("The timeout cannot be negative.");
+        }
+        log.trace("Flushing accumulated records in producer.");
+        accumulator.beginFlush();
+        for (Sender sender : senders)
+        {
+            sender.flush();
+        }
+        try
+        {
+            return accumulator.awaitFlushCompletion(timeUnit.toMillis(timeout));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DISClientException("Flush interrupted.", e);
+        }
+    }
+
+    /**
+     * 关闭生产者，一直等待所有记录发送完成，见{@link #close(long, TimeUnit)}
+     */
     public void close()
     {
         close(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * 关闭生产者：不再接收新记录，所有Sender并行发送剩余批次(忽略linger)，并等待在途请求完成。
+     * <p>
+     * 超时后放弃所有未完成的批次，其中的记录以{@link DISProducerClosedException}失败(请求可能已发出，是否写入未知)，
+     * 并通知{@link ProducerErrorListener}；放弃的记录总数记入指标records.aborted并输出告警日志。
+     *
+     * @param timeout 最长等待时间
+     * @param timeUnit 时间单位
+     */
     public void close(long timeout, TimeUnit timeUnit)
     {
         if (timeout < 0)
@@ -252,11 +934,65 @@ public class DISProducer
         log.debug("Closing the DIS producer with timeoutMillis = {} ms.", timeUnit.toMillis(timeout));
 
         accumulator.close();
-        sender.close(timeUnit.toMillis(timeout));
+        long timeoutMs = timeUnit.toMillis(timeout);
+        long start = System.currentTimeMillis();
+        // 各Sender并行发送剩余批次(关闭后忽略linger)，共享同一个超时时间
+        for (Sender sender : senders)
+        {
+            sender.initiateClose();
+        }
+        boolean closed = true;
+        for (Sender sender : senders)
+        {
+            closed &= sender.awaitClose(Math.max(0, timeoutMs - (System.currentTimeMillis() - start)));
+        }
+        if (!closed)
+        {
+            abortIncompleteBatches(timeoutMs);
+        }
         disAsync.close();
+        closeReporters();
         log.debug("The DIS producer has closed.");
     }
 
+    /*
+     * 关闭超时：停止Sender后放弃未完成的批次，统计并通知丢失的记录
+     */
+    private void abortIncompleteBatches(long timeoutMs)
+    {
+        for (Sender sender : senders)
+        {
+            sender.forceClose();
+        }
+        for (Sender sender : senders)
+        {
+            // 强制关闭后Sender在当前发送周期结束时退出，发送是异步的，不会长时间阻塞
+            sender.awaitClose(Long.MAX_VALUE);
+        }
+        DISProducerClosedException exception = new DISProducerClosedException(
+            "Producer closed before the records were confirmed within " + timeoutMs + "ms.");
+        long lost = 0;
+        List<ProducerBatch> aborted = accumulator.abortIncompleteBatches(exception);
+        ProducerErrorListener listener = this.errorListener;
+        for (ProducerBatch batch : aborted)
+        {
+            lost += batch.getRelativeOffset();
+            if (listener != null)
+            {
+                try
+                {
+                    listener.onError(batch.getTp().topic(), batch.getRelativeOffset(), null, exception);
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("ProducerErrorListener failed for stream {}: {}", batch.getTp().topic(), e.getMessage(), e);
+                }
+            }
+        }
+        log.warn("Closing the DIS producer timed out after {}ms, aborted {} records in {} batches.", timeoutMs, lost,
+            aborted.size());
+    }
+
     private static class PutRecordsResultEntryFuture implements Future<PutRecordsResultEntry>{
 
         private Future<PutRecordsResult> future;
@@ -338,6 +1074,7 @@ public class DISProducer
         private String streamName;
         private int partitions;
         private long syncTimestamp;
+        private volatile StreamPartition[] streamPartitions;
         public String getStreamName()
         {
             return streamName;
@@ -362,6 +1099,25 @@ public class DISProducer
         {
             this.syncTimestamp = syncTimestamp;
         }
+        /*
+         * 单条发送时复用各分片的StreamPartition，并发创建时多建一个也无妨
+         */
+        public StreamPartition streamPartition(int partition)
+        {
+            StreamPartition[] cached = streamPartitions;
+            if (cached == null || partition >= cached.length)
+            {
+                cached = new StreamPartition[Math.max(partitions, partition + 1)];
+                streamPartitions = cached;
+            }
+            StreamPartition tp = cached[partition];
+            if (tp == null)
+            {
+                tp = new StreamPartition(streamName, Integer.toString(partition));
+                cached[partition] = tp;
+            }
+            return tp;
+        }
     }
     
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+/**
+ * 默认的分片策略，与服务端一致：指定了分片的直接使用；否则根据explicitHashKey/partitionKey计算；都为空时随机选择分片
+ */
+public class DefaultPartitioner implements Partitioner
+{
+    @Override
+    public int partition(String streamName, PutRecordsRequestEntry entry, int partitionCount)
+    {
+        if (!StringUtils.isNullOrEmpty(entry.getPartitionId()))
+        {
+            return PartitionKeyUtils.getPartitionNumberFromShardId(entry.getPartitionId());
+        }
+        
+        Long hashKey = PartitionKeyUtils.getHashKey(entry.getPartitionKey(), entry.getExplicitHashKey());
+        
+        return PartitionKeyUtils.calPartitionIndex(partitionCount, hashKey);
+    }
+
+    @Override
+    public void onNewBatch(String streamName, int prevPartition, int partitionCount)
+    {
+    }
+    
+    /**
+     * @param entry 记录
+     * @return 记录是否既没有指定分片，也没有partitionKey和explicitHashKey
+     */
+    protected static boolean isKeyless(PutRecordsRequestEntry entry)
+    {
+        return StringUtils.isNullOrEmpty(entry.getPartitionId()) && StringUtils.isNullOrEmpty(entry.getPartitionKey())
+            && StringUtils.isNullOrEmpty(entry.getExplicitHashKey());
+    }
+}
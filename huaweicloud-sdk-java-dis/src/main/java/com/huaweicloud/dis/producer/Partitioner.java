@@ -0,0 +1,47 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+/**
+ * 计算记录所属分片的策略，DISProducer在分片保序或按分片分组批量时使用
+ * <p>
+ * 实现类需要提供无参构造函数，并且是线程安全的；通过配置项{@code partitioner.class}指定。
+ */
+public interface Partitioner
+{
+    /**
+     * 计算记录所属的分片
+     *
+     * @param streamName 通道名称
+     * @param entry 记录
+     * @param partitionCount 通道的可写分片数
+     * @return 分片编号，范围[0, partitionCount)
+     */
+    int partition(String streamName, PutRecordsRequestEntry entry, int partitionCount);
+
+    /**
+     * 通知分片的当前批次已不能再追加(已满或已被发送)，即将新建批次。粘性策略可在此时切换分片
+     *
+     * @param streamName 通道名称
+     * @param prevPartition 即将新建批次的分片
+     * @param partitionCount 通道的可写分片数
+     */
+    void onNewBatch(String streamName, int prevPartition, int partitionCount);
+}
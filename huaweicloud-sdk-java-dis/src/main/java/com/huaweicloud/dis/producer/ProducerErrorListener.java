@@ -0,0 +1,40 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 生产者级别的发送失败通知，通过{@link DISProducer#setErrorListener(ProducerErrorListener)}设置。
+ * <p>
+ * 每个最终失败的批次(重试后仍有记录失败，或整个请求失败)回调一次，给出失败记录数与一个错误样本，
+ * 不需要为每条记录注册回调，适合{@link DISProducer#sendAndForget(String, String, java.nio.ByteBuffer)}。
+ * 回调在Sender线程中执行，不能阻塞；累计的失败记录数见指标records.failed。
+ */
+public interface ProducerErrorListener
+{
+    /**
+     * 批次中有记录最终发送失败
+     *
+     * @param streamName 通道名称
+     * @param failedRecords 批次中失败的记录数
+     * @param sample 其中第一条失败记录的结果(含错误码与错误信息)，整个请求失败时为null
+     * @param exception 整个请求失败时的异常，否则为null
+     */
+    void onError(String streamName, int failedRecords, PutRecordsResultEntry sample, DISClientException exception);
+}
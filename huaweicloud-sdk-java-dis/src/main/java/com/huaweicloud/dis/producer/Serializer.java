@@ -0,0 +1,42 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 将记录值序列化为字节，{@link TypedDISProducer}使用
+ * <p>
+ * 数据直接写入out，out的底层buffer(开启内存池时从内存池分配)即记录在批次中的数据，不需要先生成byte[]再包装。
+ * 实现类需要是线程安全的，不能保存或关闭out。
+ *
+ * @param <T> 记录值的类型
+ */
+public interface Serializer<T>
+{
+    /**
+     * 序列化一条记录
+     *
+     * @param streamName 通道名称
+     * @param data 记录值
+     * @param out 记录数据的输出流
+     * @throws IOException 序列化失败
+     */
+    void serialize(String streamName, T data, OutputStream out)
+        throws IOException;
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+/**
+ * 粘性分片策略：没有key的记录持续写入同一个分片，直到该分片的批次已满或已被发送，再随机切换到另一个分片。
+ * 小记录可以攒成更大的批次，也省去了每条记录一次的MD5计算。有key的记录与{@link DefaultPartitioner}一致。
+ */
+public class StickyPartitioner extends DefaultPartitioner
+{
+    private final ConcurrentMap<String, Integer> stickyPartitions = new ConcurrentHashMap<>();
+
+    @Override
+    public int partition(String streamName, PutRecordsRequestEntry entry, int partitionCount)
+    {
+        if (!isKeyless(entry))
+        {
+            return super.partition(streamName, entry, partitionCount);
+        }
+        Integer partition = stickyPartitions.get(streamName);
+        if (partition != null && partition < partitionCount)
+        {
+            return partition;
+        }
+        return nextPartition(streamName, partition, partitionCount);
+    }
+
+    @Override
+    public void onNewBatch(String streamName, int prevPartition, int partitionCount)
+    {
+        Integer partition = stickyPartitions.get(streamName);
+        // 多个线程同时通知时只切换一次
+        if (partition == null || partition == prevPartition)
+        {
+            nextPartition(streamName, partition, partitionCount);
+        }
+    }
+
+    private int nextPartition(String streamName, Integer current, int partitionCount)
+    {
+        int next;
+        if (partitionCount <= 1)
+        {
+            next = 0;
+        }
+        else if (current == null || current >= partitionCount)
+        {
+            next = ThreadLocalRandom.current().nextInt(partitionCount);
+        }
+        else
+        {
+            // 随机选择一个不同于当前的分片
+            next = (current + 1 + ThreadLocalRandom.current().nextInt(partitionCount - 1)) % partitionCount;
+        }
+
+        boolean updated = current == null ? stickyPartitions.putIfAbsent(streamName, next) == null
+            : stickyPartitions.replace(streamName, current, next);
+        if (updated)
+        {
+            return next;
+        }
+        Integer winner = stickyPartitions.get(streamName);
+        return winner != null && winner < partitionCount ? winner : next;
+    }
+}
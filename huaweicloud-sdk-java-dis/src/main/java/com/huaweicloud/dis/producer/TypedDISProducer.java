@@ -0,0 +1,184 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.huaweicloud.dis.producer.internals.RecordOutputStream;
+
+/**
+ * 发送对象记录的生产者，记录值由{@link Serializer}直接写入批次的记录buffer(开启内存池时从内存池分配)，
+ * 调用者不需要先序列化为byte[]并包装为PutRecordsRequestEntry，开启内存池时也不再复制一次。
+ * <p>
+ * 发送、缓冲与重试行为与{@link DISProducer#send(String, String, ByteBuffer)}一致，配置项相同。
+ * 记录key通过{@link String#valueOf(Object)}转换为partitionKey。
+ *
+ * @param <K> 记录key的类型
+ * @param <V> 记录值的类型
+ */
+public class TypedDISProducer<K, V>
+{
+    private static final int INITIAL_SIZE_HINT = 256;
+    
+    private final DISProducer producer;
+    
+    private final Serializer<V> serializer;
+    
+    /*
+     * 最近一条记录的大小，作为下一条记录输出流的初始容量以减少扩容复制，并发更新时取任意一个即可
+     */
+    private volatile int sizeHint = INITIAL_SIZE_HINT;
+    
+    public TypedDISProducer(DISConfig disConfig, Serializer<V> serializer)
+    {
+        this(new DISProducer(disConfig), serializer);
+    }
+    
+    public TypedDISProducer(DISConfig disConfig, DISAsync disAsync, Serializer<V> serializer)
+    {
+        this(new DISProducer(disConfig, disAsync), serializer);
+    }
+    
+    private TypedDISProducer(DISProducer producer, Serializer<V> serializer)
+    {
+        if (serializer == null)
+        {
+            throw new IllegalArgumentException("serializer can not be null.");
+        }
+        this.producer = producer;
+        this.serializer = serializer;
+    }
+    
+    /**
+     * 异步发送单条不指定key的记录，见{@link #send(String, Object, Object)}
+     *
+     * @param streamName 通道名称
+     * @param value 记录值
+     * @return 记录的发送结果
+     * @throws InterruptedException 等待缓冲区时被中断
+     */
+    public CompletableFuture<PutRecordsResultEntry> send(String streamName, V value)
+        throws InterruptedException
+    {
+        return send(streamName, null, value);
+    }
+    
+    /**
+     * 序列化并异步发送单条记录，future的完成方式见{@link DISProducer#send(String, String, ByteBuffer)}。
+     * 方法返回后value即可被修改。
+     *
+     * @param streamName 通道名称
+     * @param key 用于计算分片的key，为null时由服务端或Partitioner选择分片
+     * @param value 记录值
+     * @return 记录的发送结果
+     * @throws InterruptedException 等待缓冲区时被中断
+     * @throws DISClientException 序列化失败
+     */
+    public CompletableFuture<PutRecordsResultEntry> send(String streamName, K key, V value)
+        throws InterruptedException
+    {
+        return producer.send(streamName, partitionKey(key), serialize(streamName, value), true);
+    }
+    
+    /**
+     * 序列化并异步发送单条记录，不返回结果，失败通知见{@link DISProducer#sendAndForget(String, String, ByteBuffer)}
+     *
+     * @param streamName 通道名称
+     * @param key 用于计算分片的key，为null时由服务端或Partitioner选择分片
+     * @param value 记录值
+     * @throws InterruptedException 等待缓冲区时被中断
+     * @throws DISClientException 序列化失败
+     */
+    public void sendAndForget(String streamName, K key, V value)
+        throws InterruptedException
+    {
+        producer.send(streamName, partitionKey(key), serialize(streamName, value), null, true);
+    }
+    
+    /**
+     * @param errorListener 失败通知，见{@link DISProducer#setErrorListener(ProducerErrorListener)}
+     */
+    public void setErrorListener(ProducerErrorListener errorListener)
+    {
+        producer.setErrorListener(errorListener);
+    }
+    
+    private static String partitionKey(Object key)
+    {
+        return key == null ? null : String.valueOf(key);
+    }
+    
+    private ByteBuffer serialize(String streamName, V value)
+        throws InterruptedException
+    {
+        RecordOutputStream out = producer.newRecordOutputStream(sizeHint);
+        try
+        {
+            serializer.serialize(streamName, value, out);
+            sizeHint = Math.max(1, out.size());
+            return out.toBuffer();
+        }
+        catch (IOException e)
+        {
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException("Interrupted while serializing record to stream " + streamName);
+            }
+            throw new DISClientException("Failed to serialize record to stream " + streamName, e);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * @return 当前生产者实例的指标快照，见{@link DISProducer#metrics()}
+     */
+    public Map<String, Number> metrics()
+    {
+        return producer.metrics();
+    }
+    
+    public void flush()
+    {
+        producer.flush();
+    }
+    
+    public boolean flush(long timeout, TimeUnit timeUnit)
+    {
+        return producer.flush(timeout, timeUnit);
+    }
+    
+    public void close()
+    {
+        producer.close();
+    }
+    
+    public void close(long timeout, TimeUnit timeUnit)
+    {
+        producer.close(timeout, timeUnit);
+    }
+}
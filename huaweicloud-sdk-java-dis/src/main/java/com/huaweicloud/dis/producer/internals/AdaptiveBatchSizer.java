@@ -0,0 +1,264 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.StreamPartition;
+
+/**
+ * 自适应批量：根据每个分片的记录到达速率与上传请求耗时，在配置的范围内调整该分片的linger与批次阈值。
+ * <p>
+ * 一个请求在途期间到达的记录可以无额外延迟地进入下一个批次，因此批次条数目标为{@code 到达速率 * 请求耗时 * 2}，
+ * linger为按当前速率攒满该批次所需的时间；如果即使等待最大linger也攒不到两条记录，批量没有收益，linger取下限。
+ */
+public final class AdaptiveBatchSizer
+{
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    /* 采样间隔，两次采样之间的到达量计算一次速率 */
+    static final long SAMPLE_INTERVAL_MS = 100;
+
+    /* 指数加权平均的新样本权重 */
+    private static final double ALPHA = 0.3;
+
+    private static final double HEADROOM = 2.0;
+
+    private final long initialLingerMs;
+
+    private final long minLingerMs;
+
+    private final long maxLingerMs;
+
+    private final long maxBatchSize;
+
+    private final int maxBatchCount;
+
+    private final ConcurrentMap<StreamPartition, PartitionStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @param initialLingerMs 尚未采样时使用的linger
+     * @param minLingerMs linger下限
+     * @param maxLingerMs linger上限
+     * @param maxBatchSize 批次大小上限
+     * @param maxBatchCount 批次条数上限
+     */
+    public AdaptiveBatchSizer(long initialLingerMs, long minLingerMs, long maxLingerMs, long maxBatchSize,
+        int maxBatchCount)
+    {
+        if (minLingerMs < 0 || minLingerMs > maxLingerMs)
+        {
+            throw new IllegalArgumentException("Invalid linger bounds [" + minLingerMs + ", " + maxLingerMs + "].");
+        }
+        this.initialLingerMs = Math.min(Math.max(initialLingerMs, minLingerMs), maxLingerMs);
+        this.minLingerMs = minLingerMs;
+        this.maxLingerMs = maxLingerMs;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchCount = maxBatchCount;
+    }
+
+    /*
+     * 追加成功后调用，写线程的热路径上只做计数；分片第一次出现时以now作为采样起点
+     */
+    void recordAppend(StreamPartition tp, int records, long bytes, long now)
+    {
+        PartitionStats partitionStats = statsOf(tp, now);
+        partitionStats.records.add(records);
+        partitionStats.bytes.add(bytes);
+    }
+
+    /*
+     * 上传请求完成后调用
+     */
+    void recordLatency(StreamPartition tp, long latencyMs, long now)
+    {
+        PartitionStats partitionStats = statsOf(tp, now);
+        synchronized (partitionStats)
+        {
+            partitionStats.latencyMs = partitionStats.latencyMs < 0 ? latencyMs
+                : ALPHA * latencyMs + (1 - ALPHA) * partitionStats.latencyMs;
+        }
+    }
+
+    /*
+     * 由负责该分片的Sender在drain时调用，距上次采样超过采样间隔时更新速率与阈值
+     */
+    void sample(StreamPartition tp, long now)
+    {
+        PartitionStats partitionStats = statsOf(tp, now);
+        if (now - partitionStats.lastSampleMs < SAMPLE_INTERVAL_MS)
+        {
+            return;
+        }
+        synchronized (partitionStats)
+        {
+            long elapsed = now - partitionStats.lastSampleMs;
+            if (elapsed < SAMPLE_INTERVAL_MS)
+            {
+                return;
+            }
+            partitionStats.lastSampleMs = now;
+            double recordRate = partitionStats.records.sumThenReset() / (double)elapsed;
+            double byteRate = partitionStats.bytes.sumThenReset() / (double)elapsed;
+            if (partitionStats.recordRate < 0)
+            {
+                partitionStats.recordRate = recordRate;
+                partitionStats.byteRate = byteRate;
+            }
+            else
+            {
+                partitionStats.recordRate = ALPHA * recordRate + (1 - ALPHA) * partitionStats.recordRate;
+                partitionStats.byteRate = ALPHA * byteRate + (1 - ALPHA) * partitionStats.byteRate;
+            }
+            adjust(tp, partitionStats);
+        }
+    }
+
+    private void adjust(StreamPartition tp, PartitionStats partitionStats)
+    {
+        double recordRate = partitionStats.recordRate;
+        long lingerMs;
+        int batchCount;
+        long batchSize;
+        if (recordRate * maxLingerMs < 2)
+        {
+            // 流量太小，等待也攒不成批次
+            lingerMs = minLingerMs;
+            batchCount = maxBatchCount;
+            batchSize = maxBatchSize;
+        }
+        else
+        {
+            double horizonMs = Math.max(partitionStats.latencyMs < 0 ? initialLingerMs : partitionStats.latencyMs, 1);
+            batchCount = (int)Math.min(maxBatchCount, Math.max(1, Math.ceil(recordRate * horizonMs * HEADROOM)));
+            batchSize = (long)Math.min(maxBatchSize, Math.max(1, Math.ceil(partitionStats.byteRate * horizonMs * HEADROOM)));
+            lingerMs = Math.min(maxLingerMs, Math.max(minLingerMs, (long)Math.ceil(batchCount / recordRate)));
+        }
+
+        if (lingerMs != partitionStats.lingerMs || batchCount != partitionStats.batchCount)
+        {
+            log.debug("Adaptive batching of {} changed to linger {}ms, count {}, size {}B (rate {}/ms, latency {}ms).",
+                tp, lingerMs, batchCount, batchSize, recordRate, partitionStats.latencyMs);
+        }
+        partitionStats.lingerMs = lingerMs;
+        partitionStats.batchCount = batchCount;
+        partitionStats.batchSize = batchSize;
+    }
+
+    long lingerMs(StreamPartition tp)
+    {
+        PartitionStats partitionStats = stats.get(tp);
+        return partitionStats == null ? initialLingerMs : partitionStats.lingerMs;
+    }
+
+    int batchCount(StreamPartition tp)
+    {
+        PartitionStats partitionStats = stats.get(tp);
+        return partitionStats == null ? maxBatchCount : partitionStats.batchCount;
+    }
+
+    long batchSize(StreamPartition tp)
+    {
+        PartitionStats partitionStats = stats.get(tp);
+        return partitionStats == null ? maxBatchSize : partitionStats.batchSize;
+    }
+
+    /*
+     * 所有分片中最小的linger，Sender空闲时按此等待
+     */
+    long minLingerMs()
+    {
+        long min = initialLingerMs;
+        for (PartitionStats partitionStats : stats.values())
+        {
+            min = Math.min(min, partitionStats.lingerMs);
+        }
+        return min;
+    }
+
+    /**
+     * 各分片当前生效的值，key为{@code <流名>-<分片>.<指标>}：
+     * linger.ms、batch.count、batch.size、record.rate(条/秒)、request.latency.ms
+     *
+     * @return 指标快照，按key排序
+     */
+    public Map<String, Number> metrics()
+    {
+        Map<String, Number> metrics = new TreeMap<>();
+        for (Map.Entry<StreamPartition, PartitionStats> entry : stats.entrySet())
+        {
+            String prefix = entry.getKey().toString() + ".";
+            PartitionStats partitionStats = entry.getValue();
+            metrics.put(prefix + "linger.ms", partitionStats.lingerMs);
+            metrics.put(prefix + "batch.count", partitionStats.batchCount);
+            metrics.put(prefix + "batch.size", partitionStats.batchSize);
+            metrics.put(prefix + "record.rate", Math.max(0, partitionStats.recordRate) * 1000);
+            metrics.put(prefix + "request.latency.ms", Math.max(0, partitionStats.latencyMs));
+        }
+        return metrics;
+    }
+
+    private PartitionStats statsOf(StreamPartition tp, long now)
+    {
+        PartitionStats partitionStats = stats.get(tp);
+        if (partitionStats == null)
+        {
+            partitionStats = new PartitionStats(now);
+            PartitionStats previous = stats.putIfAbsent(tp, partitionStats);
+            if (previous != null)
+            {
+                partitionStats = previous;
+            }
+        }
+        return partitionStats;
+    }
+
+    private final class PartitionStats
+    {
+        final LongAdder records = new LongAdder();
+
+        final LongAdder bytes = new LongAdder();
+
+        volatile long lastSampleMs;
+
+        /* 条/ms、字节/ms，负数表示尚未采样 */
+        volatile double recordRate = -1;
+
+        volatile double byteRate = -1;
+
+        /* 负数表示尚无请求完成 */
+        volatile double latencyMs = -1;
+
+        volatile long lingerMs = initialLingerMs;
+
+        volatile int batchCount = maxBatchCount;
+
+        volatile long batchSize = maxBatchSize;
+
+        PartitionStats(long now)
+        {
+            this.lastSampleMs = now;
+        }
+    }
+}
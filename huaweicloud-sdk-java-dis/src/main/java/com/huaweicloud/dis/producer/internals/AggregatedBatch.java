@@ -0,0 +1,186 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.huaweicloud.dis.util.Utils;
+import com.huaweicloud.dis.util.aggregation.RecordAggregator;
+
+/**
+ * 一个批次聚合后实际发送的记录，以及把发送结果展开回批次内每条用户记录的映射
+ */
+final class AggregatedBatch
+{
+    private final List<PutRecordsRequestEntry> records;
+
+    /* 每条发送记录包含的用户记录条数 */
+    private final int[] counts;
+
+    private final int userRecordCount;
+
+    private AggregatedBatch(List<PutRecordsRequestEntry> records, int[] counts, int userRecordCount)
+    {
+        this.records = records;
+        this.counts = counts;
+        this.userRecordCount = userRecordCount;
+    }
+
+    /**
+     * 按顺序把批次内的连续记录聚合成不超过maxSize的记录；带extendedInfo的记录单独发送
+     *
+     * @param tp 批次所属的分片，聚合记录写入该分片
+     * @param entries 批次内的用户记录
+     * @param maxSize 一条聚合记录的最大字节数
+     * @return 聚合结果，没有任何记录被聚合时返回null
+     */
+    static AggregatedBatch aggregate(StreamPartition tp, List<PutRecordsRequestEntry> entries, int maxSize)
+    {
+        List<PutRecordsRequestEntry> records = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        List<PutRecordsRequestEntry> pending = new ArrayList<>();
+        RecordAggregator aggregator = new RecordAggregator(maxSize);
+        for (PutRecordsRequestEntry entry : entries)
+        {
+            if (entry.getExtendedInfo() != null)
+            {
+                flush(tp, aggregator, pending, records, counts);
+                records.add(entry);
+                counts.add(1);
+                continue;
+            }
+            if (!aggregator.add(entry.getPartitionKey(), entry.getData()))
+            {
+                flush(tp, aggregator, pending, records, counts);
+                aggregator.add(entry.getPartitionKey(), entry.getData());
+            }
+            pending.add(entry);
+        }
+        flush(tp, aggregator, pending, records, counts);
+
+        if (records.size() == entries.size())
+        {
+            return null;
+        }
+        int[] countArray = new int[counts.size()];
+        for (int i = 0; i < countArray.length; i++)
+        {
+            countArray[i] = counts.get(i);
+        }
+        return new AggregatedBatch(records, countArray, entries.size());
+    }
+
+    private static void flush(StreamPartition tp, RecordAggregator aggregator, List<PutRecordsRequestEntry> pending,
+        List<PutRecordsRequestEntry> records, List<Integer> counts)
+    {
+        if (pending.isEmpty())
+        {
+            return;
+        }
+        if (pending.size() == 1)
+        {
+            // 只有一条时不使用聚合格式
+            aggregator.build();
+            records.add(pending.get(0));
+        }
+        else
+        {
+            PutRecordsRequestEntry first = pending.get(0);
+            PutRecordsRequestEntry aggregated = new PutRecordsRequestEntry();
+            aggregated.setData(aggregator.build());
+            aggregated.setTimestamp(first.getTimestamp());
+            if (isPartitionIndex(tp.partition()))
+            {
+                aggregated.setPartitionId(Utils.getShardIdFromPartitionId(tp.partition()));
+            }
+            else
+            {
+                aggregated.setPartitionId(first.getPartitionId());
+                aggregated.setPartitionKey(first.getPartitionKey());
+                aggregated.setExplicitHashKey(first.getExplicitHashKey());
+            }
+            records.add(aggregated);
+        }
+        counts.add(pending.size());
+        pending.clear();
+    }
+
+    private static boolean isPartitionIndex(String partition)
+    {
+        if (StringUtils.isNullOrEmpty(partition))
+        {
+            return false;
+        }
+        for (int i = 0; i < partition.length(); i++)
+        {
+            if (!Character.isDigit(partition.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 实际发送的记录
+     */
+    List<PutRecordsRequestEntry> getRecords()
+    {
+        return records;
+    }
+
+    /**
+     * 把发送结果展开为每条用户记录一个结果，聚合在同一条记录中的用户记录共享该记录的结果
+     *
+     * @param result 实际发送记录的结果
+     * @return 与批次内用户记录一一对应的结果
+     */
+    PutRecordsResult expand(PutRecordsResult result)
+    {
+        List<PutRecordsResultEntry> expanded = new ArrayList<>(userRecordCount);
+        int failed = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            PutRecordsResultEntry entry = result.getRecords().get(i);
+            boolean isFailed = !StringUtils.isNullOrEmpty(entry.getErrorCode());
+            for (int j = 0; j < counts[i]; j++)
+            {
+                PutRecordsResultEntry copy = new PutRecordsResultEntry();
+                copy.setPartitionId(entry.getPartitionId());
+                copy.setSequenceNumber(entry.getSequenceNumber());
+                copy.setErrorCode(entry.getErrorCode());
+                copy.setErrorMessage(entry.getErrorMessage());
+                expanded.add(copy);
+            }
+            if (isFailed)
+            {
+                failed += counts[i];
+            }
+        }
+        PutRecordsResult putRecordsResult = new PutRecordsResult();
+        putRecordsResult.setRecords(expanded);
+        putRecordsResult.setFailedRecordCount(new AtomicInteger(failed));
+        return putRecordsResult;
+    }
+}
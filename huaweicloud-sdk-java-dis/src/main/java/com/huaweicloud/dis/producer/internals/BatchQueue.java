@@ -0,0 +1,50 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * 单个流分区的待发送批次队列
+ */
+interface BatchQueue
+{
+    /**
+     * 若队首批次满足发送条件，则将其取出
+     *
+     * @param ready 队首批次是否可发送的判断
+     * @return 可发送的批次，无可发送批次时返回null
+     */
+    ProducerBatch pollFirstIf(Predicate<ProducerBatch> ready);
+
+    /**
+     * 将批次放回队首，用于重试；多个重试的批次按第一次发送的顺序排列，都在新批次之前
+     *
+     * @param batch 需重新发送的批次
+     */
+    void addFirst(ProducerBatch batch);
+
+    boolean isEmpty();
+
+    int size();
+
+    /**
+     * @return 当前队列中批次的快照，按发送顺序排列
+     */
+    Collection<ProducerBatch> snapshot();
+}
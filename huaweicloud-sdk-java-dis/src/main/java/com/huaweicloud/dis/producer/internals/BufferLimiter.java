@@ -0,0 +1,292 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.util.metrics.Histogram;
+
+/**
+ * RecordAccumulator的缓冲区限额：所有分片共享的字节数({@code buffer.memory})与批次数({@code buffer.count})。
+ * <p>
+ * 写线程在追加前预留字节数，创建批次前预留批次数，批次完成后归还。限额不足时写线程按到达顺序排队等待，
+ * 只有队首的等待者可以预留，归还时精确唤醒队首；等待时不持有任何分片的锁。
+ * 字节数与批次数分别排队，等待新批次的写线程不阻塞追加到已有批次的写线程。
+ * 关闭后所有等待者被唤醒并失败，之后的预留立即失败。
+ */
+final class BufferLimiter
+{
+    private static final Logger log = LoggerFactory.getLogger(BufferLimiter.class);
+
+    private final long maxBytes;
+
+    private final int maxBatches;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Deque<Condition> byteWaiters = new ArrayDeque<Condition>();
+
+    private final Deque<Condition> batchWaiters = new ArrayDeque<Condition>();
+
+    /* 只在持有lock时读写 */
+    private boolean closed;
+
+    /* 以下两个字段只在持有lock时修改，volatile供指标无锁读取 */
+    private volatile long usedBytes;
+
+    private volatile int usedBatches;
+
+    /* 记录每次等待的时长，可以为null */
+    private final Histogram waitTime;
+
+    /**
+     * @param maxBytes 缓冲的最大字节数
+     * @param maxBatches 缓冲的最大批次数
+     * @param waitTime 记录每次等待的时长(ms)，为null时不记录
+     */
+    BufferLimiter(long maxBytes, int maxBatches, Histogram waitTime)
+    {
+        this.maxBytes = maxBytes;
+        this.maxBatches = maxBatches;
+        this.waitTime = waitTime;
+    }
+
+    /**
+     * 预留bytes字节，限额不足时排队等待
+     *
+     * @param bytes 追加的记录字节数
+     * @param deadlineMs 等待的截止时间
+     * @throws InterruptedException 等待时被中断
+     */
+    void acquireBytes(long bytes, long deadlineMs) throws InterruptedException
+    {
+        if (bytes > maxBytes)
+        {
+            throw new RuntimeException("The records size " + bytes + " is larger than the BufferSize(total:"
+                + maxBytes + ").");
+        }
+        acquire(byteWaiters, bytes, 0, deadlineMs);
+    }
+
+    /**
+     * 预留一个批次，限额不足时排队等待
+     *
+     * @param deadlineMs 等待的截止时间
+     * @throws InterruptedException 等待时被中断
+     */
+    void acquireBatch(long deadlineMs) throws InterruptedException
+    {
+        acquire(batchWaiters, 0, 1, deadlineMs);
+    }
+
+    /**
+     * 不等待地预留一个批次，有其他等待者时也返回false
+     *
+     * @return {@code true} 预留成功
+     */
+    boolean tryAcquireBatch()
+    {
+        lock.lock();
+        try
+        {
+            if (!closed && batchWaiters.isEmpty() && fits(0, 1))
+            {
+                usedBatches++;
+                return true;
+            }
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归还预留的字节数与批次数，并唤醒队首的等待者
+     */
+    void release(long bytes, int batches)
+    {
+        lock.lock();
+        try
+        {
+            usedBytes -= bytes;
+            usedBatches -= batches;
+            signalFirst(byteWaiters);
+            signalFirst(batchWaiters);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭限额，唤醒所有等待者，它们及之后的预留都抛出IllegalStateException
+     */
+    void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            for (Condition waiter : byteWaiters)
+            {
+                waiter.signal();
+            }
+            for (Condition waiter : batchWaiters)
+            {
+                waiter.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    long usedBytes()
+    {
+        return usedBytes;
+    }
+
+    int usedBatches()
+    {
+        return usedBatches;
+    }
+
+    long maxBytes()
+    {
+        return maxBytes;
+    }
+
+    int maxBatches()
+    {
+        return maxBatches;
+    }
+
+    /**
+     * @return 等待缓冲区的写线程数
+     */
+    int queued()
+    {
+        lock.lock();
+        try
+        {
+            return byteWaiters.size() + batchWaiters.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void acquire(Deque<Condition> waiters, long bytes, int batches, long deadlineMs)
+        throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            ensureOpen();
+            if (waiters.isEmpty() && fits(bytes, batches))
+            {
+                usedBytes += bytes;
+                usedBatches += batches;
+                return;
+            }
+            await(waiters, bytes, batches, deadlineMs);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * 排队等待，只有队首的等待者可以预留；离开队列时唤醒新的队首，它的需求可能已经满足
+     */
+    private void await(Deque<Condition> waiters, long bytes, int batches, long deadlineMs)
+        throws InterruptedException
+    {
+        Condition moreSpace = lock.newCondition();
+        waiters.addLast(moreSpace);
+        long start = System.currentTimeMillis();
+        log.warn("Send blocked because BufferSize(total:{}, current:{}+{}) or BufferCount(total:{}, current:{}) is full, {} writers waiting.",
+            maxBytes, usedBytes, bytes, maxBatches, usedBatches, byteWaiters.size() + batchWaiters.size());
+        try
+        {
+            while (true)
+            {
+                ensureOpen();
+                if (waiters.peekFirst() == moreSpace && fits(bytes, batches))
+                {
+                    usedBytes += bytes;
+                    usedBatches += batches;
+                    return;
+                }
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0)
+                {
+                    throw new RuntimeException("The BufferSize(total:" + maxBytes + ", current:" + usedBytes + "+"
+                        + bytes + ") or BufferCount(total:" + maxBatches + ", current:" + usedBatches
+                        + ") is still full after blocking " + (System.currentTimeMillis() - start) + " ms.");
+                }
+                moreSpace.awaitNanos(TimeUnit.MILLISECONDS.toNanos(remainingMs));
+            }
+        }
+        finally
+        {
+            waiters.remove(moreSpace);
+            signalFirst(waiters);
+            long blockedMs = System.currentTimeMillis() - start;
+            if (waitTime != null)
+            {
+                waitTime.record(blockedMs);
+            }
+            log.warn("Send unblocked after blocking {}ms", blockedMs);
+        }
+    }
+
+    private void ensureOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Cannot send after the producer is closed.");
+        }
+    }
+
+    private static void signalFirst(Deque<Condition> waiters)
+    {
+        Condition first = waiters.peekFirst();
+        if (first != null)
+        {
+            first.signal();
+        }
+    }
+
+    private boolean fits(long bytes, int batches)
+    {
+        return usedBytes + bytes <= maxBytes && usedBatches + batches <= maxBatches;
+    }
+}
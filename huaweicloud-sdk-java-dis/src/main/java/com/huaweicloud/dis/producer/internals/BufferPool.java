@@ -0,0 +1,187 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 记录缓冲使用的内存池
+ * <p>
+ * 按2的幂划分规格(最小256B，最大maxPoolableSize)，每个规格一个无锁的空闲队列，释放的buffer按规格缓存复用；
+ * 超过最大规格的buffer不缓存，释放后交给GC。缓存的空闲buffer总和不超过maxCachedMemory，超出的部分同样交给GC。
+ * <p>
+ * 内存池本身不限制已分配的内存，也不会阻塞：缓冲区的上限({@code buffer.memory})只由{@link BufferLimiter}
+ * 按记录的实际大小控制，按规格向上取整不会降低可缓冲的数据量。
+ */
+public final class BufferPool
+{
+    private static final int MIN_SIZE_SHIFT = 8;
+
+    public static final int DEFAULT_MAX_POOLABLE_SIZE = 1024 * 1024;
+
+    private final long maxCachedMemory;
+
+    private final int maxPoolableSize;
+
+    private final boolean direct;
+
+    /* 每个规格的空闲buffer */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+
+    /* 空闲队列中缓存的字节数，先增加再入队，可能短暂大于实际缓存的字节数 */
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    /* 已分配且尚未归还的字节数 */
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    public BufferPool(long maxCachedMemory, boolean direct)
+    {
+        this(maxCachedMemory, DEFAULT_MAX_POOLABLE_SIZE, direct);
+    }
+
+    /**
+     * @param maxCachedMemory 缓存的空闲buffer的最大内存
+     * @param maxPoolableSize 可缓存复用的最大buffer大小，向上取整为2的幂
+     * @param direct 是否使用堆外内存
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxCachedMemory, int maxPoolableSize, boolean direct)
+    {
+        if (maxPoolableSize < (1 << MIN_SIZE_SHIFT))
+        {
+            throw new IllegalArgumentException("maxPoolableSize must be at least " + (1 << MIN_SIZE_SHIFT));
+        }
+        this.maxCachedMemory = maxCachedMemory;
+        this.maxPoolableSize = roundUpToPowerOfTwo(maxPoolableSize);
+        this.direct = direct;
+        this.free = new ConcurrentLinkedQueue[Integer.numberOfTrailingZeros(this.maxPoolableSize) - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < free.length; i++)
+        {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * 分配一个可以容纳size字节的buffer，返回的buffer position为0，limit为size。优先复用同规格的空闲buffer，
+     * 没有时新建。
+     *
+     * @param size 需要的字节数
+     * @return 分配到的buffer
+     */
+    public ByteBuffer allocate(int size)
+    {
+        int capacity = capacityFor(size);
+        int index = classIndex(capacity);
+        ByteBuffer buffer = index >= 0 ? free[index].poll() : null;
+        if (buffer == null)
+        {
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        else
+        {
+            cachedBytes.addAndGet(-capacity);
+            buffer.clear();
+        }
+        allocatedBytes.addAndGet(capacity);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * 归还buffer，规格内的buffer在缓存未满时缓存复用，其余的释放给GC
+     *
+     * @param buffer 通过{@link #allocate(int)}分配的buffer
+     */
+    public void deallocate(ByteBuffer buffer)
+    {
+        int capacity = buffer.capacity();
+        allocatedBytes.addAndGet(-capacity);
+        int index = classIndex(capacity);
+        if (index < 0)
+        {
+            return;
+        }
+        if (cachedBytes.addAndGet(capacity) > maxCachedMemory)
+        {
+            cachedBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        free[index].offer(buffer);
+    }
+
+    /**
+     * @return 已分配且尚未归还的内存
+     */
+    public long allocatedMemory()
+    {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return 缓存的空闲buffer占用的内存
+     */
+    public long cachedMemory()
+    {
+        return cachedBytes.get();
+    }
+
+    public long maxCachedMemory()
+    {
+        return maxCachedMemory;
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    /**
+     * @return 分配size字节时实际占用的内存大小
+     */
+    int capacityFor(int size)
+    {
+        if (size <= (1 << MIN_SIZE_SHIFT))
+        {
+            return 1 << MIN_SIZE_SHIFT;
+        }
+        if (size > maxPoolableSize)
+        {
+            return size;
+        }
+        return roundUpToPowerOfTwo(size);
+    }
+
+    private int classIndex(int capacity)
+    {
+        if (capacity > maxPoolableSize || Integer.bitCount(capacity) != 1)
+        {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(capacity) - MIN_SIZE_SHIFT;
+    }
+
+    private static int roundUpToPowerOfTwo(int size)
+    {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+
+/**
+ * 无锁批次队列：多个写线程通过CAS在尾部批次中占用slot，或通过CAS链接新批次；Sender作为唯一消费者从头部取出批次。
+ * <p>
+ * 批次之间通过{@link ProducerBatch#next}链接，只有尾部批次追加失败(已满或已关闭)后才会链接新批次，
+ * 因此同一线程先后追加的数据在队列中保持顺序。头部为一个已关闭的哨兵批次。
+ */
+final class ConcurrentBatchQueue implements BatchQueue
+{
+    /* 重试时放回的批次，优先于链表发送；只在有重试时加锁访问，reenqueuedCount在放入前增加 */
+    private final Deque<ProducerBatch> reenqueued = new ArrayDeque<>();
+
+    private final AtomicInteger reenqueuedCount = new AtomicInteger();
+
+    private final AtomicReference<ProducerBatch> tail;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /* 只由消费者修改 */
+    private volatile ProducerBatch head;
+
+    ConcurrentBatchQueue(StreamPartition tp)
+    {
+        ProducerBatch sentinel = new ProducerBatch(tp, 0, 0, 0, null);
+        sentinel.closeForRecordAppends();
+        this.head = sentinel;
+        this.tail = new AtomicReference<>(sentinel);
+    }
+
+    /**
+     * 尝试追加到尾部批次
+     *
+     * @return 追加结果，尾部批次已满或已关闭时返回null
+     */
+    RecordAccumulator.RecordAppendResult tryAppend(long timestamp, List<PutRecordsRequestEntry> records,
+        AsyncHandler<PutRecordsResult> callback, RecordFuture recordFuture, boolean recordAppend, long requestSize)
+    {
+        ProducerBatch last = last();
+        int offset = last.tryAppend(timestamp, records, callback, recordFuture, requestSize);
+        if (offset < 0)
+        {
+            return null;
+        }
+        return RecordAccumulator.appendResult(last, offset, records.size(), recordAppend,
+            size.get() > 1 || last.isFull(), false);
+    }
+
+    /**
+     * 将已包含调用者数据的新批次链接到队尾
+     *
+     * @param batch 新批次
+     */
+    void link(ProducerBatch batch)
+    {
+        size.incrementAndGet();
+        while (true)
+        {
+            ProducerBatch last = last();
+            if (last.casNext(null, batch))
+            {
+                tail.compareAndSet(last, batch);
+                return;
+            }
+        }
+    }
+
+    private ProducerBatch last()
+    {
+        ProducerBatch t = tail.get();
+        ProducerBatch p = t;
+        ProducerBatch n;
+        while ((n = p.next) != null)
+        {
+            p = n;
+        }
+        if (p != t)
+        {
+            tail.compareAndSet(t, p);
+        }
+        return p;
+    }
+
+    @Override
+    public ProducerBatch pollFirstIf(Predicate<ProducerBatch> ready)
+    {
+        if (reenqueuedCount.get() > 0)
+        {
+            synchronized (reenqueued)
+            {
+                // 为空说明重试批次正在放回，下一轮再取，避免新批次越过重试批次
+                ProducerBatch retry = reenqueued.peekFirst();
+                if (retry == null || !ready.test(retry))
+                {
+                    return null;
+                }
+                reenqueued.pollFirst();
+                reenqueuedCount.decrementAndGet();
+                size.decrementAndGet();
+                return retry;
+            }
+        }
+
+        ProducerBatch first = head.next;
+        if (first == null || !ready.test(first))
+        {
+            return null;
+        }
+        // 关闭后不再有新的追加，等待已占用的slot写完即可发送；该批次同时成为新的哨兵
+        first.closeAndAwaitAppends();
+        head = first;
+        size.decrementAndGet();
+        return first;
+    }
+
+    @Override
+    public void addFirst(ProducerBatch batch)
+    {
+        size.incrementAndGet();
+        reenqueuedCount.incrementAndGet();
+        // 重试批次由多个回调线程放回，按第一次发送的顺序插入
+        synchronized (reenqueued)
+        {
+            Deque<ProducerBatch> earlier = new ArrayDeque<>();
+            while (!reenqueued.isEmpty() && LockingBatchQueue.isEarlierRetry(reenqueued.peekFirst(), batch))
+            {
+                earlier.addFirst(reenqueued.pollFirst());
+            }
+            reenqueued.addFirst(batch);
+            for (ProducerBatch retry : earlier)
+            {
+                reenqueued.addFirst(retry);
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return reenqueuedCount.get() == 0 && head.next == null;
+    }
+
+    @Override
+    public int size()
+    {
+        return Math.max(0, size.get());
+    }
+
+    @Override
+    public Collection<ProducerBatch> snapshot()
+    {
+        List<ProducerBatch> result;
+        synchronized (reenqueued)
+        {
+            result = new ArrayList<>(reenqueued);
+        }
+        for (ProducerBatch p = head.next; p != null; p = p.next)
+        {
+            result.add(p);
+        }
+        return result;
+    }
+}
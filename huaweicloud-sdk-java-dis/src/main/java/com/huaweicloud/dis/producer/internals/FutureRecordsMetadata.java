@@ -77,10 +77,15 @@ public final class FutureRecordsMetadata implements Future<PutRecordsResult> {
     }
     
     PutRecordsResult value() {
+        return slice(result.putRecordsResult(), relativeOffset, length);
+    }
+
+    /*
+     * 批次结果中[relativeOffset, relativeOffset + length)的部分
+     */
+    static PutRecordsResult slice(PutRecordsResult producePutRecordsResult, int relativeOffset, int length) {
         PutRecordsResult curResult = new PutRecordsResult();
         
-        PutRecordsResult producePutRecordsResult = result.putRecordsResult();
-        
         List<PutRecordsResultEntry> entrys = producePutRecordsResult.getRecords().subList(relativeOffset, relativeOffset + length);
         
         int failedRecordCount = 0;
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.huaweicloud.dis.StreamPartition;
+
+/**
+ * 一个Sender已取出但尚未完成的批次，按分片记录发送顺序。同一分片最多有maxInFlightPerPartition个批次在途。
+ * <p>
+ * 串行发送(order.by.partition)时每个分片同时只取出一个批次：并发的HTTP请求可能以任意顺序到达服务端，
+ * 提前取出的批次无法保证顺序，因此不受maxInFlightPerPartition影响。批次需要重试时留在分片中，退避后重发，
+ * 之后的批次在它完成后才取出，因此服务端接受记录的顺序与追加顺序一致。
+ * <p>
+ * 非串行发送(partition.aware.batching.enabled)时在途批次同时发送；有批次需要重试时，该分片停止发送新批次，
+ * 等在途批次全部完成后，按原始顺序逐个重发重试的批次，之后再恢复并发发送。
+ */
+final class InFlightBatches
+{
+    private final int maxInFlightPerPartition;
+
+    private final boolean serialSends;
+
+    private final ConcurrentMap<StreamPartition, PartitionBatches> batches = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxInFlightPerPartition 非串行发送时每个分片最多同时在途的批次数，不小于1
+     * @param serialSends 是否每个分片同时只发送一个批次
+     */
+    InFlightBatches(int maxInFlightPerPartition, boolean serialSends)
+    {
+        this.maxInFlightPerPartition = serialSends ? 1 : Math.max(1, maxInFlightPerPartition);
+        this.serialSends = serialSends;
+    }
+
+    /**
+     * 队首批次当前是否可以从RecordAccumulator中取出
+     *
+     * @param first 分片队首的批次
+     * @return {@code true} 可以取出
+     */
+    boolean canSend(ProducerBatch first)
+    {
+        PartitionBatches partition = batches.get(first.getTp());
+        if (partition == null)
+        {
+            return true;
+        }
+        synchronized (partition)
+        {
+            if (partition.batches.isEmpty())
+            {
+                return true;
+            }
+            if (partition.batches.size() >= maxInFlightPerPartition)
+            {
+                return false;
+            }
+            // 非串行发送时重试的批次单独发送：之前发出的批次全部完成后才发送，发送期间后续批次也等待
+            return serialSends || !(first.isRetry() || partition.batches.peekLast().isRetry());
+        }
+    }
+
+    void add(ProducerBatch batch)
+    {
+        PartitionBatches partition = batches.get(batch.getTp());
+        if (partition == null)
+        {
+            partition = new PartitionBatches();
+            PartitionBatches previous = batches.putIfAbsent(batch.getTp(), partition);
+            if (previous != null)
+            {
+                partition = previous;
+            }
+        }
+        synchronized (partition)
+        {
+            partition.batches.addLast(batch);
+        }
+    }
+
+    /**
+     * 串行发送时取出各分片可以发送的批次并标记为发送中：批次尚未发出，且不在重试的退避期内
+     *
+     * @param now 当前时间
+     * @return 需要发出请求的批次
+     */
+    List<ProducerBatch> ready(long now)
+    {
+        List<ProducerBatch> ready = new ArrayList<>();
+        for (PartitionBatches partition : batches.values())
+        {
+            synchronized (partition)
+            {
+                ProducerBatch first = partition.batches.peekFirst();
+                if (first != null && !partition.sending && !first.inRetryBackoff(now))
+                {
+                    partition.sending = true;
+                    ready.add(first);
+                }
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * 批次已结束或已放回RecordAccumulator，不再在途
+     */
+    void remove(ProducerBatch batch)
+    {
+        PartitionBatches partition = batches.get(batch.getTp());
+        if (partition != null)
+        {
+            synchronized (partition)
+            {
+                if (partition.batches.peekFirst() == batch)
+                {
+                    partition.sending = false;
+                }
+                partition.batches.remove(batch);
+            }
+        }
+    }
+
+    /**
+     * 串行发送时批次需要重试：留在分片中，退避结束后由{@link #ready(long)}重新取出
+     */
+    void retry(ProducerBatch batch)
+    {
+        PartitionBatches partition = batches.get(batch.getTp());
+        if (partition != null)
+        {
+            synchronized (partition)
+            {
+                partition.sending = false;
+            }
+        }
+    }
+
+    /**
+     * @param tp 流分区
+     * @return 分片当前在途的批次数
+     */
+    int inFlight(StreamPartition tp)
+    {
+        PartitionBatches partition = batches.get(tp);
+        if (partition == null)
+        {
+            return 0;
+        }
+        synchronized (partition)
+        {
+            return partition.batches.size();
+        }
+    }
+
+    boolean isSerialSends()
+    {
+        return serialSends;
+    }
+
+    private static final class PartitionBatches
+    {
+        final Deque<ProducerBatch> batches = new ArrayDeque<>();
+
+        /* 串行发送时批次的请求已发出且未完成 */
+        boolean sending;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.function.Predicate;
+
+/**
+ * 基于{@link ArrayDeque}的批次队列，所有操作都在deque的监视器上同步；追加由{@link RecordAccumulator}持有同一把锁完成
+ */
+final class LockingBatchQueue implements BatchQueue
+{
+    private final Deque<ProducerBatch> deque = new ArrayDeque<>();
+
+    Deque<ProducerBatch> deque()
+    {
+        return deque;
+    }
+
+    @Override
+    public ProducerBatch pollFirstIf(Predicate<ProducerBatch> ready)
+    {
+        synchronized (deque)
+        {
+            ProducerBatch first = deque.peekFirst();
+            if (first == null || !ready.test(first))
+            {
+                return null;
+            }
+            return deque.pollFirst();
+        }
+    }
+
+    @Override
+    public void addFirst(ProducerBatch batch)
+    {
+        synchronized (deque)
+        {
+            // 跳过队首发送顺序更早的重试批次
+            Deque<ProducerBatch> earlier = new ArrayDeque<>();
+            while (!deque.isEmpty() && isEarlierRetry(deque.peekFirst(), batch))
+            {
+                earlier.addFirst(deque.pollFirst());
+            }
+            deque.addFirst(batch);
+            for (ProducerBatch retry : earlier)
+            {
+                deque.addFirst(retry);
+            }
+        }
+    }
+
+    static boolean isEarlierRetry(ProducerBatch queued, ProducerBatch batch)
+    {
+        return queued.isRetry() && queued.drainSequence() < batch.drainSequence();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        synchronized (deque)
+        {
+            return deque.isEmpty();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        synchronized (deque)
+        {
+            return deque.size();
+        }
+    }
+
+    @Override
+    public Collection<ProducerBatch> snapshot()
+    {
+        synchronized (deque)
+        {
+            return new ArrayList<>(deque);
+        }
+    }
+}
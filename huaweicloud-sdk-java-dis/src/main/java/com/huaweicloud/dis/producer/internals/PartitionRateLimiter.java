@@ -0,0 +1,288 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.request.StreamType;
+
+/**
+ * 按分片限制发送速率，使上传请求尽量不超过服务端的分片流控配额(错误码DIS.4303)。
+ * <p>
+ * 每个分片一个令牌桶，分别限制每秒字节数与记录数，配额由通道的分片类型({@link StreamType})决定。
+ * 令牌不足时分片的批次留在RecordAccumulator中继续攒批；发送时按实际发出的记录扣除令牌，
+ * 允许透支一个批次，透支的部分在之后的时间内补回。
+ * <p>
+ * 服务端仍返回流控时，分片的速率乘性减小(每个配额周期最多一次)，之后每个全部成功的请求加性恢复，直到配额。
+ * 没有通道元数据的流(未按分片分组批量)不限速。
+ */
+public final class PartitionRateLimiter
+{
+    /* 普通分片每秒1MB、1000条记录，高级分片每秒5MB、2000条记录 */
+    private static final long COMMON_BYTES_PER_SECOND = 1024 * 1024;
+
+    private static final int COMMON_RECORDS_PER_SECOND = 1000;
+
+    private static final long ADVANCED_BYTES_PER_SECOND = 5 * 1024 * 1024;
+
+    private static final int ADVANCED_RECORDS_PER_SECOND = 2000;
+
+    /* 令牌桶最多积攒的时长，决定空闲后的突发量 */
+    private static final long BURST_MS = 100;
+
+    /* 服务端按秒统计流量，同一个周期内的多次流控只减速一次 */
+    private static final long QUOTA_WINDOW_MS = 1000;
+
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private static final double INCREASE_STEP = 0.05;
+
+    private static final double MIN_RATE_FACTOR = 0.05;
+
+    private final ConcurrentMap<String, StreamType> streamTypes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<StreamPartition, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * 更新通道的分片类型，该通道各分片的配额随之变化
+     *
+     * @param streamName 通道名称
+     * @param streamType 分片类型
+     */
+    public void updateStreamType(String streamName, StreamType streamType)
+    {
+        StreamType previous = streamTypes.put(streamName, streamType);
+        if (previous != null && previous != streamType)
+        {
+            for (StreamPartition tp : buckets.keySet())
+            {
+                if (tp.topic().equals(streamName))
+                {
+                    buckets.remove(tp);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param tp 流分区
+     * @param now 当前时间
+     * @return {@code true} 分片没有透支，可以发送下一个批次
+     */
+    boolean canSend(StreamPartition tp, long now)
+    {
+        Bucket bucket = bucket(tp, now);
+        return bucket == null || bucket.canSend(now);
+    }
+
+    /**
+     * 扣除实际发出的记录数与字节数
+     *
+     * @param tp 流分区
+     * @param records 请求中的记录数(聚合后)
+     * @param bytes 请求中的数据字节数
+     * @param now 当前时间
+     */
+    void record(StreamPartition tp, int records, long bytes, long now)
+    {
+        Bucket bucket = bucket(tp, now);
+        if (bucket != null)
+        {
+            bucket.consume(records, bytes, now);
+        }
+    }
+
+    /**
+     * 请求中有记录被流控，或请求因流控整体失败
+     *
+     * @param tp 流分区
+     * @param now 当前时间
+     */
+    void onThrottled(StreamPartition tp, long now)
+    {
+        Bucket bucket = bucket(tp, now);
+        if (bucket != null)
+        {
+            bucket.decrease(now);
+        }
+    }
+
+    /**
+     * 请求中的记录全部被接受
+     *
+     * @param tp 流分区
+     */
+    void onAccepted(StreamPartition tp)
+    {
+        Bucket bucket = buckets.get(tp);
+        if (bucket != null)
+        {
+            bucket.increase();
+        }
+    }
+
+    /**
+     * 限速的分片，批次记录数不超过突发配额，避免单个大批次透支后长时间不能发送
+     *
+     * @param tp 流分区
+     * @param batchCount 未限速时的批次记录数
+     * @return 批次记录数
+     */
+    int maxBatchCount(StreamPartition tp, int batchCount)
+    {
+        StreamType streamType = streamTypes.get(tp.topic());
+        if (streamType == null)
+        {
+            return batchCount;
+        }
+        long burst = (long)(recordsPerSecond(streamType) * rateFactor(tp) * BURST_MS / 1000);
+        return (int)Math.max(1, Math.min(batchCount, burst));
+    }
+
+    /**
+     * @param tp 流分区
+     * @param batchSize 未限速时的批次字节数
+     * @return 批次字节数，不超过突发配额
+     */
+    long maxBatchSize(StreamPartition tp, long batchSize)
+    {
+        StreamType streamType = streamTypes.get(tp.topic());
+        if (streamType == null)
+        {
+            return batchSize;
+        }
+        long burst = (long)(bytesPerSecond(streamType) * rateFactor(tp) * BURST_MS / 1000);
+        return Math.max(1, Math.min(batchSize, burst));
+    }
+
+    /**
+     * @param tp 流分区
+     * @return 当前速率相对配额的比例，不限速的分片返回1
+     */
+    double rateFactor(StreamPartition tp)
+    {
+        Bucket bucket = buckets.get(tp);
+        return bucket == null ? 1.0 : bucket.rateFactor();
+    }
+
+    static long bytesPerSecond(StreamType streamType)
+    {
+        return streamType == StreamType.ADVANCED ? ADVANCED_BYTES_PER_SECOND : COMMON_BYTES_PER_SECOND;
+    }
+
+    static int recordsPerSecond(StreamType streamType)
+    {
+        return streamType == StreamType.ADVANCED ? ADVANCED_RECORDS_PER_SECOND : COMMON_RECORDS_PER_SECOND;
+    }
+
+    private Bucket bucket(StreamPartition tp, long now)
+    {
+        Bucket bucket = buckets.get(tp);
+        if (bucket != null)
+        {
+            return bucket;
+        }
+        StreamType streamType = streamTypes.get(tp.topic());
+        if (streamType == null)
+        {
+            return null;
+        }
+        bucket = new Bucket(bytesPerSecond(streamType), recordsPerSecond(streamType), now);
+        Bucket previous = buckets.putIfAbsent(tp, bucket);
+        return previous == null ? bucket : previous;
+    }
+
+    private static final class Bucket
+    {
+        private final long bytesPerSecond;
+
+        private final int recordsPerSecond;
+
+        private double rateFactor = 1.0;
+
+        private double byteTokens;
+
+        private double recordTokens;
+
+        private long lastRefillMs;
+
+        private long lastDecreaseMs = Long.MIN_VALUE / 2;
+
+        Bucket(long bytesPerSecond, int recordsPerSecond, long now)
+        {
+            this.bytesPerSecond = bytesPerSecond;
+            this.recordsPerSecond = recordsPerSecond;
+            this.byteTokens = bytesPerSecond * BURST_MS / 1000.0;
+            this.recordTokens = recordsPerSecond * BURST_MS / 1000.0;
+            this.lastRefillMs = now;
+        }
+
+        synchronized boolean canSend(long now)
+        {
+            refill(now);
+            return byteTokens >= 0 && recordTokens >= 0;
+        }
+
+        synchronized void consume(int records, long bytes, long now)
+        {
+            refill(now);
+            byteTokens -= bytes;
+            recordTokens -= records;
+        }
+
+        synchronized void decrease(long now)
+        {
+            refill(now);
+            if (now - lastDecreaseMs < QUOTA_WINDOW_MS)
+            {
+                return;
+            }
+            lastDecreaseMs = now;
+            rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor * DECREASE_FACTOR);
+            // 已积攒的令牌作废，避免减速后立即突发
+            byteTokens = Math.min(byteTokens, 0);
+            recordTokens = Math.min(recordTokens, 0);
+        }
+
+        synchronized void increase()
+        {
+            rateFactor = Math.min(1.0, rateFactor + INCREASE_STEP);
+        }
+
+        synchronized double rateFactor()
+        {
+            return rateFactor;
+        }
+
+        private void refill(long now)
+        {
+            long elapsed = now - lastRefillMs;
+            if (elapsed <= 0)
+            {
+                return;
+            }
+            lastRefillMs = now;
+            double bytesPerMs = bytesPerSecond * rateFactor / 1000.0;
+            double recordsPerMs = recordsPerSecond * rateFactor / 1000.0;
+            byteTokens = Math.min(bytesPerMs * BURST_MS, byteTokens + bytesPerMs * elapsed);
+            recordTokens = Math.min(recordsPerMs * BURST_MS, recordTokens + recordsPerMs * elapsed);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 一次上传的记录按分片拆分到多个批次后的结果，各部分完成后按原始顺序合并
+ */
+public final class PartitionedRecordsFuture implements Future<PutRecordsResult>
+{
+    private static final Logger log = LoggerFactory.getLogger(PartitionedRecordsFuture.class);
+
+    private final int totalRecords;
+
+    private final AsyncHandler<PutRecordsResult> callback;
+
+    /* 每个部分在原始请求中的下标 */
+    private final List<int[]> partIndexes = new ArrayList<>();
+
+    private final List<Future<PutRecordsResult>> partFutures = new ArrayList<>();
+
+    private final List<AsyncHandler<PutRecordsResult>> partCallbacks = new ArrayList<>();
+
+    /* 以下字段用于回调，所有部分完成后回调一次 */
+    private final List<PutRecordsResult> partResults = new ArrayList<>();
+
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    private final AtomicReference<Exception> firstError = new AtomicReference<>();
+
+    /**
+     * @param totalRecords 原始请求的记录数
+     * @param callback 用户回调，可以为null
+     */
+    public PartitionedRecordsFuture(int totalRecords, AsyncHandler<PutRecordsResult> callback)
+    {
+        this.totalRecords = totalRecords;
+        this.callback = callback;
+    }
+
+    /**
+     * 登记一个部分，所有部分必须在追加任何一个部分之前登记完，否则先完成的部分可能提前触发用户回调。
+     * 追加完成后调用{@link #setPartFuture(int, Future)}
+     *
+     * @param indexes 该部分的记录在原始请求中的下标
+     * @return 追加该部分时使用的回调，用户回调为null时返回null
+     */
+    public AsyncHandler<PutRecordsResult> addPart(int[] indexes)
+    {
+        final int part = partIndexes.size();
+        partIndexes.add(indexes);
+        partFutures.add(null);
+        if (callback == null)
+        {
+            partCallbacks.add(null);
+            return null;
+        }
+        partResults.add(null);
+        remaining.incrementAndGet();
+        AsyncHandler<PutRecordsResult> partCallback = new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                synchronized (partResults)
+                {
+                    partResults.set(part, result);
+                }
+                partDone();
+            }
+
+            @Override
+            public void onError(Exception exception)
+            {
+                firstError.compareAndSet(null, exception);
+                partDone();
+            }
+        };
+        partCallbacks.add(partCallback);
+        return partCallback;
+    }
+
+    public void setPartFuture(int part, Future<PutRecordsResult> future)
+    {
+        partFutures.set(part, future);
+    }
+
+    /**
+     * 从fromPart开始的部分追加失败，没有进入任何批次：这些部分以exception失败，之前已追加的部分照常发送
+     *
+     * @param fromPart 第一个追加失败的部分
+     * @param exception 追加失败的原因
+     */
+    public void failParts(int fromPart, Exception exception)
+    {
+        for (int part = fromPart; part < partFutures.size(); part++)
+        {
+            CompletableFuture<PutRecordsResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(exception);
+            partFutures.set(part, failed);
+            AsyncHandler<PutRecordsResult> partCallback = partCallbacks.get(part);
+            if (partCallback != null)
+            {
+                partCallback.onError(exception);
+            }
+        }
+    }
+
+    private void partDone()
+    {
+        if (remaining.decrementAndGet() != 0)
+        {
+            return;
+        }
+        try
+        {
+            Exception error = firstError.get();
+            if (error != null)
+            {
+                callback.onError(error);
+            }
+            else
+            {
+                List<PutRecordsResult> results;
+                synchronized (partResults)
+                {
+                    results = new ArrayList<>(partResults);
+                }
+                callback.onSuccess(merge(results));
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("Error executing user-provided callback: {}", e.getMessage(), e);
+        }
+    }
+
+    private PutRecordsResult merge(List<PutRecordsResult> results)
+    {
+        PutRecordsResultEntry[] entries = new PutRecordsResultEntry[totalRecords];
+        int failedRecordCount = 0;
+        for (int part = 0; part < results.size(); part++)
+        {
+            int[] indexes = partIndexes.get(part);
+            List<PutRecordsResultEntry> partEntries = results.get(part).getRecords();
+            for (int i = 0; i < indexes.length; i++)
+            {
+                PutRecordsResultEntry entry = partEntries.get(i);
+                entries[indexes[i]] = entry;
+                if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
+                {
+                    failedRecordCount++;
+                }
+            }
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(failedRecordCount));
+        result.setRecords(Arrays.asList(entries));
+        return result;
+    }
+
+    @Override
+    public PutRecordsResult get()
+        throws InterruptedException, ExecutionException
+    {
+        List<PutRecordsResult> results = new ArrayList<>(partFutures.size());
+        for (Future<PutRecordsResult> future : partFutures)
+        {
+            results.add(future.get());
+        }
+        return merge(results);
+    }
+
+    @Override
+    public PutRecordsResult get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<PutRecordsResult> results = new ArrayList<>(partFutures.size());
+        for (Future<PutRecordsResult> future : partFutures)
+        {
+            results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+        }
+        return merge(results);
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        for (Future<PutRecordsResult> future : partFutures)
+        {
+            if (!future.isDone())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+}
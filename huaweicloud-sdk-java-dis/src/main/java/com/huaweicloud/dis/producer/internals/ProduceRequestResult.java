@@ -20,6 +20,7 @@ package com.huaweicloud.dis.producer.internals;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import com.huaweicloud.dis.StreamPartition;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
 
 
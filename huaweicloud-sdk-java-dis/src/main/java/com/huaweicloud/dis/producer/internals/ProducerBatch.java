@@ -16,24 +16,51 @@
 
 package com.huaweicloud.dis.producer.internals;
 
+import com.huaweicloud.dis.StreamPartition;
 import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.core.util.StringUtils;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.huaweicloud.dis.util.RecordSizeEstimator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 
 
 public final class ProducerBatch {
 
     private static final Logger log = LoggerFactory.getLogger(ProducerBatch.class);
+
+    /*
+     * 无锁追加模式下的状态字: [closed:1][count:22][bytes:40]，一次CAS同时占用条数与字节数
+     */
+    private static final int COUNT_SHIFT = 40;
+
+    private static final long BYTES_MASK = (1L << COUNT_SHIFT) - 1;
+
+    private static final long COUNT_MASK = (1L << 22) - 1;
+
+    private static final long CLOSED_BIT = 1L << 62;
+
+    private static final AtomicReferenceFieldUpdater<ProducerBatch, ProducerBatch> NEXT_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(ProducerBatch.class, ProducerBatch.class, "next");
     
     final ProduceRequestResult produceFuture;
+
+    /* done与abort只有一个生效，关闭超时放弃的批次之后收到的响应被忽略 */
+    private final AtomicBoolean completed = new AtomicBoolean();
     
     private List<PutRecordsRequestEntry> batchPutRecordsRequestEntrys = new ArrayList<PutRecordsRequestEntry>();
    
@@ -44,6 +71,7 @@ public final class ProducerBatch {
     
     private StreamPartition tp;
     
+    private final long createdMs;
     private long lastAttemptMs;
     private long drainedMs;
     
@@ -53,64 +81,429 @@ public final class ProducerBatch {
     
     private List<Thunk> asyncHandlers = new CopyOnWriteArrayList<>();
     
+    /* 单条记录追加时的结果future，按追加顺序保存，大部分批次没有 */
+    private List<RecordFuture> recordFutures;
+    
+    /* 以下字段仅在无锁追加模式下使用 */
+    private final boolean concurrentAppend;
+
+    private final AtomicLong state;
+
+    private final AtomicInteger published;
+
+    private final PutRecordsRequestEntry[] entrySlots;
+
+    private final Thunk[] thunkSlots;
+
+    private final RecordFuture[] recordFutureSlots;
+
+    /* 有写线程占用slot后写入失败，批次中留有空slot，不能发送 */
+    private volatile boolean appendAbandoned;
+
+    /* 记录数据所在的内存池buffer，批次完成后归还；发送过程中记录的data可能被替换(压缩、加密)，所以单独保存 */
+    private final BufferPool bufferPool;
+
+    private List<ByteBuffer> pooledBuffers;
+
+    private final ByteBuffer[] bufferSlots;
+
+    /* 同一分区下一个批次，由ConcurrentBatchQueue维护 */
+    volatile ProducerBatch next;
+
+    /*
+     * 以下字段仅在生产者侧重试时使用：每次发送结果按原始下标合并到retryResults，
+     * retryIndexes为下一次需要重发的原始下标，为null表示发送全部记录
+     */
+    private int attempts;
+
+    private long retryAfterMs;
+
+    private PutRecordsResultEntry[] retryResults;
+
+    private int[] retryIndexes;
+
+    /* 第一次被取出发送时的序号，同一分片内递增；重试的批次按此序号放回队列，-1表示尚未发送 */
+    private long drainSequence = -1;
+
     public ProducerBatch(StreamPartition tp, long maxBatchSize, int maxBatchCount) {
+        this(tp, maxBatchSize, maxBatchCount, (BufferPool)null);
+    }
+
+    /**
+     * 创建加锁追加模式的批次
+     *
+     * @param tp 所属的流分区
+     * @param maxBatchSize 最大批量大小
+     * @param maxBatchCount 最大批量计数
+     * @param bufferPool 记录数据所属的内存池，为null表示记录数据不是从内存池分配的
+     */
+    ProducerBatch(StreamPartition tp, long maxBatchSize, int maxBatchCount, BufferPool bufferPool)
+    {
+        this.tp = tp;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchCount = maxBatchCount;
+        this.produceFuture = new ProduceRequestResult(tp);
+        this.createdMs = System.currentTimeMillis();
+        this.lastAttemptMs = createdMs;
+        this.concurrentAppend = false;
+        this.state = null;
+        this.published = null;
+        this.entrySlots = null;
+        this.thunkSlots = null;
+        this.recordFutureSlots = null;
+        this.bufferPool = bufferPool;
+        this.pooledBuffers = bufferPool == null ? null : new ArrayList<ByteBuffer>();
+        this.bufferSlots = null;
+    }
+
+    /**
+     * 创建支持多线程并发追加的批次，每次追加通过CAS占用slot，不需要调用者加锁
+     *
+     * @param tp 所属的流分区
+     * @param maxBatchSize 最大批量大小
+     * @param maxBatchCount 最大批量计数
+     * @param capacity slot数量，不小于maxBatchCount
+     * @param bufferPool 记录数据所属的内存池，为null表示记录数据不是从内存池分配的
+     */
+    ProducerBatch(StreamPartition tp, long maxBatchSize, int maxBatchCount, int capacity, BufferPool bufferPool)
+    {
         this.tp = tp;
         this.maxBatchSize = maxBatchSize;
         this.maxBatchCount = maxBatchCount;
         this.produceFuture = new ProduceRequestResult(tp);
-        this.lastAttemptMs = System.currentTimeMillis();
+        this.createdMs = System.currentTimeMillis();
+        this.lastAttemptMs = createdMs;
+        this.concurrentAppend = true;
+        this.state = new AtomicLong(0);
+        this.published = new AtomicInteger(0);
+        this.entrySlots = new PutRecordsRequestEntry[capacity];
+        this.thunkSlots = new Thunk[capacity];
+        this.recordFutureSlots = new RecordFuture[capacity];
+        this.batchPutRecordsRequestEntrys = null;
+        this.asyncHandlers = null;
+        this.bufferPool = bufferPool;
+        this.bufferSlots = bufferPool == null ? null : new ByteBuffer[capacity];
     }
     
     //调用者那里加了锁，这里不用考虑并发问题
     public FutureRecordsMetadata tryAppend(long timestamp, PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback)
     {
-        if(appendClosed || isFull()){
-            return null;
+        return tryAppend(timestamp, putRecordsRequest, callback, RecordSizeEstimator.PAYLOAD.estimate(putRecordsRequest));
+    }
+
+    /*
+     * requestSize为请求的估算大小，批次大小按此累计；非空批次放不下时关闭追加，由新批次接收
+     */
+    FutureRecordsMetadata tryAppend(long timestamp, PutRecordsRequest putRecordsRequest,
+        AsyncHandler<PutRecordsResult> callback, long requestSize)
+    {
+        List<PutRecordsRequestEntry> records = putRecordsRequest.getRecords();
+        int offset = tryAppend(timestamp, records, callback, null, requestSize);
+        return offset < 0 ? null : futureOf(offset, records.size());
+    }
+
+    /**
+     * 追加记录，加锁模式下调用者持有分片锁，无锁模式下通过CAS占用slot
+     *
+     * @param timestamp 追加时间
+     * @param records 待追加的记录
+     * @param callback 批次完成时收到这些记录的结果，可以为null
+     * @param recordFuture 只用于单条记录，批次完成时直接以该记录的结果完成，可以为null
+     * @param requestSize 记录的估算大小，批次大小按此累计
+     * @return 第一条记录在批次中的下标，放不下时返回-1；非空批次放不下时关闭追加，由新批次接收
+     */
+    int tryAppend(long timestamp, List<PutRecordsRequestEntry> records, AsyncHandler<PutRecordsResult> callback,
+        RecordFuture recordFuture, long requestSize)
+    {
+        int n = records.size();
+        // 占用slot之前分配，占用之后尽量不再有可能失败的操作
+        Thunk thunk = callback == null ? null : new Thunk(callback, n);
+        int offset = concurrentAppend ? claimConcurrent(n, requestSize) : claim(n, requestSize);
+        if (offset < 0)
+        {
+            return -1;
+        }
+        if (thunk != null)
+        {
+            thunk.offset = offset;
+        }
+        if (concurrentAppend)
+        {
+            boolean written = false;
+            try
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    entrySlots[offset + i] = records.get(i);
+                    if (bufferSlots != null)
+                    {
+                        bufferSlots[offset + i] = records.get(i).getData();
+                    }
+                }
+                thunkSlots[offset] = thunk;
+                if (recordFuture != null)
+                {
+                    recordFuture.bind(offset);
+                    recordFutureSlots[offset] = recordFuture;
+                }
+                written = true;
+            }
+            finally
+            {
+                if (!written)
+                {
+                    appendAbandoned = true;
+                }
+                // 写完(或放弃)后发布，Sender在发送前需等待所有已占用的slot发布完成
+                published.addAndGet(n);
+            }
         }
-        
-        FutureRecordsMetadata futureRecordsMetadata = new FutureRecordsMetadata(produceFuture, relativeOffset, putRecordsRequest.getRecords().size());
-        
-        for(PutRecordsRequestEntry entry : putRecordsRequest.getRecords()){
-            batchPutRecordsRequestEntrys.add(entry);
-            totolByteSize+=entry.getData().array().length;
+        else
+        {
+            for (PutRecordsRequestEntry entry : records)
+            {
+                batchPutRecordsRequestEntrys.add(entry);
+                if (pooledBuffers != null)
+                {
+                    pooledBuffers.add(entry.getData());
+                }
+            }
+            if (thunk != null)
+            {
+                asyncHandlers.add(thunk);
+            }
+            if (recordFuture != null)
+            {
+                recordFuture.bind(offset);
+                if (recordFutures == null)
+                {
+                    recordFutures = new ArrayList<RecordFuture>();
+                }
+                recordFutures.add(recordFuture);
+            }
         }
-        relativeOffset+=putRecordsRequest.getRecords().size();
-        
-        if(callback != null) {
-            asyncHandlers.add(new Thunk(callback, futureRecordsMetadata));
+        return offset;
+    }
+
+    /**
+     * @param offset 第一条记录在批次中的下标
+     * @param length 记录数
+     * @return 这些记录的发送结果
+     */
+    FutureRecordsMetadata futureOf(int offset, int length)
+    {
+        return new FutureRecordsMetadata(produceFuture, offset, length);
+    }
+
+    /*
+     * 加锁追加：占用[offset, offset + n)
+     */
+    private int claim(int n, long requestSize)
+    {
+        if(appendClosed || isFull()){
+            return -1;
+        }
+        if (relativeOffset > 0 && totolByteSize + requestSize > maxBatchSize)
+        {
+            appendClosed = true;
+            return -1;
         }
-        
-        return futureRecordsMetadata;
+        int offset = relativeOffset;
+        totolByteSize += requestSize;
+        relativeOffset += n;
+        return offset;
     }
     
-    public void done(PutRecordsResult putRecordsResult, RuntimeException exception)
+    /*
+     * 无锁追加：CAS占用[offset, offset + n)的slot后再写入数据
+     */
+    private int claimConcurrent(int n, long requestSize)
+    {
+        int offset;
+        long current;
+        do
+        {
+            current = state.get();
+            if ((current & CLOSED_BIT) != 0)
+            {
+                return -1;
+            }
+            offset = countOf(current);
+            if (offset >= maxBatchCount || bytesOf(current) >= maxBatchSize || offset + n > entrySlots.length)
+            {
+                return -1;
+            }
+            if (offset > 0 && bytesOf(current) + requestSize > maxBatchSize)
+            {
+                closeForRecordAppends();
+                return -1;
+            }
+        } while (!state.compareAndSet(current, current + ((long)n << COUNT_SHIFT) + requestSize));
+        return offset;
+    }
+
+    /*
+     * 关闭追加并等待已占用slot的写入完成，之后批次内容不再变化
+     */
+    void closeAndAwaitAppends()
+    {
+        closeForRecordAppends();
+        if (concurrentAppend)
+        {
+            int claimed = countOf(state.get());
+            while (published.get() < claimed)
+            {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return 是否有写线程占用slot后写入失败；这样的批次记录不完整，应整体失败而不是发送
+     */
+    boolean isAppendAbandoned()
+    {
+        return appendAbandoned;
+    }
+
+    boolean casNext(ProducerBatch expect, ProducerBatch update)
+    {
+        return NEXT_UPDATER.compareAndSet(this, expect, update);
+    }
+
+    private static int countOf(long state)
+    {
+        return (int)((state >>> COUNT_SHIFT) & COUNT_MASK);
+    }
+
+    private static long bytesOf(long state)
+    {
+        return state & BYTES_MASK;
+    }
+
+    /**
+     * 以发送结果完成批次，回调后将记录数据归还到内存池
+     *
+     * @param putRecordsResult 发送结果，请求失败时为null
+     * @param exception 请求失败的异常
+     * @return 本次调用是否完成了批次；批次已被{@link #abort(RuntimeException)}时返回false，结果被忽略
+     */
+    public boolean done(PutRecordsResult putRecordsResult, RuntimeException exception)
+    {
+        if (!completed.compareAndSet(false, true))
+        {
+            log.debug("Ignore the result of batch {} which has been aborted.", tp);
+            return false;
+        }
+        complete(putRecordsResult, exception);
+        releaseBuffers();
+        return true;
+    }
+
+    /**
+     * 关闭超时后放弃批次，以exception完成所有记录。请求可能仍在途并引用记录数据，因此不再归还到内存池
+     *
+     * @param exception 记录失败的异常
+     * @return 本次调用是否完成了批次，批次已完成时返回false
+     */
+    boolean abort(RuntimeException exception)
+    {
+        if (!completed.compareAndSet(false, true))
+        {
+            return false;
+        }
+        complete(null, exception);
+        return true;
+    }
+
+    private void complete(PutRecordsResult putRecordsResult, RuntimeException exception)
     {
         produceFuture.set(putRecordsResult, exception);
 
-        for (Thunk thunk : asyncHandlers)
+        if (concurrentAppend)
         {
-            try
+            int count = getRelativeOffset();
+            for (int i = 0; i < count; i++)
             {
-                if (exception == null)
+                if (thunkSlots[i] != null)
                 {
-                    thunk.callback.onSuccess(thunk.future.value());
+                    completeThunk(thunkSlots[i], putRecordsResult, exception);
                 }
-                else
+                if (recordFutureSlots[i] != null)
                 {
-                    thunk.callback.onError(exception);
+                    recordFutureSlots[i].done(putRecordsResult, exception);
                 }
             }
-            catch (Exception e)
+        }
+        else
+        {
+            for (Thunk thunk : asyncHandlers)
+            {
+                completeThunk(thunk, putRecordsResult, exception);
+            }
+            if (recordFutures != null)
             {
-                log.error("Error executing user-provided callback on message for stream {} : {}", tp.topic(), e.getMessage(), e);
+                for (RecordFuture recordFuture : recordFutures)
+                {
+                    recordFuture.done(putRecordsResult, exception);
+                }
             }
         }
 
         produceFuture.done();
     }
+
+    /*
+     * 回调执行完成后记录数据不再被引用，归还到内存池
+     */
+    private void releaseBuffers()
+    {
+        if (bufferPool == null)
+        {
+            return;
+        }
+        if (concurrentAppend)
+        {
+            for (int i = 0; i < bufferSlots.length; i++)
+            {
+                if (bufferSlots[i] != null)
+                {
+                    bufferPool.deallocate(bufferSlots[i]);
+                    bufferSlots[i] = null;
+                }
+            }
+        }
+        else if (pooledBuffers != null)
+        {
+            for (ByteBuffer buffer : pooledBuffers)
+            {
+                bufferPool.deallocate(buffer);
+            }
+            pooledBuffers = null;
+        }
+    }
     
+    private void completeThunk(Thunk thunk, PutRecordsResult putRecordsResult, RuntimeException exception)
+    {
+        try
+        {
+            if (exception == null)
+            {
+                thunk.callback.onSuccess(FutureRecordsMetadata.slice(putRecordsResult, thunk.offset, thunk.length));
+            }
+            else
+            {
+                thunk.callback.onError(exception);
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("Error executing user-provided callback on message for stream {} : {}", tp.topic(), e.getMessage(), e);
+        }
+    }
+
     public boolean isEmpty(){
-        return relativeOffset == 0;
+        return getRelativeOffset() == 0;
     }
     
     public void reenqueued(long now) {
@@ -121,28 +514,146 @@ public final class ProducerBatch {
         lastAttemptMs = now;
     }
     
-    void drained(long nowMs) {
+    void drained(long nowMs, long sequence) {
         this.drainedMs = Math.max(drainedMs, nowMs);
+        if (drainSequence < 0) {
+            this.drainSequence = sequence;
+        }
+    }
+
+    long drainSequence() {
+        return drainSequence;
+    }
+    
+    /*
+     * 本批次需要重试，退避到retryAfterMs之后才能再次发送
+     */
+    void retryAfter(long retryAfterMs) {
+        this.attempts++;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /*
+     * 重试的批次在退避期间不能发送，同时阻塞同一分片后续的批次
+     */
+    boolean inRetryBackoff(long nowMs) {
+        return attempts > 0 && nowMs < retryAfterMs;
+    }
+
+    boolean isRetry() {
+        return attempts > 0;
+    }
+
+    int attempts() {
+        return attempts;
+    }
+
+    long createdMs() {
+        return createdMs;
+    }
+
+    /**
+     * @return 本次需要发送的记录，重试时只包含上一次可重试的失败记录
+     */
+    public List<PutRecordsRequestEntry> entriesToSend()
+    {
+        List<PutRecordsRequestEntry> entries = getBatchPutRecordsRequestEntrys();
+        if (retryIndexes == null)
+        {
+            return entries;
+        }
+        List<PutRecordsRequestEntry> retryEntries = new ArrayList<PutRecordsRequestEntry>(retryIndexes.length);
+        for (int index : retryIndexes)
+        {
+            retryEntries.add(entries.get(index));
+        }
+        return retryEntries;
+    }
+
+    /**
+     * 合并{@link #entriesToSend()}的发送结果，并记录其中可重试的失败记录供下一次发送
+     *
+     * @param result 与entriesToSend()一一对应的发送结果
+     * @param retryPolicy 判断错误码是否可重试
+     * @return 需要重试的记录数
+     */
+    int mergeResult(PutRecordsResult result, RecordRetryPolicy retryPolicy)
+    {
+        List<PutRecordsResultEntry> entries = result.getRecords();
+        if (retryResults == null)
+        {
+            retryResults = new PutRecordsResultEntry[getRelativeOffset()];
+        }
+        int retryCount = 0;
+        int[] nextRetryIndexes = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++)
+        {
+            int originalIndex = retryIndexes == null ? i : retryIndexes[i];
+            PutRecordsResultEntry entry = entries.get(i);
+            retryResults[originalIndex] = entry;
+            if (!StringUtils.isNullOrEmpty(entry.getErrorCode()) && retryPolicy.isRetriable(entry.getErrorCode()))
+            {
+                nextRetryIndexes[retryCount++] = originalIndex;
+            }
+        }
+        retryIndexes = Arrays.copyOf(nextRetryIndexes, retryCount);
+        return retryCount;
+    }
+
+    /**
+     * @return 按原始顺序合并后的结果，未合并过任何结果时返回null
+     */
+    PutRecordsResult mergedResult()
+    {
+        if (retryResults == null)
+        {
+            return null;
+        }
+        int failedRecordCount = 0;
+        for (PutRecordsResultEntry entry : retryResults)
+        {
+            if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
+            {
+                failedRecordCount++;
+            }
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(failedRecordCount));
+        result.setRecords(Arrays.asList(retryResults));
+        return result;
     }
     
     public int getRelativeOffset()
     {
-        return relativeOffset;
+        return concurrentAppend ? countOf(state.get()) : relativeOffset;
     }
 
     public long getTotolByteSize()
     {
-        return totolByteSize;
+        return concurrentAppend ? bytesOf(state.get()) : totolByteSize;
     }
 
     public boolean isFull()
     {
-        return relativeOffset >= maxBatchCount || totolByteSize >= maxBatchSize;
+        // 关闭追加的批次不会再变大，视为已满
+        if (concurrentAppend ? (state.get() & CLOSED_BIT) != 0 : appendClosed)
+        {
+            return true;
+        }
+        return getRelativeOffset() >= maxBatchCount || getTotolByteSize() >= maxBatchSize;
     }
 
     public void closeForRecordAppends()
     {
         this.appendClosed = true;
+        if (concurrentAppend)
+        {
+            long current;
+            do
+            {
+                current = state.get();
+            } while ((current & CLOSED_BIT) == 0 && !state.compareAndSet(current, current | CLOSED_BIT));
+        }
     }
 
     public long waitedTimeMs(long nowMs)
@@ -152,6 +663,10 @@ public final class ProducerBatch {
 
     public List<PutRecordsRequestEntry> getBatchPutRecordsRequestEntrys()
     {
+        if (concurrentAppend)
+        {
+            return Arrays.asList(entrySlots).subList(0, getRelativeOffset());
+        }
         return batchPutRecordsRequestEntrys;
     }
 
@@ -164,12 +679,15 @@ public final class ProducerBatch {
     {
         final AsyncHandler<PutRecordsResult> callback;
 
-        final FutureRecordsMetadata future;
+        /* 占用slot后设置，在发布之前写入 */
+        int offset;
+
+        final int length;
 
-        public Thunk(AsyncHandler<PutRecordsResult> callback, FutureRecordsMetadata future)
+        Thunk(AsyncHandler<PutRecordsResult> callback, int length)
         {
             this.callback = callback;
-            this.future = future;
+            this.length = length;
         }
     }
     
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import com.huaweicloud.dis.util.metrics.Counter;
+import com.huaweicloud.dis.util.metrics.Histogram;
+import com.huaweicloud.dis.util.metrics.MetricsRegistry;
+
+/**
+ * 一个DISProducer实例的指标。记录路径上直接使用这里的字段，不需要按名字查找
+ */
+public final class ProducerMetrics
+{
+    private final MetricsRegistry registry;
+
+    /* 发送的用户记录条数，以及其中成功、失败(部分失败与请求失败)的条数 */
+    final Counter recordsSent;
+
+    final Counter recordsSucceeded;
+
+    final Counter recordsFailed;
+
+    /* 生产者侧重试时重发的记录条数，同一条记录每次重发都计数 */
+    final Counter recordsRetried;
+
+    /* 关闭超时后放弃的记录条数 */
+    final Counter recordsAborted;
+
+    /* 服务端因分片流控拒绝的记录条数(聚合后) */
+    final Counter recordsThrottled;
+
+    /* 上传请求数，以及其中得到响应的、请求本身失败的个数 */
+    final Counter requestsSent;
+
+    final Counter requestsSucceeded;
+
+    final Counter requestsFailed;
+
+    /* 单条记录的字节数 */
+    final Histogram recordSize;
+
+    /* 发送时每个批次的字节数与条数 */
+    final Histogram batchSize;
+
+    final Histogram batchRecords;
+
+    /* 上传请求耗时(ms) */
+    final Histogram requestLatency;
+
+    /* append因缓冲区或内存池不足每次阻塞的时长(ms) */
+    final Histogram appendBlocked;
+
+    public ProducerMetrics()
+    {
+        this(new MetricsRegistry());
+    }
+
+    public ProducerMetrics(MetricsRegistry registry)
+    {
+        this.registry = registry;
+        this.recordsSent = registry.counter("records.sent");
+        this.recordsSucceeded = registry.counter("records.succeeded");
+        this.recordsFailed = registry.counter("records.failed");
+        this.recordsRetried = registry.counter("records.retried");
+        this.recordsThrottled = registry.counter("records.throttled");
+        this.recordsAborted = registry.counter("records.aborted");
+        this.requestsSent = registry.counter("requests.sent");
+        this.requestsSucceeded = registry.counter("requests.succeeded");
+        this.requestsFailed = registry.counter("requests.failed");
+        this.recordSize = registry.histogram("record.size.bytes");
+        this.batchSize = registry.histogram("batch.size.bytes");
+        this.batchRecords = registry.histogram("batch.records");
+        this.requestLatency = registry.histogram("request.latency.ms");
+        this.appendBlocked = registry.histogram("append.blocked.ms");
+    }
+
+    public MetricsRegistry registry()
+    {
+        return registry;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.huaweicloud.dis.producer.internals;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -23,20 +24,30 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.huaweicloud.dis.StreamPartition;
 import com.huaweicloud.dis.core.handler.AsyncHandler;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
 import com.huaweicloud.dis.util.CopyOnWriteMap;
+import com.huaweicloud.dis.util.RecordSizeEstimator;
+import com.huaweicloud.dis.util.metrics.Gauge;
+import com.huaweicloud.dis.util.metrics.MetricsRegistry;
 
 
 /**
@@ -50,6 +61,11 @@ public final class RecordAccumulator {
     private volatile boolean closed;
     private final AtomicInteger flushesInProgress;
     private final AtomicInteger appendsInProgress;
+
+    /* 关闭后最后一个追加线程退出时通知abortIncompleteBatches */
+    private final ReentrantLock appendsLock = new ReentrantLock();
+
+    private final Condition appendsDone = appendsLock.newCondition();
     private final long maxBatchSize;
     private final int maxBatchCount;
     private final long maxBufferSize;
@@ -57,14 +73,32 @@ public final class RecordAccumulator {
     private final long retryBackoffMs;
     
     //TODO 这个批的分类，按照partition是最好的。但是当前客户端传partitionKey，可能没法确定数据在哪个分区。除非维护上传流的metadata
-    private final ConcurrentMap<StreamPartition, Deque<ProducerBatch>> batches;
+    private final ConcurrentMap<StreamPartition, BatchQueue> batches;
     
-    private AtomicInteger bufferCount = new AtomicInteger(0);
-    private AtomicLong bufferSize = new AtomicLong(0);
+    private final BufferLimiter bufferLimiter;//缓冲区字节数与批次数的限制，写线程按FIFO顺序等待
     
     private Map<StreamPartition, Future<PutRecordsResult>> onSendingPartitions = Collections.synchronizedMap(new HashMap<>());
     
     private boolean orderByPartition;//分片串行发送，使数据按分片保序
+    
+    private final boolean lockFree;//无锁追加模式，写线程之间不竞争分片队列的锁
+    
+    private final BufferPool bufferPool;//不为null时，记录数据复制到内存池中缓冲
+    
+    private final AdaptiveBatchSizer batchSizer;//不为null时，各分片的linger与批次阈值自适应调整
+
+    private final PartitionRateLimiter rateLimiter;//不为null时，各分片按配额限速
+    
+    private final ProducerMetrics metrics;
+    
+    private final RecordSizeEstimator sizeEstimator;//批次大小与缓冲区按记录序列化后的估算大小计算
+    
+    /* 批次第一次被取出时的序号，重试的批次按此序号有序放回 */
+    private final AtomicLong drainSequence = new AtomicLong();
+    
+    /* 已创建但尚未完成(batchIsDone)的批次，flush时等待调用时刻的这些批次完成 */
+    private final Set<ProducerBatch> incomplete =
+        Collections.newSetFromMap(new ConcurrentHashMap<ProducerBatch, Boolean>());
     /**
      * 
      * @param maxBatchSize 最大批量大小
@@ -74,17 +108,113 @@ public final class RecordAccumulator {
      * @param retryBackoffMs 一个上传单元，缓冲的最长时间，到时间后，即使大小很小，也要上传远端
      */
     public RecordAccumulator(long maxBatchSize, int maxBatchCount, long maxBufferSize, int maxBufferCount, long retryBackoffMs, boolean orderByPartition)
+    {
+        this(new Settings(maxBatchSize, maxBatchCount, maxBufferSize, maxBufferCount, retryBackoffMs)
+            .orderByPartition(orderByPartition));
+    }
+
+    /**
+     * @param settings 批量、缓冲以及可选组件的配置
+     */
+    public RecordAccumulator(Settings settings)
     {
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
         this.appendsInProgress = new AtomicInteger(0);
-        this.maxBatchSize = maxBatchSize;
-        this.maxBatchCount = maxBatchCount;
-        this.maxBufferSize = maxBufferSize;
-        this.maxBufferCount = maxBufferCount;
-        this.retryBackoffMs = retryBackoffMs;
-        this.orderByPartition = orderByPartition;
-        this.batches = new CopyOnWriteMap<>();
+        this.maxBatchSize = settings.maxBatchSize;
+        this.maxBatchCount = settings.maxBatchCount;
+        this.maxBufferSize = settings.maxBufferSize;
+        this.maxBufferCount = settings.maxBufferCount;
+        this.retryBackoffMs = settings.retryBackoffMs;
+        this.orderByPartition = settings.orderByPartition;
+        this.lockFree = settings.lockFree;
+        this.bufferPool = settings.bufferPool;
+        this.batchSizer = settings.batchSizer;
+        this.metrics = settings.metrics == null ? new ProducerMetrics() : settings.metrics;
+        this.sizeEstimator = settings.sizeEstimator;
+        this.rateLimiter = settings.rateLimiter;
+        this.bufferLimiter = new BufferLimiter(maxBufferSize, maxBufferCount, this.metrics.appendBlocked);
+        this.batches = lockFree ? new ConcurrentHashMap<StreamPartition, BatchQueue>() : new CopyOnWriteMap<StreamPartition, BatchQueue>();
+        registerMetrics(metrics.registry());
+    }
+
+    private void registerMetrics(MetricsRegistry registry)
+    {
+        registry.gauge("buffer.used.bytes", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return bufferLimiter.usedBytes();
+            }
+        });
+        registry.gauge("buffer.total.bytes", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return maxBufferSize;
+            }
+        });
+        registry.gauge("buffer.utilization", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return maxBufferSize <= 0 ? 0.0 : (double)bufferLimiter.usedBytes() / maxBufferSize;
+            }
+        });
+        registry.gauge("buffer.batches", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return bufferLimiter.usedBatches();
+            }
+        });
+        registry.gauge("buffer.batches.max", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return maxBufferCount;
+            }
+        });
+        registry.gauge("buffer.waiters", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return bufferLimiter.queued();
+            }
+        });
+        registry.gauge("queue.batches", new Gauge()
+        {
+            @Override
+            public Number value()
+            {
+                return queuedBatches();
+            }
+        });
+        if (bufferPool != null)
+        {
+            registry.gauge("bufferpool.allocated.bytes", new Gauge()
+            {
+                @Override
+                public Number value()
+                {
+                    return bufferPool.allocatedMemory();
+                }
+            });
+            registry.gauge("bufferpool.cached.bytes", new Gauge()
+            {
+                @Override
+                public Number value()
+                {
+                    return bufferPool.cachedMemory();
+                }
+            });
+        }
     }
 
     /**
@@ -106,140 +236,486 @@ public final class RecordAccumulator {
                                      PutRecordsRequest putRecordsRequest,
                                      AsyncHandler<PutRecordsResult> callback,
                                      long maxTimeToBlock) throws InterruptedException {
+        return append(tp, timestamp, putRecordsRequest, callback, maxTimeToBlock, false);
+    }
+
+    /**
+     * Add a record to the accumulator, return the append result
+     * <p>
+     * If abortOnNewBatch is set and the records do not fit into an existing batch, nothing is appended and the
+     * result has abortForNewBatch set, so that the caller may choose another partition before a new batch is created.
+     *
+     * @param tp The stream/partition to which this record is being sent
+     * @param timestamp The timestamp of the records
+     * @param putRecordsRequest the records to add
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for adding
+     * @param abortOnNewBatch Return without appending if a new batch would have to be created
+     * @return The append result
+     * @throws InterruptedException The current thread was interrupted
+     */
+    public RecordAppendResult append(StreamPartition tp,
+                                     long timestamp,
+                                     PutRecordsRequest putRecordsRequest,
+                                     AsyncHandler<PutRecordsResult> callback,
+                                     long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, putRecordsRequest.getRecords(), callback, null, maxTimeToBlock, abortOnNewBatch,
+            false, false);
+    }
+
+    /**
+     * Add a single record to the accumulator without a request wrapper.
+     * <p>
+     * The record result is delivered through the given future when its batch completes, so the append result
+     * carries no future metadata. The future is only bound when the record is actually appended, so it may be
+     * passed again after an abortForNewBatch result.
+     *
+     * @param tp The stream/partition to which this record is being sent
+     * @param timestamp The timestamp of the record
+     * @param entry the record to add
+     * @param recordFuture The future to complete with the record result, or null if the result is not needed
+     * @param maxTimeToBlock The maximum time in milliseconds to block for adding
+     * @param abortOnNewBatch Return without appending if a new batch would have to be created
+     * @return The append result
+     * @throws InterruptedException The current thread was interrupted
+     */
+    public RecordAppendResult append(StreamPartition tp,
+                                     long timestamp,
+                                     PutRecordsRequestEntry entry,
+                                     RecordFuture recordFuture,
+                                     long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, Collections.singletonList(entry), null, recordFuture, maxTimeToBlock,
+            abortOnNewBatch, false, true);
+    }
+
+    /**
+     * Add a single record whose data was allocated from {@link #bufferPool()}, so it is buffered without a copy.
+     * <p>
+     * Once appended the batch owns the data and returns it to the pool when the batch completes. If nothing is
+     * appended (abortForNewBatch or an exception) the caller still owns the data, and may pass it again or release it.
+     *
+     * @param tp The stream/partition to which this record is being sent
+     * @param timestamp The timestamp of the record
+     * @param entry the record to add, its data allocated from the buffer pool (or any buffer if there is no pool)
+     * @param recordFuture The future to complete with the record result, or null if the result is not needed
+     * @param maxTimeToBlock The maximum time in milliseconds to block for adding
+     * @param abortOnNewBatch Return without appending if a new batch would have to be created
+     * @return The append result
+     * @throws InterruptedException The current thread was interrupted
+     */
+    public RecordAppendResult appendPooled(StreamPartition tp,
+                                           long timestamp,
+                                           PutRecordsRequestEntry entry,
+                                           RecordFuture recordFuture,
+                                           long maxTimeToBlock,
+                                           boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, Collections.singletonList(entry), null, recordFuture, maxTimeToBlock,
+            abortOnNewBatch, true, true);
+    }
+
+    private RecordAppendResult append(StreamPartition tp,
+                                      long timestamp,
+                                      List<PutRecordsRequestEntry> putRecords,
+                                      AsyncHandler<PutRecordsResult> callback,
+                                      RecordFuture recordFuture,
+                                      long maxTimeToBlock,
+                                      boolean abortOnNewBatch,
+                                      boolean pooled,
+                                      boolean recordAppend) throws InterruptedException {
         // We keep track of the number of appending thread to make sure we do not miss batches in
         // abortIncompleteBatches().
         appendsInProgress.incrementAndGet();
+        long deadlineMs = deadline(maxTimeToBlock);
+        List<PutRecordsRequestEntry> records = putRecords;
+        boolean appended = false;
         try {
-            // check if we have an in-progress batch
-            Deque<ProducerBatch> dq = getOrCreateDeque(tp);
-            synchronized (dq) {
-                if (closed)
+            if (bufferPool != null && !pooled)
+            {
+                // 在分片锁之外复制
+                records = copyToBufferPool(putRecords);
+            }
+            long requestSize = 0;
+            for (PutRecordsRequestEntry entry : records)
+            {
+                requestSize += sizeEstimator.estimate(entry);
+            }
+            RecordAppendResult appendResult = lockFree
+                ? appendLockFree(tp, timestamp, records, requestSize, callback, recordFuture, recordAppend, deadlineMs,
+                    abortOnNewBatch)
+                : appendLocked(tp, timestamp, records, requestSize, callback, recordFuture, recordAppend, deadlineMs,
+                    abortOnNewBatch);
+            appended = !appendResult.abortForNewBatch;
+            if (appended)
+            {
+                for (PutRecordsRequestEntry entry : records)
                 {
-                    throw new IllegalStateException("Cannot send after the producer is closed.");
+                    metrics.recordSize.record(entry.getData().remaining());
                 }
-                
-                long newRequestSize = 0;
-                for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+                if (batchSizer != null)
                 {
-                    newRequestSize += entry.getData().array().length;
+                    batchSizer.recordAppend(tp, records.size(), requestSize, System.currentTimeMillis());
                 }
-                
-                // 当总缓存大小超过阈值，则等待
-                long currentBufferSize;
-                while ((newRequestSize + (currentBufferSize = bufferSize.get())) > maxBufferSize)
+            }
+            return appendResult;
+        } finally {
+            if (!appended && records != putRecords)
+            {
+                releaseBuffers(records);
+            }
+            if (appendsInProgress.decrementAndGet() == 0 && closed)
+            {
+                signalAppendsDone();
+            }
+        }
+    }
+
+    private RecordAppendResult appendLocked(StreamPartition tp, long timestamp, List<PutRecordsRequestEntry> records,
+        long newRequestSize, AsyncHandler<PutRecordsResult> callback, RecordFuture recordFuture, boolean recordAppend,
+        long deadlineMs, boolean abortOnNewBatch)
+        throws InterruptedException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Cannot send after the producer is closed.");
+        }
+        // 在分片锁之外等待缓冲区，阻塞的写线程不影响同分片的其他写线程
+        bufferLimiter.acquireBytes(newRequestSize, deadlineMs);
+        boolean appended = false;
+        boolean batchReserved = false;
+        try
+        {
+            // check if we have an in-progress batch
+            Deque<ProducerBatch> dq = ((LockingBatchQueue) getOrCreateQueue(tp)).deque();
+            while (true)
+            {
+                synchronized (dq)
                 {
-                    log.warn("Send blocked because BufferSize(total:{}, current:{}+{}) is full.",
-                        maxBufferSize,
-                        currentBufferSize,
-                        newRequestSize);
-                    long start = System.currentTimeMillis();
-                    dq.wait(maxTimeToBlock);
-                    long elapsed = System.currentTimeMillis() - start;
-                    if (elapsed >= maxTimeToBlock)
+                    if (closed)
                     {
-                        throw new RuntimeException(
-                            "The BufferSize(total:" + maxBufferSize + ", current:" + currentBufferSize + "+"
-                                + newRequestSize + ") is still full after blocking " + maxTimeToBlock + " ms.");
+                        throw new IllegalStateException("Cannot send after the producer is closed.");
                     }
-                    log.warn("Send unblocked after blocking {}ms", (System.currentTimeMillis() - start));
-                }
-                
-                RecordAppendResult appendResult = tryAppend(timestamp, putRecordsRequest, callback, dq);
-                if (appendResult != null)
-                {
-                    bufferSize.addAndGet(newRequestSize);
-                    return appendResult;
-                }
-
-                // 当总批次或者总缓存大小超过阈值，则等待
-                long currentBufferCount = bufferCount.get();
-                while ((newRequestSize + (currentBufferSize = bufferSize.get())) >= maxBufferSize
-                    || (currentBufferCount = bufferCount.get()) >= maxBufferCount)
-                {
-                    log.warn(
-                        "Send blocked because BufferSize(total:{}, current:{}+{}) or BufferCount(total:{}, current:{}) is full.",
-                        maxBufferSize,
-                        currentBufferSize,
-                        newRequestSize,
-                        maxBufferCount,
-                        currentBufferCount);
-                    long start = System.currentTimeMillis();
-                    dq.wait(maxTimeToBlock);
-                    long elapsed = System.currentTimeMillis() - start;
-                    if (elapsed >= maxTimeToBlock)
+                    RecordAppendResult appendResult =
+                        tryAppend(timestamp, records, newRequestSize, callback, recordFuture, recordAppend, dq);
+                    if (appendResult != null)
                     {
-                        throw new RuntimeException(
-                            "The BufferSize(total:" + maxBufferSize + ", current:" + currentBufferSize + "+"
-                                + newRequestSize + ") or BufferCount(total:" + maxBufferCount + ", current:"
-                                + currentBufferCount + ") is still full after blocking " + maxTimeToBlock + " ms.");
+                        appended = true;
+                        return appendResult;
+                    }
+                    if (abortOnNewBatch)
+                    {
+                        return new RecordAppendResult(null, false, false, true);
+                    }
+                    if (batchReserved || bufferLimiter.tryAcquireBatch())
+                    {
+                        batchReserved = false;
+                        ProducerBatch batch = new ProducerBatch(tp, batchSizeOf(tp), batchCountOf(tp), bufferPool);
+                        int offset = batch.tryAppend(timestamp, records, callback, recordFuture, newRequestSize);
+                        incomplete.add(batch);
+                        dq.addLast(batch);
+                        appended = true;
+                        return appendResult(batch, offset, records.size(), recordAppend, dq.size() > 1 || batch.isFull(), true);
                     }
-                    log.warn("Send unblocked after blocking {}ms", (System.currentTimeMillis() - start));
                 }
-                
-                ProducerBatch batch = new ProducerBatch(tp, maxBatchSize, maxBatchCount);
-                FutureRecordsMetadata future = batch.tryAppend(timestamp, putRecordsRequest, callback);
+                // 批次数已满，释放分片锁后排队等待，之后重新尝试追加
+                bufferLimiter.acquireBatch(deadlineMs);
+                batchReserved = true;
+            }
+        }
+        finally
+        {
+            if (!appended)
+            {
+                bufferLimiter.release(newRequestSize, 0);
+            }
+            if (batchReserved)
+            {
+                bufferLimiter.release(0, 1);
+            }
+        }
+    }
+
+    /*
+     * 整个append共用一个截止时间，多次阻塞等待的总时长不超过maxTimeToBlock
+     */
+    private static long deadline(long maxTimeToBlock)
+    {
+        long now = System.currentTimeMillis();
+        return maxTimeToBlock > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + maxTimeToBlock;
+    }
 
-                bufferCount.incrementAndGet();
-                bufferSize.addAndGet(newRequestSize);
-                dq.addLast(batch);
-                return new RecordAppendResult(future, dq.size() > 1 || batch.isFull(), true);
+    /*
+     * 将记录数据复制到内存池分配的buffer中，调用者的ByteBuffer在返回后即可复用
+     */
+    private List<PutRecordsRequestEntry> copyToBufferPool(List<PutRecordsRequestEntry> entries)
+    {
+        List<PutRecordsRequestEntry> copies = new ArrayList<>(entries.size());
+        boolean success = false;
+        try
+        {
+            for (PutRecordsRequestEntry entry : entries)
+            {
+                ByteBuffer src = entry.getData().duplicate();
+                ByteBuffer buffer = bufferPool.allocate(src.remaining());
+                buffer.put(src);
+                buffer.flip();
+                
+                PutRecordsRequestEntry copy = new PutRecordsRequestEntry();
+                copy.setData(buffer);
+                copy.setExplicitHashKey(entry.getExplicitHashKey());
+                copy.setPartitionId(entry.getPartitionId());
+                copy.setPartitionKey(entry.getPartitionKey());
+                copy.setExtendedInfo(entry.getExtendedInfo());
+                copy.setTimestamp(entry.getTimestamp());
+                copies.add(copy);
             }
-        } finally {
-            appendsInProgress.decrementAndGet();
+            success = true;
         }
+        finally
+        {
+            if (!success)
+            {
+                releaseBuffers(copies);
+            }
+        }
+        return copies;
     }
 
+    private void releaseBuffers(List<PutRecordsRequestEntry> entries)
+    {
+        for (PutRecordsRequestEntry entry : entries)
+        {
+            bufferPool.deallocate(entry.getData());
+        }
+    }
+
+    /*
+     * 无锁追加：先尝试CAS占用尾部批次的slot，失败则创建新批次并CAS链接到队尾，全程不持有分片锁
+     */
+    private RecordAppendResult appendLockFree(StreamPartition tp, long timestamp, List<PutRecordsRequestEntry> records,
+        long newRequestSize, AsyncHandler<PutRecordsResult> callback, RecordFuture recordFuture, boolean recordAppend,
+        long deadlineMs, boolean abortOnNewBatch)
+        throws InterruptedException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Cannot send after the producer is closed.");
+        }
+
+        bufferLimiter.acquireBytes(newRequestSize, deadlineMs);
+        boolean appended = false;
+        try
+        {
+            ConcurrentBatchQueue queue = (ConcurrentBatchQueue)getOrCreateQueue(tp);
+            RecordAppendResult appendResult =
+                queue.tryAppend(timestamp, records, callback, recordFuture, recordAppend, newRequestSize);
+            if (appendResult != null)
+            {
+                appended = true;
+                return appendResult;
+            }
+            if (abortOnNewBatch)
+            {
+                return new RecordAppendResult(null, false, false, true);
+            }
+
+            bufferLimiter.acquireBatch(deadlineMs);
+
+            int batchCount = batchCountOf(tp);
+            int capacity = Math.max(batchCount, records.size());
+            ProducerBatch batch = new ProducerBatch(tp, batchSizeOf(tp), batchCount, capacity, bufferPool);
+            int offset = batch.tryAppend(timestamp, records, callback, recordFuture, newRequestSize);
+
+            incomplete.add(batch);
+            queue.link(batch);
+            appended = true;
+            return appendResult(batch, offset, records.size(), recordAppend, queue.size() > 1 || batch.isFull(), true);
+        }
+        finally
+        {
+            if (!appended)
+            {
+                bufferLimiter.release(newRequestSize, 0);
+            }
+        }
+    }
 
     /*
      *  Try to append to a ProducerBatch.
      *  If it is full, we return null and a new batch is created. We also close the batch for record appends
      */
-    private RecordAppendResult tryAppend(long timestamp, PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback, Deque<ProducerBatch> deque) {
+    private RecordAppendResult tryAppend(long timestamp, List<PutRecordsRequestEntry> records, long requestSize,
+        AsyncHandler<PutRecordsResult> callback, RecordFuture recordFuture, boolean recordAppend,
+        Deque<ProducerBatch> deque) {
         ProducerBatch last = deque.peekLast();
         if (last != null) {
-            FutureRecordsMetadata future = last.tryAppend(timestamp, putRecordsRequest, callback);
-            if (future == null)
+            int offset = last.tryAppend(timestamp, records, callback, recordFuture, requestSize);
+            if (offset < 0)
                 last.closeForRecordAppends();
             else
-                return new RecordAppendResult(future, deque.size() > 1 || last.isFull(), false);
+                return appendResult(last, offset, records.size(), recordAppend, deque.size() > 1 || last.isFull(), false);
 
         }
         return null;
     }
 
+    /*
+     * 单条记录的结果通过recordFuture返回或者不返回，不创建FutureRecordsMetadata，追加结果使用共享的实例
+     */
+    static RecordAppendResult appendResult(ProducerBatch batch, int offset, int length, boolean recordAppend,
+        boolean batchIsFull, boolean newBatchCreated) {
+        if (recordAppend) {
+            return RecordAppendResult.RECORD_APPENDED[(batchIsFull ? 2 : 0) + (newBatchCreated ? 1 : 0)];
+        }
+        return new RecordAppendResult(batch.futureOf(offset, length), batchIsFull, newBatchCreated);
+    }
+
     /*
      * Re-enqueue the given record batch in the accumulator to retry
      */
     public void reenqueue(ProducerBatch batch, long now) {
         batch.reenqueued(now);
-        Deque<ProducerBatch> deque = getOrCreateDeque(batch.getTp());
-        synchronized (deque) {
-            deque.addFirst(batch);
-        }
+        // 加锁模式下队首批次也可能是追加的目标，放回前先关闭追加
+        batch.closeForRecordAppends();
+        getOrCreateQueue(batch.getTp()).addFirst(batch);
+    }
+
+    /**
+     * 批次中有记录需要重试，退避后优先于同一分片的其他批次发送
+     *
+     * @param batch 需要重试的批次
+     * @param now 当前时间
+     * @param backoffMs 退避时间，期间同一分片不再发送
+     */
+    public void reenqueue(ProducerBatch batch, long now, long backoffMs) {
+        batch.retryAfter(now + backoffMs);
+        reenqueue(batch, now);
     }
 
     /*
      * Check whether there are any batches which haven't been drained
      */
     public boolean hasUndrained() {
-        for (Map.Entry<StreamPartition, Deque<ProducerBatch>> entry : this.batches.entrySet()) {
-            Deque<ProducerBatch> deque = entry.getValue();
-            synchronized (deque) {
-                if (!deque.isEmpty())
-                    return true;
-            }
+        return hasUndrained(0, 1);
+    }
+
+    /*
+     * Check whether there are any batches of the given sender shard which haven't been drained
+     */
+    public boolean hasUndrained(int shard, int shardCount) {
+        for (Map.Entry<StreamPartition, BatchQueue> entry : this.batches.entrySet()) {
+            if (shardOf(entry.getKey(), shardCount) == shard && !entry.getValue().isEmpty())
+                return true;
         }
         return false;
     }
+
+    /**
+     * 分片所属的Sender，同一分片始终由同一个Sender发送，保证分片内的发送顺序
+     *
+     * @param tp 流分区
+     * @param shardCount Sender数量
+     * @return Sender编号，范围[0, shardCount)
+     */
+    public static int shardOf(StreamPartition tp, int shardCount) {
+        if (shardCount <= 1) {
+            return 0;
+        }
+        int h = tp.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shardCount;
+    }
     
     public void setOnSendingPartitionFuture(StreamPartition sp, Future<PutRecordsResult> future){
         this.onSendingPartitions.put(sp, future);
     }
     
-    public List<ProducerBatch> drain(long now, CopyOnWriteArrayList<StreamPartition> onSendingStreamPartitions) {
+    public List<ProducerBatch> drain(final long now, CopyOnWriteArrayList<StreamPartition> onSendingStreamPartitions) {
+        return drain(now, onSendingStreamPartitions, 0, 1);
+    }
+
+    /**
+     * 取出指定Sender负责的分片中已就绪的批次
+     *
+     * @param now 当前时间
+     * @param onSendingStreamPartitions 正在发送中的分片
+     * @param shard Sender编号
+     * @param shardCount Sender数量
+     * @return 待发送的批次
+     */
+    public List<ProducerBatch> drain(final long now, final CopyOnWriteArrayList<StreamPartition> onSendingStreamPartitions,
+        int shard, int shardCount) {
+        return drain(now, shard, shardCount, new Predicate<ProducerBatch>()
+        {
+            @Override
+            public boolean test(ProducerBatch first)
+            {
+                return !onSendingStreamPartitions.contains(first.getTp());
+            }
+        });
+    }
+
+    /**
+     * 取出指定Sender负责的分片中已就绪的批次，分片保序时每个分片可以有多个批次在途
+     *
+     * @param now 当前时间
+     * @param inFlightBatches Sender在途的批次
+     * @param shard Sender编号
+     * @param shardCount Sender数量
+     * @return 待发送的批次
+     */
+    List<ProducerBatch> drain(final long now, final InFlightBatches inFlightBatches, int shard, int shardCount) {
+        return drain(now, shard, shardCount, new Predicate<ProducerBatch>()
+        {
+            @Override
+            public boolean test(ProducerBatch first)
+            {
+                return inFlightBatches.canSend(first);
+            }
+        });
+    }
+
+    /*
+     * sendable只在分片保序时生效，判断分片的队首批次当前是否允许发送；
+     * 限速时透支的分片即使批次已就绪也先不取出
+     */
+    private List<ProducerBatch> drain(final long now, int shard, int shardCount, final Predicate<ProducerBatch> sendable) {
 
         List<ProducerBatch> drainBatches = new ArrayList<>();
         
+        Predicate<ProducerBatch> ready = new Predicate<ProducerBatch>()
+        {
+            @Override
+            public boolean test(ProducerBatch first)
+            {
+                //如果需要分片保序，且分片在途的批次已达上限，待发送完成后再取
+                if (orderByPartition && !sendable.test(first))
+                {
+                    return false;
+                }
+
+                // 重试的批次在退避结束后立即就绪，不再等待linger
+                if (first.isRetry())
+                {
+                    return !first.inRetryBackoff(now) && canSend(first.getTp(), now);
+                }
+
+                // flush或关闭期间忽略linger，所有批次立即就绪
+                if (!flushInProgress() && !closed && first.waitedTimeMs(now) < lingerMs(first.getTp()) && !first.isFull())
+                {
+                    return false;
+                }
+
+                if (first.isEmpty())
+                {
+                    first.reenqueued(now);
+                    return false;
+                }
+                return canSend(first.getTp(), now);
+            }
+        };
+        
 //        Iterator<Map.Entry<StreamPartition, Future<PutRecordsResult>>> itor = onSendingPartitions.entrySet().iterator();
 //        while(itor.hasNext()){
 //            Map.Entry<StreamPartition, Future<PutRecordsResult>> entry = itor.next();
@@ -248,69 +724,108 @@ public final class RecordAccumulator {
 //            }
 //        }
         
-        for(Map.Entry<StreamPartition, Deque<ProducerBatch>> entry : batches.entrySet()){
+        for(Map.Entry<StreamPartition, BatchQueue> entry : batches.entrySet()){
             StreamPartition sp = entry.getKey();
-            Deque<ProducerBatch> deque = entry.getValue();
-            
-            if(orderByPartition){//如果需要分片保序，且分片正在发送中，待发送完完成后再取
-                if(onSendingStreamPartitions.contains(sp)){
-                    continue;
-                }
+            BatchQueue queue = entry.getValue();
+            if (shardOf(sp, shardCount) != shard) {
+                continue;
             }
+            if (batchSizer != null) {
+                batchSizer.sample(sp, now);
+            }
+            
             //如果当前分片还有没发送完成的，待发送完成后再取
 //            if(onSendingPartitions.containsKey(sp)){
 //                continue;
 //            }
 //            
-            synchronized (deque)
+            ProducerBatch batch = queue.pollFirstIf(ready);
+            if (batch == null)
             {
-                ProducerBatch first = deque.peekFirst();
+                continue;
+            }
+            drainBatches.add(batch);
+            batch.drained(now, drainSequence.getAndIncrement());
 
-                if (first == null)
-                {
-                    continue;
-                }
+            log.debug(
+                "Drain batch({} records) success, currentBufferCount is {}, currentBufferSize is {}, queueSize {}.",
+                batch.getRelativeOffset(),
+                bufferLimiter.usedBatches(),
+                bufferLimiter.usedBytes(),
+                queue.size());
+        }
+        
+        return drainBatches;        
+    }
 
-                if (first.waitedTimeMs(now) < retryBackoffMs && !first.isFull())
-                {
-                    continue;
-                }
+    /**
+     * 分片当前生效的linger
+     *
+     * @param tp 流分区
+     * @return 批次创建后最多等待的时间(ms)
+     */
+    public long lingerMs(StreamPartition tp) {
+        return batchSizer == null ? retryBackoffMs : batchSizer.lingerMs(tp);
+    }
 
-                if (first.isEmpty())
-                {
-                    first.reenqueued(now);
-                    continue;
-                }
+    /*
+     * 所有分片中最小的linger，Sender空闲时按此等待
+     */
+    long minLingerMs() {
+        return batchSizer == null ? retryBackoffMs : batchSizer.minLingerMs();
+    }
+
+    /*
+     * 所有分片队列中的批次数，包括正在追加的批次
+     */
+    int queuedBatches() {
+        int count = 0;
+        for (BatchQueue queue : batches.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    ProducerMetrics metrics() {
+        return metrics;
+    }
 
-                ProducerBatch batch = deque.pollFirst();
-                drainBatches.add(batch);
-                batch.drained(now);
+    private long batchSizeOf(StreamPartition tp) {
+        long batchSize = batchSizer == null ? maxBatchSize : batchSizer.batchSize(tp);
+        return rateLimiter == null ? batchSize : rateLimiter.maxBatchSize(tp, batchSize);
+    }
 
-                log.debug(
-                    "Drain batch({} records) success, currentBufferCount is {}, currentBufferSize is {}, queueSize {}.",
-                    batch.getRelativeOffset(),
-                    bufferCount.get(),
-                    bufferSize.get(),
-                    deque.size());
-            }
+    private int batchCountOf(StreamPartition tp) {
+        int batchCount = batchSizer == null ? maxBatchCount : batchSizer.batchCount(tp);
+        return rateLimiter == null ? batchCount : rateLimiter.maxBatchCount(tp, batchCount);
+    }
+
+    private boolean canSend(StreamPartition tp, long now) {
+        return rateLimiter == null || rateLimiter.canSend(tp, now);
+    }
+
+    /*
+     * 上传请求完成后由Sender调用，用于自适应批量
+     */
+    void recordSendLatency(StreamPartition tp, long latencyMs) {
+        if (batchSizer != null) {
+            batchSizer.recordLatency(tp, latencyMs, System.currentTimeMillis());
         }
-        
-        return drainBatches;        
     }
 
-    private Deque<ProducerBatch> getDeque(StreamPartition tp) {
+    private BatchQueue getQueue(StreamPartition tp) {
         return batches.get(tp);
     }
 
     /*
-     * Get the deque for the given topic-partition, creating it if necessary.
+     * Get the queue for the given topic-partition, creating it if necessary.
      */
-    private Deque<ProducerBatch> getOrCreateDeque(StreamPartition tp) {
-        Deque<ProducerBatch> d = this.batches.get(tp);
+    private BatchQueue getOrCreateQueue(StreamPartition tp) {
+        BatchQueue d = this.batches.get(tp);
         if (d != null)
             return d;
-        d = new ArrayDeque<>();
-        Deque<ProducerBatch> previous = this.batches.putIfAbsent(tp, d);
+        d = lockFree ? new ConcurrentBatchQueue(tp) : new LockingBatchQueue();
+        BatchQueue previous = this.batches.putIfAbsent(tp, d);
         if (previous == null)
             return d;
         else
@@ -326,9 +841,20 @@ public final class RecordAccumulator {
         return flushesInProgress.get() > 0;
     }
 
+    /**
+     * @return 记录数据使用的内存池，未开启时为null
+     */
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
     /* Visible for testing */
     public Map<StreamPartition, Deque<ProducerBatch>> batches() {
-        return Collections.unmodifiableMap(batches);
+        Map<StreamPartition, Deque<ProducerBatch>> snapshot = new HashMap<>();
+        for (Map.Entry<StreamPartition, BatchQueue> entry : batches.entrySet()) {
+            snapshot.put(entry.getKey(), new ArrayDeque<>(entry.getValue().snapshot()));
+        }
+        return Collections.unmodifiableMap(snapshot);
     }
 
     /*
@@ -338,11 +864,62 @@ public final class RecordAccumulator {
         this.flushesInProgress.getAndIncrement();
     }
 
+    /**
+     * 等待调用时刻所有未完成的批次完成，必须在{@link #beginFlush()}之后调用。
+     * 每次调用只等待各自调用时刻的批次，之后追加的记录不会延长等待；多个线程同时flush时互不影响。
+     *
+     * @param timeoutMs 最长等待时间，{@link Long#MAX_VALUE}表示一直等待
+     * @return {@code true} 所有批次已完成 {@code false} 等待超时
+     * @throws InterruptedException 等待时被中断
+     */
+    public boolean awaitFlushCompletion(long timeoutMs) throws InterruptedException {
+        try {
+            List<ProducerBatch> pending = new ArrayList<>(incomplete);
+            long start = System.currentTimeMillis();
+            for (ProducerBatch batch : pending) {
+                if (timeoutMs == Long.MAX_VALUE) {
+                    batch.produceFuture.await();
+                } else {
+                    long remaining = timeoutMs - (System.currentTimeMillis() - start);
+                    if (remaining <= 0 || !batch.produceFuture.await(remaining, TimeUnit.MILLISECONDS)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            this.flushesInProgress.decrementAndGet();
+        }
+    }
+
     /*
-     * Are there any threads currently appending messages?
+     * Number of batches which have been created but not yet completed
      */
-    private boolean appendsInProgress() {
-        return appendsInProgress.get() > 0;
+    int incompleteBatches() {
+        return incomplete.size();
+    }
+
+    private void signalAppendsDone() {
+        appendsLock.lock();
+        try {
+            appendsDone.signalAll();
+        } finally {
+            appendsLock.unlock();
+        }
+    }
+
+    /*
+     * 等待关闭前进入append的线程全部退出；因缓冲区满阻塞的写线程已被close()唤醒并失败
+     */
+    private void awaitAppendsDone() {
+        appendsLock.lock();
+        try {
+            while (appendsInProgress.get() > 0) {
+                appendsDone.awaitUninterruptibly();
+            }
+        } finally {
+            appendsLock.unlock();
+        }
     }
 
     /*
@@ -350,33 +927,175 @@ public final class RecordAccumulator {
      */
     public void close() {
         this.closed = true;
+        // 唤醒因缓冲区满阻塞的写线程，它们看到关闭后失败退出
+        bufferLimiter.close();
     }
 
-    public void batchIsDone(ProducerBatch batch)
-    {
-        Deque<ProducerBatch> dq = getDeque(batch.getTp());
-        if (dq != null)
+    /**
+     * 关闭超时后放弃所有未完成的批次(包括在途的)，以exception完成其中的记录，之后收到的响应被忽略。
+     * 应在{@link #close()}且Sender停止后调用。
+     *
+     * @param exception 记录失败的异常
+     * @return 放弃的批次，其中的记录数即丢失的记录数
+     */
+    public List<ProducerBatch> abortIncompleteBatches(RuntimeException exception) {
+        List<ProducerBatch> aborted = new ArrayList<>();
+        // 等待正在追加的线程退出，避免遗漏追加中创建的批次；此后追加的线程都会看到closed标志，不会再有新批次
+        awaitAppendsDone();
+        abortBatches(exception, aborted);
+        return aborted;
+    }
+
+    private void abortBatches(RuntimeException exception, List<ProducerBatch> aborted) {
+        Predicate<ProducerBatch> any = new Predicate<ProducerBatch>()
         {
-            synchronized (dq)
+            @Override
+            public boolean test(ProducerBatch first)
             {
-                bufferCount.decrementAndGet();
-                bufferSize.addAndGet(-batch.getTotolByteSize());
-                dq.notify();
+                return true;
+            }
+        };
+        // 先从队列中取出，之后不会再被发送
+        for (BatchQueue queue : batches.values()) {
+            while (queue.pollFirstIf(any) != null) {
+            }
+        }
+        for (ProducerBatch batch : new ArrayList<>(incomplete)) {
+            batch.closeAndAwaitAppends();
+            if (batch.abort(exception)) {
+                metrics.recordsAborted.add(batch.getRelativeOffset());
+                aborted.add(batch);
+                batchIsDone(batch);
             }
         }
     }
+
+    public void batchIsDone(ProducerBatch batch)
+    {
+        incomplete.remove(batch);
+        bufferLimiter.release(batch.getTotolByteSize(), 1);
+    }
+    /**
+     * RecordAccumulator的构造参数，批量与缓冲大小必填，其余组件按需设置
+     */
+    public static final class Settings
+    {
+        private final long maxBatchSize;
+
+        private final int maxBatchCount;
+
+        private final long maxBufferSize;
+
+        private final int maxBufferCount;
+
+        private final long retryBackoffMs;
+
+        private boolean orderByPartition;
+
+        private boolean lockFree;
+
+        private BufferPool bufferPool;
+
+        private AdaptiveBatchSizer batchSizer;
+
+        private ProducerMetrics metrics;
+
+        private RecordSizeEstimator sizeEstimator = RecordSizeEstimator.PAYLOAD;
+
+        private PartitionRateLimiter rateLimiter;
+
+        /**
+         * @param maxBatchSize 最大批量大小
+         * @param maxBatchCount 最大批量计数
+         * @param maxBufferSize 最大缓冲大小
+         * @param maxBufferCount 最大缓冲计数
+         * @param retryBackoffMs 一个上传单元，缓冲的最长时间，到时间后，即使大小很小，也要上传远端
+         */
+        public Settings(long maxBatchSize, int maxBatchCount, long maxBufferSize, int maxBufferCount,
+            long retryBackoffMs)
+        {
+            this.maxBatchSize = maxBatchSize;
+            this.maxBatchCount = maxBatchCount;
+            this.maxBufferSize = maxBufferSize;
+            this.maxBufferCount = maxBufferCount;
+            this.retryBackoffMs = retryBackoffMs;
+        }
+
+        /** 按分区保序，同一分区同时只有一个批次在发送 */
+        public Settings orderByPartition(boolean orderByPartition)
+        {
+            this.orderByPartition = orderByPartition;
+            return this;
+        }
+
+        /** 使用无锁追加路径 */
+        public Settings lockFree(boolean lockFree)
+        {
+            this.lockFree = lockFree;
+            return this;
+        }
+
+        /** 批次缓冲区复用池，为null时每个批次单独分配 */
+        public Settings bufferPool(BufferPool bufferPool)
+        {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
+        /** 自适应批量大小，为null时使用固定的批量大小 */
+        public Settings batchSizer(AdaptiveBatchSizer batchSizer)
+        {
+            this.batchSizer = batchSizer;
+            return this;
+        }
+
+        /** 生产者指标，为null时创建独立的指标 */
+        public Settings metrics(ProducerMetrics metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /** 记录大小估算方式 */
+        public Settings sizeEstimator(RecordSizeEstimator sizeEstimator)
+        {
+            this.sizeEstimator = sizeEstimator;
+            return this;
+        }
+
+        /** 分区限流，为null时不限流 */
+        public Settings rateLimiter(PartitionRateLimiter rateLimiter)
+        {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+    }
+
     /*
      * Metadata about a record just appended to the record accumulator
      */
     public final static class RecordAppendResult {
+        /* 单条记录追加的结果，下标为(batchIsFull ? 2 : 0) + (newBatchCreated ? 1 : 0) */
+        static final RecordAppendResult[] RECORD_APPENDED = {new RecordAppendResult(null, false, false),
+            new RecordAppendResult(null, false, true), new RecordAppendResult(null, true, false),
+            new RecordAppendResult(null, true, true)};
+
+        /* 单条记录追加时为null，结果通过RecordFuture返回 */
         public final FutureRecordsMetadata future;
         public final boolean batchIsFull;
         public final boolean newBatchCreated;
+        public final boolean abortForNewBatch;
 
         public RecordAppendResult(FutureRecordsMetadata future, boolean batchIsFull, boolean newBatchCreated) {
+            this(future, batchIsFull, newBatchCreated, false);
+        }
+
+        public RecordAppendResult(FutureRecordsMetadata future, boolean batchIsFull, boolean newBatchCreated,
+            boolean abortForNewBatch) {
             this.future = future;
             this.batchIsFull = batchIsFull;
             this.newBatchCreated = newBatchCreated;
+            this.abortForNewBatch = abortForNewBatch;
         }
     }
 
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 单条记录的发送结果，批次完成时按记录在批次中的下标直接完成，不创建{@link FutureRecordsMetadata}与子结果。
+ * <p>
+ * 记录发送失败(重试后仍有错误码)时以带错误码的结果正常完成，与{@code putRecordAsync}一致；整个请求失败时异常完成。
+ * 依赖此future的同步回调(thenApply、whenComplete等)在Sender线程中执行，耗时的处理请使用*Async方法指定线程池。
+ * 取消只影响future本身，记录仍会被发送。
+ */
+public final class RecordFuture extends CompletableFuture<PutRecordsResultEntry>
+{
+    private int offset;
+
+    /*
+     * 追加成功后由ProducerBatch设置，批次完成前不再变化
+     */
+    void bind(int offset)
+    {
+        this.offset = offset;
+    }
+
+    void done(PutRecordsResult batchResult, RuntimeException exception)
+    {
+        if (exception == null)
+        {
+            complete(batchResult.getRecords().get(offset));
+        }
+        else
+        {
+            completeExceptionally(exception);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 序列化单条记录的输出流，数据直接写入内存池分配的buffer，写完后由{@link #toBuffer()}交给批次，不再复制。
+ * <p>
+ * 空间不足时从内存池重新分配两倍大小的buffer并复制已写入的内容，因此初始容量应尽量接近记录的实际大小。
+ * 未开启内存池时使用堆内buffer。非线程安全，每条记录使用一个实例。
+ */
+public final class RecordOutputStream extends OutputStream
+{
+    private final BufferPool bufferPool;
+    
+    private ByteBuffer buffer;
+    
+    /**
+     * @param bufferPool 分配buffer的内存池，为null时使用堆内buffer
+     * @param initialCapacity 初始容量
+     */
+    public RecordOutputStream(BufferPool bufferPool, int initialCapacity)
+    {
+        this.bufferPool = bufferPool;
+        this.buffer = allocate(Math.max(1, initialCapacity));
+    }
+    
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        ensureRemaining(1);
+        buffer.put((byte)b);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (off < 0 || len < 0 || len > b.length - off)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+    
+    /**
+     * 写入src中position到limit之间的内容，写入后src的position移动到limit
+     *
+     * @param src 数据
+     * @throws IOException 流已关闭
+     */
+    public void write(ByteBuffer src)
+        throws IOException
+    {
+        ensureRemaining(src.remaining());
+        buffer.put(src);
+    }
+    
+    /**
+     * @return 已写入的字节数
+     */
+    public int size()
+    {
+        return buffer == null ? 0 : buffer.position();
+    }
+    
+    /**
+     * 结束写入，返回position为0、limit为已写入字节数的buffer。buffer的所有权随之转移，之后本流不再可用。
+     *
+     * @return 记录数据
+     */
+    public ByteBuffer toBuffer()
+    {
+        ByteBuffer result = checkOpen();
+        buffer = null;
+        result.flip();
+        return result;
+    }
+    
+    /**
+     * 未调用{@link #toBuffer()}时将buffer归还到内存池，如序列化失败
+     */
+    @Override
+    public void close()
+    {
+        if (buffer != null)
+        {
+            release(buffer);
+            buffer = null;
+        }
+    }
+    
+    private void ensureRemaining(int len)
+        throws IOException
+    {
+        ByteBuffer current = buffer;
+        if (current == null)
+        {
+            throw new IOException("RecordOutputStream is closed.");
+        }
+        if (current.capacity() - current.position() >= len)
+        {
+            // 内存池按2的幂分配，limit之后的空间同样可用
+            current.limit(current.capacity());
+            return;
+        }
+        long required = (long)current.position() + len;
+        if (required > Integer.MAX_VALUE)
+        {
+            throw new IOException("Record size exceeds " + Integer.MAX_VALUE + " bytes.");
+        }
+        int capacity = (int)Math.max(required, Math.min(Integer.MAX_VALUE, 2L * current.capacity()));
+        ByteBuffer grown = allocate(capacity);
+        current.flip();
+        grown.limit(grown.capacity());
+        grown.put(current);
+        release(current);
+        buffer = grown;
+    }
+    
+    private ByteBuffer checkOpen()
+    {
+        if (buffer == null)
+        {
+            throw new IllegalStateException("RecordOutputStream is closed.");
+        }
+        return buffer;
+    }
+    
+    private ByteBuffer allocate(int capacity)
+    {
+        if (bufferPool == null)
+        {
+            return ByteBuffer.allocate(capacity);
+        }
+        return bufferPool.allocate(capacity);
+    }
+    
+    private void release(ByteBuffer buffer)
+    {
+        if (bufferPool != null)
+        {
+            bufferPool.deallocate(buffer);
+        }
+    }
+}
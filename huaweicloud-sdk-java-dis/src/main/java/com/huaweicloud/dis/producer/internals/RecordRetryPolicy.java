@@ -0,0 +1,117 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import com.huaweicloud.dis.exception.DISClientRetriableException;
+
+/**
+ * 生产者侧的记录重试策略：失败记录由Sender按分片退避后放回RecordAccumulator重发，不占用客户端线程；
+ * 记录从进入缓冲起超过{@code deliveryTimeoutMs}仍未成功，则以最后一次的错误结束
+ */
+public final class RecordRetryPolicy
+{
+    private final long deliveryTimeoutMs;
+
+    private final long retryBackoffMs;
+
+    private final long maxBackoffMs;
+
+    private final String[] retriableErrorCodes;
+
+    /**
+     * @param deliveryTimeoutMs 记录从追加到最终完成(成功或失败)的最长时间
+     * @param retryBackoffMs 第一次重试前的退避时间，之后每次翻倍
+     * @param maxBackoffMs 单次退避的最长时间
+     * @param retriableErrorCodes 可重试的记录错误码(包含匹配)
+     */
+    public RecordRetryPolicy(long deliveryTimeoutMs, long retryBackoffMs, long maxBackoffMs,
+        String[] retriableErrorCodes)
+    {
+        if (deliveryTimeoutMs <= 0)
+        {
+            throw new IllegalArgumentException("deliveryTimeoutMs must be positive.");
+        }
+        this.deliveryTimeoutMs = deliveryTimeoutMs;
+        this.retryBackoffMs = Math.max(1, retryBackoffMs);
+        this.maxBackoffMs = Math.max(this.retryBackoffMs, maxBackoffMs);
+        this.retriableErrorCodes = retriableErrorCodes == null ? new String[0] : retriableErrorCodes;
+    }
+
+    /**
+     * @param errorCode 记录的错误码
+     * @return {@code true} 流控、服务端内部错误等可重试的错误码
+     */
+    public boolean isRetriable(String errorCode)
+    {
+        for (String item : retriableErrorCodes)
+        {
+            if (errorCode.contains(item))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param exception 整个请求失败的异常
+     * @return {@code true} 客户端判定为可重试的异常(网络异常、服务端5xx、流控等)
+     */
+    public boolean isRetriable(Throwable exception)
+    {
+        for (Throwable t = exception; t != null; t = t.getCause())
+        {
+            if (t instanceof DISClientRetriableException)
+            {
+                return true;
+            }
+            if (t.getCause() == t)
+            {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param attempts 已经重试的次数
+     * @return 下一次重试前的退避时间
+     */
+    public long backoffMs(int attempts)
+    {
+        int shift = Math.min(attempts, 20);
+        return Math.min(maxBackoffMs, retryBackoffMs << shift);
+    }
+
+    /**
+     * 退避后重发是否仍在投递超时之前
+     *
+     * @param batch 待重试的批次
+     * @param now 当前时间
+     * @param backoffMs 本次退避时间
+     * @return {@code true} 可以重试 {@code false} 已超时，以最后一次的结果结束
+     */
+    public boolean canRetry(ProducerBatch batch, long now, long backoffMs)
+    {
+        return now + backoffMs < batch.createdMs() + deliveryTimeoutMs;
+    }
+
+    public long deliveryTimeoutMs()
+    {
+        return deliveryTimeoutMs;
+    }
+}
@@ -16,21 +16,24 @@
 
 package com.huaweicloud.dis.producer.internals;
 
+import com.huaweicloud.dis.Constants;
 import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.StreamPartition;
 import com.huaweicloud.dis.core.handler.AsyncHandler;
 import com.huaweicloud.dis.core.util.StringUtils;
 import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.exception.DISTrafficControlException;
 import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
 import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
-import com.huaweicloud.dis.util.Utils;
+import com.huaweicloud.dis.producer.ProducerErrorListener;
+import com.huaweicloud.dis.util.PutRecordsSplitter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
@@ -69,24 +72,53 @@ public class Sender extends Thread
 
     private AtomicLong inFlightRequestCount = new AtomicLong(0);
 
-    private boolean exitRunLoop = false;
+    private volatile boolean exitRunLoop = false;
 
-    public static AtomicLong totalSendCount = new AtomicLong();
-    public static AtomicLong totalSendSuccessCount = new AtomicLong();
-    public static AtomicLong totalSendFailedCount = new AtomicLong();
+    /* 当前Sender的编号及Sender总数，只发送RecordAccumulator.shardOf等于shardId的分片 */
+    private final int shardId;
 
-    public static AtomicLong totalSendTimes = new AtomicLong();
-    public static AtomicLong totalSendSuccessTimes = new AtomicLong();
-    public static AtomicLong totalSendFailedTimes = new AtomicLong();
+    private final int shardCount;
 
-    public static AtomicLong totalQueryTimes = new AtomicLong();
+    /* 聚合记录的最大字节数，0表示不聚合 */
+    private final int aggregationMaxSize;
+
+    private final ProducerMetrics metrics;
+    
+    /* 生产者侧的记录重试策略，为null表示由客户端重试，Sender不重试 */
+    private final RecordRetryPolicy retryPolicy;
+    
+    /* 已取出但尚未完成的批次，限制每个分片的在途批次数；分片保序时每个分片按顺序逐个发送 */
+    private final InFlightBatches inFlightBatches;
+    
+    /* 分片限速，为null时不限速 */
+    private final PartitionRateLimiter rateLimiter;
+    
+    /* 批次最终失败时的通知，为null时只记录日志与指标 */
+    private volatile ProducerErrorListener errorListener;
     
     public Sender(DISAsync client, RecordAccumulator accumulator, long retryBackoffMs)
     {
-        this.setName("Sender Thread");
+        this(client, accumulator, new Settings(retryBackoffMs));
+    }
+
+    /**
+     * @param client 异步客户端
+     * @param accumulator 记录缓冲
+     * @param settings 分片、聚合、重试及限速等配置
+     */
+    public Sender(DISAsync client, RecordAccumulator accumulator, Settings settings)
+    {
+        this.shardId = settings.shardId;
+        this.shardCount = settings.shardCount;
+        this.setName(shardCount > 1 ? "Sender Thread-" + shardId : "Sender Thread");
         this.client = client;
         this.accumulator = accumulator;
-        this.retryBackoffMs = retryBackoffMs;
+        this.retryBackoffMs = settings.retryBackoffMs;
+        this.aggregationMaxSize = settings.aggregationMaxSize;
+        this.retryPolicy = settings.retryPolicy;
+        this.inFlightBatches = new InFlightBatches(settings.maxInFlightPerPartition, settings.orderByPartition);
+        this.rateLimiter = settings.rateLimiter;
+        this.metrics = accumulator.metrics();
         this.running = true;
     }
     
@@ -102,7 +134,6 @@ public class Sender extends Thread
         {
             try
             {
-                totalQueryTimes.incrementAndGet();
                 run(System.currentTimeMillis());
             }
             catch (Exception e)
@@ -111,31 +142,24 @@ public class Sender extends Thread
             }
         }
 
-        exitRunLoop = true;
         log.debug("Beginning shutdown of DIS producer I/O thread, sending remaining records.");
         
         // okay we stopped accepting requests but there may still be
         // requests in the accumulator or waiting for acknowledgment,
-        // wait until these are completed.
-        // while (!forceClose && (this.accumulator.hasUndrained() || this.client.inFlightRequestCount() > 0)) {
-        // try {
-        // run(time.milliseconds());
-        // } catch (Exception e) {
-        // log.error("Uncaught error in kafka producer I/O thread: ", e);
-        // }
-        // }
-        // if (forceClose) {
-        // // We need to fail all the incomplete batches and wake up the threads waiting on
-        // // the futures.
-        // this.accumulator.abortIncompleteBatches();
-        // }
-        // try {
-        // this.client.close();
-        // } catch (Exception e) {
-        // log.error("Failed to close network client", e);
-        // }
-        //
-        // log.debug("Shutdown of Kafka producer I/O thread has completed.");
+        // wait until these are completed. The accumulator is closed, so all batches are ready regardless of linger.
+        while (!forceClose && (this.accumulator.hasUndrained(shardId, shardCount) || this.inFlightRequestCount.get() > 0))
+        {
+            try
+            {
+                run(System.currentTimeMillis());
+            }
+            catch (Exception e)
+            {
+                log.error("Uncaught error in DIS producer I/O thread: ", e);
+            }
+        }
+        exitRunLoop = true;
+        log.debug("Shutdown of DIS producer I/O thread has completed.");
     }
     
     /**
@@ -149,9 +173,11 @@ public class Sender extends Thread
         
         if (!hasData)
         {
-            if (retryBackoffMs > 0)
+            // 自适应批量时各分片的linger可能小于配置值
+            long backoffMs = Math.min(retryBackoffMs, accumulator.minLingerMs());
+            if (backoffMs > 0)
             {
-                long remainWait = retryBackoffMs - (System.currentTimeMillis() - now);
+                long remainWait = backoffMs - (System.currentTimeMillis() - now);
                 if (remainWait > 0)
                 {
                     LockSupport.parkNanos(remainWait * 1000000L);
@@ -164,107 +190,330 @@ public class Sender extends Thread
         }
     }
     
-    private CopyOnWriteArrayList<StreamPartition> onSendingStreamPartitions = new CopyOnWriteArrayList<StreamPartition>();
-    
     private boolean sendProducerData(long now)
     {
         // create produce requests
-        List<ProducerBatch> batches = this.accumulator.drain(now, onSendingStreamPartitions);
+        List<ProducerBatch> batches = this.accumulator.drain(now, inFlightBatches, shardId, shardCount);
 
-        if (batches.isEmpty())
-        {
-            log.trace("no data to send.");
-            return false;
-        }
+        boolean serialSends = inFlightBatches.isSerialSends();
         for (ProducerBatch batch : batches)
         {
             log.trace("begin to process batch {}, count {}, size {}B", batch.getTp(), batch.getRelativeOffset(), batch.getTotolByteSize());
 
             StreamPartition tp = batch.getTp();
+            if (batch.isAppendAbandoned())
+            {
+                // 有写线程占用slot后追加失败，批次中留有空slot，整体失败而不是发送不完整的请求
+                DISClientException exception =
+                    new DISClientException("Batch of " + tp + " is incomplete because an append failed.");
+                log.error("Batch {} is incomplete, fail its {} records.", tp, batch.getRelativeOffset());
+                metrics.recordsFailed.add(batch.getRelativeOffset());
+                notifyError(tp, batch.getRelativeOffset(), null, exception);
+                if (batch.done(null, exception))
+                {
+                    batchIsDone(batch);
+                }
+                continue;
+            }
+            inFlightRequestCount.incrementAndGet();
+            inFlightBatches.add(batch);
+            if (!serialSends)
+            {
+                send(batch, now);
+            }
+        }
+        boolean sent = false;
+        if (serialSends)
+        {
+            // 每个分片只取出一个批次，发送尚未发出且不在退避期内的批次(包括退避结束的重试批次)
+            List<ProducerBatch> ready = inFlightBatches.ready(now);
+            for (ProducerBatch batch : ready)
+            {
+                send(batch, now);
+            }
+            sent = !ready.isEmpty();
+        }
+        if (batches.isEmpty() && !sent)
+        {
+            log.trace("no data to send.");
+            return false;
+        }
+        return true;
+    }
 
-            PutRecordsRequest putRecordsParam = new PutRecordsRequest();
-            putRecordsParam.setStreamName(tp.topic());
-            putRecordsParam.setRecords(batch.getBatchPutRecordsRequestEntrys());
+    private void send(final ProducerBatch batch, long now)
+    {
+        final StreamPartition tp = batch.getTp();
+        final List<PutRecordsRequestEntry> entries = batch.entriesToSend();
 
-            totalSendTimes.incrementAndGet();
-            totalSendCount.addAndGet(batch.getRelativeOffset());
-            inFlightRequestCount.incrementAndGet();
-            
-            onSendingStreamPartitions.add(tp);
-            Future<PutRecordsResult> resultFuture = client.putRecordsAsync(putRecordsParam, new AsyncHandler<PutRecordsResult>()
+        final AggregatedBatch aggregated = aggregationMaxSize > 0
+            ? AggregatedBatch.aggregate(tp, entries, aggregationMaxSize) : null;
+
+        PutRecordsRequest putRecordsParam = new PutRecordsRequest();
+        putRecordsParam.setStreamName(tp.topic());
+        putRecordsParam.setRecords(aggregated == null ? entries : aggregated.getRecords());
+        if (rateLimiter != null)
+        {
+            // 服务端按聚合后的记录计算流量
+            long bytes = 0;
+            for (PutRecordsRequestEntry entry : putRecordsParam.getRecords())
             {
-                long start = System.currentTimeMillis();
+                bytes += entry.getData().remaining();
+            }
+            rateLimiter.record(tp, putRecordsParam.getRecords().size(), bytes, now);
+        }
 
-                @Override
-                public void onSuccess(PutRecordsResult result)
+        metrics.requestsSent.increment();
+        if (batch.isRetry())
+        {
+            metrics.recordsRetried.add(entries.size());
+        }
+        else
+        {
+            metrics.recordsSent.add(batch.getRelativeOffset());
+            metrics.batchRecords.record(batch.getRelativeOffset());
+            metrics.batchSize.record(batch.getTotolByteSize());
+        }
+        // 请求体超过服务端上限时拆分发送，结果按原始顺序合并后再回调
+        PutRecordsSplitter.putRecordsAsync(client, putRecordsParam, new AsyncHandler<PutRecordsResult>()
+        {
+            long start = System.currentTimeMillis();
+
+            @Override
+            public void onSuccess(PutRecordsResult sentResult)
+            {
+                PutRecordsResult result = aggregated == null ? sentResult : aggregated.expand(sentResult);
+                long latencyMs = System.currentTimeMillis() - start;
+                recordThrottling(tp, sentResult);
+                accumulator.recordSendLatency(tp, latencyMs);
+                metrics.requestLatency.record(latencyMs);
+                metrics.requestsSucceeded.increment();
+                metrics.recordsSucceeded.add(result.getRecords().size() - result.getFailedRecordCount().get());
+                if (retryPolicy != null && (result.getFailedRecordCount().get() > 0 || batch.isRetry()))
                 {
-                    totalSendSuccessTimes.incrementAndGet();
-                    totalSendSuccessCount.addAndGet(result.getRecords().size() - result.getFailedRecordCount().get());
-                    totalSendFailedCount.addAndGet(result.getFailedRecordCount().get());
-                    if (result.getFailedRecordCount().get() > 0)
+                    if (retryOrComplete(batch, result, start))
                     {
-                        String errorMsg = null;
-                        for (int i = 0; i < result.getRecords().size(); i++)
-                        {
-                            PutRecordsResultEntry putRecordsRequestEntry = result.getRecords().get(i);
-                            if (!StringUtils.isNullOrEmpty(putRecordsRequestEntry.getErrorCode()))
-                            {
-                                errorMsg = putRecordsRequestEntry.getErrorCode() + " : " + putRecordsRequestEntry.getErrorMessage();
-                                break;
-                            }
-                        }
-                        log.error("Batch {} send partial successfully, cost {}ms, count {}, size {}B, failed count {}, failed info {}",
-                                tp.toString(),
-                                (System.currentTimeMillis() - start),
-                                batch.getRelativeOffset(),
-                                batch.getTotolByteSize(),
-                                result.getFailedRecordCount().get(),
-                                errorMsg);
+                        return;
                     }
-                    else
+                    // 按原始顺序汇总各次发送的结果，未成功的记录保留最后一次的错误码
+                    result = batch.mergedResult();
+                }
+                metrics.recordsFailed.add(result.getFailedRecordCount().get());
+                if (result.getFailedRecordCount().get() > 0)
+                {
+                    String errorMsg = null;
+                    PutRecordsResultEntry sample = null;
+                    for (int i = 0; i < result.getRecords().size(); i++)
                     {
-                        log.debug("Batch {} send successfully, cost {}ms, count {}, size {}B",
-                                tp.toString(),
-                                (System.currentTimeMillis() - start),
-                                batch.getRelativeOffset(),
-                                batch.getTotolByteSize());
+                        PutRecordsResultEntry putRecordsRequestEntry = result.getRecords().get(i);
+                        if (!StringUtils.isNullOrEmpty(putRecordsRequestEntry.getErrorCode()))
+                        {
+                            errorMsg = putRecordsRequestEntry.getErrorCode() + " : " + putRecordsRequestEntry.getErrorMessage();
+                            sample = putRecordsRequestEntry;
+                            break;
+                        }
                     }
-                    batch.done(result, null);
-                    batchIsDone(batch);
-                    inFlightRequestCount.decrementAndGet();
-                    onSendingStreamPartitions.remove(tp);
+                    log.error("Batch {} send partial successfully, cost {}ms, count {}, size {}B, failed count {}, failed info {}",
+                            tp.toString(),
+                            (System.currentTimeMillis() - start),
+                            batch.getRelativeOffset(),
+                            batch.getTotolByteSize(),
+                            result.getFailedRecordCount().get(),
+                            errorMsg);
+                    notifyError(tp, result.getFailedRecordCount().get(), sample, null);
                 }
-
-                @Override
-                public void onError(Exception exception)
+                else
                 {
-                    totalSendFailedTimes.incrementAndGet();
-                    totalSendFailedCount.addAndGet(putRecordsParam.getRecords().size());
-                    log.error("Batch {} send failed, cost {}ms, count {}, size {}B, error info {}",
+                    log.debug("Batch {} send successfully, cost {}ms, count {}, size {}B",
                             tp.toString(),
                             (System.currentTimeMillis() - start),
                             batch.getRelativeOffset(),
-                            batch.getTotolByteSize(),
-                            exception.getMessage(), exception);
-                    if (exception instanceof DISClientException)
-                    {
-                        batch.done(null, (DISClientException) exception);
-                    }
-                    else
-                    {
-                        batch.done(null, new DISClientException(exception));
-                    }
+                            batch.getTotolByteSize());
+                }
+                if (batch.done(result, null))
+                {
                     batchIsDone(batch);
-                    inFlightRequestCount.decrementAndGet();
-                    onSendingStreamPartitions.remove(tp);
                 }
-            });
+                inFlightRequestCount.decrementAndGet();
+                partitionSendCompleted(batch);
+            }
 
-            //accumulator.setOnSendingPartitionFuture(tp, resultFuture);
+            @Override
+            public void onError(Exception exception)
+            {
+                long latencyMs = System.currentTimeMillis() - start;
+                accumulator.recordSendLatency(tp, latencyMs);
+                metrics.requestLatency.record(latencyMs);
+                metrics.requestsFailed.increment();
+                if (rateLimiter != null && isTrafficControlled(exception))
+                {
+                    rateLimiter.onThrottled(tp, System.currentTimeMillis());
+                }
+                if (retryPolicy != null && retryAfterError(batch, exception, start))
+                {
+                    return;
+                }
+                metrics.recordsFailed.add(entries.size());
+                log.error("Batch {} send failed, cost {}ms, count {}, size {}B, error info {}",
+                        tp.toString(),
+                        (System.currentTimeMillis() - start),
+                        entries.size(),
+                        batch.getTotolByteSize(),
+                        exception.getMessage(), exception);
+                PutRecordsResult merged = batch.mergedResult();
+                boolean completed;
+                DISClientException clientException = exception instanceof DISClientException
+                    ? (DISClientException) exception : new DISClientException(exception);
+                if (merged != null)
+                {
+                    // 之前的重试中已有记录成功，未成功的记录保留最后一次的错误码
+                    notifyError(tp, merged.getFailedRecordCount().get(), null, clientException);
+                    completed = batch.done(merged, null);
+                }
+                else
+                {
+                    notifyError(tp, entries.size(), null, clientException);
+                    completed = batch.done(null, clientException);
+                }
+                if (completed)
+                {
+                    batchIsDone(batch);
+                }
+                inFlightRequestCount.decrementAndGet();
+                partitionSendCompleted(batch);
+            }
+        });
+    }
+    
+    /**
+     * @param errorListener 批次最终失败时的通知，为null时只记录日志与指标
+     */
+    public void setErrorListener(ProducerErrorListener errorListener)
+    {
+        this.errorListener = errorListener;
+    }
+    
+    private void notifyError(StreamPartition tp, int failedRecords, PutRecordsResultEntry sample,
+        DISClientException exception)
+    {
+        ProducerErrorListener listener = errorListener;
+        if (listener == null)
+        {
+            return;
+        }
+        try
+        {
+            listener.onError(tp.topic(), failedRecords, sample, exception);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("ProducerErrorListener failed for stream {}: {}", tp.topic(), e.getMessage(), e);
+        }
+    }
+    
+    /*
+     * 统计被流控的记录，并据此调整分片的发送速率
+     */
+    private void recordThrottling(StreamPartition tp, PutRecordsResult sentResult)
+    {
+        int throttled = 0;
+        for (PutRecordsResultEntry entry : sentResult.getRecords())
+        {
+            if (Constants.ERROR_CODE_TRAFFIC_CONTROL_LIMIT.equals(entry.getErrorCode()))
+            {
+                throttled++;
+            }
         }
+        metrics.recordsThrottled.add(throttled);
+        if (rateLimiter == null)
+        {
+            return;
+        }
+        if (throttled > 0)
+        {
+            rateLimiter.onThrottled(tp, System.currentTimeMillis());
+        }
+        else if (sentResult.getFailedRecordCount().get() == 0)
+        {
+            rateLimiter.onAccepted(tp);
+        }
+    }
+
+    private static boolean isTrafficControlled(Throwable exception)
+    {
+        for (Throwable t = exception; t != null; t = t.getCause())
+        {
+            if (t instanceof DISTrafficControlException)
+            {
+                return true;
+            }
+            if (t.getCause() == t)
+            {
+                break;
+            }
+        }
+        return false;
+    }
+    
+    /*
+     * 部分记录失败：合并本次结果，可重试的失败记录在投递超时前退避后重发
+     *
+     * @return true 批次已放回队列等待重试，false 批次需要以当前结果结束
+     */
+    private boolean retryOrComplete(ProducerBatch batch, PutRecordsResult result, long start)
+    {
+        long now = System.currentTimeMillis();
+        int retryCount = batch.mergeResult(result, retryPolicy);
+        long backoffMs = retryPolicy.backoffMs(batch.attempts());
+        if (retryCount == 0 || !retryPolicy.canRetry(batch, now, backoffMs))
+        {
+            return false;
+        }
+        log.warn("Batch {} send partial successfully, cost {}ms, {} of {} records will be retried after {}ms, attempts {}",
+            batch.getTp(), now - start, retryCount, result.getRecords().size(), backoffMs, batch.attempts());
+        retry(batch, now, backoffMs);
+        return true;
+    }
 
+    /*
+     * 整个请求失败：可重试的异常在投递超时前退避后重发本次的全部记录
+     */
+    private boolean retryAfterError(ProducerBatch batch, Exception exception, long start)
+    {
+        long now = System.currentTimeMillis();
+        long backoffMs = retryPolicy.backoffMs(batch.attempts());
+        if (!retryPolicy.isRetriable(exception) || !retryPolicy.canRetry(batch, now, backoffMs))
+        {
+            return false;
+        }
+        log.warn("Batch {} send failed, cost {}ms, will be retried after {}ms, attempts {}, error info {}",
+            batch.getTp(), now - start, backoffMs, batch.attempts(), exception.getMessage());
+        retry(batch, now, backoffMs);
         return true;
     }
+
+    private void retry(ProducerBatch batch, long now, long backoffMs)
+    {
+        if (inFlightBatches.isSerialSends())
+        {
+            // 留在分片的在途批次中，退避后重发，后续批次在它完成后才会取出
+            batch.retryAfter(now + backoffMs);
+            inFlightBatches.retry(batch);
+            wakeup();
+            return;
+        }
+        accumulator.reenqueue(batch, now, backoffMs);
+        inFlightRequestCount.decrementAndGet();
+        partitionSendCompleted(batch);
+    }
+    
+    /**
+     * @return 已发出但尚未完成的上传请求数
+     */
+    public long inFlightRequests()
+    {
+        return inFlightRequestCount.get();
+    }
     
     /**
      * Wake up the selector associated with this send thread
@@ -276,56 +525,159 @@ public class Sender extends Thread
 //        this.notify();
     }
 
-    public void close(long timeout)
+    /**
+     * 停止接收新的发送周期，Sender线程发送完剩余批次并等待在途请求完成后退出，不阻塞调用者
+     */
+    public void initiateClose()
     {
         this.running = false;
-
-        long start = System.currentTimeMillis();
-        // waiting for Thread.run finish.
-        while (!this.exitRunLoop && (System.currentTimeMillis() - start) < timeout)
-        {
-            Utils.sleep(5);
-        }
-
-        int loop = 0;
-        while (loop < 3 && (System.currentTimeMillis() - start) < timeout)
+        this.wakeup();
+    }
+    
+    /**
+     * 放弃剩余批次的发送，Sender线程尽快退出；未完成的批次由{@link RecordAccumulator#abortIncompleteBatches()}处理
+     */
+    public void forceClose()
+    {
+        this.forceClose = true;
+        initiateClose();
+    }
+    
+    /**
+     * 等待Sender线程退出
+     *
+     * @param timeout 最长等待时间(ms)
+     * @return {@code true} 已退出 {@code false} 超时
+     */
+    public boolean awaitClose(long timeout)
+    {
+        long deadline = System.currentTimeMillis() + Math.min(timeout, Long.MAX_VALUE - System.currentTimeMillis());
+        while (!this.exitRunLoop)
         {
-            if (this.accumulator.hasUndrained() || this.inFlightRequestCount.get() > 0)
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
             {
-                // there are still sending records.
-                loop = 0;
-                try
-                {
-                    run(System.currentTimeMillis());
-                }
-                catch (Exception e)
-                {
-                    log.error("Uncaught error in DIS producer I/O thread: ", e);
-                }
+                return false;
             }
-            else
+            try
+            {
+                this.join(remaining);
+            }
+            catch (InterruptedException e)
             {
-                loop++;
-                Utils.sleep(5);
+                Thread.currentThread().interrupt();
+                return this.exitRunLoop;
+            }
+            if (!this.isAlive())
+            {
+                break;
             }
         }
-
-        if (this.accumulator.hasUndrained() || this.inFlightRequestCount.get() > 0)
+        return true;
+    }
+    
+    public void close(long timeout)
+    {
+        initiateClose();
+        if (!awaitClose(timeout))
         {
             log.warn("The timeout period {}ms has been reached, but there are still records that have not been processed successfully.", timeout);
         }
     }
 
-    //flush需要堵塞，把当前缓冲的数据发送到DIS服务端,多个线程分别调用flush的情况 TODO
+    /**
+     * 唤醒Sender立即发送；flush期间RecordAccumulator忽略linger，等待由{@link RecordAccumulator#awaitFlushCompletion(long)}完成
+     */
     public void flush()
     {
         this.wakeup();
-        // TODO Auto-generated method stub
+    }
         
+    private void partitionSendCompleted(ProducerBatch batch)
+    {
+        inFlightBatches.remove(batch);
+        // 分片保序时同一分片的下一个批次要等在途批次完成，完成后唤醒Sender继续发送；未到linger的批次仍会等待
+        wakeup();
     }
     
     public void batchIsDone(ProducerBatch batch)
     {
         accumulator.batchIsDone(batch);
     }
+
+    /**
+     * Sender的构造参数，批量发送延迟必填，其余按需设置
+     */
+    public static final class Settings
+    {
+        private final long retryBackoffMs;
+
+        private int shardId = 0;
+
+        private int shardCount = 1;
+
+        private int aggregationMaxSize = 0;
+
+        private RecordRetryPolicy retryPolicy;
+
+        private int maxInFlightPerPartition = 1;
+
+        private boolean orderByPartition;
+
+        private PartitionRateLimiter rateLimiter;
+
+        /**
+         * @param retryBackoffMs 批量发送延迟时间
+         */
+        public Settings(long retryBackoffMs)
+        {
+            this.retryBackoffMs = retryBackoffMs;
+        }
+
+        /**
+         * @param shardId 当前Sender的编号
+         * @param shardCount Sender总数
+         */
+        public Settings shard(int shardId, int shardCount)
+        {
+            this.shardId = shardId;
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /** 聚合记录的最大字节数，0表示不聚合 */
+        public Settings aggregationMaxSize(int aggregationMaxSize)
+        {
+            this.aggregationMaxSize = aggregationMaxSize;
+            return this;
+        }
+
+        /** 记录重试策略，为null表示不在Sender中重试 */
+        public Settings retryPolicy(RecordRetryPolicy retryPolicy)
+        {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /** 按分片分组批量时每个分片最多同时发送的批次数；分片保序时固定为1 */
+        public Settings maxInFlightPerPartition(int maxInFlightPerPartition)
+        {
+            this.maxInFlightPerPartition = maxInFlightPerPartition;
+            return this;
+        }
+
+        /** 分片保序：每个分片同时只取出并发送一个批次，重试的批次完成后才发送后续批次 */
+        public Settings orderByPartition(boolean orderByPartition)
+        {
+            this.orderByPartition = orderByPartition;
+            return this;
+        }
+
+        /** 分片限速，为null时不限速；多个Sender可以共用 */
+        public Settings rateLimiter(PartitionRateLimiter rateLimiter)
+        {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+    }
 }
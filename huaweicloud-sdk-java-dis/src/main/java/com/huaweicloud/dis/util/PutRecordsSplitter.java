@@ -0,0 +1,283 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.Constants;
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.exception.DISRequestEntityTooLargeException;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 上传请求体超过服务端上限(HTTP 413, {@link DISRequestEntityTooLargeException})时，将请求对半拆分后依次发送，
+ * 仍然超限的部分继续拆分，各部分的结果按原始顺序合并。
+ * <p>
+ * 拆分后单条记录仍超限时，该记录以{@link Constants#ERROR_CODE_RECORD_TOO_LARGE}失败，其他记录不受影响；
+ * 请求本身只有一条记录时仍抛出原异常。各部分依次发送，同一分片的记录保持顺序。
+ * 拆分过程中遇到其他异常时，如果已有部分发送成功，剩余记录以{@link Constants#ERROR_CODE_REQUEST_ERROR}失败，否则抛出该异常。
+ */
+public final class PutRecordsSplitter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PutRecordsSplitter.class);
+
+    private final PutRecordsRequest request;
+
+    private final PutRecordsResultEntry[] results;
+
+    /* 待发送的部分[from, to)，按原始顺序 */
+    private final Deque<int[]> pending = new ArrayDeque<>();
+
+    private int[] current;
+
+    private boolean anySent;
+
+    private PutRecordsSplitter(PutRecordsRequest request)
+    {
+        this.request = request;
+        this.results = new PutRecordsResultEntry[request.getRecords().size()];
+        split(0, results.length);
+    }
+
+    /**
+     * 同步发送，请求体超限时自动拆分
+     *
+     * @param request 上传请求
+     * @param sender 发送一个请求，超限时抛出{@link DISRequestEntityTooLargeException}
+     * @return 与request中的记录一一对应的结果
+     */
+    public static PutRecordsResult putRecords(PutRecordsRequest request,
+        Function<PutRecordsRequest, PutRecordsResult> sender)
+    {
+        try
+        {
+            return sender.apply(request);
+        }
+        catch (RuntimeException e)
+        {
+            if (!isRequestEntityTooLarge(e) || request.getRecords().size() <= 1)
+            {
+                throw e;
+            }
+            LOG.warn("Request of {} records is too large, split it. {}", request.getRecords().size(), e.getMessage());
+        }
+
+        PutRecordsSplitter splitter = new PutRecordsSplitter(request);
+        for (PutRecordsRequest part = splitter.next(); part != null; part = splitter.next())
+        {
+            try
+            {
+                splitter.onSuccess(sender.apply(part));
+            }
+            catch (RuntimeException e)
+            {
+                if (!splitter.onError(e))
+                {
+                    throw e;
+                }
+            }
+        }
+        return splitter.result();
+    }
+
+    /**
+     * 异步发送，请求体超限时自动拆分
+     *
+     * @param client 异步客户端
+     * @param request 上传请求
+     * @param handler 收到与request中的记录一一对应的结果，或无法恢复的异常
+     */
+    public static void putRecordsAsync(final DISAsync client, final PutRecordsRequest request,
+        final AsyncHandler<PutRecordsResult> handler)
+    {
+        client.putRecordsAsync(request, new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                handler.onSuccess(result);
+            }
+
+            @Override
+            public void onError(Exception exception)
+            {
+                if (!isRequestEntityTooLarge(exception) || request.getRecords().size() <= 1)
+                {
+                    handler.onError(exception);
+                    return;
+                }
+                LOG.warn("Request of {} records is too large, split it. {}", request.getRecords().size(),
+                    exception.getMessage());
+                new PutRecordsSplitter(request).sendNext(client, handler);
+            }
+        });
+    }
+
+    /**
+     * @param exception 请求异常
+     * @return 异常或其cause为{@link DISRequestEntityTooLargeException}
+     */
+    public static boolean isRequestEntityTooLarge(Throwable exception)
+    {
+        for (Throwable t = exception; t != null; t = t.getCause())
+        {
+            if (t instanceof DISRequestEntityTooLargeException)
+            {
+                return true;
+            }
+            if (t.getCause() == t)
+            {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void sendNext(final DISAsync client, final AsyncHandler<PutRecordsResult> handler)
+    {
+        PutRecordsRequest part = next();
+        if (part == null)
+        {
+            handler.onSuccess(result());
+            return;
+        }
+        client.putRecordsAsync(part, new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                PutRecordsSplitter.this.onSuccess(result);
+                sendNext(client, handler);
+            }
+
+            @Override
+            public void onError(Exception exception)
+            {
+                if (!PutRecordsSplitter.this.onError(exception))
+                {
+                    handler.onError(exception);
+                    return;
+                }
+                sendNext(client, handler);
+            }
+        });
+    }
+
+    private void split(int from, int to)
+    {
+        int middle = (from + to) >>> 1;
+        // 先发送前一半
+        pending.addFirst(new int[] {middle, to});
+        pending.addFirst(new int[] {from, middle});
+    }
+
+    /*
+     * 下一个待发送的部分，全部完成时返回null
+     */
+    private PutRecordsRequest next()
+    {
+        current = pending.pollFirst();
+        if (current == null)
+        {
+            return null;
+        }
+        PutRecordsRequest part = new PutRecordsRequest();
+        part.setStreamName(request.getStreamName());
+        part.setStreamId(request.getStreamId());
+        part.setRecords(request.getRecords().subList(current[0], current[1]));
+        return part;
+    }
+
+    private void onSuccess(PutRecordsResult result)
+    {
+        for (int i = 0; i < result.getRecords().size(); i++)
+        {
+            results[current[0] + i] = result.getRecords().get(i);
+        }
+        anySent = true;
+    }
+
+    /*
+     * 当前部分发送失败，返回false表示无法恢复，需要将异常抛给调用者
+     */
+    private boolean onError(Exception exception)
+    {
+        if (isRequestEntityTooLarge(exception))
+        {
+            if (current[1] - current[0] > 1)
+            {
+                split(current[0], current[1]);
+            }
+            else
+            {
+                LOG.error("Record {} is too large to put. {}", current[0], exception.getMessage());
+                results[current[0]] = failedEntry(Constants.ERROR_CODE_RECORD_TOO_LARGE, exception.getMessage());
+            }
+            return true;
+        }
+        if (!anySent)
+        {
+            return false;
+        }
+        // 已有部分发送成功，不能整体失败，否则调用者重发会导致重复
+        for (int index = current[0]; index < results.length; index++)
+        {
+            if (results[index] == null)
+            {
+                results[index] = failedEntry(Constants.ERROR_CODE_REQUEST_ERROR, exception.getMessage());
+            }
+        }
+        pending.clear();
+        return true;
+    }
+
+    private PutRecordsResult result()
+    {
+        int failed = 0;
+        for (PutRecordsResultEntry entry : results)
+        {
+            if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
+            {
+                failed++;
+            }
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(failed));
+        result.setRecords(Arrays.asList(results));
+        return result;
+    }
+
+    private static PutRecordsResultEntry failedEntry(String errorCode, String errorMessage)
+    {
+        PutRecordsResultEntry entry = new PutRecordsResultEntry();
+        entry.setErrorCode(errorCode);
+        entry.setErrorMessage(errorMessage);
+        return entry;
+    }
+}
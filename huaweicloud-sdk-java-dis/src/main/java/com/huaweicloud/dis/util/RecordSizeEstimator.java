@@ -0,0 +1,199 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.huaweicloud.dis.DISConfig.BodySerializeType;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntryExtendedInfo;
+
+/**
+ * 估算记录在上传请求体中占用的字节数，包括数据编码、分区键等字段及字段的编码开销，不包括请求级别的固定开销(如通道名)。
+ * <p>
+ * 数据只按ByteBuffer的position到limit计算，不访问底层数组，适用于direct与只读buffer。
+ * 开启压缩或加密时按压缩、加密前的数据估算。
+ */
+public enum RecordSizeEstimator
+{
+    /**
+     * 只计算数据字节数
+     */
+    PAYLOAD
+    {
+        @Override
+        public long estimate(PutRecordsRequestEntry entry)
+        {
+            return dataSize(entry);
+        }
+    },
+    
+    /**
+     * JSON请求体：数据为Base64编码，每个字段带有字段名、引号与分隔符
+     */
+    JSON
+    {
+        @Override
+        public long estimate(PutRecordsRequestEntry entry)
+        {
+            // {"data":""} 以及记录之间的逗号
+            long size = 12 + (dataSize(entry) + 2) / 3 * 4;
+            size += jsonField(entry.getPartitionKey(), 19);// ,"partition_key":""
+            size += jsonField(entry.getExplicitHashKey(), 23);// ,"explicit_hash_key":""
+            size += jsonField(entry.getPartitionId(), 18);// ,"partition_id":""
+            if (entry.getTimestamp() != null)
+            {
+                size += 13 + 20;// ,"timestamp":
+            }
+            PutRecordsRequestEntryExtendedInfo extendedInfo = entry.getExtendedInfo();
+            if (extendedInfo != null)
+            {
+                // ,"extended_info":{"end_flag":false,"sequence_number":}
+                size += 54 + 20;
+                size += jsonField(extendedInfo.getFileName(), 15);// ,"file_name":""
+                size += jsonField(extendedInfo.getDeliverDataId(), 21);// ,"deliver_data_id":""
+            }
+            return size;
+        }
+    },
+    
+    /**
+     * Protobuf请求体：每个字段为tag + varint长度 + 内容
+     */
+    PROTOBUF
+    {
+        @Override
+        public long estimate(PutRecordsRequestEntry entry)
+        {
+            long size = protobufField(dataSize(entry));
+            size += protobufField(entry.getPartitionKey());
+            size += protobufField(entry.getExplicitHashKey());
+            size += protobufField(entry.getPartitionId());
+            if (entry.getTimestamp() != null)
+            {
+                // timestamp的字段号为29，tag占2字节
+                size += 2 + varintSize(entry.getTimestamp());
+            }
+            PutRecordsRequestEntryExtendedInfo extendedInfo = entry.getExtendedInfo();
+            if (extendedInfo != null)
+            {
+                long extended = protobufField(extendedInfo.getFileName());
+                extended += protobufField(extendedInfo.getDeliverDataId());
+                extended += extendedInfo.getEndFlag() != null ? 2 : 0;
+                extended += extendedInfo.getSeqNum() != null ? 1 + varintSize(extendedInfo.getSeqNum()) : 0;
+                size += protobufField(extended);
+            }
+            // 外层repeated字段的tag与长度
+            return protobufField(size);
+        }
+    };
+    
+    /**
+     * 估算单条记录的字节数
+     * 
+     * @param entry 记录
+     * @return 估算的字节数
+     */
+    public abstract long estimate(PutRecordsRequestEntry entry);
+    
+    /**
+     * 估算请求中所有记录的字节数
+     * 
+     * @param putRecordsRequest 上传请求
+     * @return 估算的字节数
+     */
+    public long estimate(PutRecordsRequest putRecordsRequest)
+    {
+        List<PutRecordsRequestEntry> records = putRecordsRequest.getRecords();
+        long size = 0;
+        for (int i = 0; i < records.size(); i++)
+        {
+            size += estimate(records.get(i));
+        }
+        return size;
+    }
+    
+    /**
+     * @param bodySerializeType 请求体的序列化方式
+     * @return 对应的估算方式
+     */
+    public static RecordSizeEstimator of(BodySerializeType bodySerializeType)
+    {
+        return bodySerializeType == BodySerializeType.protobuf ? PROTOBUF : JSON;
+    }
+    
+    private static long dataSize(PutRecordsRequestEntry entry)
+    {
+        ByteBuffer data = entry.getData();
+        return data == null ? 0 : data.remaining();
+    }
+    
+    private static long jsonField(String value, int overhead)
+    {
+        return value == null ? 0 : overhead + utf8Length(value);
+    }
+    
+    private static long protobufField(String value)
+    {
+        return value == null ? 0 : protobufField(utf8Length(value));
+    }
+    
+    private static long protobufField(long length)
+    {
+        return 1 + varintSize(length) + length;
+    }
+    
+    private static int varintSize(long value)
+    {
+        int size = 1;
+        while ((value & ~0x7FL) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    /*
+     * JSON中的控制字符与引号需要转义，这里按UTF-8长度估算，分区键等字段通常不含需转义的字符
+     */
+    private static int utf8Length(String value)
+    {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else
+            {
+                // 代理对的两个char共4字节，按每个char 3字节估算略有富余
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
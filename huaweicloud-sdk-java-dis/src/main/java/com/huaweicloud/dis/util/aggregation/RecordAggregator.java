@@ -0,0 +1,186 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.aggregation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 将多条用户记录聚合成一条DIS记录，减少每条记录的分区键、protobuf编码以及服务端按条计算的配额开销。
+ * <p>
+ * 聚合格式：
+ * <pre>
+ * magic(4B) | count(varint) | [keyLength + 1(varint) | key(UTF-8) | dataLength(varint) | data] * count | crc32(4B)
+ * </pre>
+ * magic为0xD1 0x5A 0x67 0x01；varint为无符号base-128编码，低7位在前(小端序)，每个字节最高位为1表示后面还有字节；
+ * keyLength + 1为0表示没有分区键；crc32为CRC-32(与zlib相同)，大端序，覆盖magic之后、crc32之前的所有字节。
+ * 消费端使用{@link RecordDeaggregator}还原。非线程安全。
+ */
+public final class RecordAggregator
+{
+    static final byte[] MAGIC = {(byte)0xD1, (byte)0x5A, (byte)0x67, (byte)0x01};
+
+    static final int CHECKSUM_LENGTH = 4;
+
+    private final int maxSize;
+
+    private final List<byte[]> keys = new ArrayList<>();
+
+    private final List<ByteBuffer> datas = new ArrayList<>();
+
+    /* 不包括count字段的字节数 */
+    private int recordsSize;
+
+    /**
+     * @param maxSize 一条聚合记录的最大字节数
+     */
+    public RecordAggregator(int maxSize)
+    {
+        if (maxSize < 1)
+        {
+            throw new IllegalArgumentException("maxSize must be at least 1.");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 追加一条用户记录。聚合记录为空时总是追加成功，即使这条记录本身已超过maxSize
+     *
+     * @param partitionKey 分区键，可以为null
+     * @param data 记录数据，读取position到limit之间的字节，不修改其position
+     * @return {@code true} 追加成功 {@code false} 追加后超过maxSize，需要先{@link #build()}
+     */
+    public boolean add(String partitionKey, ByteBuffer data)
+    {
+        byte[] key = partitionKey == null ? null : partitionKey.getBytes(StandardCharsets.UTF_8);
+        int recordSize = recordSize(key, data.remaining());
+        if (!keys.isEmpty() && sizeWith(keys.size() + 1, recordsSize + recordSize) > maxSize)
+        {
+            return false;
+        }
+        keys.add(key);
+        datas.add(data.duplicate());
+        recordsSize += recordSize;
+        return true;
+    }
+
+    /**
+     * @return 已追加的用户记录条数
+     */
+    public int getCount()
+    {
+        return keys.size();
+    }
+
+    /**
+     * @return 当前内容生成的聚合记录字节数
+     */
+    public int getSizeBytes()
+    {
+        return sizeWith(keys.size(), recordsSize);
+    }
+
+    /**
+     * 生成聚合记录并清空已追加的用户记录
+     *
+     * @return 聚合记录，position为0
+     */
+    public ByteBuffer build()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(getSizeBytes());
+        buffer.put(MAGIC);
+        writeVarint(buffer, keys.size());
+        for (int i = 0; i < keys.size(); i++)
+        {
+            byte[] key = keys.get(i);
+            writeVarint(buffer, key == null ? 0 : key.length + 1);
+            if (key != null)
+            {
+                buffer.put(key);
+            }
+            ByteBuffer data = datas.get(i);
+            writeVarint(buffer, data.remaining());
+            buffer.put(data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), MAGIC.length, buffer.position() - MAGIC.length);
+        buffer.putInt((int)crc.getValue());
+        buffer.flip();
+
+        keys.clear();
+        datas.clear();
+        recordsSize = 0;
+        return buffer;
+    }
+
+    private static int sizeWith(int count, int recordsSize)
+    {
+        return MAGIC.length + varintSize(count) + recordsSize + CHECKSUM_LENGTH;
+    }
+
+    private static int recordSize(byte[] key, int dataLength)
+    {
+        int keyLength = key == null ? 0 : key.length;
+        return varintSize(key == null ? 0 : keyLength + 1) + keyLength + varintSize(dataLength) + dataLength;
+    }
+
+    static int varintSize(int value)
+    {
+        int size = 1;
+        while ((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarint(ByteBuffer buffer, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    /*
+     * 读取非负的varint，格式非法时返回-1
+     */
+    static int readVarint(ByteBuffer buffer)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            if (!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value < 0 ? -1 : value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.aggregation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.iface.data.response.GetRecordsResult;
+import com.huaweicloud.dis.iface.data.response.Record;
+
+/**
+ * 将{@link RecordAggregator}生成的聚合记录还原为用户记录；非聚合记录原样返回，因此可以处理聚合与非聚合混合写入的通道。
+ * 校验和不匹配或格式不完整的记录也按非聚合记录原样返回。
+ */
+public final class RecordDeaggregator
+{
+    private static final Logger LOG = LoggerFactory.getLogger(RecordDeaggregator.class);
+
+    private RecordDeaggregator()
+    {
+    }
+
+    /**
+     * 还原{@link GetRecordsResult#getRecords()}
+     *
+     * @param result getRecords的结果
+     * @return 用户记录，顺序与聚合前一致
+     */
+    public static List<Record> deaggregate(GetRecordsResult result)
+    {
+        if (result.getRecords() == null)
+        {
+            return Collections.emptyList();
+        }
+        return deaggregate(result.getRecords());
+    }
+
+    /**
+     * 还原一组记录
+     *
+     * @param records DIS记录
+     * @return 用户记录，顺序与聚合前一致
+     */
+    public static List<Record> deaggregate(List<Record> records)
+    {
+        List<Record> userRecords = new ArrayList<>(records.size());
+        for (Record record : records)
+        {
+            deaggregate(record, userRecords);
+        }
+        return userRecords;
+    }
+
+    /**
+     * 还原一条记录
+     *
+     * @param record DIS记录
+     * @return 聚合记录还原后的用户记录；非聚合记录返回只包含该记录的列表
+     */
+    public static List<Record> deaggregate(Record record)
+    {
+        List<Record> userRecords = new ArrayList<>();
+        deaggregate(record, userRecords);
+        return userRecords;
+    }
+
+    /**
+     * 只检查魔数，判断数据是否可能是聚合记录
+     *
+     * @param data 记录数据
+     * @return {@code true} 以聚合格式的魔数开头
+     */
+    public static boolean isAggregated(ByteBuffer data)
+    {
+        if (data == null || data.remaining() < RecordAggregator.MAGIC.length + 1 + RecordAggregator.CHECKSUM_LENGTH)
+        {
+            return false;
+        }
+        for (int i = 0; i < RecordAggregator.MAGIC.length; i++)
+        {
+            if (data.get(data.position() + i) != RecordAggregator.MAGIC[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void deaggregate(Record record, List<Record> userRecords)
+    {
+        ByteBuffer data = record.getData();
+        if (!isAggregated(data))
+        {
+            userRecords.add(record);
+            return;
+        }
+
+        ByteBuffer body = data.duplicate();
+        body.position(data.position() + RecordAggregator.MAGIC.length);
+        body.limit(data.limit() - RecordAggregator.CHECKSUM_LENGTH);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int)crc.getValue() != data.getInt(data.limit() - RecordAggregator.CHECKSUM_LENGTH))
+        {
+            LOG.warn("Checksum mismatch for aggregated record {}, treat it as a plain record.", record.getSequenceNumber());
+            userRecords.add(record);
+            return;
+        }
+
+        List<Record> parsed = parse(record, body);
+        if (parsed == null)
+        {
+            LOG.warn("Malformed aggregated record {}, treat it as a plain record.", record.getSequenceNumber());
+            userRecords.add(record);
+            return;
+        }
+        userRecords.addAll(parsed);
+    }
+
+    /*
+     * 解析magic与crc32之间的内容，格式非法时返回null
+     */
+    private static List<Record> parse(Record record, ByteBuffer body)
+    {
+        int count = RecordAggregator.readVarint(body);
+        if (count < 0 || count > body.remaining())
+        {
+            return null;
+        }
+        List<Record> userRecords = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            int keyLength = RecordAggregator.readVarint(body);
+            if (keyLength < 0 || keyLength - 1 > body.remaining())
+            {
+                return null;
+            }
+            String partitionKey = null;
+            if (keyLength > 0)
+            {
+                byte[] key = new byte[keyLength - 1];
+                body.get(key);
+                partitionKey = new String(key, StandardCharsets.UTF_8);
+            }
+
+            int dataLength = RecordAggregator.readVarint(body);
+            if (dataLength < 0 || dataLength > body.remaining())
+            {
+                return null;
+            }
+            ByteBuffer userData = body.duplicate();
+            userData.limit(body.position() + dataLength);
+            body.position(body.position() + dataLength);
+
+            UserRecord userRecord = new UserRecord(record, partitionKey, i);
+            userRecord.setData(userData.slice());
+            userRecords.add(userRecord);
+        }
+        return body.hasRemaining() ? null : userRecords;
+    }
+}
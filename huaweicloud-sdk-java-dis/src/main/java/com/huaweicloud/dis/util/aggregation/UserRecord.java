@@ -0,0 +1,53 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.aggregation;
+
+import com.huaweicloud.dis.iface.data.response.Record;
+
+/**
+ * 从聚合记录中还原出的用户记录。sequenceNumber、时间戳与所属的聚合记录相同，subSequenceNumber为在聚合记录中的下标
+ */
+public class UserRecord extends Record
+{
+    private long subSequenceNumber;
+
+    UserRecord(Record source, String partitionKey, long subSequenceNumber)
+    {
+        this.partitionKey = partitionKey;
+        this.sequenceNumber = source.getSequenceNumber();
+        this.approximateArrivalTimestamp = source.getApproximateArrivalTimestamp();
+        this.timestamp = source.getTimestamp();
+        this.timestampType = source.getTimestampType();
+        this.subSequenceNumber = subSequenceNumber;
+    }
+
+    /**
+     * @return 在聚合记录中的下标
+     */
+    public long getSubSequenceNumber()
+    {
+        return subSequenceNumber;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UserRecord [partitionKey=" + partitionKey + ", sequenceNumber=" + sequenceNumber
+            + ", subSequenceNumber=" + subSequenceNumber + ", approximateArrivalTimestamp="
+            + approximateArrivalTimestamp + "]";
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 累加计数器，基于{@link LongAdder}，多线程并发累加时不竞争同一缓存行
+ */
+public final class Counter implements Metric
+{
+    private final LongAdder count = new LongAdder();
+
+    public void increment()
+    {
+        count.increment();
+    }
+
+    public void add(long n)
+    {
+        count.add(n);
+    }
+
+    public long count()
+    {
+        return count.sum();
+    }
+
+    @Override
+    public void writeTo(String name, Map<String, Number> snapshot)
+    {
+        snapshot.put(name, count.sum());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 非负整数值的分布统计。
+ * <p>
+ * 采用对数-线性分桶：小于16的值每个值一个桶，之后每个2的幂区间等分为8个桶，相对误差不超过12.5%；
+ * 每个桶是一个{@link LongAdder}，记录时无锁且多线程不竞争。快照输出count、mean、max以及p50、p95、p99、p999。
+ */
+public final class Histogram implements Metric
+{
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /* 小于该值的每个值独占一个桶 */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS << 1;
+
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99, 0.999};
+
+    private static final String[] PERCENTILE_NAMES = {"p50", "p95", "p99", "p999"};
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一个值，负数按0记录
+     *
+     * @param value 值
+     */
+    public void record(long value)
+    {
+        long v = Math.max(0, value);
+        buckets[bucketOf(v)].increment();
+        count.increment();
+        sum.add(v);
+        long current;
+        while (v > (current = max.get()) && !max.compareAndSet(current, v))
+        {
+            // 只有出现新的最大值时才需要CAS
+        }
+    }
+
+    public long count()
+    {
+        return count.sum();
+    }
+
+    public long sum()
+    {
+        return sum.sum();
+    }
+
+    public long max()
+    {
+        return max.get();
+    }
+
+    /**
+     * 分位数的近似值，返回所在桶的上界(不超过max)
+     *
+     * @param percentile 分位，范围(0, 1]
+     * @return 近似值，没有记录时返回0
+     */
+    public long percentile(double percentile)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        return percentile(counts, total, percentile);
+    }
+
+    @Override
+    public void writeTo(String name, Map<String, Number> snapshot)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        snapshot.put(name + ".count", total);
+        snapshot.put(name + ".mean", total == 0 ? 0.0 : (double)sum.sum() / total);
+        snapshot.put(name + ".max", max.get());
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            snapshot.put(name + "." + PERCENTILE_NAMES[i], percentile(counts, total, PERCENTILES[i]));
+        }
+    }
+
+    private long percentile(long[] counts, long total, double percentile)
+    {
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = (long)Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucketOf(long value)
+    {
+        if (value < LINEAR_LIMIT)
+        {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int)(value >>> (exponent - SUB_BUCKET_BITS));
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    static long upperBoundOf(int bucket)
+    {
+        if (bucket < LINEAR_LIMIT)
+        {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long mantissa = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long upper = ((mantissa + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
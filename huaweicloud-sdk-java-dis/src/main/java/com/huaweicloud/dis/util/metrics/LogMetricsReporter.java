@@ -0,0 +1,48 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.huaweicloud.dis.DISConfig;
+
+/**
+ * 将指标输出到日志(INFO级别)
+ */
+public class LogMetricsReporter implements MetricsReporter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(LogMetricsReporter.class);
+
+    @Override
+    public void configure(DISConfig config)
+    {
+    }
+
+    @Override
+    public void report(Map<String, Number> metrics)
+    {
+        LOG.info("DIS producer metrics: {}", metrics);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.Map;
+
+/**
+ * 注册到{@link MetricsRegistry}中的指标
+ */
+interface Metric
+{
+    /**
+     * 将当前值写入快照
+     *
+     * @param name 注册的指标名
+     * @param snapshot 快照，一个指标可以写入多个值(如直方图的分位数)
+     */
+    void writeTo(String name, Map<String, Number> snapshot);
+}
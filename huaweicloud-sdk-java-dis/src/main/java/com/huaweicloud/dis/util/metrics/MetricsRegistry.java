@@ -0,0 +1,105 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 一组指标的注册表，每个DISProducer实例一个。记录通过注册时返回的{@link Counter}、{@link Histogram}进行，
+ * 读取通过{@link #snapshot()}拉取，或由{@link MetricsReporter}定时导出
+ */
+public final class MetricsRegistry
+{
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * 获取或创建计数器
+     *
+     * @param name 指标名
+     * @return 计数器
+     */
+    public Counter counter(String name)
+    {
+        return register(name, new Counter(), Counter.class);
+    }
+
+    /**
+     * 获取或创建直方图
+     *
+     * @param name 指标名
+     * @return 直方图
+     */
+    public Histogram histogram(String name)
+    {
+        return register(name, new Histogram(), Histogram.class);
+    }
+
+    /**
+     * 注册瞬时值指标，同名指标已存在时替换
+     *
+     * @param name 指标名
+     * @param gauge 读取快照时调用
+     */
+    public void gauge(String name, final Gauge gauge)
+    {
+        metrics.put(name, new Metric()
+        {
+            @Override
+            public void writeTo(String metricName, Map<String, Number> snapshot)
+            {
+                Number value = gauge.value();
+                if (value != null)
+                {
+                    snapshot.put(metricName, value);
+                }
+            }
+        });
+    }
+
+    /**
+     * 所有指标的当前值，直方图展开为{@code <name>.count}、{@code <name>.p99}等多个值
+     *
+     * @return 按指标名排序的快照
+     */
+    public Map<String, Number> snapshot()
+    {
+        Map<String, Number> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet())
+        {
+            entry.getValue().writeTo(entry.getKey(), snapshot);
+        }
+        return snapshot;
+    }
+
+    private <T extends Metric> T register(String name, T metric, Class<T> type)
+    {
+        Metric previous = metrics.putIfAbsent(name, metric);
+        if (previous == null)
+        {
+            return metric;
+        }
+        if (!type.isInstance(previous))
+        {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as "
+                + previous.getClass().getSimpleName() + ".");
+        }
+        return type.cast(previous);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.Map;
+
+import com.huaweicloud.dis.DISConfig;
+
+/**
+ * 指标导出接口。实现类需要有无参构造函数，通过配置项metrics.reporters指定，按metrics.report.interval.ms定时调用
+ */
+public interface MetricsReporter
+{
+    /**
+     * 创建后调用一次
+     *
+     * @param config 生产者的配置
+     */
+    void configure(DISConfig config);
+
+    /**
+     * 导出一次指标，在指标上报线程中调用
+     *
+     * @param metrics 指标快照，按指标名排序
+     */
+    void report(Map<String, Number> metrics);
+
+    /**
+     * 生产者关闭时调用，之前会先导出最后一次指标
+     */
+    void close();
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.data.request.CommitCheckpointRequest;
+import com.huaweicloud.dis.util.CheckpointTypeEnum;
+
+public class CheckpointCommitterTest
+{
+    private static final String STREAM = "stream";
+    
+    @Test
+    public void testCommitsOnlyNewestSequenceNumberPerPartition()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(2, 2);
+        CheckpointCommitter committer = new CheckpointCommitter(fake.proxy(), "app", 0, 0, 4);
+        StreamPartition p0 = new StreamPartition(STREAM, "0");
+        StreamPartition p1 = new StreamPartition(STREAM, "1");
+        for (int i = 0; i < 100; i++)
+        {
+            committer.update(p0, String.valueOf(i));
+        }
+        committer.update(p1, "9", 10);
+        committer.commitSync(5000);
+        
+        List<CommitCheckpointRequest> commits = fake.commits();
+        assertEquals(2, commits.size());
+        assertEquals("99", fake.committed("0"));
+        assertEquals("9", fake.committed("1"));
+        assertEquals("app", commits.get(0).getAppName());
+        assertEquals(CheckpointTypeEnum.LAST_READ.name(), commits.get(0).getCheckpointType());
+        assertEquals(STREAM, commits.get(0).getStreamName());
+        
+        // 没有新的序列号时不再提交
+        committer.commitSync(5000);
+        assertEquals(2, fake.commits().size());
+        committer.close(5000);
+    }
+    
+    @Test
+    public void testCommitsOnRecordCountWithBoundedInFlight()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(10, 30);
+        // 间隔足够长，只由记录数触发
+        CheckpointCommitter committer = new CheckpointCommitter(fake.proxy(), "app", 60000, 100, 2);
+        for (int p = 0; p < 10; p++)
+        {
+            committer.update(new StreamPartition(STREAM, String.valueOf(p)), "9", 10);
+        }
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fake.commits().size() < 10 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(10, fake.commits().size());
+        assertEquals(2, fake.maxCommitsInFlight());
+        committer.close(5000);
+        assertEquals(10, fake.commits().size());
+    }
+    
+    @Test
+    public void testFailedCommitIsRetriedOnNextInterval()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        CheckpointCommitter committer = new CheckpointCommitter(fake.proxy(), "app", 20, 0, 4);
+        fake.failNextCommits(1);
+        committer.update(new StreamPartition(STREAM, "0"), "5");
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fake.committed("0") == null && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("5", fake.committed("0"));
+        committer.close(5000);
+    }
+    
+    @Test
+    public void testCloseCommitsPendingCheckpoints()
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        CheckpointCommitter committer = new CheckpointCommitter(fake.proxy(), "app", 60000, 0, 4);
+        committer.update(new StreamPartition(STREAM, "0"), "7");
+        assertTrue(fake.commits().isEmpty());
+        committer.close(5000);
+        assertEquals(Collections.singletonList("7"), sequenceNumbers(fake.commits()));
+    }
+    
+    @Test
+    public void testTimedOutCommitSyncLeavesNoPendingCommit()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(2, 300);
+        CheckpointCommitter committer = new CheckpointCommitter(fake.proxy(), "app", 60000, 1, 4);
+        StreamPartition p0 = new StreamPartition(STREAM, "0");
+        StreamPartition p1 = new StreamPartition(STREAM, "1");
+        // p1的异步提交进行中
+        committer.update(p1, "3");
+        Thread.sleep(50);
+        committer.update(p0, "5", 0);
+        try
+        {
+            committer.commitSync(Arrays.asList(p0, p1), 50);
+            fail("commitSync should time out while p1 is in flight");
+        }
+        catch (DISClientException e)
+        {
+            // expected
+        }
+        
+        // 超时的commitSync没有为p0留下未发出的提交，之后可以正常提交
+        committer.commitSync(Collections.singletonList(p0), 5000);
+        assertEquals("5", fake.committed("0"));
+        committer.close(5000);
+        assertEquals("3", fake.committed("1"));
+    }
+    
+    private static List<String> sequenceNumbers(List<CommitCheckpointRequest> commits)
+    {
+        List<String> sequenceNumbers = new ArrayList<>();
+        for (CommitCheckpointRequest commit : commits)
+        {
+            sequenceNumbers.add(commit.getSequenceNumber());
+        }
+        return sequenceNumbers;
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.exception.DISSequenceNumberOutOfRangeException;
+import com.huaweicloud.dis.iface.data.request.GetPartitionCursorRequest;
+import com.huaweicloud.dis.iface.data.response.Record;
+import com.huaweicloud.dis.util.PartitionCursorTypeEnum;
+
+public class DISConsumerTest
+{
+    private static final String STREAM = "stream";
+    
+    @Test
+    public void testPollReturnsRecordsOfEachPartitionInOrder()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(3, 2);
+        List<StreamPartition> partitions = new ArrayList<>();
+        for (int p = 0; p < 3; p++)
+        {
+            partitions.add(new StreamPartition(STREAM, String.valueOf(p)));
+            for (int i = 0; i < 100; i++)
+            {
+                fake.append(p, p + "-" + i);
+            }
+        }
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.setConsumerFetchLimit(30);
+        config.setConsumerMaxPollRecords(50);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        consumer.assign(partitions);
+        
+        List<List<String>> received = new ArrayList<>();
+        for (int p = 0; p < 3; p++)
+        {
+            received.add(new ArrayList<String>());
+        }
+        int total = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (total < 300 && System.currentTimeMillis() < deadline)
+        {
+            ConsumerRecords records = consumer.poll(100);
+            assertTrue(records.count() <= 50);
+            for (StreamPartition partition : records.partitions())
+            {
+                for (Record record : records.records(partition))
+                {
+                    received.get(Integer.parseInt(partition.partition())).add(valueOf(record));
+                    total++;
+                }
+            }
+        }
+        consumer.close();
+        
+        for (int p = 0; p < 3; p++)
+        {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+            {
+                expected.add(p + "-" + i);
+            }
+            assertEquals(expected, received.get(p));
+        }
+    }
+    
+    @Test
+    public void testPrefetchIsBoundedAndContinuesWhileProcessing()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        for (int i = 0; i < 1000; i++)
+        {
+            fake.append(0, String.valueOf(i));
+        }
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.setConsumerFetchLimit(40);
+        config.setConsumerPrefetchRecords(100);
+        config.setConsumerMaxPollRecords(50);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        
+        // 不调用poll时预取到缓冲满为止: 40 + 40 + 20
+        Thread.sleep(300);
+        assertEquals(3, fake.recordRequests());
+        
+        ConsumerRecords records = consumer.poll(1000);
+        assertEquals(50, records.count());
+        // 处理这批数据期间，腾出的空间已在后台补齐
+        Thread.sleep(300);
+        assertEquals(5, fake.recordRequests());
+        records = consumer.poll(0);
+        assertEquals(50, records.count());
+        assertEquals("50", records.records(new StreamPartition(STREAM, "0")).get(0).getSequenceNumber());
+        consumer.close();
+    }
+    
+    @Test
+    public void testIdlePartitionBacksOff()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        DISConfig config = newConfig(PartitionCursorTypeEnum.LATEST);
+        config.setConsumerFetchMaxBackoffMs(320);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        
+        // 退避10、20、40、80、160、320、320ms...，1秒内约8个请求，固定10ms退避时约80个
+        Thread.sleep(1000);
+        assertTrue(String.valueOf(fake.recordRequests()), fake.recordRequests() <= 12);
+        
+        // 有新数据后立即恢复
+        fake.append(0, "a", "b");
+        assertEquals(Arrays.asList("a", "b"), pollValues(consumer, 2));
+        consumer.close();
+    }
+    
+    @Test
+    public void testLatestSkipsExistingRecords()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.append(0, "old");
+        DISConsumer consumer = new DISConsumer(newConfig(PartitionCursorTypeEnum.LATEST), fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        
+        assertTrue(consumer.poll(200).isEmpty());
+        fake.append(0, "new");
+        assertEquals(Collections.singletonList("new"), pollValues(consumer, 1));
+        consumer.close();
+    }
+    
+    @Test
+    public void testPollWithMaxTimeoutWaitsForRecords()
+        throws Exception
+    {
+        final FakeDISStream fake = new FakeDISStream(1, 2);
+        DISConsumer consumer = new DISConsumer(newConfig(PartitionCursorTypeEnum.LATEST), fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        assertTrue(consumer.poll(200).isEmpty());
+        try
+        {
+            consumer.poll(-1);
+            fail("negative timeout should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                fake.append(0, "new");
+            }
+        };
+        producer.start();
+        // 截止时间不会溢出，一直等待到有数据
+        ConsumerRecords records = consumer.poll(Long.MAX_VALUE);
+        producer.join();
+        assertEquals(1, records.count());
+        consumer.close();
+    }
+    
+    @Test
+    public void testSeekRestartsFromSequenceNumber()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.append(0, "a", "b", "c", "d");
+        DISConsumer consumer = new DISConsumer(newConfig(PartitionCursorTypeEnum.TRIM_HORIZON), fake.proxy());
+        StreamPartition partition = new StreamPartition(STREAM, "0");
+        consumer.assign(Collections.singletonList(partition));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), pollValues(consumer, 4));
+        
+        consumer.seek(partition, "1");
+        assertEquals(Arrays.asList("b", "c", "d"), pollValues(consumer, 3));
+        consumer.close();
+    }
+    
+    @Test
+    public void testRetriableErrorsAreRetriedAndOthersThrownOnce()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.append(0, "a", "b");
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.setConsumerCursorResetPolicy(null);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        StreamPartition partition = new StreamPartition(STREAM, "0");
+        fake.failNextRecordRequests(2);
+        consumer.assign(Collections.singletonList(partition));
+        assertEquals(Arrays.asList("a", "b"), pollValues(consumer, 2));
+        
+        // 还没有取回的序列号2已老化，不自动重新开始
+        fake.trim(0, 3);
+        fake.append(0, "c", "d");
+        try
+        {
+            pollValues(consumer, 1);
+            fail("expected DISSequenceNumberOutOfRangeException");
+        }
+        catch (DISSequenceNumberOutOfRangeException e)
+        {
+            assertEquals(Long.valueOf(2), e.getInvalidSequenceNumber());
+        }
+        // 失败的分片不再获取，直到重新seek
+        assertTrue(consumer.poll(200).isEmpty());
+        consumer.seek(partition, "3");
+        assertEquals(Collections.singletonList("d"), pollValues(consumer, 1));
+        consumer.close();
+    }
+    
+    @Test
+    public void testExpiredCursorResumesAfterLastRecord()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.append(0, "a", "b");
+        DISConsumer consumer = new DISConsumer(newConfig(PartitionCursorTypeEnum.TRIM_HORIZON), fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        assertEquals(Arrays.asList("a", "b"), pollValues(consumer, 2));
+        
+        fake.expireNextCursors(1);
+        fake.append(0, "c");
+        assertEquals(Collections.singletonList("c"), pollValues(consumer, 1));
+        assertTrue(consumer.poll(100).isEmpty());
+        assertEquals(1, fake.expiredCursors());
+        List<GetPartitionCursorRequest> requests = fake.cursorRequests();
+        GetPartitionCursorRequest last = requests.get(requests.size() - 1);
+        assertEquals(PartitionCursorTypeEnum.AFTER_SEQUENCE_NUMBER.name(), last.getCursorType());
+        assertEquals("1", last.getStartingSequenceNumber());
+        consumer.close();
+    }
+    
+    @Test
+    public void testOutOfRangeRestartsByResetPolicy()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.append(0, "a", "b", "c", "d", "e");
+        fake.trim(0, 3);
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.setConsumerCursorResetPolicy(PartitionCursorTypeEnum.LATEST);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        StreamPartition partition = new StreamPartition(STREAM, "0");
+        consumer.assign(Collections.singletonList(partition));
+        assertEquals(Arrays.asList("d", "e"), pollValues(consumer, 2));
+        
+        // 序列号1已老化，从最新的数据重新开始
+        consumer.seek(partition, "1");
+        assertTrue(consumer.poll(200).isEmpty());
+        fake.append(0, "f");
+        assertEquals(Collections.singletonList("f"), pollValues(consumer, 1));
+        consumer.close();
+    }
+    
+    @Test
+    public void testOutOfRangeAfterExpiredCursorRestartsByResetPolicy()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.append(0, "a", "b");
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.setConsumerCursorResetPolicy(PartitionCursorTypeEnum.TRIM_HORIZON);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        assertEquals(Arrays.asList("a", "b"), pollValues(consumer, 2));
+        
+        // 游标过期，从序列号1之后重新获取时数据已老化，仍按策略重新开始
+        fake.expireNextCursors(1);
+        fake.trim(0, 3);
+        fake.append(0, "c", "d", "e");
+        assertEquals(Arrays.asList("d", "e"), pollValues(consumer, 2));
+        assertEquals(1, fake.expiredCursors());
+        consumer.close();
+    }
+    
+    @Test
+    public void testIdleCursorIsRefreshedInBackground()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        fake.setCursorTtlMs(300);
+        fake.append(0, "a", "b", "c", "d");
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.setConsumerPrefetchRecords(2);
+        config.setConsumerCursorRefreshIntervalMs(100);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        assertEquals(Arrays.asList("a", "b"), pollValues(consumer, 2));
+        
+        // 缓冲已满，超过游标有效期不poll
+        Thread.sleep(800);
+        fake.append(0, "e");
+        assertEquals(Arrays.asList("c", "d", "e"), pollValues(consumer, 3));
+        assertEquals(0, fake.expiredCursors());
+        consumer.close();
+    }
+    
+    @Test
+    public void testSubscribeBalancesPartitionsAcrossGroupMembers()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(4, 2);
+        FakeCoordinator coordinator = new FakeCoordinator(Collections.singletonMap(STREAM, 4));
+        final List<StreamPartition> revoked = Collections.synchronizedList(new ArrayList<StreamPartition>());
+        final List<StreamPartition> assigned = Collections.synchronizedList(new ArrayList<StreamPartition>());
+        DISConsumer a = new DISConsumer(newGroupConfig("a"), fake.proxy(), coordinator);
+        a.subscribe(Collections.singletonList(STREAM), new ConsumerRebalanceListener()
+        {
+            @Override
+            public void onPartitionsRevoked(Collection<StreamPartition> partitions)
+            {
+                revoked.addAll(partitions);
+            }
+            
+            @Override
+            public void onPartitionsAssigned(Collection<StreamPartition> partitions)
+            {
+                assigned.addAll(partitions);
+            }
+        });
+        pollUntilAssigned(4, a);
+        assertEquals(4, assigned.size());
+        
+        DISConsumer b = new DISConsumer(newGroupConfig("b"), new FakeDISStream(4, 2).proxy(), coordinator);
+        b.subscribe(Collections.singletonList(STREAM));
+        pollUntilAssigned(2, a, b);
+        Set<StreamPartition> all = new HashSet<>(a.assignment());
+        all.addAll(b.assignment());
+        assertEquals(4, all.size());
+        assertEquals(2, revoked.size());
+        assertEquals(b.assignment(), new HashSet<>(revoked));
+        
+        // b离开后a接管所有分片
+        b.close();
+        pollUntilAssigned(4, a);
+        assertEquals(6, assigned.size());
+        assertTrue(coordinator.heartbeats() > 0);
+        a.close();
+    }
+    
+    @Test
+    public void testMemberTakingOverContinuesFromCommittedCheckpoint()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(2, 2);
+        fake.append(0, "a", "b", "c");
+        fake.append(1, "d", "e");
+        FakeCoordinator coordinator = new FakeCoordinator(Collections.singletonMap(STREAM, 2));
+        DISConsumer a = new DISConsumer(newAutoCommitGroupConfig("a"), fake.proxy(), coordinator);
+        a.subscribe(Collections.singletonList(STREAM));
+        assertEquals(5, pollValues(a, 5).size());
+        fake.append(0, "f");
+        fake.append(1, "g");
+        
+        // a关闭时提交已处理的位置，b接管两个分片后从checkpoint之后继续，不重复消费a已处理的记录
+        DISConsumer b = new DISConsumer(newAutoCommitGroupConfig("b"), fake.proxy(), coordinator);
+        a.close();
+        b.subscribe(Collections.singletonList(STREAM));
+        List<String> values = pollValues(b, 2);
+        Collections.sort(values);
+        assertEquals(Arrays.asList("f", "g"), values);
+        assertTrue(b.poll(100).isEmpty());
+        b.close();
+    }
+    
+    @Test
+    public void testExpiredMemberRejoins()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(2, 2);
+        final FakeCoordinator coordinator = new FakeCoordinator(Collections.singletonMap(STREAM, 2));
+        final List<Long> revokedInGeneration = Collections.synchronizedList(new ArrayList<Long>());
+        DISConsumer consumer = new DISConsumer(newGroupConfig("a"), fake.proxy(), coordinator);
+        consumer.subscribe(Collections.singletonList(STREAM), new ConsumerRebalanceListener()
+        {
+            @Override
+            public void onPartitionsRevoked(Collection<StreamPartition> partitions)
+            {
+                assertEquals(2, partitions.size());
+                revokedInGeneration.add(coordinator.generation());
+            }
+            
+            @Override
+            public void onPartitionsAssigned(Collection<StreamPartition> partitions)
+            {
+            }
+        });
+        pollUntilAssigned(2, consumer);
+        long generation = coordinator.generation();
+        
+        coordinator.expire("a");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coordinator.generation() < generation + 2 && System.currentTimeMillis() < deadline)
+        {
+            consumer.poll(20);
+        }
+        // 心跳返回JOINING后先收回全部分片(此时还未重新加入)，再重新加入(generation+2)并得到相同的分配
+        assertEquals(generation + 2, coordinator.generation());
+        assertEquals(Collections.singletonList(generation + 1), revokedInGeneration);
+        pollUntilAssigned(2, consumer);
+        consumer.close();
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubscribeRequiresGroupId()
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        DISConsumer consumer = new DISConsumer(newConfig(PartitionCursorTypeEnum.LATEST), fake.proxy(),
+            new FakeCoordinator(Collections.singletonMap(STREAM, 1)));
+        consumer.subscribe(Collections.singletonList(STREAM));
+    }
+    
+    @Test
+    public void testConcurrentAccessIsRejected()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(1, 2);
+        final DISConsumer consumer = new DISConsumer(newConfig(PartitionCursorTypeEnum.LATEST), fake.proxy());
+        consumer.assign(Collections.singletonList(new StreamPartition(STREAM, "0")));
+        Thread poller = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    consumer.poll(1000);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        poller.start();
+        Thread.sleep(200);
+        try
+        {
+            consumer.poll(0);
+            fail("poll from another thread should be rejected");
+        }
+        catch (ConcurrentModificationException e)
+        {
+            // expected
+        }
+        poller.join();
+        // 调用结束后其他线程可以继续使用
+        consumer.poll(0);
+        consumer.close();
+    }
+    
+    @Test
+    public void testAutoCommitOnRevokeAndClose()
+        throws Exception
+    {
+        FakeDISStream fake = new FakeDISStream(2, 2);
+        fake.append(0, "a", "b", "c");
+        fake.append(1, "d", "e");
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.set(DISConfig.GROUP_ID, "group");
+        config.setConsumerAutoCommitEnabled(true);
+        config.setConsumerAutoCommitIntervalMs(60000);
+        DISConsumer consumer = new DISConsumer(config, fake.proxy());
+        StreamPartition p0 = new StreamPartition(STREAM, "0");
+        StreamPartition p1 = new StreamPartition(STREAM, "1");
+        consumer.assign(Arrays.asList(p0, p1));
+        assertEquals(5, pollValues(consumer, 5).size());
+        assertTrue(fake.commits().isEmpty());
+        
+        // 收回分片时同步提交其已处理的位置
+        consumer.assign(Collections.singletonList(p1));
+        assertEquals("2", fake.committed("0"));
+        assertNull(fake.committed("1"));
+        
+        consumer.close();
+        assertEquals("1", fake.committed("1"));
+        assertEquals(2, fake.commits().size());
+    }
+    
+    private static DISConfig newGroupConfig(String clientId)
+    {
+        DISConfig config = newConfig(PartitionCursorTypeEnum.TRIM_HORIZON);
+        config.set(DISConfig.GROUP_ID, "group");
+        config.setConsumerClientId(clientId);
+        config.setConsumerHeartbeatIntervalMs(20);
+        return config;
+    }
+    
+    private static DISConfig newAutoCommitGroupConfig(String clientId)
+    {
+        DISConfig config = newGroupConfig(clientId);
+        config.setConsumerAutoCommitEnabled(true);
+        config.setConsumerAutoCommitIntervalMs(60000);
+        return config;
+    }
+    
+    private static void pollUntilAssigned(int partitions, DISConsumer... consumers)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean done = false;
+        while (!done && System.currentTimeMillis() < deadline)
+        {
+            done = true;
+            for (DISConsumer consumer : consumers)
+            {
+                consumer.poll(10);
+                done &= consumer.assignment().size() == partitions;
+            }
+        }
+        for (DISConsumer consumer : consumers)
+        {
+            assertEquals(partitions, consumer.assignment().size());
+        }
+    }
+    
+    private static DISConfig newConfig(PartitionCursorTypeEnum cursorType)
+    {
+        DISConfig config = new DISConfig();
+        config.setConsumerCursorType(cursorType);
+        config.setConsumerFetchBackoffMs(10);
+        return config;
+    }
+    
+    private static List<String> pollValues(DISConsumer consumer, int count)
+        throws InterruptedException
+    {
+        List<String> values = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (values.size() < count && System.currentTimeMillis() < deadline)
+        {
+            ConsumerRecords records = consumer.poll(100);
+            for (StreamPartition partition : records.partitions())
+            {
+                for (Record record : records.records(partition))
+                {
+                    values.add(valueOf(record));
+                }
+            }
+        }
+        return values;
+    }
+    
+    private static String valueOf(Record record)
+    {
+        return StandardCharsets.UTF_8.decode(record.getData().duplicate()).toString();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.consumer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.huaweicloud.dis.iface.coordinator.ICoordinatorService;
+import com.huaweicloud.dis.iface.coordinator.request.HeartbeatRequest;
+import com.huaweicloud.dis.iface.coordinator.request.JoinGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.request.LeaveGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.request.SyncGroupRequest;
+import com.huaweicloud.dis.iface.coordinator.response.HeartbeatResponse;
+import com.huaweicloud.dis.iface.coordinator.response.HeartbeatResponse.HeartBeatResponseState;
+import com.huaweicloud.dis.iface.coordinator.response.JoinGroupResponse;
+import com.huaweicloud.dis.iface.coordinator.response.JoinGroupResponse.JoinGroupResponseState;
+import com.huaweicloud.dis.iface.coordinator.response.SyncGroupResponse;
+import com.huaweicloud.dis.iface.coordinator.response.SyncGroupResponse.SyncGroupResponseState;
+
+/**
+ * 进程内的消费组协调服务，代替服务端测试消费组协议。
+ * 成员加入、离开或被移除时generation加1，按成员ID排序后把每个通道的分片轮流分给订阅了它的成员；
+ * 持有旧generation的成员心跳时返回SYNCING，未知成员心跳时返回JOINING。
+ */
+public class FakeCoordinator implements ICoordinatorService
+{
+    private final Map<String, Integer> partitions = new HashMap<>();
+    
+    // 成员ID -> 订阅的通道
+    private final TreeMap<String, List<String>> members = new TreeMap<>();
+    
+    private final AtomicInteger heartbeats = new AtomicInteger();
+    
+    private long generation;
+    
+    /**
+     * @param partitions 每个通道的分片数
+     */
+    public FakeCoordinator(Map<String, Integer> partitions)
+    {
+        this.partitions.putAll(partitions);
+    }
+    
+    /**
+     * 不经过leave直接移除成员，模拟心跳超时
+     */
+    public synchronized void expire(String clientId)
+    {
+        if (members.remove(clientId) != null)
+        {
+            generation++;
+        }
+    }
+    
+    public synchronized long generation()
+    {
+        return generation;
+    }
+    
+    public int heartbeats()
+    {
+        return heartbeats.get();
+    }
+    
+    @Override
+    public synchronized JoinGroupResponse handleJoinGroupRequest(JoinGroupRequest request)
+    {
+        JoinGroupResponse response = new JoinGroupResponse();
+        for (String stream : request.getInterestedStream())
+        {
+            if (!partitions.containsKey(stream))
+            {
+                response.setState(JoinGroupResponseState.ERR_SUBSCRIPTION);
+                return response;
+            }
+        }
+        List<String> previous = members.put(request.getClientId(), new ArrayList<>(request.getInterestedStream()));
+        if (!request.getInterestedStream().equals(previous))
+        {
+            generation++;
+        }
+        response.setState(JoinGroupResponseState.OK);
+        response.setSubscription(request.getInterestedStream());
+        response.setSyncDelayedTimeMs(0L);
+        return response;
+    }
+    
+    @Override
+    public synchronized SyncGroupResponse handleSyncGroupRequest(SyncGroupRequest request)
+    {
+        SyncGroupResponse response = new SyncGroupResponse();
+        if (!members.containsKey(request.getClientId()))
+        {
+            response.setState(SyncGroupResponseState.REJOIN);
+            return response;
+        }
+        response.setState(SyncGroupResponseState.OK);
+        response.setGeneration(generation);
+        response.setAssignment(assignment(request.getClientId()));
+        return response;
+    }
+    
+    @Override
+    public synchronized HeartbeatResponse handleHeartbeatRequest(HeartbeatRequest request)
+    {
+        heartbeats.incrementAndGet();
+        HeartbeatResponse response = new HeartbeatResponse();
+        if (!members.containsKey(request.getClientId()))
+        {
+            response.setState(HeartBeatResponseState.JOINING);
+        }
+        else if (request.getGeneration() == null || request.getGeneration() != generation)
+        {
+            response.setState(HeartBeatResponseState.SYNCING);
+        }
+        else
+        {
+            response.setState(HeartBeatResponseState.STABLE);
+        }
+        return response;
+    }
+    
+    @Override
+    public synchronized void handleLeaveGroupRequest(LeaveGroupRequest request)
+    {
+        expire(request.getClientId());
+    }
+    
+    private Map<String, List<Integer>> assignment(String clientId)
+    {
+        Map<String, List<Integer>> assignment = new LinkedHashMap<>();
+        for (String stream : members.get(clientId))
+        {
+            List<String> subscribers = new ArrayList<>();
+            for (Map.Entry<String, List<String>> member : members.entrySet())
+            {
+                if (member.getValue().contains(stream))
+                {
+                    subscribers.add(member.getKey());
+                }
+            }
+            List<Integer> assigned = new ArrayList<>();
+            for (int partition = 0; partition < partitions.get(stream); partition++)
+            {
+                if (subscribers.get(partition % subscribers.size()).equals(clientId))
+                {
+                    assigned.add(partition);
+                }
+            }
+            assignment.put(stream, assigned);
+        }
+        return assignment;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.consumer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.exception.DISClientRetriableException;
+import com.huaweicloud.dis.exception.DISPartitionExpiredException;
+import com.huaweicloud.dis.exception.DISSequenceNumberOutOfRangeException;
+import com.huaweicloud.dis.exception.DISStreamNotExistsException;
+import com.huaweicloud.dis.iface.data.request.CommitCheckpointRequest;
+import com.huaweicloud.dis.iface.data.request.GetCheckpointRequest;
+import com.huaweicloud.dis.iface.data.request.GetPartitionCursorRequest;
+import com.huaweicloud.dis.iface.data.request.GetRecordsRequest;
+import com.huaweicloud.dis.iface.data.response.CommitCheckpointResult;
+import com.huaweicloud.dis.iface.data.response.GetCheckpointResult;
+import com.huaweicloud.dis.iface.data.response.GetPartitionCursorResult;
+import com.huaweicloud.dis.iface.data.response.GetRecordsResult;
+import com.huaweicloud.dis.iface.data.response.Record;
+import com.huaweicloud.dis.util.PartitionCursorTypeEnum;
+
+/**
+ * 测试用的DISAsync，只实现DISConsumer用到的接口。
+ * 每个分片的数据保存在内存中，序列号从0开始；游标的格式为"分片ID:序列号:获取时间"，每个请求延迟latencyMs后完成。
+ * 多次调用{@link #proxy()}得到的客户端共享数据与checkpoint，可以模拟同一消费组的多个成员。
+ */
+public class FakeDISStream implements InvocationHandler
+{
+    private final List<List<String>> partitions = new ArrayList<>();
+    
+    private final long latencyMs;
+    
+    private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(4);
+    
+    // 尚未close的proxy数，全部close后才停止executor
+    private final AtomicInteger openProxies = new AtomicInteger();
+    
+    private final AtomicInteger recordRequests = new AtomicInteger();
+    
+    private final AtomicInteger retriableFailures = new AtomicInteger();
+    
+    private final AtomicInteger expiredFailures = new AtomicInteger();
+    
+    private final AtomicInteger expiredCursors = new AtomicInteger();
+    
+    // 游标的有效期(ms)，0表示不过期
+    private volatile long cursorTtlMs;
+    
+    // 每个分片最早的有效序列号，之前的数据已老化
+    private final int[] earliest;
+    
+    private final List<GetPartitionCursorRequest> cursorRequests =
+        Collections.synchronizedList(new ArrayList<GetPartitionCursorRequest>());
+    
+    private final List<CommitCheckpointRequest> commits =
+        Collections.synchronizedList(new ArrayList<CommitCheckpointRequest>());
+    
+    private final AtomicInteger commitFailures = new AtomicInteger();
+    
+    private final AtomicInteger commitsInFlight = new AtomicInteger();
+    
+    private final AtomicInteger maxCommitsInFlight = new AtomicInteger();
+    
+    public FakeDISStream(int partitions, long latencyMs)
+    {
+        for (int i = 0; i < partitions; i++)
+        {
+            this.partitions.add(new ArrayList<String>());
+        }
+        this.earliest = new int[partitions];
+        this.latencyMs = latencyMs;
+    }
+    
+    public DISAsync proxy()
+    {
+        openProxies.incrementAndGet();
+        return (DISAsync)Proxy.newProxyInstance(DISAsync.class.getClassLoader(), new Class<?>[] {DISAsync.class}, this);
+    }
+    
+    public void append(int partition, String... values)
+    {
+        List<String> records = partitions.get(partition);
+        synchronized (records)
+        {
+            for (String value : values)
+            {
+                records.add(value);
+            }
+        }
+    }
+    
+    /**
+     * 接下来的count个getRecords请求抛出可重试的异常
+     */
+    public void failNextRecordRequests(int count)
+    {
+        retriableFailures.set(count);
+    }
+    
+    /**
+     * 接下来的count个getRecords请求抛出游标过期的异常
+     */
+    public void expireNextCursors(int count)
+    {
+        expiredFailures.set(count);
+    }
+    
+    /**
+     * 游标获取后超过ttlMs再用于getRecords时抛出游标过期的异常
+     */
+    public void setCursorTtlMs(long ttlMs)
+    {
+        this.cursorTtlMs = ttlMs;
+    }
+    
+    /**
+     * 分片序列号小于sequenceNumber的数据老化，之后获取这些数据时抛出序列号超出范围的异常
+     */
+    public void trim(int partition, int sequenceNumber)
+    {
+        synchronized (earliest)
+        {
+            earliest[partition] = sequenceNumber;
+        }
+    }
+    
+    /**
+     * @return 因游标过期而失败的getRecords请求数，包括expireNextCursors模拟的
+     */
+    public int expiredCursors()
+    {
+        return expiredCursors.get();
+    }
+    
+    /**
+     * @return 收到的获取游标请求，按收到顺序
+     */
+    public List<GetPartitionCursorRequest> cursorRequests()
+    {
+        synchronized (cursorRequests)
+        {
+            return new ArrayList<>(cursorRequests);
+        }
+    }
+    
+    /**
+     * 接下来的count个checkpoint提交请求抛出可重试的异常
+     */
+    public void failNextCommits(int count)
+    {
+        commitFailures.set(count);
+    }
+    
+    /**
+     * @return 成功提交的checkpoint请求，按完成顺序
+     */
+    public List<CommitCheckpointRequest> commits()
+    {
+        synchronized (commits)
+        {
+            return new ArrayList<>(commits);
+        }
+    }
+    
+    /**
+     * @return 分片最后成功提交的序列号，没有时返回null
+     */
+    public String committed(String partitionId)
+    {
+        String sequenceNumber = null;
+        for (CommitCheckpointRequest commit : commits())
+        {
+            if (commit.getPartitionId().equals(partitionId))
+            {
+                sequenceNumber = commit.getSequenceNumber();
+            }
+        }
+        return sequenceNumber;
+    }
+    
+    /**
+     * @return 同时进行中的checkpoint提交请求数的最大值
+     */
+    public int maxCommitsInFlight()
+    {
+        return maxCommitsInFlight.get();
+    }
+    
+    /**
+     * @return 收到的getRecords请求数
+     */
+    public int recordRequests()
+    {
+        return recordRequests.get();
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+    {
+        switch (method.getName())
+        {
+            case "getPartitionCursorAsync":
+                final GetPartitionCursorRequest cursorRequest = (GetPartitionCursorRequest)args[0];
+                cursorRequests.add(cursorRequest);
+                return schedule(new Callable<GetPartitionCursorResult>()
+                {
+                    @Override
+                    public GetPartitionCursorResult call()
+                    {
+                        return getPartitionCursor(cursorRequest);
+                    }
+                }, args.length > 1 ? (AsyncHandler<GetPartitionCursorResult>)args[1] : null);
+            case "getRecordsAsync":
+                final GetRecordsRequest recordsRequest = (GetRecordsRequest)args[0];
+                recordRequests.incrementAndGet();
+                return schedule(new Callable<GetRecordsResult>()
+                {
+                    @Override
+                    public GetRecordsResult call()
+                    {
+                        return getRecords(recordsRequest);
+                    }
+                }, args.length > 1 ? (AsyncHandler<GetRecordsResult>)args[1] : null);
+            case "commitCheckpointAsync":
+                final CommitCheckpointRequest commitRequest = (CommitCheckpointRequest)args[0];
+                int current = commitsInFlight.incrementAndGet();
+                int max;
+                while (current > (max = maxCommitsInFlight.get()) && !maxCommitsInFlight.compareAndSet(max, current))
+                {
+                }
+                return schedule(new Callable<CommitCheckpointResult>()
+                {
+                    @Override
+                    public CommitCheckpointResult call()
+                    {
+                        commitsInFlight.decrementAndGet();
+                        if (commitFailures.getAndDecrement() > 0)
+                        {
+                            throw new DISClientRetriableException("Connection reset");
+                        }
+                        commits.add(commitRequest);
+                        return new CommitCheckpointResult();
+                    }
+                }, args.length > 1 ? (AsyncHandler<CommitCheckpointResult>)args[1] : null);
+            case "getCheckpointAsync":
+                final GetCheckpointRequest checkpointRequest = (GetCheckpointRequest)args[0];
+                return schedule(new Callable<GetCheckpointResult>()
+                {
+                    @Override
+                    public GetCheckpointResult call()
+                    {
+                        return getCheckpoint(checkpointRequest);
+                    }
+                }, args.length > 1 ? (AsyncHandler<GetCheckpointResult>)args[1] : null);
+            case "close":
+                if (openProxies.decrementAndGet() <= 0)
+                {
+                    executor.shutdown();
+                }
+                return null;
+            case "toString":
+                return "FakeDISStream";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+    
+    private <T> Future<T> schedule(final Callable<T> callable, final AsyncHandler<T> handler)
+    {
+        return executor.schedule(new Callable<T>()
+        {
+            @Override
+            public T call()
+                throws Exception
+            {
+                T result;
+                try
+                {
+                    result = callable.call();
+                }
+                catch (RuntimeException e)
+                {
+                    if (handler != null)
+                    {
+                        handler.onError(e);
+                    }
+                    throw e;
+                }
+                if (handler != null)
+                {
+                    handler.onSuccess(result);
+                }
+                return result;
+            }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /*
+     * 名称以missing开头的通道不存在
+     */
+    private GetPartitionCursorResult getPartitionCursor(GetPartitionCursorRequest request)
+    {
+        if (request.getStreamName().startsWith("missing"))
+        {
+            throw new DISStreamNotExistsException("Stream " + request.getStreamName() + " does not exist");
+        }
+        int partition = Integer.parseInt(request.getPartitionId());
+        long sequenceNumber;
+        switch (PartitionCursorTypeEnum.valueOf(request.getCursorType()))
+        {
+            case TRIM_HORIZON:
+                sequenceNumber = earliest(partition);
+                break;
+            case LATEST:
+                sequenceNumber = size(partition);
+                break;
+            case AT_SEQUENCE_NUMBER:
+                sequenceNumber = Long.parseLong(request.getStartingSequenceNumber());
+                break;
+            case AFTER_SEQUENCE_NUMBER:
+                sequenceNumber = Long.parseLong(request.getStartingSequenceNumber()) + 1;
+                break;
+            default:
+                throw new UnsupportedOperationException(request.getCursorType());
+        }
+        checkRange(partition, sequenceNumber);
+        GetPartitionCursorResult result = new GetPartitionCursorResult();
+        result.setPartitionCursor(cursor(partition, sequenceNumber));
+        return result;
+    }
+    
+    /*
+     * 返回app最后成功提交的checkpoint，没有时序列号为null
+     */
+    private GetCheckpointResult getCheckpoint(GetCheckpointRequest request)
+    {
+        GetCheckpointResult result = new GetCheckpointResult();
+        for (CommitCheckpointRequest commit : commits())
+        {
+            if (commit.getAppName().equals(request.getAppName())
+                && commit.getCheckpointType().equals(request.getCheckpointType())
+                && commit.getStreamName().equals(request.getStreamName())
+                && commit.getPartitionId().equals(request.getPartitionId()))
+            {
+                result.setSequenceNumber(commit.getSequenceNumber());
+            }
+        }
+        return result;
+    }
+    
+    private GetRecordsResult getRecords(GetRecordsRequest request)
+    {
+        if (retriableFailures.getAndDecrement() > 0)
+        {
+            throw new DISClientRetriableException("Connection reset");
+        }
+        String[] cursor = request.getPartitionCursor().split(":");
+        int partition = Integer.parseInt(cursor[0]);
+        int start = Integer.parseInt(cursor[1]);
+        long ttlMs = cursorTtlMs;
+        if (expiredFailures.getAndDecrement() > 0
+            || (ttlMs > 0 && System.currentTimeMillis() - Long.parseLong(cursor[2]) > ttlMs))
+        {
+            expiredCursors.incrementAndGet();
+            throw new DISPartitionExpiredException("Partition cursor has expired");
+        }
+        checkRange(partition, start);
+        List<Record> records = new ArrayList<>();
+        List<String> data = partitions.get(partition);
+        int end;
+        synchronized (data)
+        {
+            end = Math.min(data.size(), start + request.getLimit());
+            for (int i = start; i < end; i++)
+            {
+                Record record = new Record();
+                record.setSequenceNumber(String.valueOf(i));
+                record.setData(ByteBuffer.wrap(data.get(i).getBytes(StandardCharsets.UTF_8)));
+                records.add(record);
+            }
+        }
+        GetRecordsResult result = new GetRecordsResult();
+        result.setRecords(records);
+        result.setNextPartitionCursor(cursor(partition, end));
+        result.setMillisBehindLatest(0L);
+        return result;
+    }
+    
+    private static String cursor(int partition, long sequenceNumber)
+    {
+        return partition + ":" + sequenceNumber + ":" + System.currentTimeMillis();
+    }
+    
+    private void checkRange(int partition, long sequenceNumber)
+    {
+        int earliestSequenceNumber = earliest(partition);
+        if (sequenceNumber < earliestSequenceNumber)
+        {
+            // 与服务端的错误信息格式一致
+            throw new DISSequenceNumberOutOfRangeException("{\"errorCode\":\"DIS.4224\",\"message\":\"Sequence_number out of range. ["
+                + sequenceNumber + "][ should be within ][" + earliestSequenceNumber + "][ ][" + size(partition) + "]\"}");
+        }
+    }
+    
+    private int earliest(int partition)
+    {
+        synchronized (earliest)
+        {
+            return earliest[partition];
+        }
+    }
+    
+    private int size(int partition)
+    {
+        List<String> data = partitions.get(partition);
+        synchronized (data)
+        {
+            return data.size();
+        }
+    }
+}
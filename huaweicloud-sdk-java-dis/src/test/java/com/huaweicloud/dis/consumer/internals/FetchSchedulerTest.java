@@ -0,0 +1,87 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.consumer.internals;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FetchSchedulerTest
+{
+    @Test
+    public void testBehindFetchesImmediatelyWithLargerLimit()
+    {
+        FetchScheduler scheduler = new FetchScheduler(100, 1000, 50, 800, 0);
+        FetchScheduler.PartitionSchedule schedule = scheduler.newSchedule();
+        Assert.assertEquals(100, scheduler.limit(schedule, 2000));
+        
+        long now = 10000;
+        scheduler.onRecords(schedule, 100, 60000L, now);
+        Assert.assertTrue(schedule.isBehind());
+        Assert.assertEquals(0, scheduler.delayMs(schedule, 1, now));
+        Assert.assertEquals(1000, scheduler.limit(schedule, 2000));
+        // 不超过缓冲的剩余空间
+        Assert.assertEquals(300, scheduler.limit(schedule, 300));
+        
+        // 落后但本次没有数据，仍然立即获取
+        scheduler.onRecords(schedule, 0, 100L, now);
+        Assert.assertEquals(0, scheduler.delayMs(schedule, 1, now));
+    }
+    
+    @Test
+    public void testCaughtUpBacksOffExponentially()
+    {
+        FetchScheduler scheduler = new FetchScheduler(100, 1000, 50, 800, 0);
+        FetchScheduler.PartitionSchedule schedule = scheduler.newSchedule();
+        long now = 10000;
+        long[] expected = {50, 100, 200, 400, 800, 800};
+        for (long delay : expected)
+        {
+            scheduler.onRecords(schedule, 0, 0L, now);
+            Assert.assertEquals(delay, scheduler.delayMs(schedule, 1, now));
+        }
+        Assert.assertEquals(100, scheduler.limit(schedule, 2000));
+        
+        // 有新数据后立即继续，退避重新从50开始
+        scheduler.onRecords(schedule, 5, null, now);
+        Assert.assertEquals(0, scheduler.delayMs(schedule, 1, now));
+        scheduler.onRecords(schedule, 0, null, now);
+        Assert.assertEquals(50, scheduler.delayMs(schedule, 1, now));
+    }
+    
+    @Test
+    public void testRequestBudgetIsSplitByLag()
+    {
+        FetchScheduler scheduler = new FetchScheduler(100, 1000, 50, 800, 10);
+        FetchScheduler.PartitionSchedule behind = scheduler.newSchedule();
+        FetchScheduler.PartitionSchedule caughtUp = scheduler.newSchedule();
+        long now = 10000;
+        scheduler.onRecords(behind, 100, 3000L, now);
+        scheduler.onRecords(caughtUp, 10, 0L, now);
+        // 权重4:1，每秒分得8个与2个请求
+        double totalWeight = scheduler.weight(behind) + scheduler.weight(caughtUp);
+        Assert.assertEquals(5.0, totalWeight, 0.001);
+        
+        // 第一个请求不受限制
+        Assert.assertEquals(0, scheduler.delayMs(behind, totalWeight, now));
+        scheduler.onRequest(behind, now);
+        scheduler.onRequest(caughtUp, now);
+        Assert.assertEquals(125, scheduler.delayMs(behind, totalWeight, now));
+        Assert.assertEquals(500, scheduler.delayMs(caughtUp, totalWeight, now));
+        Assert.assertEquals(0, scheduler.delayMs(behind, totalWeight, now + 125));
+    }
+}
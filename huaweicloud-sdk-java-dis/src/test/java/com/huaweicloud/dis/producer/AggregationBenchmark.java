@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 100字节小记录在按分片分组批量模式下，不聚合与聚合两种方式在同样的分片记录数配额下的吞吐对比。
+ * 服务端由{@link FakeDISAsync}模拟，只限制每个分片每秒的记录数，不限制字节数。
+ */
+public class AggregationBenchmark
+{
+    private static final int THREADS = 16;
+    
+    private static final int PARTITIONS = 4;
+    
+    private static final long LATENCY_MS = 5;
+    
+    private static final int PARTITION_QUOTA = 1000;
+    
+    private static final int MAX_PENDING = 20000;
+    
+    private static final long MEASURE_MS = 5000;
+    
+    @Test
+    @Ignore
+    public void benchmarkAggregation()
+        throws Exception
+    {
+        for (int round = 0; round < 2; round++)
+        {
+            System.out.println("plain      : " + run(false));
+            System.out.println("aggregated : " + run(true));
+        }
+    }
+    
+    private String run(boolean aggregation)
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, LATENCY_MS, PARTITION_QUOTA);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setAggregationEnabled(aggregation);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        config.set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, "500");
+        final DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final Semaphore pending = new Semaphore(MAX_PENDING);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AsyncHandler<PutRecordsResultEntry> callback = new AsyncHandler<PutRecordsResultEntry>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResultEntry result)
+            {
+                if (result.getErrorCode() == null)
+                {
+                    succeeded.increment();
+                }
+                else
+                {
+                    failed.increment();
+                }
+                pending.release();
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                failed.increment();
+                pending.release();
+            }
+        };
+        
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int threadId = t;
+            Thread writer = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    long seq = 0;
+                    try
+                    {
+                        while (running.get())
+                        {
+                            pending.acquire();
+                            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+                            entry.setData(ByteBuffer.wrap(new byte[100]));
+                            entry.setPartitionKey(threadId + "-" + (seq++ % 1000));
+                            producer.putRecordAsync("stream", entry, callback);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        
+        Thread.sleep(MEASURE_MS);
+        long ok = succeeded.sum();
+        long ko = failed.sum();
+        running.set(false);
+        for (Thread writer : writers)
+        {
+            writer.join();
+        }
+        producer.close(10, TimeUnit.SECONDS);
+        
+        return String.format("%,d user records/s acked (%,d per partition), %,d records/s failed by traffic control, %d requests",
+            ok * 1000 / MEASURE_MS,
+            ok * 1000 / MEASURE_MS / PARTITIONS,
+            ko * 1000 / MEASURE_MS,
+            fake.requests().size());
+    }
+}
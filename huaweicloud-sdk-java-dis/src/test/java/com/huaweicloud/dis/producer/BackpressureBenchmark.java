@@ -0,0 +1,158 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.util.metrics.Histogram;
+
+/**
+ * 持续过载时{@code putRecordsAsync}调用的阻塞时长分布。写线程不限速地发送，缓冲区批次数很小，
+ * 服务端由{@link FakeDISAsync}模拟固定的请求时延，写线程大部分时间在等待缓冲区。
+ * 输出调用时长的p50/p99/max，以及各写线程成功发送数的最小值/最大值(体现等待的公平性)。
+ */
+public class BackpressureBenchmark
+{
+    private static final int THREADS = 32;
+    
+    private static final int PARTITIONS = 8;
+    
+    private static final long LATENCY_MS = 20;
+    
+    private static final int BUFFER_COUNT = 16;
+    
+    private static final long MEASURE_MS = 5000;
+    
+    @Test
+    @Ignore
+    public void benchmarkBackpressure()
+        throws Exception
+    {
+        for (int round = 0; round < 2; round++)
+        {
+            System.out.println("locked    : " + run(false));
+            System.out.println("lock-free : " + run(true));
+        }
+    }
+    
+    private String run(boolean lockFree)
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, LATENCY_MS, Integer.MAX_VALUE);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_ACCUMULATOR_LOCK_FREE, String.valueOf(lockFree));
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        config.set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, "100");
+        config.set(DISConfig.PROPERTY_PRODUCER_BUFFER_COUNT, String.valueOf(BUFFER_COUNT));
+        config.set(DISConfig.PROPERTY_PRODUCER_MAX_BLOCK_MS, "30000");
+        final DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        final Histogram callLatency = new Histogram();
+        final LongAdder failed = new LongAdder();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Long> sentPerThread = Collections.synchronizedList(new ArrayList<Long>());
+        final AsyncHandler<PutRecordsResult> callback = new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                failed.increment();
+            }
+        };
+        
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int threadId = t;
+            Thread writer = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    long seq = 0;
+                    while (running.get())
+                    {
+                        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+                        entry.setData(ByteBuffer.wrap(new byte[100]));
+                        entry.setPartitionKey(threadId + "-" + seq);
+                        PutRecordsRequest request = new PutRecordsRequest();
+                        request.setStreamName("stream");
+                        request.setRecords(Collections.singletonList(entry));
+                        
+                        long start = System.nanoTime();
+                        try
+                        {
+                            producer.putRecordsAsync(request, callback);
+                            seq++;
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        catch (RuntimeException e)
+                        {
+                            failed.increment();
+                        }
+                        callLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    }
+                    sentPerThread.add(seq);
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        
+        Thread.sleep(MEASURE_MS);
+        running.set(false);
+        for (Thread writer : writers)
+        {
+            writer.join();
+        }
+        producer.close(10, TimeUnit.SECONDS);
+        
+        return String.format("%,d calls/s, call latency p50 %,dus p99 %,dus max %,dus, per thread min %,d max %,d, %d failed",
+            callLatency.count() * 1000 / MEASURE_MS,
+            callLatency.percentile(0.5),
+            callLatency.percentile(0.99),
+            callLatency.max(),
+            Collections.min(sentPerThread),
+            Collections.max(sentPerThread),
+            failed.sum());
+    }
+}
@@ -0,0 +1,926 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.Constants;
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.exception.DISProducerClosedException;
+import com.huaweicloud.dis.exception.DISStreamNotExistsException;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.huaweicloud.dis.iface.data.response.Record;
+import com.huaweicloud.dis.util.aggregation.RecordDeaggregator;
+import com.huaweicloud.dis.util.metrics.MetricsReporter;
+
+public class DISProducerTest
+{
+    private static final int PARTITIONS = 4;
+    
+    @Test
+    public void testPartitionAwareBatching()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "20");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        PutRecordsRequest request = newRequest(40, true);
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicReference<PutRecordsResult> callbackResult = new AtomicReference<>();
+        PutRecordsResult result = producer.putRecordsAsync(request, new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                calls.incrementAndGet();
+                callbackResult.set(result);
+                called.countDown();
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                calls.incrementAndGet();
+                called.countDown();
+            }
+        }).get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(called.await(10, TimeUnit.SECONDS));
+        producer.close();
+        
+        // 每个请求只包含一个分片的记录
+        Set<Integer> partitions = new HashSet<>();
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            Set<Integer> requestPartitions = new HashSet<>();
+            for (PutRecordsRequestEntry entry : sent.getRecords())
+            {
+                requestPartitions.add(fake.partitionOf(entry));
+            }
+            Assert.assertEquals(1, requestPartitions.size());
+            partitions.addAll(requestPartitions);
+        }
+        Assert.assertTrue(partitions.size() > 1);
+        
+        // 合并后的结果与原始请求的顺序一致
+        Assert.assertEquals(1, calls.get());
+        for (PutRecordsResult merged : new PutRecordsResult[] {result, callbackResult.get()})
+        {
+            Assert.assertEquals(40, merged.getRecords().size());
+            Assert.assertEquals(0, merged.getFailedRecordCount().get());
+            for (int i = 0; i < 40; i++)
+            {
+                Assert.assertEquals(String.valueOf(fake.partitionOf(request.getRecords().get(i))),
+                    merged.getRecords().get(i).getPartitionId());
+            }
+        }
+    }
+    
+    @Test
+    public void testPartitionAwareBatchingPinsKeylessRecords()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        PutRecordsRequest request = newRequest(40, false);
+        PutRecordsResult result = producer.putRecordsAsync(request, null).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        Assert.assertEquals(40, result.getRecords().size());
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            String partitionId = sent.getRecords().get(0).getPartitionId();
+            Assert.assertNotNull(partitionId);
+            for (PutRecordsRequestEntry entry : sent.getRecords())
+            {
+                Assert.assertEquals(partitionId, entry.getPartitionId());
+            }
+        }
+        // 调用者的记录不会被修改
+        for (PutRecordsRequestEntry entry : request.getRecords())
+        {
+            Assert.assertNull(entry.getPartitionId());
+        }
+    }
+    
+    @Test
+    public void testPartitionAwareBatchingFailsPartsAfterAppendTimeout()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        // 只能缓存一个批次：第一部分占用后，第二部分追加超时
+        config.set(DISConfig.PROPERTY_PRODUCER_BUFFER_COUNT, "1");
+        config.set(DISConfig.PROPERTY_PRODUCER_MAX_BLOCK_MS, "100");
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "60000");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        PutRecordsRequest request = newRequest(40, true);
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<Exception> callbackError = new AtomicReference<>();
+        Future<PutRecordsResult> future = producer.putRecordsAsync(request, new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                called.countDown();
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                callbackError.set(exception);
+                called.countDown();
+            }
+        });
+        producer.close();
+        
+        // 已追加的第一部分照常发送，其余部分以超时失败，回调在所有部分完成后触发
+        Assert.assertTrue(called.await(10, TimeUnit.SECONDS));
+        Assert.assertNotNull(callbackError.get());
+        try
+        {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("request should fail");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertSame(callbackError.get(), e.getCause());
+        }
+        Assert.assertEquals(1, fake.requests().size());
+        int firstPartition = fake.partitionOf(request.getRecords().get(0));
+        for (PutRecordsRequestEntry entry : fake.requests().get(0).getRecords())
+        {
+            Assert.assertEquals(firstPartition, fake.partitionOf(entry));
+        }
+    }
+    
+    @Test
+    public void testSingleBucketBatching()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISProducer producer = new DISProducer(new DISConfig(), fake.proxy());
+        
+        PutRecordsResult result = producer.putRecordsAsync(newRequest(40, true), null).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        Assert.assertEquals(40, result.getRecords().size());
+        Assert.assertEquals(1, fake.requests().size());
+    }
+    
+    @Test
+    public void testStickyPartitionerRotatesOnFullBatch()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setPartitionerClass(StickyPartitioner.class.getName());
+        config.set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, "10");
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "1000");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        List<Future<PutRecordsResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+        {
+            futures.add(producer.putRecordsAsync(newRequest(5, false), null));
+        }
+        producer.flush();
+        for (Future<PutRecordsResult> future : futures)
+        {
+            Assert.assertEquals(5, future.get(10, TimeUnit.SECONDS).getRecords().size());
+        }
+        producer.close();
+        
+        // 每个批次攒满后才切换分片
+        Assert.assertEquals(4, fake.requests().size());
+        Set<Integer> partitions = new HashSet<>();
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            Assert.assertEquals(10, sent.getRecords().size());
+            Set<Integer> requestPartitions = new HashSet<>();
+            for (PutRecordsRequestEntry entry : sent.getRecords())
+            {
+                requestPartitions.add(fake.partitionOf(entry));
+            }
+            Assert.assertEquals(1, requestPartitions.size());
+            partitions.addAll(requestPartitions);
+        }
+        Assert.assertTrue(partitions.size() > 1);
+    }
+    
+    @Test
+    public void testAggregation()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setAggregationEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "20");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        PutRecordsRequest request = newRequest(40, true);
+        PutRecordsResult result = producer.putRecordsAsync(request, null).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        // 每个分片一条聚合记录，还原后与原始记录一致
+        Map<String, PutRecordsRequestEntry> original = new HashMap<>();
+        for (PutRecordsRequestEntry entry : request.getRecords())
+        {
+            original.put(entry.getPartitionKey(), entry);
+        }
+        int userRecords = 0;
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            Assert.assertEquals(1, sent.getRecords().size());
+            PutRecordsRequestEntry aggregated = sent.getRecords().get(0);
+            Record record = new Record();
+            record.setData(aggregated.getData());
+            for (Record userRecord : RecordDeaggregator.deaggregate(record))
+            {
+                PutRecordsRequestEntry entry = original.get(userRecord.getPartitionKey());
+                Assert.assertEquals(entry.getData(), userRecord.getData());
+                Assert.assertEquals(fake.partitionOf(entry), fake.partitionOf(aggregated));
+                userRecords++;
+            }
+        }
+        Assert.assertEquals(40, userRecords);
+        
+        Assert.assertEquals(40, result.getRecords().size());
+        Assert.assertEquals(0, result.getFailedRecordCount().get());
+        for (int i = 0; i < 40; i++)
+        {
+            Assert.assertEquals(String.valueOf(fake.partitionOf(request.getRecords().get(i))),
+                result.getRecords().get(i).getPartitionId());
+            Assert.assertNotNull(result.getRecords().get(i).getSequenceNumber());
+        }
+    }
+    
+    @Test
+    public void testMetrics()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setMetricsReporters(RecordingMetricsReporter.class.getName());
+        config.setMetricsReportIntervalMs(60000);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        DISProducer idle = new DISProducer(new DISConfig(), new FakeDISAsync(PARTITIONS, 1, 0).proxy());
+        
+        producer.putRecordsAsync(newRequest(40, true), null).get(10, TimeUnit.SECONDS);
+        Map<String, Number> metrics = producer.metrics();
+        Assert.assertEquals(40L, metrics.get("records.sent"));
+        Assert.assertEquals(40L, metrics.get("records.succeeded"));
+        Assert.assertEquals(0L, metrics.get("records.failed"));
+        Assert.assertEquals((long)fake.requests().size(), metrics.get("requests.sent"));
+        Assert.assertEquals(metrics.get("requests.sent"), metrics.get("request.latency.ms.count"));
+        Assert.assertEquals(40L, metrics.get("record.size.bytes.count"));
+        Assert.assertNotNull(metrics.get("requests.in.flight"));
+        Assert.assertNotNull(metrics.get("buffer.utilization"));
+        Assert.assertNotNull(metrics.get("queue.batches"));
+        Assert.assertEquals(0L, idle.metrics().get("records.sent"));
+        idle.close();
+        
+        // 关闭时导出最后一次指标
+        producer.close();
+        Assert.assertEquals(1, RecordingMetricsReporter.reports.size());
+        Assert.assertEquals(40L, RecordingMetricsReporter.reports.get(0).get("records.sent"));
+        Assert.assertTrue(RecordingMetricsReporter.closed);
+    }
+    
+    @Test
+    public void testSendCompletesRecordFutures()
+        throws Exception
+    {
+        verifySend(false, false);
+        verifySend(true, false);
+        verifySend(true, true);
+    }
+    
+    private void verifySend(boolean partitionAware, boolean lockFree)
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(partitionAware);
+        config.set(DISConfig.PROPERTY_PRODUCER_ACCUMULATOR_LOCK_FREE, String.valueOf(lockFree));
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            futures.add(producer.send("stream", "key-" + i, ByteBuffer.wrap(("record-" + i).getBytes()))
+                .thenApply(new Function<PutRecordsResultEntry, String>()
+                {
+                    @Override
+                    public String apply(PutRecordsResultEntry entry)
+                    {
+                        return entry.getPartitionId() + ":" + entry.getSequenceNumber();
+                    }
+                }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        Map<String, String> partitionOfData = new HashMap<>();
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            for (PutRecordsRequestEntry entry : sent.getRecords())
+            {
+                partitionOfData.put(new String(entry.getData().array()), String.valueOf(fake.partitionOf(entry)));
+            }
+        }
+        Set<String> sequenceNumbers = new HashSet<>();
+        for (int i = 0; i < 100; i++)
+        {
+            String[] result = futures.get(i).get().split(":");
+            Assert.assertEquals(partitionOfData.get("record-" + i), result[0]);
+            Assert.assertTrue(sequenceNumbers.add(result[1]));
+        }
+        if (partitionAware)
+        {
+            for (PutRecordsRequest sent : fake.requests())
+            {
+                Set<Integer> partitions = new HashSet<>();
+                for (PutRecordsRequestEntry entry : sent.getRecords())
+                {
+                    partitions.add(fake.partitionOf(entry));
+                }
+                Assert.assertEquals(1, partitions.size());
+            }
+        }
+    }
+    
+    @Test
+    public void testSendCompletesExceptionallyOnRequestFailure()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        fake.failNextRequests(1);
+        DISConfig config = new DISConfig();
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        CompletableFuture<PutRecordsResultEntry> future = producer.send("stream", ByteBuffer.wrap("record".getBytes()));
+        try
+        {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("The request should fail.");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof DISClientException);
+        }
+        
+        PutRecordsResultEntry entry = producer.send("stream", ByteBuffer.wrap("record".getBytes())).get(10, TimeUnit.SECONDS);
+        producer.close();
+        Assert.assertNotNull(entry.getSequenceNumber());
+    }
+    
+    @Test
+    public void testRetryTrafficControlledRecords()
+        throws Exception
+    {
+        // 每个分片每秒只接收20条，其余记录流控失败后由DISProducer重发
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 20);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setDeliveryTimeoutMs(10000);
+        config.setRetryBackoffMs(50);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        PutRecordsRequest request = newRequest(160, true);
+        final AtomicInteger calls = new AtomicInteger();
+        PutRecordsResult result = producer.putRecordsAsync(request, new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                calls.incrementAndGet();
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+                calls.incrementAndGet();
+            }
+        }).get(20, TimeUnit.SECONDS);
+        Map<String, Number> metrics = producer.metrics();
+        producer.close();
+        
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(0, result.getFailedRecordCount().get());
+        Assert.assertEquals(160, result.getRecords().size());
+        for (int i = 0; i < 160; i++)
+        {
+            Assert.assertNotNull(result.getRecords().get(i).getSequenceNumber());
+            Assert.assertEquals(String.valueOf(fake.partitionOf(request.getRecords().get(i))),
+                result.getRecords().get(i).getPartitionId());
+        }
+        Assert.assertTrue(metrics.get("records.retried").longValue() > 0);
+        Assert.assertEquals(160L, metrics.get("records.succeeded"));
+        Assert.assertEquals(0L, metrics.get("records.failed"));
+    }
+    
+    @Test
+    public void testRateLimitAvoidsTrafficControl()
+        throws Exception
+    {
+        // 每个分片每秒1000条，与普通通道的配额一致
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 1000);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setRateLimitEnabled(true);
+        config.setDeliveryTimeoutMs(20000);
+        config.setRetryBackoffMs(50);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        List<Future<PutRecordsResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 800; i++)
+        {
+            futures.add(producer.putRecordsAsync(newRequest(10, true), null));
+        }
+        int failed = 0;
+        for (Future<PutRecordsResult> future : futures)
+        {
+            failed += future.get(30, TimeUnit.SECONDS).getFailedRecordCount().get();
+        }
+        Map<String, Number> metrics = producer.metrics();
+        producer.close();
+        
+        // 不限速时每个分片约一半的记录被流控；限速后只有窗口边界附近的少量记录被流控
+        Assert.assertEquals(0, failed);
+        Assert.assertEquals(8000L, metrics.get("records.succeeded"));
+        Assert.assertTrue(metrics.get("records.throttled").longValue() < 800);
+    }
+    
+    @Test
+    public void testSplitRequestEntityTooLarge()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        fake.setMaxRequestBytes(1000);
+        DISConfig config = new DISConfig();
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        // 记录大小不一，其中一条单独也超限
+        PutRecordsRequest request = newRequest(20, false);
+        for (int i = 0; i < 20; i++)
+        {
+            request.getRecords().get(i).setData(ByteBuffer.wrap(new byte[i == 7 ? 2000 : 50 + i * 20]));
+        }
+        PutRecordsResult result = producer.putRecordsAsync(request, null).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        Assert.assertEquals(20, result.getRecords().size());
+        Assert.assertEquals(1, result.getFailedRecordCount().get());
+        Assert.assertEquals(Constants.ERROR_CODE_RECORD_TOO_LARGE, result.getRecords().get(7).getErrorCode());
+        for (int i = 0; i < 20; i++)
+        {
+            if (i != 7)
+            {
+                Assert.assertNotNull(result.getRecords().get(i).getSequenceNumber());
+            }
+        }
+        // 各部分依次发送，成功的记录保持原始顺序
+        List<Integer> sizes = new ArrayList<>();
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            long bytes = 0;
+            for (PutRecordsRequestEntry entry : sent.getRecords())
+            {
+                bytes += entry.getData().remaining();
+            }
+            if (bytes <= 1000)
+            {
+                for (PutRecordsRequestEntry entry : sent.getRecords())
+                {
+                    sizes.add(entry.getData().remaining());
+                }
+            }
+        }
+        Assert.assertEquals(19, sizes.size());
+        for (int i = 1; i < sizes.size(); i++)
+        {
+            Assert.assertTrue(sizes.get(i) > sizes.get(i - 1));
+        }
+    }
+    
+    @Test
+    public void testDeliveryTimeout()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 2);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setDeliveryTimeoutMs(300);
+        config.setRetryBackoffMs(50);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        long start = System.currentTimeMillis();
+        PutRecordsResult result = producer.putRecordsAsync(newRequest(40, true), null).get(10, TimeUnit.SECONDS);
+        long elapsed = System.currentTimeMillis() - start;
+        Map<String, Number> metrics = producer.metrics();
+        producer.close();
+        
+        // 每个分片只有2条成功，超时的记录以最后一次的流控错误结束
+        int trafficControlled = 0;
+        for (PutRecordsResultEntry entry : result.getRecords())
+        {
+            if (FakeDISAsync.TRAFFIC_CONTROL_ERROR.equals(entry.getErrorCode()))
+            {
+                trafficControlled++;
+            }
+        }
+        Assert.assertEquals(32, result.getFailedRecordCount().get());
+        Assert.assertEquals(32, trafficControlled);
+        Assert.assertTrue(elapsed < 1000);
+        Assert.assertEquals(32L, metrics.get("records.failed"));
+    }
+    
+    @Test
+    public void testRetryRetriableException()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        fake.failNextRequests(2);
+        DISConfig config = new DISConfig();
+        config.setDeliveryTimeoutMs(10000);
+        config.setRetryBackoffMs(10);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        PutRecordsResult result = producer.putRecordsAsync(newRequest(10, false), null).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        Assert.assertEquals(0, result.getFailedRecordCount().get());
+        Assert.assertEquals(3, fake.requests().size());
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            Assert.assertEquals(10, sent.getRecords().size());
+        }
+    }
+    
+    @Test
+    public void testOrderedSendsIgnoreMaxInFlight()
+        throws Exception
+    {
+        // 分片保序时max.in.flight.batches.per.partition不生效，同一分片同时只有一个请求
+        Assert.assertEquals(1, verifyOrderedSends(1));
+        Assert.assertEquals(1, verifyOrderedSends(4));
+    }
+    
+    @Test
+    public void testRetriedBatchKeepsOrderWithOrderedSends()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 20, 0);
+        // 第2个批次整体失败，之后的批次不能先于它的重试被服务端接受
+        fake.failRequest(1);
+        DISConfig config = new DISConfig();
+        config.set(DISConfig.PROPERTY_ORDER_BY_PARTITION, "true");
+        config.set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, "10");
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        config.setMaxInFlightBatchesPerPartition(4);
+        config.setDeliveryTimeoutMs(10000);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        List<Future<PutRecordsResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            PutRecordsRequest request = newRequest(1, false);
+            request.getRecords().get(0).setData(ByteBuffer.wrap(("record-" + i).getBytes()));
+            request.getRecords().get(0).setPartitionKey("key");
+            futures.add(producer.putRecordsAsync(request, null));
+        }
+        for (Future<PutRecordsResult> future : futures)
+        {
+            Assert.assertEquals(0, future.get(10, TimeUnit.SECONDS).getFailedRecordCount().get());
+        }
+        producer.close();
+        
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            expected.add("record-" + i);
+        }
+        Assert.assertEquals(expected, fake.acceptedPayloads());
+        Assert.assertEquals(1, producer.metrics().get("requests.failed").intValue());
+    }
+    
+    /*
+     * 同一分片的记录逐条发送，返回同时在途的最大请求数；每个请求按记录顺序发出
+     */
+    private int verifyOrderedSends(int maxInFlight)
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 30, 0);
+        DISConfig config = new DISConfig();
+        config.set(DISConfig.PROPERTY_ORDER_BY_PARTITION, "true");
+        config.set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, "10");
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        config.setMaxInFlightBatchesPerPartition(maxInFlight);
+        config.setDeliveryTimeoutMs(10000);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        List<Future<PutRecordsResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            PutRecordsRequest request = newRequest(1, false);
+            request.getRecords().get(0).setData(ByteBuffer.wrap(("record-" + i).getBytes()));
+            request.getRecords().get(0).setPartitionKey("key");
+            futures.add(producer.putRecordsAsync(request, null));
+        }
+        for (Future<PutRecordsResult> future : futures)
+        {
+            Assert.assertEquals(0, future.get(10, TimeUnit.SECONDS).getFailedRecordCount().get());
+        }
+        producer.close();
+        
+        int expected = 0;
+        for (PutRecordsRequest sent : fake.requests())
+        {
+            for (PutRecordsRequestEntry entry : sent.getRecords())
+            {
+                Assert.assertEquals("record-" + expected++, new String(entry.getData().array()));
+            }
+        }
+        Assert.assertEquals(100, expected);
+        return fake.maxInFlight();
+    }
+    
+    @Test
+    public void testSendAndForgetReportsFailuresToListener()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 10);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicReference<String> errorCode = new AtomicReference<>();
+        producer.setErrorListener(new ProducerErrorListener()
+        {
+            @Override
+            public void onError(String streamName, int failedRecords, PutRecordsResultEntry sample,
+                DISClientException exception)
+            {
+                Assert.assertEquals("stream", streamName);
+                failed.addAndGet(failedRecords);
+                errorCode.set(sample.getErrorCode());
+            }
+        });
+        
+        for (int i = 0; i < 200; i++)
+        {
+            producer.sendAndForget("stream", "key-" + i, ByteBuffer.wrap(("record-" + i).getBytes()));
+        }
+        producer.flush();
+        
+        Map<String, Number> metrics = producer.metrics();
+        Assert.assertTrue(failed.get() > 0);
+        Assert.assertEquals(FakeDISAsync.TRAFFIC_CONTROL_ERROR, errorCode.get());
+        Assert.assertEquals(metrics.get("records.failed").intValue(), failed.get());
+        Assert.assertEquals(200, metrics.get("records.succeeded").intValue() + failed.get());
+        producer.close();
+    }
+    
+    @Test
+    public void testSendAndForgetReportsRequestErrorsToListener()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        fake.failNextRequests(1);
+        DISConfig config = new DISConfig();
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicReference<DISClientException> error = new AtomicReference<>();
+        producer.setErrorListener(new ProducerErrorListener()
+        {
+            @Override
+            public void onError(String streamName, int failedRecords, PutRecordsResultEntry sample,
+                DISClientException exception)
+            {
+                failed.addAndGet(failedRecords);
+                error.set(exception);
+            }
+        });
+        
+        producer.sendAndForget("stream", ByteBuffer.wrap("record".getBytes()));
+        producer.flush();
+        Assert.assertEquals(1, failed.get());
+        Assert.assertEquals("Connection reset", error.get().getMessage());
+        
+        // 不需要结果时可以不传回调
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(ByteBuffer.wrap("record".getBytes()));
+        Assert.assertNull(producer.putRecordAsync("stream", entry, null).get(10, TimeUnit.SECONDS).getErrorCode());
+        producer.close();
+    }
+    
+    @Test
+    public void testCloseSendsRemainingBatchesWithoutLinger()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setSenderThreads(2);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "60000");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        List<CompletableFuture<PutRecordsResultEntry>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            futures.add(producer.send("stream", "key-" + i, ByteBuffer.wrap(("record-" + i).getBytes())));
+        }
+        
+        long start = System.currentTimeMillis();
+        producer.close(30, TimeUnit.SECONDS);
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        for (CompletableFuture<PutRecordsResultEntry> future : futures)
+        {
+            Assert.assertNull(future.getNow(null).getErrorCode());
+        }
+        Assert.assertEquals(0, producer.metrics().get("records.aborted").intValue());
+    }
+    
+    @Test
+    public void testCloseAbortsIncompleteBatchesAfterTimeout()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 3000, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setMaxInFlightBatchesPerPartition(1);
+        config.set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, "10");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        final AtomicInteger reported = new AtomicInteger();
+        producer.setErrorListener(new ProducerErrorListener()
+        {
+            @Override
+            public void onError(String streamName, int failedRecords, PutRecordsResultEntry sample,
+                DISClientException exception)
+            {
+                Assert.assertTrue(exception instanceof DISProducerClosedException);
+                reported.addAndGet(failedRecords);
+            }
+        });
+        List<CompletableFuture<PutRecordsResultEntry>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            futures.add(producer.send("stream", "key-" + i, ByteBuffer.wrap(("record-" + i).getBytes())));
+        }
+        
+        long start = System.currentTimeMillis();
+        producer.close(200, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        for (CompletableFuture<PutRecordsResultEntry> future : futures)
+        {
+            try
+            {
+                future.getNow(null);
+                Assert.fail("record should be aborted");
+            }
+            catch (CompletionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof DISProducerClosedException);
+            }
+        }
+        Assert.assertEquals(100, producer.metrics().get("records.aborted").intValue());
+        Assert.assertEquals(100, reported.get());
+    }
+    
+    @Test
+    public void testStartPrefetchesMetadata()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.setWarmupConnections(5);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        producer.start(Arrays.asList("stream", "stream-2", "stream")).get(10, TimeUnit.SECONDS);
+        // 每个通道至少一个请求，总数为预热连接数
+        Assert.assertEquals(5, fake.describeRequests());
+        
+        producer.send("stream", "key", ByteBuffer.wrap("record".getBytes())).get(10, TimeUnit.SECONDS);
+        producer.send("stream-2", "key", ByteBuffer.wrap("record".getBytes())).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(5, fake.describeRequests());
+        producer.close();
+    }
+    
+    @Test
+    public void testStartFailsForMissingStream()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(PARTITIONS, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setWarmupConnections(4);
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        
+        try
+        {
+            producer.start(Arrays.asList("stream", "missing-stream")).get(10, TimeUnit.SECONDS);
+            Assert.fail("warm up should fail for a missing stream");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof DISStreamNotExistsException);
+        }
+        producer.close();
+    }
+    
+    static PutRecordsRequest newRequest(int count, boolean keyed)
+    {
+        List<PutRecordsRequestEntry> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+            entry.setData(ByteBuffer.wrap(("record-" + i).getBytes()));
+            if (keyed)
+            {
+                entry.setPartitionKey("key-" + i);
+            }
+            records.add(entry);
+        }
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        request.setRecords(records);
+        return request;
+    }
+    
+    public static class RecordingMetricsReporter implements MetricsReporter
+    {
+        static final List<Map<String, Number>> reports = new CopyOnWriteArrayList<>();
+        
+        static volatile boolean closed;
+        
+        @Override
+        public void configure(DISConfig config)
+        {
+            reports.clear();
+            closed = false;
+        }
+        
+        @Override
+        public void report(Map<String, Number> metrics)
+        {
+            reports.add(metrics);
+        }
+        
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.huaweicloud.dis.DISAsync;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.core.util.StringUtils;
+import com.huaweicloud.dis.exception.DISClientRetriableException;
+import com.huaweicloud.dis.exception.DISRequestEntityTooLargeException;
+import com.huaweicloud.dis.exception.DISStreamNotExistsException;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.huaweicloud.dis.iface.stream.request.DescribeStreamRequest;
+import com.huaweicloud.dis.iface.stream.response.DescribeStreamResult;
+
+/**
+ * 测试用的DISAsync，只实现DISProducer用到的接口。
+ * 每个上传请求延迟latencyMs后完成；每个分片每秒最多接收partitionQuota条记录，超出的记录返回流控错误。
+ */
+public class FakeDISAsync implements InvocationHandler
+{
+    public static final String TRAFFIC_CONTROL_ERROR = "DIS.4303";
+    
+    private final int partitions;
+    
+    private final long latencyMs;
+    
+    private final int partitionQuota;
+    
+    private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(4);
+    
+    private final List<PutRecordsRequest> requests = Collections.synchronizedList(new ArrayList<PutRecordsRequest>());
+    
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    
+    private final AtomicInteger[] windowCounts;
+    
+    private final AtomicLong sequence = new AtomicLong();
+    
+    private final AtomicInteger failures = new AtomicInteger();
+    
+    private final AtomicInteger received = new AtomicInteger();
+    
+    private final Set<Integer> failingRequests = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    
+    private final List<String> accepted = new ArrayList<>();
+    
+    private volatile long maxRequestBytes = Long.MAX_VALUE;
+    
+    private volatile List<String> payloads;
+    
+    private final AtomicInteger describeRequests = new AtomicInteger();
+    
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    
+    public FakeDISAsync(int partitions, long latencyMs, int partitionQuota)
+    {
+        this.partitions = partitions;
+        this.latencyMs = latencyMs;
+        this.partitionQuota = partitionQuota;
+        this.windowCounts = new AtomicInteger[partitions];
+        for (int i = 0; i < partitions; i++)
+        {
+            windowCounts[i] = new AtomicInteger();
+        }
+    }
+    
+    public DISAsync proxy()
+    {
+        return (DISAsync)Proxy.newProxyInstance(DISAsync.class.getClassLoader(), new Class<?>[] {DISAsync.class}, this);
+    }
+    
+    /**
+     * 接下来的count个上传请求整体失败，抛出可重试的异常
+     */
+    public void failNextRequests(int count)
+    {
+        failures.set(count);
+    }
+    
+    /**
+     * 第index个(从0开始)收到的上传请求整体失败，抛出可重试的异常
+     */
+    public void failRequest(int index)
+    {
+        failingRequests.add(index);
+    }
+    
+    /**
+     * @return 服务端接受的记录数据，按接受的顺序
+     */
+    public List<String> acceptedPayloads()
+    {
+        synchronized (accepted)
+        {
+            return new ArrayList<>(accepted);
+        }
+    }
+    
+    /**
+     * 数据总字节数超过maxRequestBytes的上传请求整体失败，抛出请求体超限的异常
+     */
+    public void setMaxRequestBytes(long maxRequestBytes)
+    {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+    
+    /**
+     * 之后收到的记录数据按UTF-8解码后保存，在请求发出时复制，不受内存池buffer复用的影响
+     */
+    public void capturePayloads()
+    {
+        payloads = Collections.synchronizedList(new ArrayList<String>());
+    }
+    
+    /**
+     * @return capturePayloads之后收到的记录数据
+     */
+    public List<String> payloads()
+    {
+        synchronized (payloads)
+        {
+            return new ArrayList<>(payloads);
+        }
+    }
+    
+    /**
+     * @return 同时处理中的上传请求数的最大值
+     */
+    public int maxInFlight()
+    {
+        return maxInFlight.get();
+    }
+    
+    public List<PutRecordsRequest> requests()
+    {
+        synchronized (requests)
+        {
+            return new ArrayList<>(requests);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+    {
+        switch (method.getName())
+        {
+            case "describeStream":
+                return describeStream((DescribeStreamRequest)args[0]);
+            case "describeStreamAsync":
+                return describeStreamAsync((DescribeStreamRequest)args[0],
+                    args.length > 1 ? (AsyncHandler<DescribeStreamResult>)args[1] : null);
+            case "putRecordsAsync":
+                return putRecordsAsync((PutRecordsRequest)args[0],
+                    args.length > 1 ? (AsyncHandler<PutRecordsResult>)args[1] : null);
+            case "close":
+                executor.shutdown();
+                return null;
+            case "toString":
+                return "FakeDISAsync";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+    
+    /**
+     * @return 收到的元数据请求数
+     */
+    public int describeRequests()
+    {
+        return describeRequests.get();
+    }
+    
+    /*
+     * 名称以missing开头的通道不存在
+     */
+    private DescribeStreamResult describeStream(DescribeStreamRequest request)
+    {
+        describeRequests.incrementAndGet();
+        if (request.getStreamName().startsWith("missing"))
+        {
+            throw new DISStreamNotExistsException("Stream " + request.getStreamName() + " does not exist");
+        }
+        DescribeStreamResult describeStreamResult = new DescribeStreamResult();
+        describeStreamResult.setWritablePartitionCount(partitions);
+        return describeStreamResult;
+    }
+    
+    private Future<DescribeStreamResult> describeStreamAsync(final DescribeStreamRequest request,
+        final AsyncHandler<DescribeStreamResult> handler)
+    {
+        return executor.schedule(new Callable<DescribeStreamResult>()
+        {
+            @Override
+            public DescribeStreamResult call()
+            {
+                DescribeStreamResult result;
+                try
+                {
+                    result = describeStream(request);
+                }
+                catch (RuntimeException e)
+                {
+                    if (handler != null)
+                    {
+                        handler.onError(e);
+                    }
+                    throw e;
+                }
+                if (handler != null)
+                {
+                    handler.onSuccess(result);
+                }
+                return result;
+            }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+    }
+    
+    private Future<PutRecordsResult> putRecordsAsync(final PutRecordsRequest request,
+        final AsyncHandler<PutRecordsResult> handler)
+    {
+        requests.add(request);
+        final boolean fail = failingRequests.remove(received.getAndIncrement());
+        if (payloads != null)
+        {
+            for (PutRecordsRequestEntry record : request.getRecords())
+            {
+                payloads.add(StandardCharsets.UTF_8.decode(record.getData().duplicate()).toString());
+            }
+        }
+        int current = inFlight.incrementAndGet();
+        int max;
+        while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current))
+        {
+        }
+        return executor.schedule(new Callable<PutRecordsResult>()
+        {
+            @Override
+            public PutRecordsResult call()
+            {
+                inFlight.decrementAndGet();
+                if (failures.getAndDecrement() > 0 || fail)
+                {
+                    DISClientRetriableException exception = new DISClientRetriableException("Connection reset");
+                    if (handler != null)
+                    {
+                        handler.onError(exception);
+                    }
+                    throw exception;
+                }
+                long bytes = 0;
+                for (PutRecordsRequestEntry record : request.getRecords())
+                {
+                    bytes += record.getData().remaining();
+                }
+                if (bytes > maxRequestBytes)
+                {
+                    DISRequestEntityTooLargeException exception =
+                        new DISRequestEntityTooLargeException("Request entity too large: " + bytes);
+                    if (handler != null)
+                    {
+                        handler.onError(exception);
+                    }
+                    throw exception;
+                }
+                PutRecordsResult result = handle(request);
+                if (handler != null)
+                {
+                    handler.onSuccess(result);
+                }
+                return result;
+            }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+    }
+    
+    private PutRecordsResult handle(PutRecordsRequest request)
+    {
+        rollWindow();
+        List<PutRecordsResultEntry> entries = new ArrayList<>(request.getRecords().size());
+        int failed = 0;
+        for (PutRecordsRequestEntry record : request.getRecords())
+        {
+            int partition = partitionOf(record);
+            PutRecordsResultEntry entry = new PutRecordsResultEntry();
+            entry.setPartitionId(String.valueOf(partition));
+            if (partitionQuota > 0 && windowCounts[partition].incrementAndGet() > partitionQuota)
+            {
+                entry.setErrorCode(TRAFFIC_CONTROL_ERROR);
+                entry.setErrorMessage("Exceeded traffic control limit.");
+                failed++;
+            }
+            else
+            {
+                synchronized (accepted)
+                {
+                    entry.setSequenceNumber(String.valueOf(sequence.incrementAndGet()));
+                    accepted.add(StandardCharsets.UTF_8.decode(record.getData().duplicate()).toString());
+                }
+            }
+            entries.add(entry);
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setRecords(entries);
+        result.setFailedRecordCount(new AtomicInteger(failed));
+        return result;
+    }
+    
+    private void rollWindow()
+    {
+        long start = windowStart.get();
+        long now = System.currentTimeMillis();
+        if (now - start >= 1000 && windowStart.compareAndSet(start, now))
+        {
+            for (AtomicInteger count : windowCounts)
+            {
+                count.set(0);
+            }
+        }
+    }
+    
+    /*
+     * 与服务端一致的分片计算：指定分片的直接使用，否则根据partitionKey/explicitHashKey计算，都没有时随机
+     */
+    public int partitionOf(PutRecordsRequestEntry record)
+    {
+        if (!StringUtils.isNullOrEmpty(record.getPartitionId()))
+        {
+            return PartitionKeyUtils.getPartitionNumberFromShardId(record.getPartitionId());
+        }
+        long hashKey = PartitionKeyUtils.getHashKey(record.getPartitionKey(), record.getExplicitHashKey());
+        return PartitionKeyUtils.calPartitionIndex(partitions, hashKey);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.core.handler.AsyncHandler;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 单条记录发送的每条分配字节数：{@code putRecordAsync}、{@code send}与{@code sendAndForget}对比。
+ * 写线程的分配只包括追加路径；全部线程的分配还包括Sender完成回调以及{@link FakeDISAsync}模拟服务端的开销。
+ * 依赖HotSpot的{@code com.sun.management.ThreadMXBean}。
+ */
+public class SendAllocationBenchmark
+{
+    private static final int RECORDS = 1000000;
+    
+    private static final int WINDOW = 10000;
+    
+    @Test
+    @Ignore
+    public void benchmarkAllocation()
+        throws Exception
+    {
+        for (int round = 0; round < 3; round++)
+        {
+            System.out.println("putRecordAsync : " + run(0));
+            System.out.println("send           : " + run(1));
+            System.out.println("sendAndForget  : " + run(2));
+        }
+    }
+    
+    private String run(int mode)
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(4, 0, 0);
+        DISConfig config = new DISConfig();
+        config.setPartitionAwareBatchingEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        ByteBuffer data = ByteBuffer.wrap(new byte[100]);
+        AsyncHandler<PutRecordsResultEntry> callback = new AsyncHandler<PutRecordsResultEntry>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResultEntry result)
+            {
+            }
+            
+            @Override
+            public void onError(Exception exception)
+            {
+            }
+        };
+        String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = "key-" + i;
+        }
+        
+        // 定期等待，避免缓冲区满后阻塞；只等待窗口内最后一条记录
+        Future<PutRecordsResultEntry> last = null;
+        long callerStart = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long totalStart = totalAllocatedBytes(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++)
+        {
+            String key = keys[i & (keys.length - 1)];
+            if (mode == 2)
+            {
+                producer.sendAndForget("stream", key, data);
+                if (i % WINDOW == WINDOW - 1)
+                {
+                    producer.flush();
+                }
+                continue;
+            }
+            if (mode == 1)
+            {
+                last = producer.send("stream", key, data);
+            }
+            else
+            {
+                PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+                entry.setData(data);
+                entry.setPartitionKey(key);
+                last = producer.putRecordAsync("stream", entry, callback);
+            }
+            if (i % WINDOW == WINDOW - 1)
+            {
+                last.get(10, TimeUnit.SECONDS);
+            }
+        }
+        producer.flush();
+        long elapsedNs = System.nanoTime() - start;
+        long caller = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - callerStart;
+        long total = totalAllocatedBytes(threads) - totalStart;
+        producer.close();
+        
+        return String.format("%,d records/s, caller %,d B/record, all threads %,d B/record",
+            RECORDS * 1000000000L / elapsedNs, caller / RECORDS, total / RECORDS);
+    }
+    
+    /*
+     * 存活线程的分配总量，测量期间退出的线程不计入
+     */
+    private static long totalAllocatedBytes(com.sun.management.ThreadMXBean threads)
+    {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+        {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * 对象记录发送的每条分配字节数：调用者序列化为byte[]后{@code send(ByteBuffer)}(内存池中再复制一次)与
+ * {@link TypedDISProducer}直接序列化到内存池buffer对比。两者都开启内存池，只统计写线程。
+ * 依赖HotSpot的{@code com.sun.management.ThreadMXBean}。
+ */
+public class SerializerBenchmark
+{
+    private static final int RECORDS = 1000000;
+    
+    private static final int WINDOW = 10000;
+    
+    private static final int VALUE_SIZE = 512;
+    
+    private static final Serializer<byte[]> SERIALIZER = new Serializer<byte[]>()
+    {
+        @Override
+        public void serialize(String streamName, byte[] data, OutputStream out)
+            throws IOException
+        {
+            // 模拟逐字段写出的序列化框架
+            for (int i = 0; i < data.length; i += 64)
+            {
+                out.write(data, i, Math.min(64, data.length - i));
+            }
+        }
+    };
+    
+    @Test
+    @Ignore
+    public void benchmarkSerializer()
+        throws Exception
+    {
+        for (int round = 0; round < 3; round++)
+        {
+            System.out.println("byte[] + send  : " + run(false));
+            System.out.println("TypedProducer  : " + run(true));
+        }
+    }
+    
+    private String run(boolean typed)
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(4, 0, 0);
+        DISConfig config = new DISConfig();
+        config.setBufferPoolEnabled(true);
+        config.setPartitionAwareBatchingEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        DISProducer producer = new DISProducer(config, fake.proxy());
+        TypedDISProducer<String, byte[]> typedProducer = new TypedDISProducer<>(config, fake.proxy(), SERIALIZER);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        byte[] value = new byte[VALUE_SIZE];
+        String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = "key-" + i;
+        }
+        
+        // 定期等待，避免缓冲区满后阻塞；只等待窗口内最后一条记录
+        Future<PutRecordsResultEntry> last = null;
+        long callerStart = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++)
+        {
+            String key = keys[i & (keys.length - 1)];
+            if (typed)
+            {
+                last = typedProducer.send("stream", key, value);
+            }
+            else
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(VALUE_SIZE);
+                SERIALIZER.serialize("stream", value, out);
+                last = producer.send("stream", key, ByteBuffer.wrap(out.toByteArray()));
+            }
+            if (i % WINDOW == WINDOW - 1)
+            {
+                last.get(10, TimeUnit.SECONDS);
+            }
+        }
+        last.get(10, TimeUnit.SECONDS);
+        long elapsedNs = System.nanoTime() - start;
+        long caller = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - callerStart;
+        producer.close();
+        typedProducer.close();
+        
+        return String.format("%,d records/s, caller %,d B/record", RECORDS * 1000000000L / elapsedNs,
+            caller / RECORDS);
+    }
+}
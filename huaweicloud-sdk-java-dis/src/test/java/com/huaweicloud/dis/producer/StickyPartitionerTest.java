@@ -0,0 +1,85 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+public class StickyPartitionerTest
+{
+    private static final int PARTITIONS = 4;
+    
+    @Test
+    public void testStickUntilNewBatch()
+    {
+        StickyPartitioner partitioner = new StickyPartitioner();
+        int partition = partitioner.partition("stream", keyless(), PARTITIONS);
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertEquals(partition, partitioner.partition("stream", keyless(), PARTITIONS));
+        }
+        
+        partitioner.onNewBatch("stream", partition, PARTITIONS);
+        int next = partitioner.partition("stream", keyless(), PARTITIONS);
+        Assert.assertNotEquals(partition, next);
+        
+        // 已经切换过的旧分片再次通知时不会重复切换
+        partitioner.onNewBatch("stream", partition, PARTITIONS);
+        Assert.assertEquals(next, partitioner.partition("stream", keyless(), PARTITIONS));
+    }
+    
+    @Test
+    public void testKeyedRecordsMatchDefault()
+    {
+        StickyPartitioner sticky = new StickyPartitioner();
+        DefaultPartitioner defaults = new DefaultPartitioner();
+        for (int i = 0; i < 100; i++)
+        {
+            PutRecordsRequestEntry entry = keyless();
+            entry.setPartitionKey("key-" + i);
+            Assert.assertEquals(defaults.partition("stream", entry, PARTITIONS),
+                sticky.partition("stream", entry, PARTITIONS));
+        }
+        
+        PutRecordsRequestEntry pinned = keyless();
+        pinned.setPartitionId("shardId-0000000002");
+        Assert.assertEquals(2, sticky.partition("stream", pinned, PARTITIONS));
+    }
+    
+    @Test
+    public void testStreamsStickIndependently()
+    {
+        StickyPartitioner partitioner = new StickyPartitioner();
+        int a = partitioner.partition("a", keyless(), PARTITIONS);
+        int b = partitioner.partition("b", keyless(), PARTITIONS);
+        
+        partitioner.onNewBatch("a", a, PARTITIONS);
+        Assert.assertNotEquals(a, partitioner.partition("a", keyless(), PARTITIONS));
+        Assert.assertEquals(b, partitioner.partition("b", keyless(), PARTITIONS));
+    }
+    
+    private static PutRecordsRequestEntry keyless()
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(ByteBuffer.wrap("record".getBytes()));
+        return entry;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.DISConfig;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class TypedDISProducerTest
+{
+    private static final Serializer<String> UTF8 = new Serializer<String>()
+    {
+        @Override
+        public void serialize(String streamName, String data, OutputStream out)
+            throws IOException
+        {
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+        }
+    };
+    
+    @Test
+    public void testSendSerializesIntoBufferPool()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(4, 1, 0);
+        fake.capturePayloads();
+        DISConfig config = new DISConfig();
+        config.setBufferPoolEnabled(true);
+        config.setPartitionAwareBatchingEnabled(true);
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        TypedDISProducer<Integer, String> producer = new TypedDISProducer<>(config, fake.proxy(), UTF8);
+        
+        // 记录大小交替变化，覆盖超过初始容量时扩容的情况
+        List<String> expected = new ArrayList<>();
+        List<CompletableFuture<PutRecordsResultEntry>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            StringBuilder value = new StringBuilder("record-").append(i).append('-');
+            for (int j = 0; j < (i % 7) * 300; j++)
+            {
+                value.append('x');
+            }
+            expected.add(value.toString());
+            futures.add(producer.send("stream", i, value.toString()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<PutRecordsResultEntry> future : futures)
+        {
+            Assert.assertNull(future.get().getErrorCode());
+        }
+        
+        List<String> payloads = fake.payloads();
+        Collections.sort(expected);
+        Collections.sort(payloads);
+        Assert.assertEquals(expected, payloads);
+        
+        // 批次完成后记录buffer全部归还，归还在完成记录future之后进行
+        assertBuffersReleased(producer);
+        producer.close();
+    }
+    
+    private static void assertBuffersReleased(TypedDISProducer<?, ?> producer)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.metrics().get("bufferpool.allocated.bytes").longValue() != 0
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, producer.metrics().get("bufferpool.allocated.bytes").longValue());
+    }
+    
+    @Test
+    public void testSerializerFailureReleasesBuffer()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(4, 1, 0);
+        DISConfig config = new DISConfig();
+        config.setBufferPoolEnabled(true);
+        TypedDISProducer<String, String> producer =
+            new TypedDISProducer<>(config, fake.proxy(), new Serializer<String>()
+            {
+                @Override
+                public void serialize(String streamName, String data, OutputStream out)
+                    throws IOException
+                {
+                    out.write(new byte[1000]);
+                    throw new IOException("broken " + data);
+                }
+            });
+        
+        try
+        {
+            producer.send("stream", "value");
+            Assert.fail("serialization failure should be thrown");
+        }
+        catch (DISClientException e)
+        {
+            Assert.assertEquals("broken value", e.getCause().getMessage());
+        }
+        assertBuffersReleased(producer);
+        Assert.assertTrue(fake.requests().isEmpty());
+        producer.close();
+    }
+    
+    @Test
+    public void testSendWithoutBufferPool()
+        throws Exception
+    {
+        FakeDISAsync fake = new FakeDISAsync(4, 1, 0);
+        fake.capturePayloads();
+        DISConfig config = new DISConfig();
+        config.set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, "5");
+        TypedDISProducer<String, String> producer = new TypedDISProducer<>(config, fake.proxy(), UTF8);
+        
+        List<CompletableFuture<PutRecordsResultEntry>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            futures.add(producer.send("stream", "record-" + i));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        producer.close();
+        
+        List<String> payloads = fake.payloads();
+        Collections.sort(payloads);
+        Assert.assertEquals(10, payloads.size());
+        Assert.assertEquals("record-0", payloads.get(0));
+    }
+}
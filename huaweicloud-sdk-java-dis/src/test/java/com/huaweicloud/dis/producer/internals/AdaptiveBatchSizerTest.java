@@ -0,0 +1,112 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+
+public class AdaptiveBatchSizerTest
+{
+    private static final StreamPartition SP = new StreamPartition("stream", "0");
+    
+    @Test
+    public void testLowTrafficDisablesLinger()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(50, 0, 200, 1024 * 1024, 1000);
+        Assert.assertEquals(50, sizer.lingerMs(SP));
+        
+        long start = 10000;
+        sizer.recordAppend(SP, 1, 100, start);
+        sizer.sample(SP, start + 1000);
+        Assert.assertEquals(0, sizer.lingerMs(SP));
+        Assert.assertEquals(1000, sizer.batchCount(SP));
+    }
+    
+    @Test
+    public void testHighTrafficFollowsLatency()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(50, 0, 200, 1024 * 1024, 1000);
+        long start = 10000;
+        sizer.recordLatency(SP, 20, start);
+        
+        // 10条/ms，请求耗时20ms：批次400条，攒满需要40ms
+        sizer.recordAppend(SP, 1000, 100 * 1000, start);
+        sizer.sample(SP, start + 100);
+        Assert.assertEquals(400, sizer.batchCount(SP));
+        Assert.assertEquals(40000, sizer.batchSize(SP));
+        Assert.assertEquals(40, sizer.lingerMs(SP));
+        
+        // 采样间隔内不重复计算
+        sizer.recordAppend(SP, 100000, 100, start + 120);
+        sizer.sample(SP, start + 150);
+        Assert.assertEquals(40, sizer.lingerMs(SP));
+    }
+    
+    @Test
+    public void testBounds()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(50, 5, 200, 1024 * 1024, 1000);
+        long start = 10000;
+        
+        // 100条/ms，请求耗时50ms：批次条数受batch.count限制
+        sizer.recordLatency(SP, 50, start);
+        sizer.recordAppend(SP, 10000, 10000, start);
+        sizer.sample(SP, start + 100);
+        Assert.assertEquals(1000, sizer.batchCount(SP));
+        Assert.assertEquals(10, sizer.lingerMs(SP));
+        
+        // 0.05条/ms，请求耗时200ms：linger受上限限制
+        StreamPartition slow = new StreamPartition("stream", "1");
+        sizer.recordLatency(slow, 200, start);
+        sizer.recordAppend(slow, 50, 50, start);
+        sizer.sample(slow, start + 1000);
+        Assert.assertEquals(20, sizer.batchCount(slow));
+        Assert.assertEquals(200, sizer.lingerMs(slow));
+        Assert.assertEquals(10, sizer.minLingerMs());
+        
+        Map<String, Number> metrics = sizer.metrics();
+        Assert.assertEquals(200L, metrics.get("stream-1.linger.ms"));
+        Assert.assertEquals(20, metrics.get("stream-1.batch.count"));
+        Assert.assertEquals(50.0, metrics.get("stream-1.record.rate").doubleValue(), 0.001);
+        Assert.assertEquals(200.0, metrics.get("stream-1.request.latency.ms").doubleValue(), 0.001);
+    }
+    
+    @Test
+    public void testAccumulatorUsesAdaptiveLinger()
+        throws Exception
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 0, 1000, 1024 * 1024, 1000);
+        RecordAccumulator accumulator =
+            new RecordAccumulator(new RecordAccumulator.Settings(1024 * 1024, 1000, 1024 * 1024, 100, 1000)
+                .orderByPartition(true).batchSizer(sizer));
+        CopyOnWriteArrayList<StreamPartition> sending = new CopyOnWriteArrayList<>();
+        
+        accumulator.append(SP, 0, RecordAccumulatorTest.newRequest(0, 0), null, 1000);
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(accumulator.drain(now, sending).isEmpty());
+        Assert.assertEquals(1000, accumulator.lingerMs(SP));
+        
+        // 一秒一条，等待也攒不成批次，linger降为下限后立即发送
+        Assert.assertEquals(1, accumulator.drain(now + 1000, sending).size());
+        Assert.assertEquals(0, accumulator.lingerMs(SP));
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+
+public class BufferLimiterTest
+{
+    @Test
+    public void testAcquireAndRelease()
+        throws Exception
+    {
+        BufferLimiter limiter = new BufferLimiter(100, 2, null);
+        limiter.acquireBytes(60, 0);
+        Assert.assertTrue(limiter.tryAcquireBatch());
+        Assert.assertTrue(limiter.tryAcquireBatch());
+        Assert.assertFalse(limiter.tryAcquireBatch());
+        Assert.assertEquals(60, limiter.usedBytes());
+        Assert.assertEquals(2, limiter.usedBatches());
+        
+        limiter.release(60, 2);
+        Assert.assertEquals(0, limiter.usedBytes());
+        Assert.assertEquals(0, limiter.usedBatches());
+    }
+    
+    @Test(expected = RuntimeException.class)
+    public void testAcquireTimeout()
+        throws Exception
+    {
+        BufferLimiter limiter = new BufferLimiter(100, 2, null);
+        limiter.acquireBytes(100, 0);
+        limiter.acquireBytes(1, System.currentTimeMillis() + 10);
+    }
+    
+    @Test
+    public void testWaitersAreServedInArrivalOrder()
+        throws Exception
+    {
+        final BufferLimiter limiter = new BufferLimiter(100, 10, null);
+        limiter.acquireBytes(100, 0);
+        
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            final int id = i;
+            Thread waiter = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        limiter.acquireBytes(id == 0 ? 80 : 10, System.currentTimeMillis() + 10000);
+                        order.add(id);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            waiter.start();
+            threads.add(waiter);
+            while (limiter.queued() < i + 1)
+            {
+                Thread.sleep(1);
+            }
+        }
+        
+        // 队首需要80字节，释放50字节后后面的小请求也不能插队
+        limiter.release(50, 0);
+        Thread.sleep(50);
+        Assert.assertTrue(order.isEmpty());
+        
+        limiter.release(50, 0);
+        for (Thread thread : threads)
+        {
+            thread.join(10000);
+        }
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals(100, limiter.usedBytes());
+        Assert.assertEquals(0, limiter.queued());
+    }
+    
+    @Test
+    public void testTimedOutWaiterWakesUpNext()
+        throws Exception
+    {
+        final BufferLimiter limiter = new BufferLimiter(100, 10, null);
+        limiter.acquireBytes(90, 0);
+        
+        final AtomicReference<Exception> first = new AtomicReference<>();
+        Thread large = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    limiter.acquireBytes(50, System.currentTimeMillis() + 100);
+                }
+                catch (Exception e)
+                {
+                    first.set(e);
+                }
+            }
+        };
+        large.start();
+        while (limiter.queued() < 1)
+        {
+            Thread.sleep(1);
+        }
+        
+        // 队首超时离开后，排在后面且需求已满足的等待者立即被唤醒
+        long start = System.currentTimeMillis();
+        limiter.acquireBytes(10, start + 10000);
+        large.join(10000);
+        Assert.assertTrue(first.get() instanceof RuntimeException);
+        Assert.assertEquals(100, limiter.usedBytes());
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+    
+    @Test
+    public void testBlockedAppendWakesUpOnOtherPartition()
+        throws Exception
+    {
+        verifyCrossPartitionWakeup(false);
+        verifyCrossPartitionWakeup(true);
+    }
+    
+    private void verifyCrossPartitionWakeup(boolean lockFree)
+        throws Exception
+    {
+        final RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024, 100, 1024, 1, 0).lockFree(lockFree));
+        StreamPartition sp0 = new StreamPartition("stream", "0");
+        final StreamPartition sp1 = new StreamPartition("stream", "1");
+        accumulator.append(sp0, 0, RecordAccumulatorTest.newRequest(0, 1), null, 1000);
+        
+        // 批次数已满，另一个分片的写线程等待，且不持有任何分片的锁
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    accumulator.append(sp1, 0, RecordAccumulatorTest.newRequest(1, 2), null, 10000);
+                }
+                catch (Exception e)
+                {
+                    error.set(e);
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(50);
+        Assert.assertTrue(writer.isAlive());
+        accumulator.append(sp0, 0, RecordAccumulatorTest.newRequest(0, 3), null, 0);
+        
+        List<ProducerBatch> drained = accumulator.drain(System.currentTimeMillis(), new CopyOnWriteArrayList<StreamPartition>());
+        Assert.assertEquals(1, drained.size());
+        ProducerBatch batch = drained.get(0);
+        Assert.assertEquals(2, batch.getBatchPutRecordsRequestEntrys().size());
+        batch.done(new PutRecordsResult(), null);
+        accumulator.batchIsDone(batch);
+        
+        writer.join(10000);
+        Assert.assertFalse(writer.isAlive());
+        Assert.assertNull(error.get());
+        drained = accumulator.drain(System.currentTimeMillis(), new CopyOnWriteArrayList<StreamPartition>());
+        Assert.assertEquals(1, drained.size());
+        Assert.assertEquals(sp1, drained.get(0).getTp());
+    }
+    
+    @Test
+    public void testCloseFailsBlockedWriters()
+        throws Exception
+    {
+        verifyCloseFailsBlockedWriter(false);
+        verifyCloseFailsBlockedWriter(true);
+    }
+    
+    private void verifyCloseFailsBlockedWriter(boolean lockFree)
+        throws Exception
+    {
+        final RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024, 100, 1024, 1, 0).lockFree(lockFree));
+        accumulator.append(new StreamPartition("stream", "0"), 0, RecordAccumulatorTest.newRequest(0, 1), null, 1000);
+        
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    accumulator.append(new StreamPartition("stream", "1"), 0, RecordAccumulatorTest.newRequest(1, 2),
+                        null, 60000);
+                }
+                catch (Exception e)
+                {
+                    error.set(e);
+                }
+            }
+        };
+        writer.start();
+        while (accumulator.metrics().registry().snapshot().get("buffer.waiters").intValue() < 1)
+        {
+            Thread.sleep(1);
+        }
+        
+        // 关闭后阻塞的写线程立即失败，abortIncompleteBatches不必等到它超时
+        long start = System.currentTimeMillis();
+        accumulator.close();
+        List<ProducerBatch> aborted = accumulator.abortIncompleteBatches(new IllegalStateException("closed"));
+        writer.join(10000);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertTrue(error.get() instanceof IllegalStateException);
+        Assert.assertEquals(1, aborted.size());
+        Assert.assertEquals(0, accumulator.metrics().registry().snapshot().get("buffer.used.bytes").longValue());
+    }
+}
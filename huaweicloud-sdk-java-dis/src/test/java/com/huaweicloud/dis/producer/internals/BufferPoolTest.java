@@ -0,0 +1,210 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+
+public class BufferPoolTest
+{
+    @Test
+    public void testAllocateRoundsUpAndReuses()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(64 * 1024, 4096, false);
+        
+        ByteBuffer buffer = pool.allocate(1000);
+        Assert.assertEquals(1024, buffer.capacity());
+        Assert.assertEquals(0, buffer.position());
+        Assert.assertEquals(1000, buffer.limit());
+        Assert.assertEquals(1024, pool.allocatedMemory());
+        
+        pool.deallocate(buffer);
+        Assert.assertEquals(0, pool.allocatedMemory());
+        Assert.assertEquals(1024, pool.cachedMemory());
+        
+        ByteBuffer reused = pool.allocate(600);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(600, reused.limit());
+        Assert.assertEquals(0, pool.cachedMemory());
+        
+        // 超过最大规格的buffer按实际大小分配，不缓存
+        ByteBuffer large = pool.allocate(5000);
+        Assert.assertEquals(5000, large.capacity());
+        pool.deallocate(large);
+        Assert.assertEquals(1024, pool.allocatedMemory());
+        Assert.assertEquals(0, pool.cachedMemory());
+    }
+    
+    @Test
+    public void testDirectBuffer()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(4096, 1024, true);
+        ByteBuffer buffer = pool.allocate(10);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(256, buffer.capacity());
+    }
+    
+    @Test
+    public void testCachedMemoryIsBounded()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(2048, 2048, false);
+        ByteBuffer first = pool.allocate(1024);
+        ByteBuffer second = pool.allocate(1024);
+        ByteBuffer third = pool.allocate(1024);
+        // 内存池本身不限制分配
+        Assert.assertEquals(3072, pool.allocatedMemory());
+        
+        pool.deallocate(first);
+        pool.deallocate(second);
+        pool.deallocate(third);
+        // 缓存已满，第三个buffer交给GC
+        Assert.assertEquals(0, pool.allocatedMemory());
+        Assert.assertEquals(2048, pool.cachedMemory());
+    }
+    
+    @Test
+    public void testConcurrentAllocateAndDeallocate()
+        throws Exception
+    {
+        final BufferPool pool = new BufferPool(64 * 1024, 4096, false);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int seed = t;
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < 10000; i++)
+                        {
+                            ByteBuffer buffer = pool.allocate(4 + (seed * 7919 + i * 31) % 5000);
+                            // 同一个buffer不会同时分配给两个线程
+                            buffer.putInt(0, seed);
+                            Thread.yield();
+                            Assert.assertEquals(seed, buffer.getInt(0));
+                            pool.deallocate(buffer);
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(30000);
+        }
+        Assert.assertNull(error.get());
+        Assert.assertEquals(0, pool.allocatedMemory());
+        Assert.assertTrue(pool.cachedMemory() <= 64 * 1024);
+    }
+    
+    @Test
+    public void testRoundingDoesNotLowerBufferLimit()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(1024, false);
+        RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 100, 1024, 100, 0).bufferPool(pool));
+        StreamPartition sp = new StreamPartition("stream", "0");
+        
+        // 每条记录300字节，在内存池中占用512字节；buffer.memory按记录大小计算，3条共900字节仍在限额内
+        for (int i = 0; i < 3; i++)
+        {
+            PutRecordsRequest request = RecordAccumulatorTest.newRequest(0, i);
+            request.getRecords().get(0).setData(ByteBuffer.allocate(300));
+            accumulator.append(sp, 0, request, null, 0);
+        }
+        Assert.assertEquals(3 * 512, pool.allocatedMemory());
+        
+        try
+        {
+            PutRecordsRequest request = RecordAccumulatorTest.newRequest(0, 3);
+            request.getRecords().get(0).setData(ByteBuffer.allocate(200));
+            accumulator.append(sp, 0, request, null, 0);
+            Assert.fail("buffer.memory should be exhausted");
+        }
+        catch (RuntimeException e)
+        {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("BufferSize"));
+        }
+    }
+    
+    @Test
+    public void testAccumulatorCopiesRecordsIntoPool()
+        throws Exception
+    {
+        verifyAccumulatorWithPool(false);
+        verifyAccumulatorWithPool(true);
+    }
+    
+    private void verifyAccumulatorWithPool(boolean lockFree)
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(1024 * 1024, false);
+        RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 100, 1024 * 1024, 100, 0).lockFree(lockFree).bufferPool(pool));
+        StreamPartition sp = new StreamPartition("stream", "0");
+        
+        PutRecordsRequest request = RecordAccumulatorTest.newRequest(1, 2);
+        ByteBuffer callerData = request.getRecords().get(0).getData();
+        accumulator.append(sp, 0, request, null, 1000);
+        accumulator.append(sp, 0, RecordAccumulatorTest.newRequest(1, 3), null, 1000);
+        Assert.assertEquals(2 * 256, pool.allocatedMemory());
+        
+        // 调用者的buffer在append返回后即可复用，不影响已缓冲的数据
+        callerData.putInt(0, 99);
+        
+        List<ProducerBatch> drained = accumulator.drain(System.currentTimeMillis(), new CopyOnWriteArrayList<StreamPartition>());
+        Assert.assertEquals(1, drained.size());
+        ProducerBatch batch = drained.get(0);
+        Assert.assertEquals(16, batch.getTotolByteSize());
+        ByteBuffer data = batch.getBatchPutRecordsRequestEntrys().get(0).getData();
+        Assert.assertNotSame(callerData, data);
+        Assert.assertEquals(8, data.remaining());
+        Assert.assertEquals(1, data.getInt(0));
+        Assert.assertEquals(2, data.getInt(4));
+        
+        batch.done(new PutRecordsResult(), null);
+        accumulator.batchIsDone(batch);
+        Assert.assertEquals(0, pool.allocatedMemory());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.producer.internals;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.request.StreamType;
+
+public class PartitionRateLimiterTest
+{
+    private static final StreamPartition SP = new StreamPartition("stream", "0");
+    
+    @Test
+    public void testUnknownStreamIsNotLimited()
+    {
+        PartitionRateLimiter limiter = new PartitionRateLimiter();
+        limiter.record(SP, 100000, 100L * 1024 * 1024, 0);
+        Assert.assertTrue(limiter.canSend(SP, 0));
+        limiter.onThrottled(SP, 0);
+        Assert.assertEquals(1.0, limiter.rateFactor(SP), 0);
+    }
+    
+    @Test
+    public void testDebtIsRepaidAtQuota()
+    {
+        PartitionRateLimiter limiter = new PartitionRateLimiter();
+        limiter.updateStreamType("stream", StreamType.COMMON);
+        Assert.assertTrue(limiter.canSend(SP, 0));
+        
+        // 初始可突发100ms的配额(100条)，透支到-400条后需要500ms才能再次发送
+        limiter.record(SP, 500, 1000, 0);
+        Assert.assertFalse(limiter.canSend(SP, 0));
+        Assert.assertFalse(limiter.canSend(SP, 399));
+        Assert.assertTrue(limiter.canSend(SP, 400));
+        
+        // 字节配额同样生效
+        limiter.record(SP, 1, 2 * 1024 * 1024, 400);
+        Assert.assertFalse(limiter.canSend(SP, 1400));
+        Assert.assertTrue(limiter.canSend(SP, 2400));
+    }
+    
+    @Test
+    public void testIdleTokensAreCapped()
+    {
+        PartitionRateLimiter limiter = new PartitionRateLimiter();
+        limiter.updateStreamType("stream", StreamType.COMMON);
+        Assert.assertTrue(limiter.canSend(SP, 0));
+        
+        // 空闲10秒后最多积攒100条，而不是10000条
+        limiter.record(SP, 300, 1000, 10000);
+        Assert.assertFalse(limiter.canSend(SP, 10000));
+        Assert.assertTrue(limiter.canSend(SP, 10200));
+    }
+    
+    @Test
+    public void testThrottlingHalvesRateAndAcceptanceRecovers()
+    {
+        PartitionRateLimiter limiter = new PartitionRateLimiter();
+        limiter.updateStreamType("stream", StreamType.COMMON);
+        Assert.assertTrue(limiter.canSend(SP, 0));
+        
+        limiter.onThrottled(SP, 0);
+        Assert.assertEquals(0.5, limiter.rateFactor(SP), 1e-9);
+        // 同一配额窗口内的多次流控只降速一次
+        limiter.onThrottled(SP, 500);
+        Assert.assertEquals(0.5, limiter.rateFactor(SP), 1e-9);
+        limiter.onThrottled(SP, 1000);
+        Assert.assertEquals(0.25, limiter.rateFactor(SP), 1e-9);
+        
+        // 降速后积攒的令牌作废，按配额的1/4(250条/秒)恢复：100条需要400ms
+        limiter.record(SP, 100, 100, 1000);
+        Assert.assertFalse(limiter.canSend(SP, 1399));
+        Assert.assertTrue(limiter.canSend(SP, 1400));
+        
+        for (int i = 0; i < 100; i++)
+        {
+            limiter.onAccepted(SP);
+        }
+        Assert.assertEquals(1.0, limiter.rateFactor(SP), 0);
+    }
+    
+    @Test
+    public void testStreamTypeChangeResetsQuota()
+    {
+        PartitionRateLimiter limiter = new PartitionRateLimiter();
+        limiter.updateStreamType("stream", StreamType.COMMON);
+        limiter.record(SP, 1100, 1000, 0);
+        Assert.assertFalse(limiter.canSend(SP, 500));
+        
+        limiter.updateStreamType("stream", StreamType.ADVANCED);
+        Assert.assertTrue(limiter.canSend(SP, 500));
+        limiter.record(SP, 400, 1000, 500);
+        // 高级通道每秒2000条
+        Assert.assertFalse(limiter.canSend(SP, 599));
+        Assert.assertTrue(limiter.canSend(SP, 600));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+
+/**
+ * 多线程追加吞吐对比：加锁模式与无锁模式的{@link RecordAccumulator}。Sender由一个只做drain与回收的线程模拟，不访问网络。
+ */
+public class RecordAccumulatorBenchmark
+{
+    private static final int THREADS = 64;
+    
+    private static final int PARTITIONS = 256;
+    
+    private static final long WARMUP_MS = 2000;
+    
+    private static final long MEASURE_MS = 5000;
+    
+    @Test
+    @Ignore
+    public void benchmarkAppend()
+        throws Exception
+    {
+        for (int round = 0; round < 2; round++)
+        {
+            System.out.println(String.format("locked    : %,d appends/s", run(false)));
+            System.out.println(String.format("lock-free : %,d appends/s", run(true)));
+        }
+    }
+    
+    private long run(boolean lockFree)
+        throws Exception
+    {
+        final RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 1000, 256 * 1024 * 1024, 50000, 0).lockFree(lockFree));
+        final StreamPartition[] partitions = new StreamPartition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++)
+        {
+            partitions[i] = new StreamPartition("stream", String.valueOf(i));
+        }
+        
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicBoolean measuring = new AtomicBoolean(false);
+        final LongAdder appends = new LongAdder();
+        final CountDownLatch finished = new CountDownLatch(THREADS);
+        final PutRecordsRequest[] requests = new PutRecordsRequest[THREADS];
+        
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int threadId = t;
+            requests[t] = RecordAccumulatorTest.newRequest(t, 0);
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    int i = threadId;
+                    try
+                    {
+                        while (running.get())
+                        {
+                            accumulator.append(partitions[i++ % PARTITIONS], 0, requests[threadId], null, Long.MAX_VALUE);
+                            if (measuring.get())
+                            {
+                                appends.increment();
+                            }
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        
+        Thread drainer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                CopyOnWriteArrayList<StreamPartition> sending = new CopyOnWriteArrayList<>();
+                PutRecordsResult result = new PutRecordsResult();
+                while (finished.getCount() > 0 || accumulator.hasUndrained())
+                {
+                    for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), sending))
+                    {
+                        batch.done(result, null);
+                        accumulator.batchIsDone(batch);
+                    }
+                }
+            }
+        };
+        
+        drainer.start();
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        
+        TimeUnit.MILLISECONDS.sleep(WARMUP_MS);
+        measuring.set(true);
+        long start = System.nanoTime();
+        TimeUnit.MILLISECONDS.sleep(MEASURE_MS);
+        measuring.set(false);
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        finished.await();
+        drainer.join();
+        
+        return appends.sum() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
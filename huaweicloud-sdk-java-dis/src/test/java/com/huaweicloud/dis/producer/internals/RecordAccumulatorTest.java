@@ -0,0 +1,464 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.StreamPartition;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.util.RecordSizeEstimator;
+
+public class RecordAccumulatorTest
+{
+    private static final int THREADS = 8;
+    
+    private static final int RECORDS_PER_THREAD = 5000;
+    
+    private static final int PARTITIONS = 4;
+    
+    @Test
+    public void testConcurrentAppendLocked()
+        throws Exception
+    {
+        verifyConcurrentAppend(false);
+    }
+    
+    @Test
+    public void testConcurrentAppendLockFree()
+        throws Exception
+    {
+        verifyConcurrentAppend(true);
+    }
+    
+    @Test
+    public void testLockFreeBatchIsFull()
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 3, 1024 * 1024, 100, 0).lockFree(true));
+        StreamPartition sp = new StreamPartition("stream", "0");
+        
+        Assert.assertTrue(accumulator.append(sp, 0, newRequest(0, 0), null, 1000).newBatchCreated);
+        Assert.assertFalse(accumulator.append(sp, 0, newRequest(0, 1), null, 1000).batchIsFull);
+        Assert.assertTrue(accumulator.append(sp, 0, newRequest(0, 2), null, 1000).batchIsFull);
+        Assert.assertTrue(accumulator.append(sp, 0, newRequest(0, 3), null, 1000).newBatchCreated);
+        
+        List<ProducerBatch> drained = accumulator.drain(System.currentTimeMillis(), new CopyOnWriteArrayList<StreamPartition>());
+        Assert.assertEquals(1, drained.size());
+        Assert.assertEquals(3, drained.get(0).getBatchPutRecordsRequestEntrys().size());
+        Assert.assertTrue(accumulator.hasUndrained());
+    }
+    
+    @Test(timeout = 5000)
+    public void testFailedLockFreeAppendDoesNotBlockSender()
+    {
+        ProducerBatch batch = new ProducerBatch(new StreamPartition("stream", "0"), 1024 * 1024, 10, 10, null);
+        Assert.assertEquals(0, batch.tryAppend(0, newRequest(0, 0).getRecords(), null, null, 100));
+        // 占用slot之后写入失败
+        List<PutRecordsRequestEntry> failing = new ArrayList<PutRecordsRequestEntry>(newRequest(0, 1).getRecords())
+        {
+            @Override
+            public PutRecordsRequestEntry get(int index)
+            {
+                throw new OutOfMemoryError("test");
+            }
+        };
+        try
+        {
+            batch.tryAppend(0, failing, null, null, 100);
+            Assert.fail("expected OutOfMemoryError");
+        }
+        catch (OutOfMemoryError e)
+        {
+            // 预期
+        }
+        
+        batch.closeAndAwaitAppends();
+        Assert.assertEquals(2, batch.getRelativeOffset());
+        Assert.assertTrue(batch.isAppendAbandoned());
+    }
+    
+    @Test
+    public void testBatchesPackUpToEstimatedSize()
+        throws Exception
+    {
+        verifyBatchPacking(false);
+        verifyBatchPacking(true);
+    }
+    
+    private void verifyBatchPacking(boolean lockFree)
+        throws Exception
+    {
+        PutRecordsRequest sample = newDirectRequest(0);
+        long recordSize = RecordSizeEstimator.PROTOBUF.estimate(sample);
+        Assert.assertTrue(recordSize > 100);
+        // 第4条记录只差1字节放不下
+        long maxBatchSize = 4 * recordSize - 1;
+        RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(maxBatchSize, 100, 1024 * 1024, 100, 0)
+                .lockFree(lockFree).sizeEstimator(RecordSizeEstimator.PROTOBUF));
+        StreamPartition sp = new StreamPartition("stream", "0");
+        
+        for (int i = 0; i < 10; i++)
+        {
+            RecordAccumulator.RecordAppendResult result = accumulator.append(sp, 0, newDirectRequest(i), null, 1000);
+            Assert.assertEquals(i % 3 == 0, result.newBatchCreated);
+        }
+        
+        List<ProducerBatch> drained = new ArrayList<>();
+        while (accumulator.hasUndrained())
+        {
+            drained.addAll(accumulator.drain(System.currentTimeMillis(), new CopyOnWriteArrayList<StreamPartition>()));
+        }
+        Assert.assertEquals(4, drained.size());
+        for (int i = 0; i < drained.size(); i++)
+        {
+            ProducerBatch batch = drained.get(i);
+            int expected = i < 3 ? 3 : 1;
+            Assert.assertEquals(expected, batch.getBatchPutRecordsRequestEntrys().size());
+            Assert.assertEquals(expected * recordSize, batch.getTotolByteSize());
+            Assert.assertEquals(i * 3, batch.getBatchPutRecordsRequestEntrys().get(0).getData().getInt(3));
+            batch.done(new PutRecordsResult(), null);
+            accumulator.batchIsDone(batch);
+        }
+    }
+    
+    private static PutRecordsRequest newDirectRequest(int seq)
+    {
+        ByteBuffer data = ByteBuffer.allocateDirect(200);
+        data.position(50);
+        data.putInt(53, seq);
+        PutRecordsRequest request = newRequest(0, seq);
+        request.getRecords().get(0).setData(data.slice().asReadOnlyBuffer());
+        return request;
+    }
+    
+    @Test
+    public void testDrainByShard()
+        throws Exception
+    {
+        int shardCount = 3;
+        RecordAccumulator accumulator = new RecordAccumulator(1024 * 1024, 100, 1024 * 1024, 100, 0, true);
+        for (int p = 0; p < 16; p++)
+        {
+            accumulator.append(new StreamPartition("stream", String.valueOf(p)), 0, newRequest(0, p), null, 1000);
+        }
+        
+        // 每个分片只会被一个Sender取出，所有Sender合起来覆盖全部分片
+        Map<StreamPartition, Integer> owners = new HashMap<>();
+        for (int shard = 0; shard < shardCount; shard++)
+        {
+            CopyOnWriteArrayList<StreamPartition> sending = new CopyOnWriteArrayList<>();
+            for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), sending, shard, shardCount))
+            {
+                Assert.assertEquals(shard, RecordAccumulator.shardOf(batch.getTp(), shardCount));
+                Assert.assertNull(owners.put(batch.getTp(), shard));
+            }
+            Assert.assertFalse(accumulator.hasUndrained(shard, shardCount));
+        }
+        Assert.assertEquals(16, owners.size());
+        Assert.assertEquals(shardCount, new HashSet<>(owners.values()).size());
+        Assert.assertFalse(accumulator.hasUndrained());
+    }
+    
+    @Test
+    public void testReenqueueWithBackoff()
+        throws Exception
+    {
+        verifyReenqueueWithBackoff(false);
+        verifyReenqueueWithBackoff(true);
+    }
+    
+    private void verifyReenqueueWithBackoff(boolean lockFree)
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 100, 1024 * 1024, 100, 0)
+                .orderByPartition(true).lockFree(lockFree));
+        StreamPartition sp = new StreamPartition("stream", "0");
+        accumulator.append(sp, 0, newRequest(0, 0), null, 1000);
+        CopyOnWriteArrayList<StreamPartition> sending = new CopyOnWriteArrayList<>();
+        long now = System.currentTimeMillis();
+        ProducerBatch batch = accumulator.drain(now, sending).get(0);
+        
+        // 退避期间同一分片的批次都不发送，之后重试的批次优先发送，且不再接收新记录
+        accumulator.reenqueue(batch, now, 100);
+        accumulator.append(sp, 0, newRequest(0, 1), null, 1000);
+        Assert.assertTrue(accumulator.drain(now + 99, sending).isEmpty());
+        List<ProducerBatch> drained = accumulator.drain(now + 100, sending);
+        Assert.assertEquals(1, drained.size());
+        Assert.assertSame(batch, drained.get(0));
+        Assert.assertEquals(1, batch.getRelativeOffset());
+        Assert.assertEquals(1, accumulator.drain(now + 100, sending).get(0).getRelativeOffset());
+    }
+    
+    @Test
+    public void testOrderedRetryHoldsBackPartition()
+        throws Exception
+    {
+        verifyOrderedRetry(false);
+        verifyOrderedRetry(true);
+    }
+    
+    private void verifyOrderedRetry(boolean lockFree)
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 1, 1024 * 1024, 100, 0)
+                .orderByPartition(true).lockFree(lockFree));
+        StreamPartition sp = new StreamPartition("stream", "0");
+        for (int i = 0; i < 3; i++)
+        {
+            accumulator.append(sp, 0, newRequest(0, i), null, 1000);
+        }
+        InFlightBatches inFlight = new InFlightBatches(4, false);
+        long now = System.currentTimeMillis();
+        ProducerBatch first = drainOne(accumulator, inFlight, now);
+        ProducerBatch second = drainOne(accumulator, inFlight, now);
+        Assert.assertEquals(2, inFlight.inFlight(sp));
+        
+        // 两个批次都需要重试，后发出的先放回，重发时仍按原始顺序逐个发送
+        accumulator.reenqueue(second, now, 0);
+        inFlight.remove(second);
+        Assert.assertTrue(accumulator.drain(now, inFlight, 0, 1).isEmpty());
+        accumulator.reenqueue(first, now, 0);
+        inFlight.remove(first);
+        Assert.assertSame(first, drainOne(accumulator, inFlight, now));
+        Assert.assertTrue(accumulator.drain(now, inFlight, 0, 1).isEmpty());
+        inFlight.remove(first);
+        Assert.assertSame(second, drainOne(accumulator, inFlight, now));
+        Assert.assertTrue(accumulator.drain(now, inFlight, 0, 1).isEmpty());
+        inFlight.remove(second);
+        
+        // 重试完成后恢复并发发送
+        ProducerBatch third = drainOne(accumulator, inFlight, now);
+        Assert.assertFalse(third.isRetry());
+        Assert.assertFalse(accumulator.hasUndrained());
+    }
+    
+    private static ProducerBatch drainOne(RecordAccumulator accumulator, InFlightBatches inFlight, long now)
+    {
+        List<ProducerBatch> drained = accumulator.drain(now, inFlight, 0, 1);
+        Assert.assertEquals(1, drained.size());
+        inFlight.add(drained.get(0));
+        return drained.get(0);
+    }
+    
+    @Test
+    public void testConcurrentFlushIgnoresLinger()
+        throws Exception
+    {
+        verifyConcurrentFlush(false);
+        verifyConcurrentFlush(true);
+    }
+    
+    @Test
+    public void testFlushTimeout()
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(1024 * 1024, 100, 1024 * 1024, 100, 3600000L, false);
+        accumulator.append(new StreamPartition("stream", "0"), 0, newRequest(0, 0), null, 1000);
+        
+        accumulator.beginFlush();
+        Assert.assertTrue(accumulator.flushInProgress());
+        Assert.assertFalse(accumulator.awaitFlushCompletion(20));
+        Assert.assertFalse(accumulator.flushInProgress());
+        Assert.assertEquals(1, accumulator.incompleteBatches());
+    }
+    
+    private void verifyConcurrentFlush(boolean lockFree)
+        throws Exception
+    {
+        // linger为1小时，不flush的话批次不会被发送
+        final RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 100, 1024 * 1024, 100, 3600000L).lockFree(lockFree));
+        for (int p = 0; p < PARTITIONS; p++)
+        {
+            accumulator.append(new StreamPartition("stream", String.valueOf(p)), 0, newRequest(0, p), null, 1000);
+        }
+        
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread sender = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                CopyOnWriteArrayList<StreamPartition> sending = new CopyOnWriteArrayList<>();
+                while (running.get())
+                {
+                    for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), sending))
+                    {
+                        batch.done(new PutRecordsResult(), null);
+                        accumulator.batchIsDone(batch);
+                    }
+                }
+            }
+        };
+        sender.start();
+        
+        final AtomicInteger completed = new AtomicInteger();
+        List<Thread> flushers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            Thread flusher = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        accumulator.beginFlush();
+                        if (accumulator.awaitFlushCompletion(10000))
+                        {
+                            completed.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            flusher.start();
+            flushers.add(flusher);
+        }
+        for (Thread flusher : flushers)
+        {
+            flusher.join();
+        }
+        running.set(false);
+        sender.join();
+        
+        Assert.assertEquals(THREADS, completed.get());
+        Assert.assertEquals(0, accumulator.incompleteBatches());
+        Assert.assertFalse(accumulator.hasUndrained());
+        Assert.assertFalse(accumulator.flushInProgress());
+    }
+    
+    private void verifyConcurrentAppend(boolean lockFree)
+        throws Exception
+    {
+        final RecordAccumulator accumulator = new RecordAccumulator(
+            new RecordAccumulator.Settings(1024 * 1024, 100, 64 * 1024 * 1024, 100000, 0).lockFree(lockFree));
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int threadId = t;
+            Thread writer = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int seq = 0; seq < RECORDS_PER_THREAD; seq++)
+                        {
+                            StreamPartition sp = new StreamPartition("stream", String.valueOf(seq % PARTITIONS));
+                            accumulator.append(sp, 0, newRequest(threadId, seq), null, 10000);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<ProducerBatch> drained = Collections.synchronizedList(new ArrayList<ProducerBatch>());
+        Thread drainer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                CopyOnWriteArrayList<StreamPartition> sending = new CopyOnWriteArrayList<>();
+                while (writing.get() || accumulator.hasUndrained())
+                {
+                    for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), sending))
+                    {
+                        drained.add(batch);
+                        batch.done(new PutRecordsResult(), null);
+                        accumulator.batchIsDone(batch);
+                    }
+                }
+            }
+        };
+        drainer.start();
+        
+        start.countDown();
+        for (Thread writer : writers)
+        {
+            writer.join();
+        }
+        writing.set(false);
+        drainer.join();
+        
+        Assert.assertEquals(0, failures.get());
+        
+        // 每个线程写入同一分片的数据，在该分片的批次中必须保持写入顺序
+        int total = 0;
+        Map<String, Integer> lastSeq = new HashMap<>();
+        for (ProducerBatch batch : drained)
+        {
+            for (PutRecordsRequestEntry entry : batch.getBatchPutRecordsRequestEntrys())
+            {
+                ByteBuffer data = entry.getData();
+                int threadId = data.getInt(0);
+                int seq = data.getInt(4);
+                String key = batch.getTp().partition() + "-" + threadId;
+                Integer last = lastSeq.put(key, seq);
+                Assert.assertTrue("out of order " + key, last == null || last < seq);
+                total++;
+            }
+        }
+        Assert.assertEquals(THREADS * RECORDS_PER_THREAD, total);
+        Assert.assertFalse(accumulator.hasUndrained());
+    }
+    
+    static PutRecordsRequest newRequest(int threadId, int seq)
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(ByteBuffer.wrap(ByteBuffer.allocate(8).putInt(threadId).putInt(seq).array()));
+        List<PutRecordsRequestEntry> records = new ArrayList<>(1);
+        records.add(entry);
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        request.setRecords(records);
+        return request;
+    }
+}
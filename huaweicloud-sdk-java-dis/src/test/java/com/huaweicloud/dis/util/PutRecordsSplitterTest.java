@@ -0,0 +1,157 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.Constants;
+import com.huaweicloud.dis.exception.DISClientException;
+import com.huaweicloud.dis.exception.DISRequestEntityTooLargeException;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResult;
+import com.huaweicloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class PutRecordsSplitterTest
+{
+    @Test
+    public void testSplitUntilPartsFit()
+    {
+        // 8条100字节的记录，请求上限250字节：拆分到每个请求2条
+        LimitedSender sender = new LimitedSender(250, -1);
+        PutRecordsResult result = PutRecordsSplitter.putRecords(newRequest(100, 100, 100, 100, 100, 100, 100, 100), sender);
+        
+        Assert.assertEquals(0, result.getFailedRecordCount().get());
+        for (int i = 0; i < 8; i++)
+        {
+            Assert.assertEquals(String.valueOf(i), result.getRecords().get(i).getSequenceNumber());
+        }
+        // 1次整体 + 2次4条 + 4次2条
+        Assert.assertEquals(7, sender.calls.get());
+    }
+    
+    @Test
+    public void testOversizedRecordFailsAlone()
+    {
+        LimitedSender sender = new LimitedSender(250, -1);
+        PutRecordsResult result = PutRecordsSplitter.putRecords(newRequest(10, 300, 10), sender);
+        
+        Assert.assertEquals(1, result.getFailedRecordCount().get());
+        Assert.assertEquals("0", result.getRecords().get(0).getSequenceNumber());
+        Assert.assertEquals(Constants.ERROR_CODE_RECORD_TOO_LARGE, result.getRecords().get(1).getErrorCode());
+        Assert.assertEquals("2", result.getRecords().get(2).getSequenceNumber());
+    }
+    
+    @Test
+    public void testSingleRecordRequestStillThrows()
+    {
+        try
+        {
+            PutRecordsSplitter.putRecords(newRequest(300), new LimitedSender(250, -1));
+            Assert.fail("Single record request should not be split.");
+        }
+        catch (DISRequestEntityTooLargeException e)
+        {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testOtherErrorAfterPartialSuccess()
+    {
+        // 第3次请求(拆分后的第2部分)失败，第1部分已成功，剩余记录以请求异常失败
+        PutRecordsResult result =
+            PutRecordsSplitter.putRecords(newRequest(100, 100, 100, 100), new LimitedSender(250, 3));
+        
+        Assert.assertEquals(2, result.getFailedRecordCount().get());
+        Assert.assertEquals("0", result.getRecords().get(0).getSequenceNumber());
+        Assert.assertEquals("1", result.getRecords().get(1).getSequenceNumber());
+        Assert.assertEquals(Constants.ERROR_CODE_REQUEST_ERROR, result.getRecords().get(2).getErrorCode());
+        Assert.assertEquals(Constants.ERROR_CODE_REQUEST_ERROR, result.getRecords().get(3).getErrorCode());
+    }
+    
+    private static PutRecordsRequest newRequest(int... sizes)
+    {
+        List<PutRecordsRequestEntry> records = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++)
+        {
+            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+            entry.setData(ByteBuffer.wrap(new byte[sizes[i]]));
+            entry.setPartitionId(String.valueOf(i));
+            records.add(entry);
+        }
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        request.setRecords(records);
+        return request;
+    }
+    
+    /*
+     * 数据总字节数超过上限时抛出请求体超限异常，第failCall次调用抛出其他异常；成功记录的序号为其在原始请求中的下标
+     */
+    private static class LimitedSender implements Function<PutRecordsRequest, PutRecordsResult>
+    {
+        final long maxBytes;
+        
+        final int failCall;
+        
+        final AtomicInteger calls = new AtomicInteger();
+        
+        LimitedSender(long maxBytes, int failCall)
+        {
+            this.maxBytes = maxBytes;
+            this.failCall = failCall;
+        }
+        
+        @Override
+        public PutRecordsResult apply(PutRecordsRequest request)
+        {
+            if (calls.incrementAndGet() == failCall)
+            {
+                throw new DISClientException("Connection reset");
+            }
+            long bytes = 0;
+            for (PutRecordsRequestEntry entry : request.getRecords())
+            {
+                bytes += entry.getData().remaining();
+            }
+            if (bytes > maxBytes)
+            {
+                throw new DISRequestEntityTooLargeException("Request entity too large: " + bytes);
+            }
+            List<PutRecordsResultEntry> entries = new ArrayList<>();
+            for (PutRecordsRequestEntry entry : request.getRecords())
+            {
+                PutRecordsResultEntry resultEntry = new PutRecordsResultEntry();
+                resultEntry.setSequenceNumber(entry.getPartitionId());
+                entries.add(resultEntry);
+            }
+            PutRecordsResult result = new PutRecordsResult();
+            result.setFailedRecordCount(new AtomicInteger(0));
+            result.setRecords(entries);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.huaweicloud.dis.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.huaweicloud.dis.iface.api.protobuf.ProtobufUtils;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequest;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.huaweicloud.dis.iface.data.request.PutRecordsRequestEntryExtendedInfo;
+
+public class RecordSizeEstimatorTest
+{
+    private static final byte[] DATA = "0123456789abcdefghij".getBytes();
+    
+    @Test
+    public void testEstimateCoversSerializedSize()
+    {
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        List<PutRecordsRequestEntry> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            PutRecordsRequestEntry entry = newEntry(ByteBuffer.wrap(new byte[i * 37]));
+            entry.setPartitionKey("key-" + i);
+            if (i % 3 == 0)
+            {
+                entry.setPartitionId("shardId-000000000" + (i % 10));
+            }
+            if (i % 5 == 0)
+            {
+                entry.setTimestamp(System.currentTimeMillis());
+            }
+            if (i % 7 == 0)
+            {
+                entry.setExplicitHashKey(String.valueOf(i * 1000003L));
+                PutRecordsRequestEntryExtendedInfo extendedInfo = new PutRecordsRequestEntryExtendedInfo();
+                extendedInfo.setFileName("file-" + i);
+                extendedInfo.setDeliverDataId("id-" + i);
+                extendedInfo.setSeqNum((long)i);
+                entry.setExtendedInfo(extendedInfo);
+            }
+            records.add(entry);
+        }
+        request.setRecords(records);
+        
+        String prefix = "{\"stream_name\":\"stream\",\"records\":[]}";
+        long json = JsonUtils.objToJson(request).length() - prefix.length();
+        long jsonEstimate = RecordSizeEstimator.JSON.estimate(request);
+        Assert.assertTrue(jsonEstimate + " < " + json, jsonEstimate >= json);
+        Assert.assertTrue(jsonEstimate + " >> " + json, jsonEstimate - json < records.size() * 64);
+        
+        // stream_name字段: tag + 长度 + "stream"
+        long protobuf = ProtobufUtils.toProtobufPutRecordsRequest(request).getSerializedSize() - (2 + 6);
+        long protobufEstimate = RecordSizeEstimator.PROTOBUF.estimate(request);
+        Assert.assertTrue(protobufEstimate + " < " + protobuf, protobufEstimate >= protobuf);
+        Assert.assertTrue(protobufEstimate + " >> " + protobuf, protobufEstimate - protobuf < records.size() * 4);
+        
+        Assert.assertEquals(0, RecordSizeEstimator.PAYLOAD.estimate(newEntry(null)));
+    }
+    
+    @Test
+    public void testSerializeRemainingBytesOnly()
+        throws Exception
+    {
+        ByteBuffer heap = ByteBuffer.wrap(DATA, 3, 10);
+        ByteBuffer slice = ((ByteBuffer)ByteBuffer.wrap(DATA).position(3)).slice();
+        slice.limit(10);
+        ByteBuffer direct = ByteBuffer.allocateDirect(DATA.length);
+        direct.put(DATA);
+        direct.position(3);
+        direct.limit(13);
+        ByteBuffer readOnly = ByteBuffer.wrap(DATA, 3, 10).asReadOnlyBuffer();
+        
+        byte[] expected = Arrays.copyOfRange(DATA, 3, 13);
+        ObjectMapper mapper = new ObjectMapper();
+        for (ByteBuffer data : Arrays.asList(heap, slice, direct, readOnly))
+        {
+            PutRecordsRequestEntry entry = newEntry(data);
+            JsonNode node = mapper.readTree(JsonUtils.objToJson(entry));
+            Assert.assertArrayEquals(expected, node.get("data").binaryValue());
+            
+            PutRecordsRequest request = new PutRecordsRequest();
+            request.setRecords(Arrays.asList(entry));
+            Assert.assertArrayEquals(expected,
+                ProtobufUtils.toProtobufPutRecordsRequest(request).getRecords(0).getData().toByteArray());
+            
+            // 序列化不改变buffer的状态
+            Assert.assertEquals(10, data.remaining());
+            Assert.assertEquals(10, RecordSizeEstimator.PAYLOAD.estimate(entry));
+        }
+    }
+    
+    private static PutRecordsRequestEntry newEntry(ByteBuffer data)
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(data);
+        return entry;
+    }
+}
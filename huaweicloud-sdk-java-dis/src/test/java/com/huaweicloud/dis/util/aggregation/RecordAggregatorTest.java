@@ -0,0 +1,144 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.aggregation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.huaweicloud.dis.iface.data.response.GetRecordsResult;
+import com.huaweicloud.dis.iface.data.response.Record;
+
+public class RecordAggregatorTest
+{
+    @Test
+    public void testRoundTrip()
+    {
+        RecordAggregator aggregator = new RecordAggregator(1024 * 1024);
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertTrue(aggregator.add(i % 10 == 0 ? null : "key-" + i, ByteBuffer.wrap(("record-" + i).getBytes())));
+        }
+        int size = aggregator.getSizeBytes();
+        ByteBuffer data = aggregator.build();
+        Assert.assertEquals(size, data.remaining());
+        Assert.assertEquals(0, aggregator.getCount());
+        Assert.assertTrue(RecordDeaggregator.isAggregated(data));
+
+        Record record = newRecord(data);
+        GetRecordsResult result = new GetRecordsResult();
+        result.setRecords(Arrays.asList(record));
+        List<Record> userRecords = RecordDeaggregator.deaggregate(result);
+        Assert.assertEquals(100, userRecords.size());
+        for (int i = 0; i < 100; i++)
+        {
+            UserRecord userRecord = (UserRecord)userRecords.get(i);
+            Assert.assertEquals(i % 10 == 0 ? null : "key-" + i, userRecord.getPartitionKey());
+            Assert.assertEquals("record-" + i, toString(userRecord.getData()));
+            Assert.assertEquals(i, userRecord.getSubSequenceNumber());
+            Assert.assertEquals(record.getSequenceNumber(), userRecord.getSequenceNumber());
+            Assert.assertEquals(record.getTimestamp(), userRecord.getTimestamp());
+        }
+    }
+
+    @Test
+    public void testMaxSize()
+    {
+        RecordAggregator aggregator = new RecordAggregator(100);
+        ByteBuffer data = ByteBuffer.wrap(new byte[30]);
+        Assert.assertTrue(aggregator.add("k", data));
+        Assert.assertTrue(aggregator.add("k", data));
+        Assert.assertFalse(aggregator.add("k", data));
+        Assert.assertEquals(2, aggregator.getCount());
+        Assert.assertTrue(aggregator.getSizeBytes() <= 100);
+        Assert.assertEquals(30, data.remaining());
+
+        // 为空时超过maxSize的记录也能追加
+        aggregator.build();
+        Assert.assertTrue(aggregator.add("k", ByteBuffer.wrap(new byte[200])));
+        Assert.assertEquals(1, RecordDeaggregator.deaggregate(newRecord(aggregator.build())).size());
+    }
+
+    @Test
+    public void testPlainAndCorruptedRecords()
+    {
+        Record plain = newRecord(ByteBuffer.wrap("plain record".getBytes()));
+
+        RecordAggregator aggregator = new RecordAggregator(1024);
+        aggregator.add("a", ByteBuffer.wrap("1".getBytes()));
+        aggregator.add("b", ByteBuffer.wrap("2".getBytes()));
+        ByteBuffer corruptedData = aggregator.build();
+        corruptedData.put(corruptedData.limit() - 6, (byte)'x');
+        Record corrupted = newRecord(corruptedData);
+
+        aggregator.add("c", ByteBuffer.wrap("3".getBytes()));
+        aggregator.add("d", ByteBuffer.wrap("4".getBytes()));
+        Record valid = newRecord(aggregator.build());
+
+        List<Record> userRecords = RecordDeaggregator.deaggregate(Arrays.asList(plain, corrupted, valid));
+        Assert.assertEquals(4, userRecords.size());
+        Assert.assertSame(plain, userRecords.get(0));
+        Assert.assertSame(corrupted, userRecords.get(1));
+        Assert.assertEquals("c", userRecords.get(2).getPartitionKey());
+        Assert.assertEquals("4", toString(userRecords.get(3).getData()));
+    }
+
+    @Test
+    public void testDirectBuffers()
+    {
+        RecordAggregator aggregator = new RecordAggregator(1024);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            ByteBuffer data = ByteBuffer.allocateDirect(16);
+            data.put(("value-" + i).getBytes()).flip();
+            aggregator.add("key", data);
+            values.add("value-" + i);
+        }
+        ByteBuffer heap = aggregator.build();
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining() + 2);
+        direct.put((byte)0).put(heap).put((byte)0).flip();
+        direct.position(1).limit(direct.limit() - 1);
+
+        List<Record> userRecords = RecordDeaggregator.deaggregate(newRecord(direct));
+        Assert.assertEquals(3, userRecords.size());
+        for (int i = 0; i < 3; i++)
+        {
+            Assert.assertEquals(values.get(i), toString(userRecords.get(i).getData()));
+        }
+    }
+
+    private static Record newRecord(ByteBuffer data)
+    {
+        Record record = new Record();
+        record.setData(data);
+        record.setSequenceNumber("42");
+        record.setTimestamp(1000L);
+        return record;
+    }
+
+    private static String toString(ByteBuffer data)
+    {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huaweicloud.dis.util.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest
+{
+    @Test
+    public void testBuckets()
+    {
+        for (long v = 0; v < 100000; v++)
+        {
+            int bucket = Histogram.bucketOf(v);
+            Assert.assertTrue(v <= Histogram.upperBoundOf(bucket));
+            Assert.assertTrue(bucket == 0 || v > Histogram.upperBoundOf(bucket - 1));
+        }
+        Assert.assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+    
+    @Test
+    public void testPercentiles()
+    {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++)
+        {
+            histogram.record(i);
+        }
+        Assert.assertEquals(10000, histogram.count());
+        Assert.assertEquals(10000, histogram.max());
+        assertWithin(5000, histogram.percentile(0.5));
+        assertWithin(9900, histogram.percentile(0.99));
+        Assert.assertEquals(10000, histogram.percentile(1.0));
+        
+        Map<String, Number> snapshot = new MetricsRegistry().snapshot();
+        histogram.writeTo("latency", snapshot);
+        Assert.assertEquals(10000L, snapshot.get("latency.count"));
+        Assert.assertEquals(5000.5, snapshot.get("latency.mean").doubleValue(), 0.001);
+        assertWithin(9990, snapshot.get("latency.p999").longValue());
+    }
+    
+    @Test
+    public void testConcurrentRecord()
+        throws Exception
+    {
+        final Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++)
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 10000; i++)
+                    {
+                        histogram.record(i % 100);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        Assert.assertEquals(40000, histogram.count());
+        Assert.assertEquals(99, histogram.max());
+        Assert.assertEquals(4 * 100 * 4950, histogram.sum());
+    }
+    
+    private static void assertWithin(long expected, long actual)
+    {
+        Assert.assertTrue(actual + " is not close to " + expected, actual >= expected && actual <= expected * 1.125);
+    }
+}